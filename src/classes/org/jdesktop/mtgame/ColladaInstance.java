@@ -59,12 +59,16 @@
 package org.jdesktop.mtgame;
 
 import com.jme.scene.Node;
+import com.jme.scene.SharedMesh;
+import com.jme.scene.Spatial;
+import com.jme.scene.TriMesh;
 import com.jme.math.Vector3f;
 import com.jme.math.Quaternion;
 import com.jme.scene.state.RenderState;
 import com.jme.scene.state.ZBufferState;
 import com.jme.scene.state.CullState;
 import java.io.InputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.net.URL;
 import java.net.MalformedURLException;
@@ -121,14 +125,36 @@ public class ColladaInstance implements ConfigInstance {
      */
     void loadColladaFile(WorldManager wm, ConfigManager cm, String name, String colladaFile) {
         InputStream fileStream = null;
+        ModelCache cache = cm.getModelCache();
+        URL url = null;
+        String hash = null;
+
+        // If this model has been loaded already, share its geometry
+        String source = cm.getDataDirectory() + "/" + colladaFile;
+        Node shared = cm.getSharedModel(source);
+        if (shared != null) {
+            model = (Node) createSharedCopy(shared);
+            if (model != null) {
+                model.setName("Collada Model (" + name + ")");
+                createEntity(wm, "Collada Model (" + name + ")");
+                return;
+            }
+        }
 
         try {
-            URL url;
             url = new URL(cm.getDataDirectory() + "/" + colladaFile);
-            fileStream = url.openStream();
+            if (cache != null) {
+                // The source is hashed to find the compiled model
+                byte[] data = ModelCache.readSource(url);
+                hash = ModelCache.hash(data);
+                model = cache.load(hash);
+                fileStream = new ByteArrayInputStream(data);
+            } else {
+                fileStream = url.openStream();
+            }
 
             // handle gzipped COLLADA files
-            if (colladaFile.endsWith(".gz")) {
+            if (model == null && colladaFile.endsWith(".gz")) {
                 fileStream = new GZIPInputStream(fileStream);
             }
         } catch (FileNotFoundException ex) {
@@ -140,12 +166,71 @@ public class ColladaInstance implements ConfigInstance {
         }
 
         // Now load the model
-        ColladaImporter.load(fileStream, "Collada Model (" + name + ")");
-        model = ColladaImporter.getModel();
+        if (model == null) {
+            ColladaImporter.load(fileStream, "Collada Model (" + name + ")");
+            model = ColladaImporter.getModel();
+            if (cache != null && hash != null && model != null) {
+                cm.prepareModel(model);
+                cache.store(url, hash, model);
+            }
+        }
+
+        // Keep the loaded graph as a template which no instance changes,
+        // and give this instance a shared copy of it like later ones get
+        if (model != null && cm.getInstancingEnabled()) {
+            Node copy = (Node) createSharedCopy(model);
+            if (copy != null) {
+                cm.addSharedModel(source, model);
+                model = copy;
+            }
+        }
         model.setName("Collada Model (" + name + ")");
         createEntity(wm, "Collada Model (" + name + ")");
     }
 
+    /**
+     * Create a copy of a graph which shares its geometry, render states,
+     * and collision trees.  Each mesh becomes a SharedMesh of the original.  
+     * Only the transforms belong to the copy.  This returns null if the 
+     * graph has something other than Nodes and TriMeshes in it.
+     */
+    Spatial createSharedCopy(Spatial s) {
+        Spatial copy = null;
+
+        if (s instanceof TriMesh) {
+            copy = new SharedMesh(s.getName(), (TriMesh) s);
+        } else if (s instanceof Node) {
+            Node n = (Node) s;
+            Node nodeCopy = new Node(n.getName());
+            for (int i=0; i<n.getQuantity(); i++) {
+                Spatial child = createSharedCopy(n.getChild(i));
+                if (child == null) {
+                    return (null);
+                }
+                nodeCopy.attachChild(child);
+            }
+            copy = nodeCopy;
+        } else {
+            return (null);
+        }
+
+        copy.setLocalTranslation(new Vector3f(s.getLocalTranslation()));
+        copy.setLocalRotation(new Quaternion(s.getLocalRotation()));
+        copy.setLocalScale(new Vector3f(s.getLocalScale()));
+        copy.setCullHint(s.getLocalCullHint());
+        copy.setRenderQueueMode(s.getLocalRenderQueueMode());
+        copy.setLightCombineMode(s.getLocalLightCombineMode());
+        copy.setTextureCombineMode(s.getLocalTextureCombineMode());
+        RenderState.StateType[] types = RenderState.StateType.values();
+        for (int i=0; i<types.length; i++) {
+            RenderState rs = s.getRenderState(types[i]);
+            if (rs != null) {
+                copy.setRenderState(rs);
+            }
+        }
+        return (copy);
+    }
+
 
     void createEntity(WorldManager wm, String name) {
         JMECollisionSystem cs = (JMECollisionSystem)wm.getCollisionManager().loadCollisionSystem(JMECollisionSystem.class);
@@ -81,4 +81,21 @@ public class CollisionManager {
         
         return (cs);
     }
+
+    /**
+     * This method registers an already created collision system, so it
+     * can be configured before use.  If a system of the same class is 
+     * already loaded, that system is returned instead.
+     */
+    public CollisionSystem addCollisionSystem(CollisionSystem system) {
+        CollisionSystem cs = (CollisionSystem) collisionSystems.get(system.getClass());
+
+        if (cs == null) {
+            cs = system;
+            collisionSystems.put(system.getClass(), cs);
+            cs.setWorldManager(worldManager);
+        }
+
+        return (cs);
+    }
 }
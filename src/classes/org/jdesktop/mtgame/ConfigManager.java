@@ -36,6 +36,7 @@ import com.jme.scene.Spatial;
 import com.jme.scene.Node;
 import com.jme.scene.Geometry;
 import com.jme.scene.TriMesh;
+import com.jme.scene.SharedMesh;
 import com.jme.scene.shape.Quad;
 import com.jme.scene.state.RenderState;
 import com.jme.scene.state.BlendState;
@@ -119,6 +120,19 @@ public class ConfigManager implements ResourceLocator {
     private boolean showShadowMap = false;
     private Node shadowDebug = null;
 
+    /**
+     * The cache of compiled models, or null if models are not cached
+     */
+    private ModelCache modelCache = null;
+
+    /**
+     * The models which have been loaded, by source.  These are templates
+     * which are never attached to a scene, and every instance of the
+     * source is a copy which shares their geometry.
+     */
+    private HashMap<String,Node> sharedModels = new HashMap<String,Node>();
+    private boolean instancingEnabled = true;
+
     /**
      * A HashMap containing all ConfigInstances
      */
@@ -130,6 +144,75 @@ public class ConfigManager implements ResourceLocator {
     public ConfigManager(WorldManager wm) {
         worldManager = wm;
         collisionSystem = (JMECollisionSystem)wm.getCollisionManager().loadCollisionSystem(JMECollisionSystem.class);
+
+        String cacheDir = System.getProperty("mtgame.modelCache");
+        if (cacheDir != null) {
+            modelCache = new ModelCache(new java.io.File(cacheDir));
+        }
+    }
+
+    /**
+     * Set the cache used for compiled models.  Null turns caching off.
+     * The default cache directory can be set with the mtgame.modelCache
+     * property.
+     */
+    public void setModelCache(ModelCache cache) {
+        modelCache = cache;
+    }
+
+    /**
+     * Get the cache used for compiled models
+     */
+    public ModelCache getModelCache() {
+        return (modelCache);
+    }
+
+    /**
+     * Set whether instances of the same model share geometry.  The default
+     * is true.  Shared geometry should not be modified by one instance.
+     */
+    public void setInstancingEnabled(boolean enable) {
+        instancingEnabled = enable;
+        if (!enable) {
+            sharedModels.clear();
+        }
+    }
+
+    /**
+     * Get whether instances of the same model share geometry
+     */
+    public boolean getInstancingEnabled() {
+        return (instancingEnabled);
+    }
+
+    /**
+     * Get the model already loaded from the given source, or null
+     */
+    Node getSharedModel(String source) {
+        if (!instancingEnabled) {
+            return (null);
+        }
+        return (sharedModels.get(source));
+    }
+
+    /**
+     * Remember the template loaded from the given source, so later instances
+     * can share it.  The template should not be attached to a scene.
+     */
+    void addSharedModel(String source, Node model) {
+        if (instancingEnabled) {
+            sharedModels.put(source, model);
+        }
+    }
+
+    /**
+     * Check whether a mesh, or the mesh it shares, has tangents
+     */
+    private boolean hasTangents(TriMesh mesh) {
+        if (mesh instanceof SharedMesh) {
+            mesh = ((SharedMesh) mesh).getTarget();
+        }
+        return (mesh.getTangentBuffer() != null);
     }
 
     /**
@@ -500,6 +583,26 @@ public class ConfigManager implements ResourceLocator {
 
     }
 
+    /**
+     * Do the geometry work the configuration needs on a newly loaded model.
+     * This is done before the model is cached, so it doesn't need to be
+     * done again when the model is loaded from the cache.
+     */
+    void prepareModel(Spatial model) {
+        GeometryAttributes ga = (GeometryAttributes)configMap.get(model.getName());
+        if (ga != null && !ga.getShaderName().equals("None") && model instanceof TriMesh) {
+            if (!hasTangents((TriMesh) model)) {
+                TangentBinormalGenerator.generate((TriMesh) model);
+            }
+        }
+        if (model instanceof Node) {
+            Node n = (Node) model;
+            for (int i = 0; i < n.getQuantity(); i++) {
+                prepareModel(n.getChild(i));
+            }
+        }
+    }
+
     void parseModel(Spatial model, int level) {
         GeometryAttributes ga = (GeometryAttributes)configMap.get(model.getName());
         if (ga != null) {
@@ -530,7 +633,9 @@ public class ConfigManager implements ResourceLocator {
                 vboInfo.setVBOTangentEnabled(true);
                 vboInfo.setVBONormalEnabled(true);
                 vboInfo.setVBOVertexEnabled(true);
-                TangentBinormalGenerator.generate((TriMesh) s);
+                if (!hasTangents((TriMesh) s)) {
+                    TangentBinormalGenerator.generate((TriMesh) s);
+                }
                 //((SharedMesh)s).getTarget().setVBOInfo(vboInfo);
             }
 
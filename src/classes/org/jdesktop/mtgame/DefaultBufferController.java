@@ -161,9 +161,11 @@ public class DefaultBufferController implements BufferController {
      * This method is called to render the whole scene
      */
     public void renderScene(DisplaySystem ds, Renderer jmeRenderer, org.jdesktop.mtgame.Renderer mtRenderer) {
+        long frameTime = System.nanoTime();
+
         for (int i=0; i<renderBufferList.size(); i++) {
             RenderBuffer rb = renderBufferList.get(i);
-            if (rb.getEnable()) {
+            if (rb.getEnable() && rb.checkForUpdate(mtRenderer, frameTime)) {
                 renderBuffer(ds, jmeRenderer, mtRenderer, rb);
             }
         }
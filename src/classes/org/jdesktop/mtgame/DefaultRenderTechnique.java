@@ -39,6 +39,11 @@ import com.jme.scene.state.RenderState;
 import com.jme.renderer.Camera;
 import javolution.util.FastList;
 import com.jme.math.Vector3f;
+import com.jme.util.export.Savable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+import org.jdesktop.mtgame.util.FrustumCuller;
 
 
 /**
@@ -46,7 +51,7 @@ import com.jme.math.Vector3f;
  * 
  * @author Doug Twilleager
  */
-public class DefaultRenderTechnique implements RenderTechnique {
+public class DefaultRenderTechnique extends IndexedRenderTechnique {
     public enum ListType {
         Opaque,
         Transparent,
@@ -54,13 +59,60 @@ public class DefaultRenderTechnique implements RenderTechnique {
     }
 
     /**
-     * The list of Nodes to render
+     * The lists of geometry to render
      */
-    private FastList<RenderComponent> componentList = new FastList<RenderComponent>();
     private FastList<Spatial> opaqueList = new FastList<Spatial>();
     private FastList<Spatial> transparentList = new FastList<Spatial>();
     private FastList<Spatial> orthoList = new FastList<Spatial>();
-    private FastList<Spatial> spatialList = new FastList<Spatial>();;
+
+    /**
+     * The frustum cullers, one per camera.  The cameras are held weakly, so
+     * a camera which is no longer used takes its culler with it.
+     */
+    private WeakHashMap<Camera, FrustumCuller> cullers = new WeakHashMap<Camera, FrustumCuller>();
+
+    /**
+     * The list handed back from getSpatials() when culling, and the visible
+     * scene which stands in for each component's root in it
+     */
+    private FastList<Spatial> visibleList = new FastList<Spatial>();
+    private IdentityHashMap<RenderComponent, VisibleScene> visibleScenes = new IdentityHashMap<RenderComponent, VisibleScene>();
+
+    /**
+     * The parts of a scene root which may be visible to a camera.  This
+     * stands in for the root in the render list, so the render buffers
+     * still see one entry per component, with the root's user data, and
+     * time the entity as a whole.
+     */
+    static class VisibleScene extends Node {
+        private Node root = null;
+        private FastList<Spatial> visible = new FastList<Spatial>();
+
+        VisibleScene() {
+            super("VisibleScene");
+        }
+
+        /**
+         * The parts have already been culled
+         */
+        public void onDraw(Renderer r) {
+            draw(r);
+        }
+
+        public void draw(Renderer r) {
+            for (int i=0; i<visible.size(); i++) {
+                r.draw(visible.get(i));
+            }
+        }
+
+        public Savable getUserData(String key) {
+            return (root.getUserData(key));
+        }
+
+        public int getRenderQueueMode() {
+            return (root.getRenderQueueMode());
+        }
+    }
 
     /**
      * This is called when the technique is first loaded
@@ -76,6 +128,80 @@ public class DefaultRenderTechnique implements RenderTechnique {
 
     }
 
+    /**
+     * This gets called to get the spatials to draw.  For buffers which draw
+     * with the camera of their CameraComponent, each scene root is culled
+     * against that camera, and handed back as a VisibleScene which draws
+     * only the parts which may be visible.  Ortho roots are never culled.
+     */
+    public FastList<Spatial> getSpatials(RenderBuffer rb) {
+        Camera camera = getCullCamera(rb);
+        if (camera == null) {
+            return (super.getSpatials(rb));
+        }
+
+        visibleList.clear();
+        for (int i=0; i<getComponentCount(); i++) {
+            RenderComponent rc = getComponent(i);
+            Node root = rc.getSceneRoot();
+            if (root == null) {
+                continue;
+            }
+
+            if (rc.getOrtho()) {
+                visibleList.add(root);
+            } else {
+                VisibleScene scene = visibleScenes.get(rc);
+                if (scene == null) {
+                    scene = new VisibleScene();
+                    visibleScenes.put(rc, scene);
+                }
+                scene.root = root;
+                scene.visible.clear();
+                cullScene(camera, root, scene.visible);
+                visibleList.add(scene);
+            }
+        }
+        return (visibleList);
+    }
+
+    /**
+     * Get the camera a buffer draws its spatials with, if it can be culled.
+     * Cube map and shadow map buffers draw with their own cameras.
+     */
+    private Camera getCullCamera(RenderBuffer rb) {
+        if (!(rb instanceof OnscreenRenderBuffer) &&
+            !(rb instanceof TextureRenderBuffer)) {
+            return (null);
+        }
+
+        CameraComponent cc = rb.getCameraComponent();
+        if (cc == null) {
+            return (null);
+        }
+        return (cc.getCamera());
+    }
+
+    /**
+     * Get the frustum culler for the given camera
+     */
+    public FrustumCuller getFrustumCuller(Camera camera) {
+        FrustumCuller culler = cullers.get(camera);
+        if (culler == null) {
+            culler = new FrustumCuller();
+            cullers.put(camera, culler);
+        }
+        return (culler);
+    }
+
+    /**
+     * Add the spatials of the given scene which may be visible to the
+     * camera to the visible list.
+     */
+    public void cullScene(Camera camera, Spatial root, List<Spatial> visible) {
+        getFrustumCuller(camera).cull(camera, root, visible);
+    }
+
     private void cullAndSort(Camera camera, Spatial s, ListType type, FastList<Spatial> tmpList) {
         Camera.FrustumIntersect intersect = camera.contains(s.getWorldBound());
 
@@ -149,40 +275,31 @@ public class DefaultRenderTechnique implements RenderTechnique {
         return (dx*dx + dy*dy + dz*dz);
     }
 
-    /**
-     * This gets called to get all of the opaque spatial objects
-     * They are asumed to be sorted front to back
-     */
-    public FastList<Spatial> getSpatials(RenderBuffer rb) {
-        spatialList.clear();
-        for (int i=0; i<componentList.size(); i++) {
-            spatialList.add(componentList.get(i).getSceneRoot());
-        }
-        return (spatialList);
-    }
-
     /**
      * This gets called at the end of a rendered frame
      */
     public void endFrame(RenderBuffer rb) {
-
+        Camera camera = getCullCamera(rb);
+        if (camera != null) {
+            endCameraFrame(camera);
+        }
     }
 
     /**
-     * This method is called when a RenderComponent is added
+     * Forget the visible scene of a component which has been removed
      */
-    public void addRenderComponent(RenderComponent rc) {
-        rc.setRenderTechnique(this);
-        componentList.add(rc);
-
+    protected void componentRemoved(RenderComponent rc) {
+        visibleScenes.remove(rc);
     }
 
     /**
-     * This method is called when RenderComponent is removed
+     * This ends the frame of the culler for the given camera
      */
-    public void removeRenderComponent(RenderComponent rc) {
-        rc.setRenderTechnique(null);
-        componentList.remove(rc);
+    public void endCameraFrame(Camera camera) {
+        FrustumCuller culler = cullers.get(camera);
+        if (culler != null) {
+            culler.endFrame();
+        }
     }
 
     /**
@@ -45,6 +45,11 @@ public abstract class EntityComponent {
     */
    private boolean live = false;
 
+   /**
+    * The lock used to wait for changes in the live flag
+    */
+   private final Object liveLock = new Object();
+
    /**
     * Set the entity of this component
     * @deprecated
@@ -64,13 +69,31 @@ public abstract class EntityComponent {
     * Set the live flag for this component
     */
    void setLive(boolean l) {
-       live = l;
+       synchronized (liveLock) {
+           live = l;
+           liveLock.notifyAll();
+       }
    }
 
    /**
     * Return if this component is live
     */
    boolean isLive() {
-       return (live);
+       synchronized (liveLock) {
+           return (live);
+       }
+   }
+
+   /**
+    * Wait up to the given number of milliseconds for the live flag to
+    * match the given value.  Returns true if it matches.
+    */
+   boolean waitForLive(boolean l, long timeout) throws InterruptedException {
+       synchronized (liveLock) {
+           if (live != l) {
+               liveLock.wait(timeout);
+           }
+           return (live == l);
+       }
    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jdesktop.mtgame;
+
+import com.jme.scene.Node;
+import com.jme.scene.Spatial;
+import java.util.ArrayList;
+import javolution.util.FastList;
+
+/**
+ * A base class for RenderTechniques which keeps its RenderComponents in
+ * indexed slots.  Each component remembers its slot, so adding and removing
+ * a component is constant time no matter how many components the technique
+ * holds.  Removal moves the last component into the freed slot, so the
+ * order of the components is not preserved.
+ *
+ * The list of scene roots returned from getSpatials() is only rebuilt when
+ * a component is added, removed, or has its scene root changed.  Subclasses
+ * can use the componentAdded(), componentRemoved() and sceneRootChanged()
+ * methods to keep their own lists up to date in the same way.
+ *
+ * @author Doug Twilleager
+ */
+public abstract class IndexedRenderTechnique implements RenderTechnique {
+    /**
+     * The RenderComponents of this technique, indexed by slot
+     */
+    private ArrayList<RenderComponent> components = new ArrayList<RenderComponent>();
+
+    /**
+     * The list of scene roots handed back from getSpatials()
+     */
+    private FastList<Spatial> spatialList = new FastList<Spatial>();
+
+    /**
+     * A boolean indicating that the spatial list needs to be rebuilt
+     */
+    private boolean spatialsDirty = false;
+
+    /**
+     * This method is called when a RenderComponent is added
+     */
+    public void addRenderComponent(RenderComponent rc) {
+        if (rc.getRenderTechnique() == this && rc.getTechniqueSlot() >= 0) {
+            return;
+        }
+
+        rc.setRenderTechnique(this);
+        rc.setTechniqueSlot(components.size());
+        components.add(rc);
+        spatialsDirty = true;
+        componentAdded(rc);
+    }
+
+    /**
+     * This method is called when RenderComponent is removed
+     */
+    public void removeRenderComponent(RenderComponent rc) {
+        int slot = rc.getTechniqueSlot();
+
+        if (rc.getRenderTechnique() != this || slot < 0 ||
+            slot >= components.size() || components.get(slot) != rc) {
+            return;
+        }
+
+        // Move the last component into the freed slot
+        int last = components.size() - 1;
+        if (slot != last) {
+            RenderComponent moved = components.get(last);
+            components.set(slot, moved);
+            moved.setTechniqueSlot(slot);
+        }
+        components.remove(last);
+
+        rc.setTechniqueSlot(-1);
+        rc.setRenderTechnique(null);
+        spatialsDirty = true;
+        componentRemoved(rc);
+    }
+
+    /**
+     * This is called by the RenderComponent when its scene root is replaced
+     */
+    void updateSceneRoot(RenderComponent rc, Node oldRoot) {
+        if (rc.getRenderTechnique() == this && rc.getTechniqueSlot() >= 0) {
+            spatialsDirty = true;
+            sceneRootChanged(rc, oldRoot);
+        }
+    }
+
+    /**
+     * This gets called to get all of the opaque spatial objects
+     * They are asumed to be sorted front to back
+     */
+    public FastList<Spatial> getSpatials(RenderBuffer rb) {
+        if (spatialsDirty) {
+            spatialList.clear();
+            for (int i=0; i<components.size(); i++) {
+                spatialList.add(components.get(i).getSceneRoot());
+            }
+            spatialsDirty = false;
+        }
+        return (spatialList);
+    }
+
+    /**
+     * Get the number of RenderComponents in this technique
+     */
+    protected int getComponentCount() {
+        return (components.size());
+    }
+
+    /**
+     * Get the RenderComponent in the given slot
+     */
+    protected RenderComponent getComponent(int slot) {
+        return (components.get(slot));
+    }
+
+    /**
+     * Called after a RenderComponent has been added to this technique
+     */
+    protected void componentAdded(RenderComponent rc) {
+    }
+
+    /**
+     * Called after a RenderComponent has been removed from this technique
+     */
+    protected void componentRemoved(RenderComponent rc) {
+    }
+
+    /**
+     * Called after the scene root of one of our RenderComponents has changed
+     */
+    protected void sceneRootChanged(RenderComponent rc, Node oldRoot) {
+    }
+}
@@ -32,12 +32,11 @@ package org.jdesktop.mtgame;
 import com.bulletphysics.collision.shapes.BoxShape;
 import com.bulletphysics.collision.shapes.CollisionShape;
 import com.bulletphysics.collision.dispatch.CollisionObject;
+import com.bulletphysics.collision.dispatch.CollisionWorld;
 import com.bulletphysics.linearmath.Transform;
 import com.bulletphysics.linearmath.MotionState;
 import com.bulletphysics.dynamics.RigidBody;
 import com.bulletphysics.dynamics.RigidBodyConstructionInfo;
-import com.bulletphysics.collision.shapes.TriangleIndexVertexArray;
-import com.bulletphysics.collision.shapes.BvhTriangleMeshShape;
 import com.bulletphysics.collision.shapes.SphereShape;
 
 import com.jme.scene.Node;
@@ -92,6 +91,12 @@ public class JBulletCollisionComponent extends CollisionComponent implements Mot
     private com.jme.math.Matrix3f rotation = new com.jme.math.Matrix3f();
     private com.jme.math.Vector3f translation = new com.jme.math.Vector3f();
 
+    /**
+     * The channel used to send transforms to the renderer, and our slot in it
+     */
+    private JBulletTransformChannel transformChannel = null;
+    private int transformSlot = -1;
+
     /**
      * The set of listeners for initializ events
      */
@@ -118,25 +123,11 @@ public class JBulletCollisionComponent extends CollisionComponent implements Mot
     public JBulletCollisionComponent(CollisionSystem cs, TriMesh tm) {
         super(cs, null);
         triMesh = tm;
-        java.nio.IntBuffer indexBuffer = tm.getIndexBuffer();
-        java.nio.ByteBuffer indexbbuf = java.nio.ByteBuffer.allocate(indexBuffer.capacity() * 4);
-        indexBuffer.rewind();
-        for (int k = 0; k < indexBuffer.capacity(); k++) {
-            indexbbuf.putInt(indexBuffer.get());
-        }
-        
-        java.nio.FloatBuffer vertBuffer = tm.getVertexBuffer();
-        java.nio.ByteBuffer vertbbuf = java.nio.ByteBuffer.allocate(vertBuffer.capacity() * 4);
-        vertBuffer.rewind();
-        for (int k = 0; k < vertBuffer.capacity(); k++) {
-            vertbbuf.putFloat(vertBuffer.get());
+        if (cs instanceof JBulletDynamicCollisionSystem) {
+            collisionShape = ((JBulletDynamicCollisionSystem)cs).getShapeCache().getShape(tm);
+        } else {
+            collisionShape = JBulletMeshShapeCache.createShape(tm);
         }
-
-        TriangleIndexVertexArray tva = new TriangleIndexVertexArray(tm.getTriangleCount(),
-                indexbbuf, 12, tm.getVertexCount(), vertbbuf, 12);
-        //TriangleIndexVertexArray tva = new TriangleIndexVertexArray(2,
-        //        indexbbuf, 12, 4, vertbbuf, 12);
-        collisionShape = new BvhTriangleMeshShape(tva, false);
         worldTransform.origin.set(0.0f, 0.0f, 0.0f);
         worldTransform.basis.setIdentity();
     }
@@ -216,9 +207,19 @@ public class JBulletCollisionComponent extends CollisionComponent implements Mot
     }
     
     void nodeChanged() {
-        JBulletDynamicCollisionSystem cs = (JBulletDynamicCollisionSystem)getCollisionSystem();
+        CollisionSystem cs = getCollisionSystem();
+        CollisionWorld world = null;
+        if (cs instanceof JBulletDynamicCollisionSystem) {
+            world = ((JBulletDynamicCollisionSystem)cs).getDynamicsWorld();
+        } else if (cs instanceof JBulletCollisionSystem) {
+            world = ((JBulletCollisionSystem)cs).getCollisionWorld();
+        }
+        if (world == null || collisionObject == null) {
+            // Not part of a world yet
+            return;
+        }
         collisionObject.setWorldTransform(computeTransform(getNode(), triMesh));
-        cs.getDynamicsWorld().updateSingleAabb(collisionObject);
+        world.updateSingleAabb(collisionObject);
     }
 
     private Transform computeTransform(Node n, TriMesh tm) {
@@ -294,10 +295,33 @@ public class JBulletCollisionComponent extends CollisionComponent implements Mot
         return (physicsComponent);
     }
     
+    /**
+     * Set the transform channel and slot for this component
+     */
+    void setTransformSlot(JBulletTransformChannel channel, int slot) {
+        transformChannel = channel;
+        transformSlot = slot;
+    }
+
+    /**
+     * Get the transform channel slot for this component
+     */
+    int getTransformSlot() {
+        return (transformSlot);
+    }
+
     /**
      * Catch the setTransform method
      */
     public void setWorldTransform(Transform t) {
+        if (transformChannel != null) {
+            synchronized (rotation) {
+                worldTransform.set(t);
+            }
+            transformChannel.setTransform(transformSlot, t);
+            return;
+        }
+
         synchronized (rotation) {
             worldTransform.set(t);
             translation.x = worldTransform.origin.x;
@@ -30,6 +30,8 @@
 package org.jdesktop.mtgame;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 import com.bulletphysics.collision.broadphase.BroadphaseInterface;
 import com.bulletphysics.collision.broadphase.AxisSweep3;
@@ -42,13 +44,13 @@ import com.jme.math.Ray;
 
 import com.jme.scene.Node;
 import com.jme.scene.Spatial;
-import com.jme.scene.GeometricUpdateListener;
+import com.jme.scene.GeometricBatchUpdateListener;
 
 /**
  * This collision system uses jme methods to implement collision queries
  * @author Doug Twilleager
  */
-public class JBulletCollisionSystem extends CollisionSystem implements GeometricUpdateListener {
+public class JBulletCollisionSystem extends CollisionSystem implements GeometricBatchUpdateListener {
     /**
      * Some JBullet Collision Objects
      */
@@ -61,6 +63,12 @@ public class JBulletCollisionSystem extends CollisionSystem implements Geometric
      * The list of collision components to be used for collision queries
      */
     private ArrayList collisionComponents = new ArrayList();
+
+    /**
+     * The collision components by node, for geometric updates
+     */
+    private IdentityHashMap<Spatial, JBulletCollisionComponent> spatialMap =
+            new IdentityHashMap<Spatial, JBulletCollisionComponent>();
     
     /**
      * The default constructor
@@ -93,6 +101,7 @@ public class JBulletCollisionSystem extends CollisionSystem implements Geometric
         synchronized (collisionComponents) {
             collisionComponents.remove(jcc);
             jcc.getNode().removeGeometricUpdateListener(this);
+            spatialMap.remove(jcc.getNode());
             collisionWorld.removeCollisionObject(jcc.getCollisionObject());
         }
     }
@@ -102,6 +111,7 @@ public class JBulletCollisionSystem extends CollisionSystem implements Geometric
         jcc.initialize();
         synchronized (collisionComponents) {
             jcc.getNode().addGeometricUpdateListener(this);
+            spatialMap.put(jcc.getNode(), jcc);
             collisionWorld.addCollisionObject(jcc.getCollisionObject());
             collisionComponents.add(cc);
         }
@@ -117,15 +127,30 @@ public class JBulletCollisionSystem extends CollisionSystem implements Geometric
     
     public void geometricDataChanged(Spatial s) {
         synchronized (collisionComponents) {
-            for (int i=0; i<collisionComponents.size(); i++) {
-                JBulletCollisionComponent jcc = (JBulletCollisionComponent) collisionComponents.get(i);
-                if (jcc.getNode() == s) {
+            JBulletCollisionComponent jcc = spatialMap.get(s);
+            if (jcc != null) {
+                jcc.nodeChanged();
+            }
+        }
+    }
+
+    public void geometricDataChanged(List<Spatial> spatials) {
+        synchronized (collisionComponents) {
+            for (int i=0; i<spatials.size(); i++) {
+                JBulletCollisionComponent jcc = spatialMap.get(spatials.get(i));
+                if (jcc != null) {
                     jcc.nodeChanged();
-                    break;
                 }
             }
         }
     }
+
+    /**
+     * Get the collision world
+     */
+    CollisionWorld getCollisionWorld() {
+        return (collisionWorld);
+    }
     
     /**
      * TODO: Need to implement this
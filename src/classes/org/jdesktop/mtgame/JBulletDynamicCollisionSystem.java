@@ -30,10 +30,15 @@
 package org.jdesktop.mtgame;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 import com.bulletphysics.collision.broadphase.BroadphaseInterface;
 import com.bulletphysics.collision.broadphase.AxisSweep3;
+import com.bulletphysics.collision.broadphase.AxisSweep3_32;
+import com.bulletphysics.collision.broadphase.DbvtBroadphase;
 import com.bulletphysics.collision.dispatch.CollisionDispatcher;
+import com.bulletphysics.collision.dispatch.CollisionObject;
 import com.bulletphysics.collision.dispatch.DefaultCollisionConfiguration;
 import com.bulletphysics.collision.dispatch.CollisionWorld;
 import com.bulletphysics.dynamics.DiscreteDynamicsWorld;
@@ -42,6 +47,9 @@ import com.bulletphysics.dynamics.constraintsolver.ConstraintSolver;
 import com.bulletphysics.dynamics.constraintsolver.SequentialImpulseConstraintSolver;
 import com.bulletphysics.dynamics.RigidBody;
 import com.bulletphysics.collision.shapes.CollisionShape;
+import com.bulletphysics.linearmath.AabbUtil2;
+import com.bulletphysics.linearmath.Transform;
+import com.bulletphysics.util.ObjectArrayList;
 import com.jmex.terrain.TerrainPage;
 
 import javax.vecmath.Vector3f;
@@ -49,14 +57,49 @@ import com.jme.math.Ray;
 
 import com.jme.scene.Node;
 import com.jme.scene.Spatial;
-import com.jme.scene.GeometricUpdateListener;
+import com.jme.scene.GeometricBatchUpdateListener;
 import com.jme.scene.TriMesh;
+import java.util.logging.Logger;
 
 /**
  * This collision system uses jme methods to implement collision queries
  * @author Doug Twilleager
  */
-public class JBulletDynamicCollisionSystem extends CollisionSystem implements GeometricUpdateListener {
+public class JBulletDynamicCollisionSystem extends CollisionSystem implements GeometricBatchUpdateListener {
+    /**
+     * A logger
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(JBulletDynamicCollisionSystem.class.getName());
+
+    /**
+     * The broadphase algorithms available
+     */
+    public enum BroadphaseType {
+        /**
+         * A dynamic bounding volume tree.  This has no world bounds or 
+         * object limit, and handles large worlds with many moving objects.
+         */
+        DBVT,
+
+        /**
+         * Sweep and prune over a fixed set of world bounds, with a 
+         * preallocated pool of handles.
+         */
+        AXIS_SWEEP
+    }
+
+    /**
+     * The default broadphase configuration
+     */
+    public static final float DEFAULT_WORLD_EXTENT = 10000.0f;
+    public static final int DEFAULT_MAX_HANDLES = 1000;
+
+    /**
+     * The most handles the 16 bit sweep and prune can manage
+     */
+    private static final int MAX_AXIS_SWEEP_HANDLES = 16384;
+
     /**
      * Some JBullet Collision Objects
      */
@@ -70,21 +113,162 @@ public class JBulletDynamicCollisionSystem extends CollisionSystem implements Ge
      * The list of collision components to be used for collision queries
      */
     private ArrayList collisionComponents = new ArrayList();
+
+    /**
+     * A map from the static spatials we listen to, to their components
+     */
+    private IdentityHashMap<Spatial, JBulletCollisionComponent> spatialMap = 
+            new IdentityHashMap<Spatial, JBulletCollisionComponent>();
+
+    /**
+     * The shared triangle mesh shapes
+     */
+    private JBulletMeshShapeCache shapeCache = new JBulletMeshShapeCache();
+
+    /**
+     * A copy of the world used for ray tests, so they don't wait for the
+     * physics step.  This is null when snapshots are disabled.
+     */
+    private volatile RaySnapshot raySnapshot = null;
+    private boolean raySnapshotEnabled = false;
+
+    /**
+     * The broadphase configuration
+     */
+    private BroadphaseType broadphaseType = null;
+    private Vector3f worldAabbMin = null;
+    private Vector3f worldAabbMax = null;
+    private int maxHandles = 0;
     
     /**
-     * The default constructor
+     * The default constructor.  The broadphase can be configured with the
+     * mtgame.physics.broadphase (dbvt or axissweep), mtgame.physics.worldExtent,
+     * and mtgame.physics.maxHandles properties.
      */
     public JBulletDynamicCollisionSystem() {
+        this(getBroadphaseProperty(), getWorldBoundsProperty(-1.0f), 
+             getWorldBoundsProperty(1.0f), getMaxHandlesProperty());
+    }
+
+    /**
+     * Create a collision system with the given broadphase.  The world bounds
+     * and handle count are only used by the sweep and prune broadphase.  
+     * The system can be registered with CollisionManager.addCollisionSystem.
+     */
+    public JBulletDynamicCollisionSystem(BroadphaseType type, Vector3f worldMin, 
+            Vector3f worldMax, int maxHandles) {
+        broadphaseType = type;
+        worldAabbMin = new Vector3f(worldMin);
+        worldAabbMax = new Vector3f(worldMax);
+        this.maxHandles = maxHandles;
+
         collisionConfiguration = new DefaultCollisionConfiguration();
         dispatcher = new CollisionDispatcher(collisionConfiguration);
-        Vector3f worldAabbMin = new Vector3f(-10000, -10000, -10000);
-        Vector3f worldAabbMax = new Vector3f(10000, 10000, 10000);
-        overlappingPairCache = new AxisSweep3(worldAabbMin, worldAabbMax, 1000);
+        overlappingPairCache = createBroadphase();
         solver = new SequentialImpulseConstraintSolver();
         dynamicsWorld = new DiscreteDynamicsWorld(dispatcher, overlappingPairCache, solver, collisionConfiguration);
         dynamicsWorld.setGravity(new Vector3f(0f, -10f, 0f));
     }
     
+    /**
+     * Create the configured broadphase
+     */
+    private BroadphaseInterface createBroadphase() {
+        BroadphaseInterface bp = null;
+
+        switch (broadphaseType) {
+            case DBVT:
+                bp = new DbvtBroadphase();
+                break;
+            case AXIS_SWEEP:
+                if (maxHandles > MAX_AXIS_SWEEP_HANDLES) {
+                    bp = new AxisSweep3_32(worldAabbMin, worldAabbMax, maxHandles);
+                } else {
+                    bp = new AxisSweep3(worldAabbMin, worldAabbMax, maxHandles);
+                }
+                break;
+        }
+        return (bp);
+    }
+
+    /**
+     * Get the broadphase type from the system properties
+     */
+    private static BroadphaseType getBroadphaseProperty() {
+        String type = System.getProperty("mtgame.physics.broadphase");
+        if ("dbvt".equalsIgnoreCase(type)) {
+            return (BroadphaseType.DBVT);
+        }
+        return (BroadphaseType.AXIS_SWEEP);
+    }
+
+    /**
+     * Get one corner of the world bounds from the system properties
+     */
+    private static Vector3f getWorldBoundsProperty(float sign) {
+        float extent = DEFAULT_WORLD_EXTENT;
+        String value = System.getProperty("mtgame.physics.worldExtent");
+        if (value != null) {
+            try {
+                extent = Float.parseFloat(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Bad mtgame.physics.worldExtent: " + value);
+            }
+        }
+        extent *= sign;
+        return (new Vector3f(extent, extent, extent));
+    }
+
+    /**
+     * Get the sweep and prune handle count from the system properties
+     */
+    private static int getMaxHandlesProperty() {
+        return (Integer.getInteger("mtgame.physics.maxHandles", DEFAULT_MAX_HANDLES).intValue());
+    }
+
+    /**
+     * Get the triangle mesh shape cache
+     */
+    JBulletMeshShapeCache getShapeCache() {
+        return (shapeCache);
+    }
+
+    /**
+     * Get the broadphase type
+     */
+    public BroadphaseType getBroadphaseType() {
+        return (broadphaseType);
+    }
+
+    /**
+     * Get the minimum corner of the world bounds
+     */
+    public Vector3f getWorldAabbMin(Vector3f min) {
+        if (min == null) {
+            min = new Vector3f();
+        }
+        min.set(worldAabbMin);
+        return (min);
+    }
+
+    /**
+     * Get the maximum corner of the world bounds
+     */
+    public Vector3f getWorldAabbMax(Vector3f max) {
+        if (max == null) {
+            max = new Vector3f();
+        }
+        max.set(worldAabbMax);
+        return (max);
+    }
+
+    /**
+     * Get the number of handles for the sweep and prune broadphase
+     */
+    public int getMaxHandles() {
+        return (maxHandles);
+    }
+
     /**
      * This creates a default collision component object.  The default collision
      * component object exposes jME picking/collision API's
@@ -129,13 +313,20 @@ public class JBulletDynamicCollisionSystem extends CollisionSystem implements Ge
         synchronized (dynamicsWorld) {
             collisionComponents.remove(cc);         
             if (jcc.getPhysicsComponent() != null) {
+                getTransformChannel(jcc).removeComponent(jcc);
                 dynamicsWorld.removeRigidBody((RigidBody) jcc.getCollisionObject());
             } else {
                 if (cc.getNode()!=null) {
                     cc.getNode().removeGeometricUpdateListener(this);
+                    spatialMap.remove(cc.getNode());
+                }
+                if (jcc.getTriMesh() != null) {
+                    jcc.getTriMesh().removeGeometricUpdateListener(this);
+                    spatialMap.remove(jcc.getTriMesh());
                 }
                 dynamicsWorld.removeCollisionObject(jcc.getCollisionObject());
             }
+            invalidateRaySnapshot();
         }
     }
     
@@ -145,38 +336,190 @@ public class JBulletDynamicCollisionSystem extends CollisionSystem implements Ge
             jcc.initialize();
 
             if (jcc.getPhysicsComponent() != null) {
+                getTransformChannel(jcc).addComponent(jcc);
                 dynamicsWorld.addRigidBody((RigidBody) jcc.getCollisionObject());
             } else {
                 if (jcc.getNode() != null && jcc.getPhysicsComponent() == null) {
                     jcc.getNode().addGeometricUpdateListener(this);
+                    spatialMap.put(jcc.getNode(), jcc);
                 }
                 if (jcc.getTriMesh() != null && jcc.getPhysicsComponent() == null) {
                     jcc.getTriMesh().addGeometricUpdateListener(this);
+                    spatialMap.put(jcc.getTriMesh(), jcc);
                 }
                 dynamicsWorld.addCollisionObject(jcc.getCollisionObject());
                 dynamicsWorld.updateSingleAabb(jcc.getCollisionObject());
             }
             collisionComponents.add(cc);
+            invalidateRaySnapshot();
         }
     }
+    /**
+     * Get the transform channel of the physics system driving a component
+     */
+    private JBulletTransformChannel getTransformChannel(JBulletCollisionComponent jcc) {
+        JBulletPhysicsSystem ps = (JBulletPhysicsSystem) jcc.getPhysicsComponent().getPhysicsSystem();
+        return (ps.getTransformChannel());
+    }
+
     /**
      * A pick routine, which will pick against every scene rendered
      */
     public void rayTest(Vector3f from, Vector3f to, CollisionWorld.RayResultCallback result) {
+        RaySnapshot snapshot = raySnapshot;
+        if (snapshot != null) {
+            snapshot.rayTest(from, to, result, dynamicsWorld);
+            return;
+        }
+
         synchronized (dynamicsWorld) {
             dynamicsWorld.rayTest(from, to, result);
         }
     }
+
+    /**
+     * Enable or disable ray tests against a snapshot of the world.  The
+     * snapshot is refreshed after each physics step that moves something.
+     */
+    void setRaySnapshotEnabled(boolean enable) {
+        synchronized (dynamicsWorld) {
+            raySnapshotEnabled = enable;
+            raySnapshot = null;
+            if (enable) {
+                updateRaySnapshot(true);
+            }
+        }
+    }
+
+    /**
+     * Refresh the ray test snapshot, if anything moved or it was thrown away.
+     * This must be called with the dynamics world locked.  Objects which are
+     * asleep and unchanged share their entries with the previous snapshot.
+     */
+    void updateRaySnapshot(boolean moved) {
+        if (!raySnapshotEnabled || (!moved && raySnapshot != null)) {
+            return;
+        }
+        raySnapshot = new RaySnapshot(dynamicsWorld.getCollisionObjectArray(), raySnapshot);
+    }
+
+    /**
+     * Throw away the ray test snapshot after objects are added, removed or
+     * moved outside of the physics step.  Ray tests go to the world itself
+     * until the next physics update builds a new one.  This must be called
+     * with the dynamics world locked.
+     */
+    private void invalidateRaySnapshot() {
+        raySnapshot = null;
+    }
+
+    /**
+     * An immutable copy of the collision objects, their transforms and 
+     * their bounds, as of the last physics step.  The shapes themselves are
+     * not copied, so the bounds are tested without a lock, but the exact
+     * test against the shapes is done with the dynamics world locked.
+     */
+    static class RaySnapshot {
+        private CollisionObject[] objects = null;
+        private CollisionShape[] shapes = null;
+        private Transform[] transforms = null;
+        private Vector3f[] aabbMin = null;
+        private Vector3f[] aabbMax = null;
+
+        RaySnapshot(ObjectArrayList<CollisionObject> list, RaySnapshot last) {
+            int size = list.size();
+            objects = new CollisionObject[size];
+            shapes = new CollisionShape[size];
+            transforms = new Transform[size];
+            aabbMin = new Vector3f[size];
+            aabbMax = new Vector3f[size];
+
+            for (int i=0; i<size; i++) {
+                CollisionObject co = list.getQuick(i);
+                objects[i] = co;
+                shapes[i] = co.getCollisionShape();
+                if (last != null && i < last.objects.length && last.objects[i] == co &&
+                    last.shapes[i] == shapes[i] && !co.isActive()) {
+                    transforms[i] = last.transforms[i];
+                    aabbMin[i] = last.aabbMin[i];
+                    aabbMax[i] = last.aabbMax[i];
+                } else {
+                    transforms[i] = co.getWorldTransform(new Transform());
+                    aabbMin[i] = new Vector3f();
+                    aabbMax[i] = new Vector3f();
+                    shapes[i].getAabb(transforms[i], aabbMin[i], aabbMax[i]);
+                }
+            }
+        }
+
+        /**
+         * Cast a ray against the snapshot, the same way the collision world
+         * does.  The objects whose bounds the ray hits are tested against
+         * their shapes holding the given lock, so a physics step can't
+         * change a shape during the test.
+         */
+        void rayTest(Vector3f from, Vector3f to, CollisionWorld.RayResultCallback result,
+                Object shapeLock) {
+            Transform rayFrom = new Transform();
+            rayFrom.setIdentity();
+            rayFrom.origin.set(from);
+            Transform rayTo = new Transform();
+            rayTo.setIdentity();
+            rayTo.origin.set(to);
+
+            float[] hitLambda = new float[1];
+            Vector3f hitNormal = new Vector3f();
+            int[] candidates = null;
+            int numCandidates = 0;
+            for (int i=0; i<objects.length; i++) {
+                if (!result.needsCollision(objects[i].getBroadphaseHandle())) {
+                    continue;
+                }
+                hitLambda[0] = result.closestHitFraction;
+                if (AabbUtil2.rayAabb(from, to, aabbMin[i], aabbMax[i], hitLambda, hitNormal)) {
+                    if (candidates == null) {
+                        candidates = new int[objects.length - i];
+                    }
+                    candidates[numCandidates++] = i;
+                }
+            }
+            if (numCandidates == 0) {
+                return;
+            }
+
+            synchronized (shapeLock) {
+                for (int c=0; c<numCandidates; c++) {
+                    int i = candidates[c];
+                    CollisionWorld.rayTestSingle(rayFrom, rayTo, objects[i], shapes[i], 
+                            transforms[i], result);
+                }
+            }
+        }
+    }
     
     public void geometricDataChanged(Spatial s) {
         synchronized (dynamicsWorld) {
-            for (int i=0; i<collisionComponents.size(); i++) {
-                JBulletCollisionComponent jcc = (JBulletCollisionComponent) collisionComponents.get(i);
-                if (jcc.getNode() == s || jcc.getTriMesh() == s) {
+            JBulletCollisionComponent jcc = spatialMap.get(s);
+            if (jcc != null) {
+                jcc.nodeChanged();
+                invalidateRaySnapshot();
+            }
+        }
+    }
+
+    public void geometricDataChanged(List<Spatial> spatials) {
+        synchronized (dynamicsWorld) {
+            boolean changed = false;
+            for (int i=0; i<spatials.size(); i++) {
+                JBulletCollisionComponent jcc = spatialMap.get(spatials.get(i));
+                if (jcc != null) {
                     jcc.nodeChanged();
-                    break;
+                    changed = true;
                 }
             }
+            if (changed) {
+                invalidateRaySnapshot();
+            }
         }
     }
     
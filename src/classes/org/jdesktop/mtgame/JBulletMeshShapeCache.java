@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jdesktop.mtgame;
+
+import com.bulletphysics.collision.shapes.BvhTriangleMeshShape;
+import com.bulletphysics.collision.shapes.StridingMeshInterface;
+import com.bulletphysics.collision.shapes.VertexData;
+import com.jme.scene.TriMesh;
+
+import java.lang.ref.WeakReference;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import javax.vecmath.Tuple3f;
+
+/**
+ * This class builds JBullet triangle mesh shapes from jME TriMesh's.  The
+ * mesh's vertex and index buffers are copied, with one bulk get each, into
+ * arrays owned by the shape, so changing a mesh later can't change a shape
+ * or leave its BVH out of date.  Shapes are cached by mesh contents, so 
+ * instances of the same geometry share one copy and one BVH, and a mesh
+ * which has been modified simply gets a new shape.  Lookups hash and
+ * compare the mesh's own buffers, so the copy is only made on a miss.
+ *
+ * @author Doug Twilleager
+ */
+class JBulletMeshShapeCache {
+    /**
+     * The shapes, by mesh contents
+     */
+    private HashMap<MeshKey, WeakReference<BvhTriangleMeshShape>> contentMap =
+            new HashMap<MeshKey, WeakReference<BvhTriangleMeshShape>>();
+
+    /**
+     * Some statistics
+     */
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * The default constructor
+     */
+    JBulletMeshShapeCache() {
+    }
+
+    /**
+     * Get a shape for the given mesh, creating it if need be.
+     */
+    synchronized BvhTriangleMeshShape getShape(TriMesh tm) {
+        BvhTriangleMeshShape shape = null;
+        MeshKey key = new MeshKey(tm);
+        WeakReference<BvhTriangleMeshShape> ref = contentMap.get(key);
+        if (ref != null) {
+            shape = ref.get();
+        }
+
+        if (shape == null) {
+            misses++;
+            purge();
+            key.copy();
+            shape = buildShape(key);
+            contentMap.put(key, new WeakReference<BvhTriangleMeshShape>(shape));
+        } else {
+            hits++;
+        }
+        return (shape);
+    }
+
+    /**
+     * Remove the content entries whose shapes have been collected
+     */
+    private void purge() {
+        Iterator<WeakReference<BvhTriangleMeshShape>> iter = contentMap.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().get() == null) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Clear the cache
+     */
+    synchronized void clear() {
+        contentMap.clear();
+    }
+
+    /**
+     * Get the number of requests satisfied from the cache
+     */
+    synchronized int getHits() {
+        return (hits);
+    }
+
+    /**
+     * Get the number of shapes that had to be built
+     */
+    synchronized int getMisses() {
+        return (misses);
+    }
+
+    /**
+     * Create an uncached shape for a mesh
+     */
+    static BvhTriangleMeshShape createShape(TriMesh tm) {
+        MeshKey key = new MeshKey(tm);
+        key.copy();
+        return (buildShape(key));
+    }
+
+    /**
+     * Create a shape over the arrays copied into a key
+     */
+    private static BvhTriangleMeshShape buildShape(MeshKey key) {
+        return (new BvhTriangleMeshShape(new TriMeshInterface(key), false));
+    }
+
+    /**
+     * A key which compares meshes by their vertices and indices.  It reads
+     * the mesh's buffers in place until copy() is called, which is only
+     * done for a key that goes into the cache.  The contents are only
+     * compared when the hashes match.
+     */
+    static class MeshKey {
+        private FloatBuffer vb = null;
+        private IntBuffer ib = null;
+        private float[] vertices = null;
+        private int[] indices = null;
+        private int vertexLength = 0;
+        private int indexLength = 0;
+        private int hash = 0;
+
+        MeshKey(TriMesh tm) {
+            vb = tm.getVertexBuffer();
+            ib = tm.getIndexBuffer();
+            vertexLength = tm.getVertexCount()*3;
+            indexLength = tm.getTriangleCount()*3;
+
+            int vh = 1;
+            for (int i=0; i<vertexLength; i++) {
+                vh = 31*vh + Float.floatToIntBits(vb.get(i));
+            }
+            int ih = 1;
+            for (int i=0; i<indexLength; i++) {
+                ih = 31*ih + ib.get(i);
+            }
+            hash = vh*31 + ih;
+        }
+
+        /**
+         * Copy the contents out of the mesh, with one bulk get each, and
+         * let go of its buffers
+         */
+        void copy() {
+            if (vertices != null) {
+                return;
+            }
+
+            FloatBuffer v = vb.duplicate();
+            IntBuffer i = ib.duplicate();
+            vertices = new float[vertexLength];
+            indices = new int[indexLength];
+            v.clear();
+            v.get(vertices);
+            i.clear();
+            i.get(indices);
+            vb = null;
+            ib = null;
+        }
+
+        private float getVertex(int i) {
+            return ((vertices != null) ? vertices[i] : vb.get(i));
+        }
+
+        private int getIndex(int i) {
+            return ((indices != null) ? indices[i] : ib.get(i));
+        }
+
+        public int hashCode() {
+            return (hash);
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MeshKey)) {
+                return (false);
+            }
+            MeshKey key = (MeshKey) obj;
+            if (key.hash != hash || key.vertexLength != vertexLength ||
+                key.indexLength != indexLength) {
+                return (false);
+            }
+            for (int i=0; i<vertexLength; i++) {
+                if (Float.floatToIntBits(getVertex(i)) !=
+                    Float.floatToIntBits(key.getVertex(i))) {
+                    return (false);
+                }
+            }
+            for (int i=0; i<indexLength; i++) {
+                if (getIndex(i) != key.getIndex(i)) {
+                    return (false);
+                }
+            }
+            return (true);
+        }
+    }
+
+    /**
+     * A mesh interface over the arrays copied from a TriMesh
+     */
+    static class TriMeshInterface extends StridingMeshInterface {
+        private ArrayVertexData data = null;
+
+        TriMeshInterface(MeshKey key) {
+            data = new ArrayVertexData(key.vertices, key.indices);
+        }
+
+        public VertexData getLockedVertexIndexBase(int subpart) {
+            return (data);
+        }
+
+        public VertexData getLockedReadOnlyVertexIndexBase(int subpart) {
+            return (data);
+        }
+
+        public void unLockVertexBase(int subpart) {
+        }
+
+        public void unLockReadOnlyVertexBase(int subpart) {
+        }
+
+        public int getNumSubParts() {
+            return (1);
+        }
+
+        public void preallocateVertices(int numverts) {
+        }
+
+        public void preallocateIndices(int numindices) {
+        }
+    }
+
+    /**
+     * Vertex data backed by arrays of vertices and indices
+     */
+    static class ArrayVertexData extends VertexData {
+        private float[] vertices = null;
+        private int[] indices = null;
+
+        ArrayVertexData(float[] vertices, int[] indices) {
+            this.vertices = vertices;
+            this.indices = indices;
+        }
+
+        public int getVertexCount() {
+            return (vertices.length/3);
+        }
+
+        public int getIndexCount() {
+            return (indices.length);
+        }
+
+        public <T extends Tuple3f> T getVertex(int idx, T out) {
+            int i = idx*3;
+            out.set(vertices[i], vertices[i+1], vertices[i+2]);
+            return (out);
+        }
+
+        public void setVertex(int idx, float x, float y, float z) {
+            int i = idx*3;
+            vertices[i] = x;
+            vertices[i+1] = y;
+            vertices[i+2] = z;
+        }
+
+        public int getIndex(int idx) {
+            return (indices[idx]);
+        }
+    }
+}
@@ -29,7 +29,10 @@
 
 package org.jdesktop.mtgame;
 
+import com.bulletphysics.collision.dispatch.CollisionObject;
 import com.bulletphysics.dynamics.DynamicsWorld;
+import com.bulletphysics.util.ObjectArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -70,17 +73,70 @@ public class JBulletPhysicsSystem extends PhysicsSystem implements Runnable {
      */
     private Set<TimeStepListener> listenerSet = new HashSet();
 
+    /**
+     * The set of listeners which are only called when something is awake
+     */
+    private Set<TimeStepListener> activeListenerSet = new HashSet();
+
     /**
      * The current time step of the simulation
      */
     private int timeStep = 0;
 
+    /**
+     * The channel which carries body transforms to the renderer
+     */
+    private JBulletTransformChannel transformChannel = null;
+
+    /**
+     * The fixed simulation step, in seconds.  If this is zero, the 
+     * simulation is stepped by the elapsed time.
+     */
+    private float fixedTimeStep = 1.0f/60.0f;
+
+    /**
+     * The maximum number of fixed steps taken per call to simStep.
+     */
+    private int maxSubSteps = 5;
+
+    /**
+     * The elapsed time which hasn't been simulated yet
+     */
+    private float accumulator = 0.0f;
+
+    /**
+     * The number of steps which were dropped because we were behind
+     */
+    private long droppedSteps = 0;
+
+    /**
+     * Whether or not the renderer interpolates between the last two states
+     */
+    private boolean interpolationEnabled = true;
+
+    /**
+     * When true, steps where every body is asleep are skipped, statistics
+     * are gathered, and ray tests use a snapshot of the world.
+     */
+    private boolean sleepAware = false;
+
+    /**
+     * The statistics for the last step
+     */
+    private StepStatistics statistics = new StepStatistics();
+
+    /**
+     * Scratch set of island tags
+     */
+    private BitSet islandTags = new BitSet();
+
     /**
      * Allow the system to initialize
      */
     synchronized void initialize() {
         JBulletDynamicCollisionSystem cs = (JBulletDynamicCollisionSystem)collisionSystem;
         world = cs.getDynamicsWorld();
+        transformChannel = new JBulletTransformChannel(worldManager);
 
         if (System.getProperty("mtgame.runPhysicsInRenderer") != null) {
             System.out.println("MT Game Info: Running Physics in Renderer Thread");
@@ -114,6 +170,109 @@ public class JBulletPhysicsSystem extends PhysicsSystem implements Runnable {
         notify();
     }
     
+    /**
+     * Get the channel which carries body transforms to the renderer
+     */
+    JBulletTransformChannel getTransformChannel() {
+        return (transformChannel);
+    }
+
+    /**
+     * Set the fixed simulation step, in seconds.  A value of zero steps
+     * the simulation by the elapsed time, with no interpolation.
+     */
+    public synchronized void setFixedTimeStep(float step) {
+        if (step < 0.0f) {
+            throw new IllegalArgumentException("Negative time step: " + step);
+        }
+        fixedTimeStep = step;
+        accumulator = 0.0f;
+    }
+
+    /**
+     * Get the fixed simulation step, in seconds
+     */
+    public synchronized float getFixedTimeStep() {
+        return (fixedTimeStep);
+    }
+
+    /**
+     * Set the maximum number of fixed steps taken per update.  Any time 
+     * beyond that is dropped, so the simulation slows down rather than
+     * falling further and further behind.
+     */
+    public synchronized void setMaxSubSteps(int steps) {
+        if (steps < 1) {
+            throw new IllegalArgumentException("Max sub steps must be positive: " + steps);
+        }
+        maxSubSteps = steps;
+    }
+
+    /**
+     * Get the maximum number of fixed steps taken per update
+     */
+    public synchronized int getMaxSubSteps() {
+        return (maxSubSteps);
+    }
+
+    /**
+     * Enable or disable interpolation of render transforms between the
+     * last two physics states.
+     */
+    public synchronized void setInterpolationEnabled(boolean enable) {
+        interpolationEnabled = enable;
+    }
+
+    /**
+     * Returns whether render transforms are interpolated
+     */
+    public synchronized boolean isInterpolationEnabled() {
+        return (interpolationEnabled);
+    }
+
+    /**
+     * Get the number of fixed steps dropped because the simulation 
+     * fell behind.
+     */
+    public synchronized long getDroppedSteps() {
+        return (droppedSteps);
+    }
+
+    /**
+     * Enable or disable sleep aware stepping.  In this mode, steps where
+     * every body is asleep are skipped, along with the active-only time step
+     * listeners, step statistics are gathered, and ray tests run against 
+     * a snapshot of the world rather than waiting for the physics step.
+     */
+    public void setSleepAware(boolean enable) {
+        synchronized (this) {
+            sleepAware = enable;
+        }
+        JBulletDynamicCollisionSystem cs = (JBulletDynamicCollisionSystem)collisionSystem;
+        cs.setRaySnapshotEnabled(enable);
+    }
+
+    /**
+     * Returns whether sleep aware stepping is enabled
+     */
+    public synchronized boolean isSleepAware() {
+        return (sleepAware);
+    }
+
+    /**
+     * Get the statistics for the last step.  These are only gathered in
+     * sleep aware mode.
+     */
+    public StepStatistics getStepStatistics(StepStatistics stats) {
+        if (stats == null) {
+            stats = new StepStatistics();
+        }
+        synchronized (statistics) {
+            stats.set(statistics);
+        }
+        return (stats);
+    }
+
     public void setStarted(boolean s) {
         started = s;
     }
@@ -135,7 +294,7 @@ public class JBulletPhysicsSystem extends PhysicsSystem implements Runnable {
             newStartTime = System.nanoTime();
             deltaTime = newStartTime - frameStartTime;
             frameStartTime = newStartTime;
-            stepTime = (deltaTime/1000000)/1000.0f;
+            stepTime = deltaTime/1000000000.0f;
 
             simStep(stepTime);
 
@@ -171,6 +330,22 @@ public class JBulletPhysicsSystem extends PhysicsSystem implements Runnable {
         }
     }
 
+    /**
+     * Adds a new timestep listener. If activeOnly is true, the listener is 
+     * not called in sleep aware mode when every body in the world is asleep.
+     * @param listener The listener to add
+     * @param activeOnly Whether to skip the listener when the world is asleep
+     */
+    public void addTimeStepListener(TimeStepListener listener, boolean activeOnly) {
+        if (!activeOnly) {
+            addTimeStepListener(listener);
+            return;
+        }
+        synchronized (listenerSet) {
+            activeListenerSet.add(listener);
+        }
+    }
+
     /**
      * Removes a timestep listener. If this listener does not exist, this method
      * does nothing.
@@ -179,20 +354,67 @@ public class JBulletPhysicsSystem extends PhysicsSystem implements Runnable {
     public void removeTimeStepListener(TimeStepListener listener) {
         synchronized (listenerSet) {
             listenerSet.remove(listener);
+            activeListenerSet.remove(listener);
         }
     }
 
     /**
      * Notifies all of the listeners of the time step event
      */
-    private void fireTimeStepEvent(TimeStepEvent tse) {
+    private void fireTimeStepEvent(TimeStepEvent tse, Set<TimeStepListener> listeners) {
         synchronized (listenerSet) {
-            for (TimeStepListener l : listenerSet) {
+            for (TimeStepListener l : listeners) {
                 l.timeStepActionPerformed(tse);
             }
         }
     }
 
+    /**
+     * Statistics gathered about a physics step
+     */
+    public static class StepStatistics {
+        /**
+         * The number of steps taken, and skipped because the world was asleep
+         */
+        public long steps = 0;
+        public long skippedSteps = 0;
+
+        /**
+         * The number of awake and sleeping bodies, and the number of 
+         * awake simulation islands, at the start of the last step
+         */
+        public int activeBodies = 0;
+        public int sleepingBodies = 0;
+        public int activeIslands = 0;
+
+        /**
+         * The number of overlapping pairs in the broadphase
+         */
+        public int broadphasePairs = 0;
+
+        /**
+         * The time spent in the last update, in nanoseconds
+         */
+        public long stepTime = 0;
+
+        void set(StepStatistics s) {
+            steps = s.steps;
+            skippedSteps = s.skippedSteps;
+            activeBodies = s.activeBodies;
+            sleepingBodies = s.sleepingBodies;
+            activeIslands = s.activeIslands;
+            broadphasePairs = s.broadphasePairs;
+            stepTime = s.stepTime;
+        }
+
+        public String toString() {
+            return ("Steps: " + steps + ", Skipped: " + skippedSteps + 
+                    ", Active: " + activeBodies + ", Sleeping: " + sleepingBodies +
+                    ", Islands: " + activeIslands + ", Pairs: " + broadphasePairs + 
+                    ", Time: " + stepTime/1000 + "us");
+        }
+    }
+
     /**
      * An event class to store the current timestep information
      */
@@ -220,18 +442,129 @@ public class JBulletPhysicsSystem extends PhysicsSystem implements Runnable {
         public void timeStepActionPerformed(TimeStepEvent tse);
     }
 
+    /**
+     * Advance the simulation by the given elapsed time, in seconds.  The
+     * time is accumulated and consumed in fixed steps, and whatever is left
+     * over is used to interpolate the render transforms.
+     */
     void simStep(float time) {
-        if (started) {
+        if (!started) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        float step = 0.0f;
+        int numSteps = 0;
+        float alpha = 1.0f;
+        boolean aware = false;
+        boolean stepped = false;
+        boolean skipped = false;
+        synchronized (this) {
+            aware = sleepAware;
+            step = fixedTimeStep;
+            if (step == 0.0f) {
+                numSteps = 1;
+            } else {
+                accumulator += time;
+                numSteps = (int)(accumulator/step);
+                if (numSteps > maxSubSteps) {
+                    droppedSteps += numSteps - maxSubSteps;
+                    numSteps = maxSubSteps;
+                    accumulator = 0.0f;
+                } else {
+                    accumulator -= numSteps*step;
+                }
+                if (interpolationEnabled) {
+                    alpha = accumulator/step;
+                }
+            }
+        }
+
+        for (int i=0; i<numSteps; i++) {
+            float stepTime = (step == 0.0f) ? time : step;
+
             // Call listeners to update state on the simulation thread.
-            TimeStepEvent tse = new TimeStepEvent(world, timeStep, time);
-            fireTimeStepEvent(tse);
+            TimeStepEvent tse = new TimeStepEvent(world, timeStep, stepTime);
+            fireTimeStepEvent(tse, listenerSet);
+
+            // If everything is asleep, there is nothing to do
+            if (aware && !gatherActivity()) {
+                synchronized (statistics) {
+                    statistics.skippedSteps++;
+                }
+                // An empty step, so anything still interpolating settles
+                synchronized (world) {
+                    transformChannel.beginStep();
+                }
+                skipped = true;
+                continue;
+            }
+            fireTimeStepEvent(tse, activeListenerSet);
 
             synchronized (world) {
-                world.stepSimulation(time);
+                transformChannel.beginStep();
+                world.stepSimulation(stepTime, 0);
             }
+            stepped = true;
 
             // Increment the time step
             timeStep++;
         }
+
+        synchronized (world) {
+            transformChannel.publish(alpha, stepped || skipped);
+            if (aware) {
+                ((JBulletDynamicCollisionSystem)collisionSystem).updateRaySnapshot(stepped);
+            }
+        }
+
+        if (aware) {
+            int pairs = 0;
+            synchronized (world) {
+                pairs = world.getBroadphase().getOverlappingPairCache().getNumOverlappingPairs();
+            }
+            synchronized (statistics) {
+                if (stepped) {
+                    statistics.steps++;
+                    statistics.broadphasePairs = pairs;
+                }
+                statistics.stepTime = System.nanoTime() - startTime;
+            }
+        }
+    }
+
+    /**
+     * Count the awake and sleeping bodies, and the awake islands.  Returns
+     * true if anything is awake.
+     */
+    private boolean gatherActivity() {
+        int active = 0;
+        int sleeping = 0;
+
+        synchronized (world) {
+            ObjectArrayList<CollisionObject> objects = world.getCollisionObjectArray();
+            islandTags.clear();
+            for (int i=0; i<objects.size(); i++) {
+                CollisionObject co = objects.getQuick(i);
+                if (co.isStaticObject()) {
+                    continue;
+                }
+                if (co.isActive()) {
+                    active++;
+                    if (co.getIslandTag() >= 0) {
+                        islandTags.set(co.getIslandTag());
+                    }
+                } else {
+                    sleeping++;
+                }
+            }
+        }
+
+        synchronized (statistics) {
+            statistics.activeBodies = active;
+            statistics.sleepingBodies = sleeping;
+            statistics.activeIslands = islandTags.cardinality();
+        }
+        return (active > 0);
     }
 }
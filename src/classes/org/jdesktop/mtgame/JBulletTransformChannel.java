@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jdesktop.mtgame;
+
+import com.bulletphysics.linearmath.Transform;
+import com.jme.math.Matrix3f;
+import com.jme.math.Quaternion;
+import com.jme.math.Vector3f;
+import com.jme.scene.Node;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class carries rigid body transforms from the physics system to the
+ * renderer.  The physics thread writes each moving body's transform into a
+ * back buffer, which is published once per step.  The renderer then applies
+ * everything that was published in a single render updater.  It sets all of
+ * the local transforms first, then updates each moved subtree once, and
+ * finally updates the world bound of each ancestor once, bottom up.  The
+ * buffers are stored as flat arrays indexed by a slot assigned to each body.
+ *
+ * Each published slot carries the last two physics states, so the renderer
+ * can interpolate between them when the simulation runs at a fixed step.
+ *
+ * @author Doug Twilleager
+ */
+class JBulletTransformChannel implements RenderUpdater {
+    /**
+     * A logger
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(JBulletTransformChannel.class.getName());
+
+    /**
+     * The number of floats per slot - 3 for translation, 9 for rotation
+     */
+    private static final int SLOT_SIZE = 12;
+
+    /**
+     * The number of floats per published slot - the previous and current state
+     */
+    private static final int PUBLISHED_SLOT_SIZE = 2*SLOT_SIZE;
+
+    /**
+     * The world manager
+     */
+    private WorldManager worldManager = null;
+
+    /**
+     * One buffer of transforms
+     */
+    static class TransformBuffer {
+        float[] data = null;
+        boolean[] dirty = null;
+        int[] dirtySlots = null;
+        int numDirty = 0;
+        float alpha = 1.0f;
+
+        TransformBuffer(int capacity) {
+            resize(capacity);
+        }
+
+        void resize(int capacity) {
+            float[] newData = new float[capacity*PUBLISHED_SLOT_SIZE];
+            boolean[] newDirty = new boolean[capacity];
+            int[] newDirtySlots = new int[capacity];
+            if (data != null) {
+                System.arraycopy(data, 0, newData, 0, data.length);
+                System.arraycopy(dirty, 0, newDirty, 0, dirty.length);
+                System.arraycopy(dirtySlots, 0, newDirtySlots, 0, numDirty);
+            }
+            data = newData;
+            dirty = newDirty;
+            dirtySlots = newDirtySlots;
+        }
+
+        void mark(int slot) {
+            if (!dirty[slot]) {
+                dirty[slot] = true;
+                dirtySlots[numDirty++] = slot;
+            }
+        }
+
+        void clear() {
+            for (int i=0; i<numDirty; i++) {
+                dirty[dirtySlots[i]] = false;
+            }
+            numDirty = 0;
+        }
+    }
+
+    /**
+     * The buffer written by the physics thread, and the one waiting to be
+     * applied by the renderer.
+     */
+    private TransformBuffer back = null;
+    private TransformBuffer front = null;
+
+    /**
+     * The component in each slot, and the free slots
+     */
+    private JBulletCollisionComponent[] components = null;
+    private int[] freeSlots = null;
+    private int numFreeSlots = 0;
+    private int numSlots = 0;
+
+    /**
+     * The physics side state of each slot - the previous and current 
+     * transform, and the step it was last written in.  Zero means never.
+     */
+    private float[] previous = null;
+    private float[] current = null;
+    private int[] writeStep = null;
+    private int stepCount = 1;
+
+    /**
+     * The slots which were moving at the last publish
+     */
+    private int[] moving = null;
+    private int numMoving = 0;
+
+    /**
+     * True if a render updater is queued
+     */
+    private boolean updaterPending = false;
+
+    /**
+     * Scratch objects for the render thread
+     */
+    private Matrix3f rotation = new Matrix3f();
+    private Quaternion prevQuat = new Quaternion();
+    private Quaternion quat = new Quaternion();
+    private Vector3f prevTrans = new Vector3f();
+    private Vector3f trans = new Vector3f();
+    private IdentityHashMap<Node, Node> movedNodes = new IdentityHashMap<Node, Node>();
+    private IdentityHashMap<Node, Integer> ancestorDepths = new IdentityHashMap<Node, Integer>();
+    private ArrayList<Node> ancestors = new ArrayList<Node>();
+    private ArrayList<Node> chain = new ArrayList<Node>();
+
+    /**
+     * Orders ancestors deepest first, so bounds are merged bottom up
+     */
+    private Comparator<Node> deepestFirst = new Comparator<Node>() {
+        public int compare(Node n1, Node n2) {
+            return (ancestorDepths.get(n2).intValue() - ancestorDepths.get(n1).intValue());
+        }
+    };
+
+    /**
+     * The constructor
+     */
+    JBulletTransformChannel(WorldManager wm) {
+        worldManager = wm;
+        back = new TransformBuffer(64);
+        front = new TransformBuffer(64);
+        components = new JBulletCollisionComponent[64];
+        freeSlots = new int[64];
+        previous = new float[64*SLOT_SIZE];
+        current = new float[64*SLOT_SIZE];
+        writeStep = new int[64];
+        moving = new int[64];
+    }
+
+    /**
+     * Give a component a slot.  This must be called with the dynamics world
+     * locked, so the physics thread isn't writing.
+     */
+    synchronized void addComponent(JBulletCollisionComponent jcc) {
+        int slot = -1;
+
+        if (numFreeSlots > 0) {
+            slot = freeSlots[--numFreeSlots];
+        } else {
+            if (numSlots == components.length) {
+                int capacity = components.length*2;
+                JBulletCollisionComponent[] newComponents = new JBulletCollisionComponent[capacity];
+                System.arraycopy(components, 0, newComponents, 0, numSlots);
+                components = newComponents;
+                int[] newFree = new int[capacity];
+                System.arraycopy(freeSlots, 0, newFree, 0, numFreeSlots);
+                freeSlots = newFree;
+                previous = grow(previous, capacity*SLOT_SIZE);
+                current = grow(current, capacity*SLOT_SIZE);
+                int[] newStep = new int[capacity];
+                System.arraycopy(writeStep, 0, newStep, 0, numSlots);
+                writeStep = newStep;
+                int[] newMoving = new int[capacity];
+                System.arraycopy(moving, 0, newMoving, 0, numMoving);
+                moving = newMoving;
+                back.resize(capacity);
+                front.resize(capacity);
+            }
+            slot = numSlots++;
+        }
+        components[slot] = jcc;
+        writeStep[slot] = 0;
+        jcc.setTransformSlot(this, slot);
+    }
+
+    /**
+     * Grow a float array, keeping its contents
+     */
+    private float[] grow(float[] array, int size) {
+        float[] newArray = new float[size];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return (newArray);
+    }
+
+    /**
+     * Release a component's slot.  This must be called with the dynamics
+     * world locked.
+     */
+    synchronized void removeComponent(JBulletCollisionComponent jcc) {
+        int slot = jcc.getTransformSlot();
+        if (slot == -1 || components[slot] != jcc) {
+            return;
+        }
+        components[slot] = null;
+        freeSlots[numFreeSlots++] = slot;
+        jcc.setTransformSlot(null, -1);
+    }
+
+    /**
+     * Mark the start of a physics step.  This is called with the dynamics
+     * world locked.
+     */
+    void beginStep() {
+        stepCount++;
+    }
+
+    /**
+     * Record a transform for a slot.  This is only called from the
+     * physics step.
+     */
+    void setTransform(int slot, Transform t) {
+        int i = slot*SLOT_SIZE;
+
+        // Bodies which haven't moved don't need to go to the renderer
+        if (writeStep[slot] != 0 && writeStep[slot] != stepCount &&
+            sameTransform(t, current, i)) {
+            return;
+        }
+
+        if (writeStep[slot] != stepCount) {
+            if (writeStep[slot] == 0) {
+                // No history yet, so there is nothing to interpolate from
+                copyTransform(t, previous, i);
+            } else {
+                System.arraycopy(current, i, previous, i, SLOT_SIZE);
+            }
+            writeStep[slot] = stepCount;
+        }
+        copyTransform(t, current, i);
+        back.mark(slot);
+    }
+
+    /**
+     * Compare a transform against one stored in a float array
+     */
+    private boolean sameTransform(Transform t, float[] data, int i) {
+        return (data[i] == t.origin.x && data[i+1] == t.origin.y && 
+                data[i+2] == t.origin.z &&
+                data[i+3] == t.basis.m00 && data[i+4] == t.basis.m01 &&
+                data[i+5] == t.basis.m02 && data[i+6] == t.basis.m10 &&
+                data[i+7] == t.basis.m11 && data[i+8] == t.basis.m12 &&
+                data[i+9] == t.basis.m20 && data[i+10] == t.basis.m21 &&
+                data[i+11] == t.basis.m22);
+    }
+
+    /**
+     * Copy a transform into a float array
+     */
+    private void copyTransform(Transform t, float[] data, int i) {
+        data[i++] = t.origin.x;
+        data[i++] = t.origin.y;
+        data[i++] = t.origin.z;
+        data[i++] = t.basis.m00;
+        data[i++] = t.basis.m01;
+        data[i++] = t.basis.m02;
+        data[i++] = t.basis.m10;
+        data[i++] = t.basis.m11;
+        data[i++] = t.basis.m12;
+        data[i++] = t.basis.m20;
+        data[i++] = t.basis.m21;
+        data[i] = t.basis.m22;
+    }
+
+    /**
+     * Publish the back buffer to the renderer.  This is called once per
+     * update, with the dynamics world locked.  Alpha is the fraction of a 
+     * step between the previous and current states that should be rendered.
+     * Stepped is false if no physics step ran since the last publish, in
+     * which case the moving bodies are published again with the new alpha.
+     */
+    void publish(float alpha, boolean stepped) {
+        boolean schedule = false;
+
+        synchronized (this) {
+            if (stepped) {
+                // Bodies which stopped moving need to be settled on their final state
+                for (int i=0; i<numMoving; i++) {
+                    int slot = moving[i];
+                    if (components[slot] != null && writeStep[slot] != 0 &&
+                        writeStep[slot] != stepCount) {
+                        back.mark(slot);
+                    }
+                }
+                numMoving = 0;
+            } else {
+                // Nothing new, so move the moving bodies on to the new alpha
+                for (int i=0; i<numMoving; i++) {
+                    if (components[moving[i]] != null) {
+                        back.mark(moving[i]);
+                    }
+                }
+            }
+
+            for (int i=0; i<back.numDirty; i++) {
+                int slot = back.dirtySlots[i];
+                int src = slot*SLOT_SIZE;
+                int dst = slot*PUBLISHED_SLOT_SIZE;
+                if (writeStep[slot] == stepCount) {
+                    System.arraycopy(previous, src, back.data, dst, SLOT_SIZE);
+                    if (stepped) {
+                        moving[numMoving++] = slot;
+                    }
+                } else {
+                    System.arraycopy(current, src, back.data, dst, SLOT_SIZE);
+                }
+                System.arraycopy(current, src, back.data, dst + SLOT_SIZE, SLOT_SIZE);
+            }
+            back.alpha = alpha;
+
+            if (back.numDirty == 0) {
+                return;
+            }
+            if (front.numDirty == 0) {
+                TransformBuffer tmp = front;
+                front = back;
+                back = tmp;
+            } else {
+                // The renderer hasn't caught up, newer data wins
+                for (int i=0; i<back.numDirty; i++) {
+                    int slot = back.dirtySlots[i];
+                    System.arraycopy(back.data, slot*PUBLISHED_SLOT_SIZE, front.data, 
+                            slot*PUBLISHED_SLOT_SIZE, PUBLISHED_SLOT_SIZE);
+                    front.mark(slot);
+                }
+                front.alpha = back.alpha;
+                back.clear();
+            }
+            if (!updaterPending) {
+                updaterPending = true;
+                schedule = true;
+            }
+        }
+
+        if (schedule) {
+            worldManager.getRenderManager().addRenderUpdater(this, null, false);
+        }
+    }
+
+    /**
+     * Apply all of the published transforms, in the render thread.
+     */
+    public void update(Object obj) {
+        RenderManager rm = worldManager.getRenderManager();
+
+        synchronized (rm.getCollisionLock()) {
+            synchronized (this) {
+                updaterPending = false;
+                for (int i=0; i<front.numDirty; i++) {
+                    int slot = front.dirtySlots[i];
+                    JBulletCollisionComponent jcc = components[slot];
+                    if (jcc == null || jcc.getNode() == null) {
+                        continue;
+                    }
+                    applyTransform(jcc.getNode(), front.data, slot*PUBLISHED_SLOT_SIZE, front.alpha);
+                }
+                front.clear();
+            }
+
+            updateMovedNodes();
+        }
+        rm.notifyNodeChangedListeners();
+    }
+
+    /**
+     * Bring the world state of everything that moved up to date.  Each moved
+     * node which isn't below another moved node gets one geometric update,
+     * and then each of their ancestors has its world bound updated once,
+     * deepest first.
+     */
+    private void updateMovedNodes() {
+        for (Node node : movedNodes.keySet()) {
+            // Skip nodes which are updated along with a moved ancestor
+            chain.clear();
+            boolean covered = false;
+            Node parent = node.getParent();
+            while (parent != null && !ancestorDepths.containsKey(parent)) {
+                if (movedNodes.containsKey(parent)) {
+                    covered = true;
+                    break;
+                }
+                chain.add(parent);
+                parent = parent.getParent();
+            }
+            if (covered) {
+                continue;
+            }
+
+            try {
+                node.updateGeometricState(0.0f, false);
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Error updating object " + node.getName(), t);
+            }
+
+            // Record the new ancestors, with their depth below the root
+            int depth = (parent == null) ? chain.size() - 1 :
+                    ancestorDepths.get(parent).intValue() + chain.size();
+            for (int i=0; i<chain.size(); i++) {
+                ancestorDepths.put(chain.get(i), Integer.valueOf(depth - i));
+                ancestors.add(chain.get(i));
+            }
+        }
+
+        Collections.sort(ancestors, deepestFirst);
+        for (int i=0; i<ancestors.size(); i++) {
+            Node ancestor = ancestors.get(i);
+            try {
+                ancestor.updateWorldBound();
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Error updating object " + ancestor.getName(), t);
+            }
+        }
+
+        movedNodes.clear();
+        ancestorDepths.clear();
+        ancestors.clear();
+        chain.clear();
+    }
+
+    /**
+     * Set the local transform of a node.  The transform is interpolated
+     * between the previous and current states.
+     */
+    private void applyTransform(Node node, float[] data, int i, float alpha) {
+        int c = i + SLOT_SIZE;
+        if (alpha >= 1.0f) {
+            node.setLocalTranslation(data[c], data[c+1], data[c+2]);
+            loadRotation(data, c);
+            node.setLocalRotation(rotation);
+        } else {
+            prevTrans.set(data[i], data[i+1], data[i+2]);
+            trans.set(data[c], data[c+1], data[c+2]);
+            prevTrans.interpolate(trans, alpha);
+            node.setLocalTranslation(prevTrans.x, prevTrans.y, prevTrans.z);
+
+            loadRotation(data, i);
+            prevQuat.fromRotationMatrix(rotation);
+            loadRotation(data, c);
+            quat.fromRotationMatrix(rotation);
+            quat.slerp(prevQuat, quat, alpha);
+            node.getLocalRotation().set(quat);
+        }
+
+        movedNodes.put(node, node);
+    }
+
+    /**
+     * Load a rotation from a float array into the scratch matrix
+     */
+    private void loadRotation(float[] data, int i) {
+        rotation.m00 = data[i+3];
+        rotation.m01 = data[i+4];
+        rotation.m02 = data[i+5];
+        rotation.m10 = data[i+6];
+        rotation.m11 = data[i+7];
+        rotation.m12 = data[i+8];
+        rotation.m20 = data[i+9];
+        rotation.m21 = data[i+10];
+        rotation.m22 = data[i+11];
+    }
+}
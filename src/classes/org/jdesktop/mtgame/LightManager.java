@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jdesktop.mtgame;
+
+import com.jme.bounding.BoundingBox;
+import com.jme.bounding.BoundingSphere;
+import com.jme.bounding.BoundingVolume;
+import com.jme.light.Light;
+import com.jme.light.LightNode;
+import com.jme.light.PointLight;
+import com.jme.math.Vector3f;
+import com.jme.scene.Spatial;
+import com.jme.scene.state.LightState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * This class decides which global lights affect each render component.
+ * Each attenuated point or spot light has a range, past which it contributes
+ * almost nothing.  Lights and components are kept in a uniform grid, so 
+ * only the components near a light are reassigned when it is added, removed
+ * or moved, and each component gets the most influential lights that reach it.
+ * Directional and unattenuated lights reach everything.
+ *
+ * All of the methods in this class are called from the render thread.
+ *
+ * @author Doug Twilleager
+ */
+class LightManager {
+    /**
+     * Lights and components which cover more cells than this are not put
+     * in the grid, and are checked against everything.
+     */
+    private static final int MAX_CELLS = 512;
+
+    /**
+     * The size of a grid cell
+     */
+    private float cellSize = 64.0f;
+
+    /**
+     * The intensity below which a light is considered out of range
+     */
+    private float minIntensity = 1.0f/256.0f;
+
+    /**
+     * The number of components checked for movement each frame
+     */
+    private int sweepCount = 256;
+
+    /**
+     * The known lights
+     */
+    private IdentityHashMap<LightNode, LightEntry> lightMap = 
+            new IdentityHashMap<LightNode, LightEntry>();
+    private ArrayList<LightEntry> lightList = new ArrayList<LightEntry>();
+    private ArrayList<LightEntry> unboundedLights = new ArrayList<LightEntry>();
+    private HashMap<Long, ArrayList<LightEntry>> lightGrid = 
+            new HashMap<Long, ArrayList<LightEntry>>();
+
+    /**
+     * The known components.  Each entry remembers its slot in the component
+     * list and in the unbounded list, so removal is a swap with the last.
+     */
+    private IdentityHashMap<RenderComponent, ComponentEntry> componentMap = 
+            new IdentityHashMap<RenderComponent, ComponentEntry>();
+    private IdentityHashMap<Spatial, ComponentEntry> rootMap = 
+            new IdentityHashMap<Spatial, ComponentEntry>();
+    private ArrayList<ComponentEntry> componentList = new ArrayList<ComponentEntry>();
+    private ArrayList<ComponentEntry> unboundedComponents = new ArrayList<ComponentEntry>();
+    private HashMap<Long, ArrayList<ComponentEntry>> componentGrid = 
+            new HashMap<Long, ArrayList<ComponentEntry>>();
+    private int sweepIndex = 0;
+
+    /**
+     * The components which need their lights reassigned
+     */
+    private IdentityHashMap<ComponentEntry, ComponentEntry> dirty = 
+            new IdentityHashMap<ComponentEntry, ComponentEntry>();
+
+    /**
+     * Scratch objects
+     */
+    private Vector3f center = new Vector3f();
+    private ArrayList<LightEntry> candidates = new ArrayList<LightEntry>();
+    private IdentityHashMap<LightEntry, LightEntry> seen = 
+            new IdentityHashMap<LightEntry, LightEntry>();
+
+    /**
+     * The state kept for each light
+     */
+    static class LightEntry {
+        LightNode node = null;
+        Vector3f position = new Vector3f();
+        float range = Float.POSITIVE_INFINITY;
+        long[] cells = null;
+        float score = 0.0f;
+
+        LightEntry(LightNode node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * The state kept for each component
+     */
+    static class ComponentEntry {
+        RenderComponent rc = null;
+        Spatial root = null;
+        Vector3f center = new Vector3f();
+        float radius = -1.0f;
+        long[] cells = null;
+        ArrayList<LightNode> assigned = new ArrayList<LightNode>();
+        int slot = -1;
+        int unboundedSlot = -1;
+
+        ComponentEntry(RenderComponent rc) {
+            this.rc = rc;
+        }
+    }
+
+    /**
+     * The default constructor
+     */
+    LightManager() {
+    }
+
+    /**
+     * Set the size of a grid cell.  This should be on the order of a 
+     * typical light range.
+     */
+    void setCellSize(float size) {
+        cellSize = size;
+
+        // Everything needs to be put back in the grid
+        lightGrid.clear();
+        unboundedLights.clear();
+        for (int i=0; i<lightList.size(); i++) {
+            indexLight(lightList.get(i));
+        }
+        componentGrid.clear();
+        unboundedComponents.clear();
+        for (int i=0; i<componentList.size(); i++) {
+            indexComponent(componentList.get(i));
+        }
+    }
+
+    /**
+     * Get the size of a grid cell
+     */
+    float getCellSize() {
+        return (cellSize);
+    }
+
+    /**
+     * Add a light
+     */
+    void addLight(LightNode ln) {
+        if (lightMap.containsKey(ln)) {
+            return;
+        }
+        LightEntry le = new LightEntry(ln);
+        lightMap.put(ln, le);
+        lightList.add(le);
+        updateLightBounds(le);
+        indexLight(le);
+        markAffected(le);
+    }
+
+    /**
+     * Remove a light
+     */
+    void removeLight(LightNode ln) {
+        LightEntry le = lightMap.remove(ln);
+        if (le == null) {
+            return;
+        }
+        lightList.remove(le);
+        // Mark while the light still knows which cells it covered
+        markAffected(le);
+        unindexLight(le);
+    }
+
+    /**
+     * Start tracking a component
+     */
+    void addComponent(RenderComponent rc) {
+        if (componentMap.containsKey(rc)) {
+            return;
+        }
+        ComponentEntry ce = new ComponentEntry(rc);
+        componentMap.put(rc, ce);
+        ce.slot = componentList.size();
+        componentList.add(ce);
+        updateComponentBounds(ce);
+        indexComponent(ce);
+        dirty.put(ce, ce);
+    }
+
+    /**
+     * Stop tracking a component
+     */
+    void removeComponent(RenderComponent rc) {
+        ComponentEntry ce = componentMap.remove(rc);
+        if (ce == null) {
+            return;
+        }
+        removeFromComponentList(ce);
+        if (ce.root != null) {
+            rootMap.remove(ce.root);
+        }
+        unindexComponent(ce);
+        dirty.remove(ce);
+    }
+
+    /**
+     * Take a component out of the component list.  The sweep has checked
+     * every entry in front of sweepIndex, so an entry removed from there
+     * is first filled from the last swept entry.  That keeps the unswept
+     * entries behind sweepIndex.
+     */
+    private void removeFromComponentList(ComponentEntry ce) {
+        int slot = ce.slot;
+        int last = componentList.size() - 1;
+
+        if (slot < sweepIndex) {
+            int swept = sweepIndex - 1;
+            moveComponent(swept, slot);
+            slot = swept;
+            sweepIndex = swept;
+        }
+        moveComponent(last, slot);
+        componentList.remove(last);
+        ce.slot = -1;
+    }
+
+    /**
+     * Move the component in one slot of the component list to another
+     */
+    private void moveComponent(int from, int to) {
+        if (from != to) {
+            ComponentEntry moved = componentList.get(from);
+            componentList.set(to, moved);
+            moved.slot = to;
+        }
+    }
+
+    /**
+     * Called when a spatial has had it's geometric state updated.  If it
+     * is the root of a component, the component is checked for movement.
+     */
+    void spatialUpdated(Spatial s) {
+        ComponentEntry ce = rootMap.get(s);
+        if (ce != null) {
+            checkComponent(ce);
+        }
+    }
+
+    /**
+     * Check the lights, and some of the components, for movement.
+     */
+    void update() {
+        for (int i=0; i<lightList.size(); i++) {
+            LightEntry le = lightList.get(i);
+            Vector3f pos = getLightPosition(le.node);
+            float range = getLightRange(le.node.getLight());
+            if (range != le.range || (pos != null && !pos.equals(le.position))) {
+                // Components near both the old and new spots need new lights
+                markAffected(le);
+                unindexLight(le);
+                updateLightBounds(le);
+                indexLight(le);
+                markAffected(le);
+            }
+        }
+
+        int count = Math.min(sweepCount, componentList.size());
+        for (int i=0; i<count; i++) {
+            if (sweepIndex >= componentList.size()) {
+                sweepIndex = 0;
+            }
+            checkComponent(componentList.get(sweepIndex++));
+        }
+    }
+
+    /**
+     * Reassign lights for every component which needs it.  This returns the
+     * components whose lights actually changed.
+     */
+    ArrayList<RenderComponent> processChanges() {
+        ArrayList<RenderComponent> changed = new ArrayList<RenderComponent>();
+
+        for (ComponentEntry ce : dirty.keySet()) {
+            ArrayList<LightNode> lights = computeLights(ce.center, ce.radius, 
+                    getLightLimit(ce.rc));
+            if (!lights.equals(ce.assigned)) {
+                ce.assigned = lights;
+                changed.add(ce.rc);
+            }
+        }
+        dirty.clear();
+        return (changed);
+    }
+
+    /**
+     * Get the global lights which should be applied to a component
+     */
+    ArrayList<LightNode> getLights(RenderComponent rc) {
+        ComponentEntry ce = componentMap.get(rc);
+        if (ce != null && !dirty.containsKey(ce)) {
+            return (ce.assigned);
+        }
+
+        float radius = getBounds(rc.getSceneRoot(), center);
+        ArrayList<LightNode> lights = computeLights(center, radius, getLightLimit(rc));
+        if (ce != null) {
+            ce.assigned = lights;
+            dirty.remove(ce);
+        }
+        return (lights);
+    }
+
+    /**
+     * Get the number of global lights a component has room for
+     */
+    private int getLightLimit(RenderComponent rc) {
+        return (Math.max(0, LightState.MAX_LIGHTS_ALLOWED - rc.numLights()));
+    }
+
+    /**
+     * Pick the most influential lights for the given bounds.  A negative
+     * radius means the bounds are unknown, and every light is considered.
+     */
+    private ArrayList<LightNode> computeLights(Vector3f c, float radius, int limit) {
+        candidates.clear();
+        seen.clear();
+
+        if (radius < 0.0f) {
+            candidates.addAll(lightList);
+        } else {
+            candidates.addAll(unboundedLights);
+            long[] cells = getCells(c, radius);
+            if (cells == null) {
+                candidates.addAll(lightList);
+            } else {
+                for (int i=0; i<cells.length; i++) {
+                    ArrayList<LightEntry> list = lightGrid.get(cells[i]);
+                    if (list == null) {
+                        continue;
+                    }
+                    for (int j=0; j<list.size(); j++) {
+                        LightEntry le = list.get(j);
+                        if (!seen.containsKey(le)) {
+                            seen.put(le, le);
+                            candidates.add(le);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Score each candidate, and keep the best ones
+        ArrayList<LightEntry> best = new ArrayList<LightEntry>();
+        for (int i=0; i<candidates.size(); i++) {
+            LightEntry le = candidates.get(i);
+            le.score = getInfluence(le, c, radius);
+            if (le.score <= 0.0f) {
+                continue;
+            }
+            int j = best.size();
+            while (j > 0 && best.get(j-1).score < le.score) {
+                j--;
+            }
+            if (j < limit) {
+                best.add(j, le);
+                if (best.size() > limit) {
+                    best.remove(best.size()-1);
+                }
+            }
+        }
+        candidates.clear();
+        seen.clear();
+
+        ArrayList<LightNode> lights = new ArrayList<LightNode>(best.size());
+        for (int i=0; i<best.size(); i++) {
+            lights.add(best.get(i).node);
+        }
+        return (lights);
+    }
+
+    /**
+     * Compute how much a light contributes at the nearest point of a bounds
+     */
+    private float getInfluence(LightEntry le, Vector3f c, float radius) {
+        Light light = le.node.getLight();
+        if (le.range == Float.POSITIVE_INFINITY) {
+            return (Float.MAX_VALUE);
+        }
+        if (radius < 0.0f) {
+            return (1.0f/light.getConstant());
+        }
+
+        float d = Math.max(0.0f, le.position.distance(c) - radius);
+        if (d > le.range) {
+            return (0.0f);
+        }
+        return (1.0f/(light.getConstant() + light.getLinear()*d + 
+                      light.getQuadratic()*d*d));
+    }
+
+    /**
+     * Get the position of a light, or null if it has none
+     */
+    private Vector3f getLightPosition(LightNode ln) {
+        Light light = ln.getLight();
+        if (light instanceof PointLight) {
+            return (((PointLight)light).getLocation());
+        }
+        return (null);
+    }
+
+    /**
+     * Compute the distance at which a light's intensity drops below the
+     * minimum.  Lights without attenuation have an infinite range.
+     */
+    private float getLightRange(Light light) {
+        if (!(light instanceof PointLight) || !light.isAttenuate()) {
+            return (Float.POSITIVE_INFINITY);
+        }
+
+        float c = light.getConstant();
+        float l = light.getLinear();
+        float q = light.getQuadratic();
+        float k = 1.0f/minIntensity;
+        if (c >= k) {
+            return (0.0f);
+        }
+        if (q > 0.0f) {
+            return ((float)((-l + Math.sqrt(l*l - 4.0f*q*(c - k)))/(2.0f*q)));
+        }
+        if (l > 0.0f) {
+            return ((k - c)/l);
+        }
+        return (Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Refresh the position and range of a light
+     */
+    private void updateLightBounds(LightEntry le) {
+        le.range = getLightRange(le.node.getLight());
+        Vector3f pos = getLightPosition(le.node);
+        if (pos != null) {
+            le.position.set(pos);
+        }
+    }
+
+    /**
+     * Put a light in the grid
+     */
+    private void indexLight(LightEntry le) {
+        le.cells = null;
+        if (le.range != Float.POSITIVE_INFINITY) {
+            le.cells = getCells(le.position, le.range);
+        }
+        if (le.cells == null) {
+            unboundedLights.add(le);
+            return;
+        }
+        for (int i=0; i<le.cells.length; i++) {
+            ArrayList<LightEntry> list = lightGrid.get(le.cells[i]);
+            if (list == null) {
+                list = new ArrayList<LightEntry>();
+                lightGrid.put(le.cells[i], list);
+            }
+            list.add(le);
+        }
+    }
+
+    /**
+     * Take a light out of the grid
+     */
+    private void unindexLight(LightEntry le) {
+        if (le.cells == null) {
+            unboundedLights.remove(le);
+            return;
+        }
+        for (int i=0; i<le.cells.length; i++) {
+            ArrayList<LightEntry> list = lightGrid.get(le.cells[i]);
+            if (list != null) {
+                list.remove(le);
+                if (list.isEmpty()) {
+                    lightGrid.remove(le.cells[i]);
+                }
+            }
+        }
+        le.cells = null;
+    }
+
+    /**
+     * Mark every component a light can reach as needing new lights
+     */
+    private void markAffected(LightEntry le) {
+        if (le.cells == null) {
+            for (int i=0; i<componentList.size(); i++) {
+                ComponentEntry ce = componentList.get(i);
+                dirty.put(ce, ce);
+            }
+            return;
+        }
+
+        for (int i=0; i<unboundedComponents.size(); i++) {
+            ComponentEntry ce = unboundedComponents.get(i);
+            dirty.put(ce, ce);
+        }
+        for (int i=0; i<le.cells.length; i++) {
+            ArrayList<ComponentEntry> list = componentGrid.get(le.cells[i]);
+            if (list != null) {
+                for (int j=0; j<list.size(); j++) {
+                    ComponentEntry ce = list.get(j);
+                    dirty.put(ce, ce);
+                }
+            }
+        }
+    }
+
+    /**
+     * See if a component has moved, and if so reindex it
+     */
+    private void checkComponent(ComponentEntry ce) {
+        Spatial root = ce.rc.getSceneRoot();
+        if (root != ce.root) {
+            if (ce.root != null) {
+                rootMap.remove(ce.root);
+            }
+            ce.root = root;
+            if (root != null) {
+                rootMap.put(root, ce);
+            }
+        }
+
+        float radius = getBounds(root, center);
+        if (radius != ce.radius || !center.equals(ce.center)) {
+            unindexComponent(ce);
+            ce.center.set(center);
+            ce.radius = radius;
+            indexComponent(ce);
+            dirty.put(ce, ce);
+        }
+    }
+
+    /**
+     * Refresh the bounds of a component
+     */
+    private void updateComponentBounds(ComponentEntry ce) {
+        ce.root = ce.rc.getSceneRoot();
+        if (ce.root != null) {
+            rootMap.put(ce.root, ce);
+        }
+        ce.radius = getBounds(ce.root, ce.center);
+    }
+
+    /**
+     * Put a component in the grid
+     */
+    private void indexComponent(ComponentEntry ce) {
+        ce.cells = null;
+        if (ce.radius >= 0.0f) {
+            ce.cells = getCells(ce.center, ce.radius);
+        }
+        if (ce.cells == null) {
+            ce.unboundedSlot = unboundedComponents.size();
+            unboundedComponents.add(ce);
+            return;
+        }
+        for (int i=0; i<ce.cells.length; i++) {
+            ArrayList<ComponentEntry> list = componentGrid.get(ce.cells[i]);
+            if (list == null) {
+                list = new ArrayList<ComponentEntry>();
+                componentGrid.put(ce.cells[i], list);
+            }
+            list.add(ce);
+        }
+    }
+
+    /**
+     * Take a component out of the grid
+     */
+    private void unindexComponent(ComponentEntry ce) {
+        if (ce.cells == null) {
+            int slot = ce.unboundedSlot;
+            int last = unboundedComponents.size() - 1;
+            if (slot >= 0 && slot <= last && unboundedComponents.get(slot) == ce) {
+                if (slot != last) {
+                    ComponentEntry moved = unboundedComponents.get(last);
+                    unboundedComponents.set(slot, moved);
+                    moved.unboundedSlot = slot;
+                }
+                unboundedComponents.remove(last);
+            }
+            ce.unboundedSlot = -1;
+            return;
+        }
+        for (int i=0; i<ce.cells.length; i++) {
+            ArrayList<ComponentEntry> list = componentGrid.get(ce.cells[i]);
+            if (list != null) {
+                list.remove(ce);
+                if (list.isEmpty()) {
+                    componentGrid.remove(ce.cells[i]);
+                }
+            }
+        }
+        ce.cells = null;
+    }
+
+    /**
+     * Get the world bounds of a spatial as a sphere.  This returns the 
+     * radius, or -1 if the bounds are unknown.
+     */
+    private float getBounds(Spatial s, Vector3f c) {
+        BoundingVolume bv = (s == null) ? null : s.getWorldBound();
+        if (bv instanceof BoundingSphere) {
+            c.set(bv.getCenter());
+            return (((BoundingSphere)bv).getRadius());
+        } else if (bv instanceof BoundingBox) {
+            BoundingBox bbox = (BoundingBox) bv;
+            c.set(bbox.getCenter());
+            return ((float)Math.sqrt(bbox.xExtent*bbox.xExtent + 
+                    bbox.yExtent*bbox.yExtent + bbox.zExtent*bbox.zExtent));
+        }
+        c.set(0.0f, 0.0f, 0.0f);
+        return (-1.0f);
+    }
+
+    /**
+     * Get the grid cells covered by a sphere, or null if there are too many
+     */
+    private long[] getCells(Vector3f c, float radius) {
+        int minX = (int)Math.floor((c.x - radius)/cellSize);
+        int minY = (int)Math.floor((c.y - radius)/cellSize);
+        int minZ = (int)Math.floor((c.z - radius)/cellSize);
+        int maxX = (int)Math.floor((c.x + radius)/cellSize);
+        int maxY = (int)Math.floor((c.y + radius)/cellSize);
+        int maxZ = (int)Math.floor((c.z + radius)/cellSize);
+
+        long count = (long)(maxX - minX + 1)*(maxY - minY + 1)*(maxZ - minZ + 1);
+        if (count > MAX_CELLS || count <= 0) {
+            return (null);
+        }
+
+        long[] cells = new long[(int)count];
+        int n = 0;
+        for (int x=minX; x<=maxX; x++) {
+            for (int y=minY; y<=maxY; y++) {
+                for (int z=minZ; z<=maxZ; z++) {
+                    cells[n++] = getCellKey(x, y, z);
+                }
+            }
+        }
+        return (cells);
+    }
+
+    /**
+     * Pack a cell's coordinates into a key
+     */
+    private static long getCellKey(int x, int y, int z) {
+        return (((long)(x & 0x1fffff) << 42) | ((long)(y & 0x1fffff) << 21) | (long)(z & 0x1fffff));
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jdesktop.mtgame;
+
+import com.jme.scene.Node;
+import com.jme.util.export.Savable;
+import com.jme.util.export.binary.BinaryExporter;
+import com.jme.util.export.binary.BinaryImporter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps compiled copies of loaded models on disk.  A model is
+ * stored in the jME binary format, in a file named by the hash of its source
+ * data, once it has been loaded and prepared.  Later loads of the same source
+ * map the file and rebuild the scene graph from it, without parsing the 
+ * source again.  An index remembers which hash each source URL was last
+ * stored under, so the old entry is deleted when the source changes.
+ * 
+ * @author Doug Twilleager
+ */
+public class ModelCache {
+    private static final Logger logger = Logger.getLogger(ModelCache.class.getName());
+
+    /**
+     * This is part of every hash, so changing it invalidates every entry.  
+     * It should change whenever the way models are prepared changes.
+     */
+    private static final String VERSION = "1";
+
+    /**
+     * The name of the index file
+     */
+    private static final String INDEX_NAME = "index.properties";
+
+    /**
+     * The cache directory
+     */
+    private File directory = null;
+
+    /**
+     * The hash each source was last stored under
+     */
+    private Properties index = new Properties();
+
+    /**
+     * Statistics
+     */
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * Create a cache in the given directory
+     */
+    public ModelCache(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+        File indexFile = new File(directory, INDEX_NAME);
+        if (indexFile.exists()) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(indexFile);
+                index.load(in);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to read model cache index", e);
+            } finally {
+                close(in);
+            }
+        }
+    }
+
+    /**
+     * Get the cache directory
+     */
+    public File getDirectory() {
+        return (directory);
+    }
+
+    /**
+     * Read all of the data from the given source.  The data is hashed to 
+     * find the cache entry, and is parsed from memory on a miss.
+     */
+    public static byte[] readSource(URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[65536];
+            int len = 0;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return (out.toByteArray());
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Get the hash for the given source data
+     */
+    public static String hash(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(VERSION.getBytes());
+            md.update(data);
+            byte[] digest = md.digest();
+            StringBuffer buf = new StringBuffer();
+            for (int i=0; i<digest.length; i++) {
+                buf.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                buf.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return (buf.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Load the model stored under the given hash.  This returns null if
+     * there is no such model, or it can't be read.
+     */
+    public Node load(String hash) {
+        File file = getFile(hash);
+        if (!file.exists()) {
+            synchronized (this) {
+                misses++;
+            }
+            return (null);
+        }
+
+        RandomAccessFile raf = null;
+        Node model = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Savable s = BinaryImporter.getInstance().load(new BufferInputStream(data));
+            if (s instanceof Node) {
+                model = (Node) s;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read cached model " + file, e);
+        } finally {
+            close(raf);
+        }
+
+        synchronized (this) {
+            if (model == null) {
+                misses++;
+                file.delete();
+            } else {
+                hits++;
+            }
+        }
+        return (model);
+    }
+
+    /**
+     * Store a model under the given hash.  If the source was stored under
+     * a different hash before, that entry is deleted.
+     */
+    public void store(URL source, String hash, Node model) {
+        File file = getFile(hash);
+        File tmp = null;
+        try {
+            // A unique name, so concurrent stores of the same model
+            // don't write over each other's file
+            tmp = File.createTempFile(hash + "-", ".tmp", directory);
+            BinaryExporter.getInstance().save(model, tmp);
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + file);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to cache model " + source, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            String key = source.toExternalForm();
+            String old = index.getProperty(key);
+            index.setProperty(key, hash);
+            if (old != null && !old.equals(hash) && !index.containsValue(old)) {
+                getFile(old).delete();
+            }
+            writeIndex();
+        }
+    }
+
+    /**
+     * Remove every cached model
+     */
+    public synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (int i=0; i<files.length; i++) {
+                String name = files[i].getName();
+                if (name.endsWith(".jme") || name.endsWith(".tmp")) {
+                    files[i].delete();
+                }
+            }
+        }
+        index.clear();
+        writeIndex();
+    }
+
+    /**
+     * Get the number of loads which were found in the cache
+     */
+    public synchronized int getHits() {
+        return (hits);
+    }
+
+    /**
+     * Get the number of loads which were not found in the cache
+     */
+    public synchronized int getMisses() {
+        return (misses);
+    }
+
+    /**
+     * Get the file for a hash
+     */
+    private File getFile(String hash) {
+        return (new File(directory, hash + ".jme"));
+    }
+
+    /**
+     * Write out the index
+     */
+    private void writeIndex() {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(new File(directory, INDEX_NAME));
+            index.store(out, "mtgame model cache");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to write model cache index", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * An InputStream which reads from a ByteBuffer
+     */
+    static class BufferInputStream extends InputStream {
+        private ByteBuffer buffer = null;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return (buffer.hasRemaining() ? (buffer.get() & 0xff) : -1);
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return (0);
+            }
+            if (!buffer.hasRemaining()) {
+                return (-1);
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return (len);
+        }
+
+        public int available() {
+            return (buffer.remaining());
+        }
+
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return (count);
+        }
+    }
+}
@@ -79,6 +79,21 @@ public class Portal {
      */
     private Sector mySector = null;
 
+    /**
+     * The cached visibility of this portal, kept by the PortalBufferController.
+     * It is valid for the view stamp, the portal it was reached through,
+     * the recursion level, the rectangle it was clipped to, and the bounds
+     * it was computed with.
+     */
+    boolean visible = false;
+    long visibleStamp = -1;
+    Portal visibleFrom = null;
+    int visibleLevel = -1;
+    Vector3f visibleCenter = new Vector3f();
+    Vector3f visibleExtent = new Vector3f();
+    float[] visibleRect = new float[4];
+    float[] visibleParentRect = new float[4];
+
     /**
      * The default constructor
      */
@@ -33,23 +33,59 @@ import com.jme.renderer.Renderer;
 import javolution.util.FastList;
 import com.jme.system.DisplaySystem;
 import com.jme.renderer.Camera;
+import com.jme.bounding.BoundingBox;
+import com.jme.bounding.BoundingSphere;
+import com.jme.bounding.BoundingVolume;
+import com.jme.scene.Geometry;
 import com.jme.math.Vector3f;
 import com.jme.math.Matrix3f;
-import com.jme.math.Quaternion;
 import javax.media.opengl.awt.GLCanvas;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
 
 /**
  * This interface is implemented by anyone who wants to be updated in the render thread
  * 
+ * The sectors are kept in a uniform grid, so the sector holding the camera
+ * is found by looking at the few sectors near it.  The sector the camera
+ * was in last frame, and its neighbors through portals, are checked first.
+ * Portals are then traversed recursively, up to the recurse threshold.  Each
+ * portal is tested against the frustum it is seen through, and the next
+ * sector is rendered with the frustum and viewport clipped to the portal's
+ * screen rectangle.  The test results are kept on the portal and reused
+ * while the camera and the portal do not move.
+ * 
  * @author Doug Twilleager
  */
 public class PortalBufferController extends DefaultBufferController {
+    /**
+     * Sectors which cover more cells than this are not put in the grid,
+     * and are checked for every lookup.
+     */
+    private static final int MAX_CELLS = 4096;
+
     /**
      * This list of known sectors
      */
     private FastList<Sector> sectorList = new FastList<Sector>();
 
+    /**
+     * The grid of sectors, and the cells for each sector
+     */
+    private float cellSize = 32.0f;
+    private HashMap<Long, ArrayList<Sector>> sectorGrid = new HashMap<Long, ArrayList<Sector>>();
+    private IdentityHashMap<Sector, long[]> sectorCells = new IdentityHashMap<Sector, long[]>();
+    private ArrayList<Sector> unboundedSectors = new ArrayList<Sector>();
+
+    /**
+     * The sector the camera was found in last
+     */
+    private Sector lastSector = null;
+
     /**
      * The recursive threshold
      */
@@ -66,6 +102,41 @@ public class PortalBufferController extends DefaultBufferController {
      */
     OnscreenRenderBuffer screenBuffer = null;
 
+    /**
+     * The camera state when the portals were last traversed.  The view
+     * stamp changes whenever this changes, which invalidates the cached
+     * portal visibility.
+     */
+    private float[] viewState = new float[20];
+    private long viewStamp = 0;
+
+    /**
+     * The frustum and viewport of the camera before any clipping
+     */
+    private float frustumNear = 0.0f;
+    private float frustumFar = 0.0f;
+    private float frustumLeft = 0.0f;
+    private float frustumRight = 0.0f;
+    private float frustumTop = 0.0f;
+    private float frustumBottom = 0.0f;
+    private float viewPortLeft = 0.0f;
+    private float viewPortRight = 1.0f;
+    private float viewPortTop = 1.0f;
+    private float viewPortBottom = 0.0f;
+
+    /**
+     * The number of portals rendered in the last frame
+     */
+    private int portalsRendered = 0;
+
+    /**
+     * Scratch objects
+     */
+    private Vector3f boundCenter = new Vector3f();
+    private Vector3f boundExtent = new Vector3f();
+    private Vector3f corner = new Vector3f();
+    private Vector3f screenPos = new Vector3f();
+    private float[] fullRect = {0.0f, 1.0f, 0.0f, 1.0f};
 
     /**
      * This method is called to render the whole scene
@@ -80,6 +151,7 @@ public class PortalBufferController extends DefaultBufferController {
         Camera jMECamera = jmeRenderer.getCamera();
         Sector s = findSector(jMECamera.getLocation());
 
+        portalsRendered = 0;
         if (s != null) {
             if (portalCamera == null) {
                 portalCamera = jmeRenderer.createCamera(screenBuffer.getWidth(), screenBuffer.getHeight());
@@ -90,49 +162,153 @@ public class PortalBufferController extends DefaultBufferController {
             Vector3f direction = new Vector3f(jMECamera.getDirection());
             Vector3f up = new Vector3f(jMECamera.getUp());
             Vector3f left = new Vector3f(jMECamera.getLeft());
-            //jmeRenderer.setCamera(portalCamera);
+            saveView(jMECamera);
 
-            renderPortalsInSector(s, 0, ds, jmeRenderer, mtRenderer, location, direction, up, left);
+            renderPortalsInSector(s, 0, null, fullRect, ds, jmeRenderer, mtRenderer, location, direction, up, left);
 
-            //jmeRenderer.setCamera(saveCamera);
-            jMECamera.update();
-            jMECamera.apply();
+            // Put the camera back the way it was
+            setView(jMECamera, location, direction, up, left, fullRect);
         }
         ((GLCanvas) (screenBuffer.getCanvas())).swapBuffers();
     }
 
     /**
-     * This method is called to render the whole scene
+     * This method is called to render the portals in a sector.  The camera
+     * is at the given location, and is clipped to the given rectangle.
      */
-    void renderPortalsInSector(Sector s, int level, DisplaySystem ds, Renderer jmeRenderer, org.jdesktop.mtgame.Renderer mtRenderer,
+    void renderPortalsInSector(Sector s, int level, Portal from, float[] rect, DisplaySystem ds, 
+                               Renderer jmeRenderer, org.jdesktop.mtgame.Renderer mtRenderer,
                                Vector3f cLoc, Vector3f cDir, Vector3f cUp, Vector3f cLeft) {
-        if (level > recurseThreshold) {
+        if (level > recurseThreshold || s == null) {
             return;
         }
         
-        // Calculate frustum
+        Camera camera = jmeRenderer.getCamera();
         Portal p = null;
         FastList<Portal> portalList = s.getPortalList();
+        Vector3f loc = null;
+        Vector3f dir = null;
+        Vector3f up = null;
+        Vector3f left = null;
         for (int i=0; i<portalList.size(); i++) {
-            //System.out.println(" ========================== Portal: " + i);
             p = portalList.get(i);
+            if (!isPortalVisible(camera, p, from, level, rect)) {
+                continue;
+            }
+            if (loc == null) {
+                loc = new Vector3f();
+                dir = new Vector3f();
+                up = new Vector3f();
+                left = new Vector3f();
+            }
+
             jmeRenderer.clearStencilBuffer();
-            // Do intersect test
-            // Calculate new Camera
-            Vector3f loc = new Vector3f();
-            Vector3f dir = new Vector3f();
-            Vector3f up = new Vector3f();
-            Vector3f left = new Vector3f();
-            updateCamera(jmeRenderer.getCamera(), p, cLoc, cDir, cUp, cLeft, loc, dir, up, left);
+            float[] portalRect = new float[4];
+            System.arraycopy(p.visibleRect, 0, portalRect, 0, 4);
+            updateCamera(camera, p, cLoc, cDir, cUp, cLeft, loc, dir, up, left);
+            setClip(camera, portalRect);
 
             screenBuffer.setPortal(p, cLoc, cDir, cUp, cLeft);
             renderBuffer(ds, jmeRenderer, mtRenderer, screenBuffer);
             screenBuffer.setPortal(null, null, null, null, null);
+            portalsRendered++;
 
-            //renderPortalsInSector(p.getNextSector(), level+1, ds, jmeRenderer, mtRenderer, cLoc, cDir, cUp, cLeft);
+            if (level < recurseThreshold) {
+                renderPortalsInSector(p.getNextSector(), level+1, p, portalRect, ds, jmeRenderer, mtRenderer, 
+                                      loc, dir, up, left);
+            }
+
+            // Go back to this sector's view for the next portal
+            setView(camera, cLoc, cDir, cUp, cLeft, rect);
         }
-        
-    }  
+    }
+
+    /**
+     * Check whether or not a portal can be seen from the camera, as it
+     * is currently set, clipped to the parent rectangle.  On return, the 
+     * portal's visible rectangle holds the part of the screen the portal 
+     * covers.  The result is reused while the view, the path to the portal,
+     * and the portal's bounds stay the same.
+     */
+    private boolean isPortalVisible(Camera camera, Portal p, Portal from, int level, float[] parentRect) {
+        Geometry geo = p.getGeometry();
+        BoundingVolume bv = (geo == null) ? null : geo.getWorldBound();
+        boolean bounded = getBounds(bv, boundCenter, boundExtent);
+
+        if (p.visibleStamp == viewStamp && p.visibleFrom == from && p.visibleLevel == level &&
+            p.visibleCenter.equals(boundCenter) && p.visibleExtent.equals(boundExtent) &&
+            Arrays.equals(p.visibleParentRect, parentRect)) {
+            return (p.visible);
+        }
+
+        boolean visible = true;
+        float[] r = p.visibleRect;
+        r[0] = parentRect[0];
+        r[1] = parentRect[1];
+        r[2] = parentRect[2];
+        r[3] = parentRect[3];
+
+        if (bounded) {
+            camera.setPlaneState(0);
+            if (camera.contains(bv) == Camera.FrustumIntersect.Outside) {
+                visible = false;
+            } else {
+                visible = clipToBounds(camera, r);
+            }
+        }
+
+        p.visible = visible;
+        p.visibleStamp = viewStamp;
+        p.visibleFrom = from;
+        p.visibleLevel = level;
+        p.visibleCenter.set(boundCenter);
+        p.visibleExtent.set(boundExtent);
+        System.arraycopy(parentRect, 0, p.visibleParentRect, 0, 4);
+        return (visible);
+    }
+
+    /**
+     * Clip the given rectangle to the screen area covered by the bounds
+     * in boundCenter and boundExtent.  Returns false if nothing is left.  
+     * If the bounds reach behind the camera, the rectangle is unchanged.
+     */
+    private boolean clipToBounds(Camera camera, float[] r) {
+        Vector3f cLoc = camera.getLocation();
+        Vector3f cDir = camera.getDirection();
+        float near = camera.getFrustumNear();
+        float width = camera.getWidth();
+        float height = camera.getHeight();
+        float vpWidth = viewPortRight - viewPortLeft;
+        float vpHeight = viewPortTop - viewPortBottom;
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+
+        for (int i=0; i<8; i++) {
+            corner.set(boundCenter.x + ((i & 1) == 0 ? -boundExtent.x : boundExtent.x),
+                       boundCenter.y + ((i & 2) == 0 ? -boundExtent.y : boundExtent.y),
+                       boundCenter.z + ((i & 4) == 0 ? -boundExtent.z : boundExtent.z));
+            float depth = (corner.x - cLoc.x)*cDir.x + (corner.y - cLoc.y)*cDir.y + 
+                          (corner.z - cLoc.z)*cDir.z;
+            if (depth < near) {
+                return (true);
+            }
+            camera.getScreenCoordinates(corner, screenPos);
+            float x = (screenPos.x/width - viewPortLeft)/vpWidth;
+            float y = (screenPos.y/height - viewPortBottom)/vpHeight;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        r[0] = Math.max(r[0], minX);
+        r[1] = Math.min(r[1], maxX);
+        r[2] = Math.max(r[2], minY);
+        r[3] = Math.min(r[3], maxY);
+        return (r[0] < r[1] && r[2] < r[3]);
+    }
     
     /**
      * Update the camera position.  This is done my applying the
@@ -140,33 +316,14 @@ public class PortalBufferController extends DefaultBufferController {
      */
     private void updateCamera(Camera c, Portal p, Vector3f cLoc, Vector3f cDir, Vector3f cUp, Vector3f cLeft,
                               Vector3f nLoc, Vector3f nDir, Vector3f nUp, Vector3f nLeft) {
-        //Quaternion rot = p.getEnterExitRotation();
         Matrix3f rot = p.getEnterExitRotation();
         Matrix3f rotI = rot.invert().transpose();
-        //Vector3f camDir = new Vector3f();
-
-        //System.out.println("updateCamera for Portal: " + p);
-        //Vector3f camToEnter = new Vector3f();
-        //camToEnter.x = cLoc.x - p.getEnterLocation().x;
-        //camToEnter.y = cLoc.y - p.getEnterLocation().y;
-        //camToEnter.z = cLoc.z - p.getEnterLocation().z;
-        //System.out.println("Camera To Enter: " + camToEnter);
-        //float d = camToEnter.length();
-        //camToEnter.normalizeLocal();
-        //rotI.mult(camToEnter, camDir);
-        //camDir.normalizeLocal();
-        //camDir.multLocal(d);
 
         nLoc.set(p.getExitLocation().x, p.getExitLocation().y, p.getExitLocation().z);
-        //nLoc.addLocal(camDir);
 
         rotI.mult(cDir, nDir);
         rotI.mult(cUp, nUp);
         rotI.mult(cLeft, nLeft);
-//        System.out.println("Current Camera is at: " + cLoc);
-//        System.out.println("Current Camera dirct: " + cDir);
-//        System.out.println("New Camera is at: " + nLoc);
-//        System.out.println("New Camera dirct: " + nDir);
         c.setLocation(nLoc);
         c.setDirection(nDir);
         c.setUp(nUp);
@@ -175,30 +332,169 @@ public class PortalBufferController extends DefaultBufferController {
         c.apply();
     }
 
+    /**
+     * Remember the camera's frustum and viewport before any clipping, and
+     * move to a new view stamp if the camera has changed since last frame.
+     */
+    private void saveView(Camera c) {
+        frustumNear = c.getFrustumNear();
+        frustumFar = c.getFrustumFar();
+        frustumLeft = c.getFrustumLeft();
+        frustumRight = c.getFrustumRight();
+        frustumTop = c.getFrustumTop();
+        frustumBottom = c.getFrustumBottom();
+        viewPortLeft = c.getViewPortLeft();
+        viewPortRight = c.getViewPortRight();
+        viewPortTop = c.getViewPortTop();
+        viewPortBottom = c.getViewPortBottom();
+
+        Vector3f loc = c.getLocation();
+        Vector3f dir = c.getDirection();
+        Vector3f up = c.getUp();
+        boolean changed = false;
+        changed |= updateViewState(0, loc.x);
+        changed |= updateViewState(1, loc.y);
+        changed |= updateViewState(2, loc.z);
+        changed |= updateViewState(3, dir.x);
+        changed |= updateViewState(4, dir.y);
+        changed |= updateViewState(5, dir.z);
+        changed |= updateViewState(6, up.x);
+        changed |= updateViewState(7, up.y);
+        changed |= updateViewState(8, up.z);
+        changed |= updateViewState(9, frustumNear);
+        changed |= updateViewState(10, frustumFar);
+        changed |= updateViewState(11, frustumLeft);
+        changed |= updateViewState(12, frustumRight);
+        changed |= updateViewState(13, frustumTop);
+        changed |= updateViewState(14, frustumBottom);
+        changed |= updateViewState(15, viewPortLeft);
+        changed |= updateViewState(16, viewPortRight);
+        changed |= updateViewState(17, viewPortTop);
+        changed |= updateViewState(18, viewPortBottom);
+        changed |= updateViewState(19, c.getWidth()*65536.0f + c.getHeight());
+        if (changed) {
+            viewStamp++;
+        }
+    }
+
+    /**
+     * Set one entry of the view state, returning true if it changed
+     */
+    private boolean updateViewState(int index, float value) {
+        if (viewState[index] != value) {
+            viewState[index] = value;
+            return (true);
+        }
+        return (false);
+    }
+
+    /**
+     * Set the camera to the given view, clipped to the given rectangle
+     */
+    private void setView(Camera c, Vector3f loc, Vector3f dir, Vector3f up, Vector3f left, float[] rect) {
+        c.setLocation(loc);
+        c.setDirection(dir);
+        c.setUp(up);
+        c.setLeft(left);
+        setClip(c, rect);
+    }
+
+    /**
+     * Clip the camera's frustum and viewport to the given rectangle, which
+     * is relative to the original viewport.  The two are clipped together,
+     * so what is drawn lands in the same place on the screen.
+     */
+    private void setClip(Camera c, float[] rect) {
+        float fw = frustumRight - frustumLeft;
+        float fh = frustumTop - frustumBottom;
+        float vw = viewPortRight - viewPortLeft;
+        float vh = viewPortTop - viewPortBottom;
+
+        c.setFrustum(frustumNear, frustumFar, frustumLeft + fw*rect[0], frustumLeft + fw*rect[1],
+                     frustumBottom + fh*rect[3], frustumBottom + fh*rect[2]);
+        c.setViewPort(viewPortLeft + vw*rect[0], viewPortLeft + vw*rect[1],
+                      viewPortBottom + vh*rect[2], viewPortBottom + vh*rect[3]);
+        c.update();
+        c.apply();
+    }
+
+    /**
+     * Get the center and half extents of the given bounds.  Returns false
+     * if the bounds are unknown.
+     */
+    private boolean getBounds(BoundingVolume bv, Vector3f c, Vector3f e) {
+        if (bv instanceof BoundingBox) {
+            BoundingBox bbox = (BoundingBox) bv;
+            c.set(bbox.getCenter());
+            e.set(bbox.xExtent, bbox.yExtent, bbox.zExtent);
+            return (true);
+        } else if (bv instanceof BoundingSphere) {
+            float r = ((BoundingSphere)bv).getRadius();
+            c.set(bv.getCenter());
+            e.set(r, r, r);
+            return (true);
+        }
+        c.set(0.0f, 0.0f, 0.0f);
+        e.set(0.0f, 0.0f, 0.0f);
+        return (false);
+    }
+
     /**
      * This method is called to render the whole scene
      */
     void renderAllBuffers(DisplaySystem ds, Renderer jmeRenderer, org.jdesktop.mtgame.Renderer mtRenderer) {
+        long frameTime = System.nanoTime();
+
         for (int i=0; i<renderBufferList.size(); i++) {
             RenderBuffer rb = renderBufferList.get(i);
-            renderBuffer(ds, jmeRenderer, mtRenderer, rb);
+            if (rb.checkForUpdate(mtRenderer, frameTime)) {
+                renderBuffer(ds, jmeRenderer, mtRenderer, rb);
+            }
         }
     }
 
     /**
-     * Find the sector that includes this point.
+     * Find the sector that includes this point.  If sectors overlap, the
+     * one the camera was last in is preferred.
      * @param pos
      * @return
      */
     Sector findSector(Vector3f pos) {
-        Sector s = null;
-
         synchronized (sectorList) {
-            for (int i = 0; i < sectorList.size(); i++) {
-                s = sectorList.get(i);
+            // Most of the time, the camera is where it was, or has 
+            // stepped through a portal.
+            Sector s = lastSector;
+            if (s != null) {
                 if (s.getBoundingVolume().contains(pos)) {
                     return (s);
                 }
+                FastList<Portal> portalList = s.getPortalList();
+                for (int i=0; i<portalList.size(); i++) {
+                    Sector next = portalList.get(i).getNextSector();
+                    if (next != null && sectorCells.containsKey(next) &&
+                        next.getBoundingVolume().contains(pos)) {
+                        lastSector = next;
+                        return (next);
+                    }
+                }
+            }
+
+            ArrayList<Sector> list = sectorGrid.get(getCellKey(pos.x, pos.y, pos.z));
+            if (list != null) {
+                for (int i = 0; i < list.size(); i++) {
+                    s = list.get(i);
+                    if (s.getBoundingVolume().contains(pos)) {
+                        lastSector = s;
+                        return (s);
+                    }
+                }
+            }
+            for (int i = 0; i < unboundedSectors.size(); i++) {
+                s = unboundedSectors.get(i);
+                if (s.getBoundingVolume().contains(pos)) {
+                    lastSector = s;
+                    return (s);
+                }
             }
         }
         return (null);
@@ -216,7 +512,11 @@ public class PortalBufferController extends DefaultBufferController {
      */
     public void addSector(Sector s) {
         synchronized (sectorList) {
+            if (sectorCells.containsKey(s)) {
+                return;
+            }
             sectorList.add(s);
+            indexSector(s);
         }
     }
 
@@ -225,7 +525,147 @@ public class PortalBufferController extends DefaultBufferController {
      */
     public void removeSector(Sector s) {
         synchronized (sectorList) {
+            if (!sectorCells.containsKey(s)) {
+                return;
+            }
             sectorList.remove(s);
+            unindexSector(s);
+            if (lastSector == s) {
+                lastSector = null;
+            }
+        }
+    }
+
+    /**
+     * Set the number of portal levels which are rendered through.  
+     * A threshold of 0 only renders the portals in the camera's sector.
+     */
+    public void setRecurseThreshold(int threshold) {
+        recurseThreshold = threshold;
+    }
+
+    /**
+     * Get the number of portal levels which are rendered through.
+     */
+    public int getRecurseThreshold() {
+        return (recurseThreshold);
+    }
+
+    /**
+     * Set the size of a cell in the sector grid.  This should be on the 
+     * order of the size of a typical sector.
+     */
+    public void setCellSize(float size) {
+        synchronized (sectorList) {
+            cellSize = size;
+            sectorGrid.clear();
+            sectorCells.clear();
+            unboundedSectors.clear();
+            for (int i=0; i<sectorList.size(); i++) {
+                indexSector(sectorList.get(i));
+            }
+        }
+    }
+
+    /**
+     * Get the size of a cell in the sector grid
+     */
+    public float getCellSize() {
+        return (cellSize);
+    }
+
+    /**
+     * Get the number of portals rendered in the last frame
+     */
+    public int getPortalsRendered() {
+        return (portalsRendered);
+    }
+
+    /**
+     * Put a sector in the grid
+     */
+    private void indexSector(Sector s) {
+        long[] cells = null;
+        Vector3f c = new Vector3f();
+        Vector3f e = new Vector3f();
+        if (getBounds(s.getBoundingVolume(), c, e)) {
+            cells = getCells(c, e);
+        }
+        sectorCells.put(s, cells);
+        if (cells == null) {
+            unboundedSectors.add(s);
+            return;
+        }
+        for (int i=0; i<cells.length; i++) {
+            ArrayList<Sector> list = sectorGrid.get(cells[i]);
+            if (list == null) {
+                list = new ArrayList<Sector>();
+                sectorGrid.put(cells[i], list);
+            }
+            list.add(s);
+        }
+    }
+
+    /**
+     * Take a sector out of the grid
+     */
+    private void unindexSector(Sector s) {
+        long[] cells = sectorCells.remove(s);
+        if (cells == null) {
+            unboundedSectors.remove(s);
+            return;
+        }
+        for (int i=0; i<cells.length; i++) {
+            ArrayList<Sector> list = sectorGrid.get(cells[i]);
+            if (list != null) {
+                list.remove(s);
+                if (list.isEmpty()) {
+                    sectorGrid.remove(cells[i]);
+                }
+            }
         }
     }
+
+    /**
+     * Get the grid cells covered by a box, or null if there are too many
+     */
+    private long[] getCells(Vector3f c, Vector3f e) {
+        int minX = (int)Math.floor((c.x - e.x)/cellSize);
+        int minY = (int)Math.floor((c.y - e.y)/cellSize);
+        int minZ = (int)Math.floor((c.z - e.z)/cellSize);
+        int maxX = (int)Math.floor((c.x + e.x)/cellSize);
+        int maxY = (int)Math.floor((c.y + e.y)/cellSize);
+        int maxZ = (int)Math.floor((c.z + e.z)/cellSize);
+
+        long count = (long)(maxX - minX + 1)*(maxY - minY + 1)*(maxZ - minZ + 1);
+        if (count > MAX_CELLS || count <= 0) {
+            return (null);
+        }
+
+        long[] cells = new long[(int)count];
+        int n = 0;
+        for (int x=minX; x<=maxX; x++) {
+            for (int y=minY; y<=maxY; y++) {
+                for (int z=minZ; z<=maxZ; z++) {
+                    cells[n++] = getCellKey(x, y, z);
+                }
+            }
+        }
+        return (cells);
+    }
+
+    /**
+     * Get the key of the cell holding a point
+     */
+    private long getCellKey(float x, float y, float z) {
+        return (getCellKey((int)Math.floor(x/cellSize), (int)Math.floor(y/cellSize), 
+                           (int)Math.floor(z/cellSize)));
+    }
+
+    /**
+     * Pack a cell's coordinates into a key
+     */
+    private static long getCellKey(int x, int y, int z) {
+        return (((long)(x & 0x1fffff) << 42) | ((long)(y & 0x1fffff) << 21) | (long)(z & 0x1fffff));
+    }
 }
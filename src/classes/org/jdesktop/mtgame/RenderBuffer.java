@@ -40,6 +40,9 @@ import com.jme.system.DisplaySystem;
 import com.jme.renderer.Renderer;
 import com.jme.renderer.Camera;
 import com.jme.math.Vector3f;
+import com.jme.math.Quaternion;
+import com.jme.bounding.BoundingVolume;
+import javolution.util.FastMap;
 
 /**
  * This class encapsultes a rendering surface in mtgame.  It can be used
@@ -59,6 +62,17 @@ public abstract class RenderBuffer {
         SHADOWMAP,
         ONSCREEN
     }
+
+    /**
+     * The policies which decide when an offscreen buffer is re-rendered.
+     * Onscreen buffers are always rendered.
+     */
+    public enum UpdatePolicy {
+        EVERY_FRAME,
+        EVERY_NTH_FRAME,
+        ON_CHANGE,
+        INTERVAL
+    }
     
     /**
      * The target for this render buffer.
@@ -131,6 +145,23 @@ public abstract class RenderBuffer {
      * This enables the render buffer
      */
     private boolean enabled = true;
+
+    /**
+     * The update policy for this buffer, and it's parameters
+     */
+    private UpdatePolicy updatePolicy = UpdatePolicy.EVERY_FRAME;
+    private int updateFrequency = 1;
+    private long updateInterval = 0;
+
+    /**
+     * Bookkeeping used to evaluate the update policy
+     */
+    private int framesSinceRender = 0;
+    private long lastRenderTime = -1;
+    private long lastSceneChangeCount = -1;
+    private boolean dirty = true;
+    private float[] lastView = null;
+    private FastMap<Spatial, float[]> lastSceneState = new FastMap<Spatial, float[]>();
     
     /**
      * The constructor
@@ -242,6 +273,7 @@ public abstract class RenderBuffer {
         synchronized (renderComponentList) {
             if (manageRenderScenes != manage) {
                 manageRenderScenes = manage;
+                dirty = true;
             }
         }
     }
@@ -261,6 +293,7 @@ public abstract class RenderBuffer {
     public void addPassComponent(PassComponent rc) {
         synchronized (renderComponentList) {
             managedPassList.add(rc);
+            dirty = true;
         }
     }
 
@@ -271,6 +304,7 @@ public abstract class RenderBuffer {
     public void removePassComponent(PassComponent rc) {
         synchronized (renderComponentList) {
             managedPassList.remove(rc);
+            dirty = true;
         }
     }
 
@@ -281,6 +315,7 @@ public abstract class RenderBuffer {
     public void removePassComponent(int index) {
         synchronized (renderComponentList) {
             managedPassList.remove(index);
+            dirty = true;
         }
     }
 
@@ -302,6 +337,7 @@ public abstract class RenderBuffer {
     public void addRenderScene(RenderComponent rc) {
         synchronized (renderComponentList) {
             renderComponentList.add(rc);
+            dirty = true;
         }
     }
 
@@ -324,6 +360,7 @@ public abstract class RenderBuffer {
     public void removeRenderScene(RenderComponent rc) {
         synchronized (renderComponentList) {
             renderComponentList.remove(rc);
+            dirty = true;
         }
     }
            
@@ -334,6 +371,7 @@ public abstract class RenderBuffer {
     public void removeRenderScene(int index) {
         synchronized (renderComponentList) {
             renderComponentList.remove(index);
+            dirty = true;
         }
     }    
         
@@ -445,6 +483,7 @@ public abstract class RenderBuffer {
      */
     public void setCameraComponent(CameraComponent cc) {
         cameraComponent = cc;
+        dirty = true;
         // TODO: propogate dynamic change
     }
     
@@ -454,4 +493,203 @@ public abstract class RenderBuffer {
     public CameraComponent getCameraComponent() {
         return (cameraComponent);
     }
+
+    /**
+     * Set the update policy for this buffer.  The frequency is only used by
+     * EVERY_NTH_FRAME, and the interval (in milliseconds) is only used by
+     * INTERVAL.  The default is to render every frame.
+     */
+    public void setUpdatePolicy(UpdatePolicy policy, int frequency, long interval) {
+        synchronized (renderComponentList) {
+            updatePolicy = policy;
+            updateFrequency = (frequency < 1) ? 1 : frequency;
+            updateInterval = interval*1000000;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Set the update policy for this buffer
+     */
+    public void setUpdatePolicy(UpdatePolicy policy) {
+        setUpdatePolicy(policy, updateFrequency, updateInterval/1000000);
+    }
+
+    /**
+     * Get the update policy for this buffer
+     */
+    public UpdatePolicy getUpdatePolicy() {
+        return (updatePolicy);
+    }
+
+    /**
+     * Get the frequency used by EVERY_NTH_FRAME
+     */
+    public int getUpdateFrequency() {
+        return (updateFrequency);
+    }
+
+    /**
+     * Get the interval, in milliseconds, used by INTERVAL
+     */
+    public long getUpdateInterval() {
+        return (updateInterval/1000000);
+    }
+
+    /**
+     * Force this buffer to be rendered on the next frame, regardless of
+     * the update policy.  Applications should call this when they change
+     * something the ON_CHANGE policy can't see, like a texture or a
+     * render state.
+     */
+    public void setDirty() {
+        synchronized (renderComponentList) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * This is called from the render thread, before the buffer is made
+     * current, to decide whether or not it needs to be rendered this frame.
+     */
+    boolean checkForUpdate(org.jdesktop.mtgame.Renderer mtRenderer, long frameTime) {
+        boolean update = false;
+
+        if (target == Target.ONSCREEN) {
+            return (true);
+        }
+
+        synchronized (renderComponentList) {
+            framesSinceRender++;
+            switch (updatePolicy) {
+                case EVERY_FRAME:
+                    update = true;
+                    break;
+                case EVERY_NTH_FRAME:
+                    update = (framesSinceRender >= updateFrequency);
+                    break;
+                case INTERVAL:
+                    update = (lastRenderTime == -1 ||
+                              frameTime - lastRenderTime >= updateInterval);
+                    break;
+                case ON_CHANGE:
+                    // Evaluate everything, so the snapshots stay current
+                    update = viewChanged();
+                    update = contentChanged(mtRenderer) || update;
+                    break;
+            }
+
+            if (dirty) {
+                update = true;
+            }
+
+            if (update) {
+                framesSinceRender = 0;
+                lastRenderTime = frameTime;
+                dirty = false;
+            }
+        }
+        return (update);
+    }
+
+    /**
+     * Checks whether the view into this buffer has changed since the
+     * last call.  Subclasses with their own camera should override this.
+     */
+    protected boolean viewChanged() {
+        boolean changed = false;
+
+        if (cameraComponent == null || cameraComponent.getCamera() == null) {
+            return (false);
+        }
+
+        Camera camera = cameraComponent.getCamera();
+        if (lastView == null) {
+            lastView = new float[18];
+            changed = true;
+        }
+        changed = snapshot(lastView, 0, camera.getLocation()) || changed;
+        changed = snapshot(lastView, 3, camera.getDirection()) || changed;
+        changed = snapshot(lastView, 6, camera.getUp()) || changed;
+        changed = snapshot(lastView, 9, camera.getLeft()) || changed;
+        changed = snapshot(lastView, 12, camera.getFrustumNear()) || changed;
+        changed = snapshot(lastView, 13, camera.getFrustumFar()) || changed;
+        changed = snapshot(lastView, 14, camera.getFrustumLeft()) || changed;
+        changed = snapshot(lastView, 15, camera.getFrustumRight()) || changed;
+        changed = snapshot(lastView, 16, camera.getFrustumTop()) || changed;
+        changed = snapshot(lastView, 17, camera.getFrustumBottom()) || changed;
+        return (changed);
+    }
+
+    /**
+     * Checks whether what this buffer sees has changed since the last call.
+     * When the render scenes are managed, this compares the world transform
+     * and bounds of each managed scene root.  Otherwise, it asks the renderer
+     * if anything in the scene has been updated.
+     */
+    private boolean contentChanged(org.jdesktop.mtgame.Renderer mtRenderer) {
+        boolean changed = false;
+
+        if (!manageRenderScenes) {
+            long count = mtRenderer.getSceneChangeCount();
+            changed = (count != lastSceneChangeCount);
+            lastSceneChangeCount = count;
+            return (changed);
+        }
+
+        if (lastSceneState.size() != renderComponentList.size()) {
+            lastSceneState.clear();
+            changed = true;
+        }
+
+        for (int i=0; i<renderComponentList.size(); i++) {
+            Spatial s = renderComponentList.get(i).getSceneRoot();
+            float[] state = lastSceneState.get(s);
+            if (state == null) {
+                state = new float[14];
+                lastSceneState.put(s, state);
+                changed = true;
+            }
+            changed = snapshot(state, s) || changed;
+        }
+        return (changed);
+    }
+
+    /**
+     * Record the world state of the given spatial, returning true if it
+     * differs from what was there.
+     */
+    private boolean snapshot(float[] state, Spatial s) {
+        boolean changed = false;
+        Quaternion q = s.getWorldRotation();
+        BoundingVolume bv = s.getWorldBound();
+
+        changed = snapshot(state, 0, s.getWorldTranslation()) || changed;
+        changed = snapshot(state, 3, s.getWorldScale()) || changed;
+        changed = snapshot(state, 6, q.x) || changed;
+        changed = snapshot(state, 7, q.y) || changed;
+        changed = snapshot(state, 8, q.z) || changed;
+        changed = snapshot(state, 9, q.w) || changed;
+        if (bv != null) {
+            changed = snapshot(state, 10, bv.getCenter()) || changed;
+            changed = snapshot(state, 13, bv.getVolume()) || changed;
+        }
+        return (changed);
+    }
+
+    private boolean snapshot(float[] state, int index, Vector3f v) {
+        boolean changed = false;
+        changed = snapshot(state, index, v.x) || changed;
+        changed = snapshot(state, index+1, v.y) || changed;
+        changed = snapshot(state, index+2, v.z) || changed;
+        return (changed);
+    }
+
+    private boolean snapshot(float[] state, int index, float value) {
+        if (state[index] != value) {
+            state[index] = value;
+            return (true);
+        }
+        return (false);
+    }
 }
@@ -132,6 +132,11 @@ public class RenderComponent extends EntityComponent {
      */
     private RenderTechnique renderTechnique = null;
 
+    /**
+     * The slot this component occupies in an IndexedRenderTechnique
+     */
+    private int techniqueSlot = -1;
+
     /**
      * An object used for render techniques
      */
@@ -142,11 +147,6 @@ public class RenderComponent extends EntityComponent {
      */
     private int currentLODLevel = 0;
 
-    /**
-     * This boolean indicates that we are waiting for an update
-     */
-    boolean pendingUpdate = false;
-
     /**
      * The default constructor
      */
@@ -185,6 +185,20 @@ public class RenderComponent extends EntityComponent {
         return (renderTechnique);
     }
 
+    /**
+     * Set the slot of this component in its render technique
+     */
+    void setTechniqueSlot(int slot) {
+        techniqueSlot = slot;
+    }
+
+    /**
+     * Get the slot of this component in its render technique
+     */
+    int getTechniqueSlot() {
+        return (techniqueSlot);
+    }
+
     public void setEntity(Entity entity) {
         super.setEntity(entity);
 
@@ -206,25 +220,18 @@ public class RenderComponent extends EntityComponent {
     }
 
     /**
-     * This waits for the update to finish
+     * Set the scene root, and wait for the renderer to pick it up
      */
-    void waitForUpdate() {
-        while (pendingUpdate) {
-            try {
-                Thread.currentThread().sleep(0, 10);
-            } catch (java.lang.InterruptedException ie) {
-                // Just wrap around
-            }
-        }
+    public void setSceneRoot(Node node) {
+        setSceneRootAsync(node).waitFor();
     }
 
     /**
-     * Set the scene root
+     * Set the scene root without waiting.  The returned future completes
+     * once the renderer has picked up the new scene root.
      */
-    public void setSceneRoot(Node node) {
-        pendingUpdate = true;
-        WorldManager.getDefaultWorldManager().getRenderManager().updateSceneRoot(this, node);
-        waitForUpdate();
+    public RenderFuture<Void> setSceneRootAsync(Node node) {
+        return (WorldManager.getDefaultWorldManager().getRenderManager().updateSceneRoot(this, node));
     }
 
     /**
@@ -234,19 +241,22 @@ public class RenderComponent extends EntityComponent {
         // Start with attach points
         if (attachPoint != null) {
             Node oap = attachPoint;
-            updateAttachPoint(wm, null, false);
+            updateAttachPoint(wm, null);
             attachPoint = oap;
         }
 
+        Node oldRoot = sceneRoot;
         sceneRoot.setLive(false);
         sceneRoot = newRoot;
         newRoot.setLive(true);
         newRoot.setUserData(ENTITY_KEY, new EntityRef(getEntity()));
-        updateAttachPoint(wm, attachPoint, false);
-        updateOrtho(wm, ortho, false);
-        updateLightState(wm, false);
+        if (oldRoot != newRoot && renderTechnique instanceof IndexedRenderTechnique) {
+            ((IndexedRenderTechnique)renderTechnique).updateSceneRoot(this, oldRoot);
+        }
+        updateAttachPoint(wm, attachPoint);
+        updateOrtho(wm, ortho);
+        updateLightState(wm);
         wm.addToUpdateList(sceneRoot);
-        pendingUpdate = false;
     }
 
     /**
@@ -257,15 +267,21 @@ public class RenderComponent extends EntityComponent {
      * @parameter ap - the parent node to which the sceneRoot of this component will be attached
      */
     public void setAttachPoint(Node ap) {
-        pendingUpdate = true;
-        WorldManager.getDefaultWorldManager().getRenderManager().updateAttachPoint(this, ap);
-        waitForUpdate();
+        setAttachPointAsync(ap).waitFor();
+    }
+
+    /**
+     * Set the attach point without waiting.  The returned future completes
+     * once the renderer has attached the scene root.
+     */
+    public RenderFuture<Void> setAttachPointAsync(Node ap) {
+        return (WorldManager.getDefaultWorldManager().getRenderManager().updateAttachPoint(this, ap));
     }
 
     /**
      * Do the processing of a changed attach point
      */
-    void updateAttachPoint(WorldManager wm, Node newAttachPoint, boolean clearUpdate) {
+    void updateAttachPoint(WorldManager wm, Node newAttachPoint) {
         // first detach the current attach point
         detachAttachPoint(wm);
 
@@ -283,14 +299,11 @@ public class RenderComponent extends EntityComponent {
         }
 
         attachPoint = newAttachPoint;
-        if (clearUpdate) {
-            pendingUpdate = false;
-        }
     }
 
     /**
      * Detach the current attach point without changing the value of
-     * the attach Point variable or clearing the update flag.
+     * the attach Point variable.
      */
     void detachAttachPoint(WorldManager wm) {
         if (attachPoint != null) {
@@ -323,9 +336,7 @@ public class RenderComponent extends EntityComponent {
      * Set the othographic projection flag
      */
     public void setOrtho(boolean flag) {
-        pendingUpdate = true;
-        WorldManager.getDefaultWorldManager().getRenderManager().updateOrtho(this, flag);
-        waitForUpdate();
+        WorldManager.getDefaultWorldManager().getRenderManager().updateOrtho(this, flag).waitFor();
     }
 
     /**
@@ -338,15 +349,11 @@ public class RenderComponent extends EntityComponent {
     /**
      * Update ortho settings on the scene graph
      */
-    void updateOrtho(WorldManager wm, boolean flag, boolean clearUpdate) {
+    void updateOrtho(WorldManager wm, boolean flag) {
         ortho = flag;
         BlendState bs = (BlendState) sceneRoot.getRenderState(RenderState.StateType.Blend);
         traverseGraph(sceneRoot, flag, bs);
         wm.addToUpdateList(sceneRoot);
-
-        if (clearUpdate) {
-            pendingUpdate = false;
-        }
     }
 
     /**
@@ -376,10 +383,6 @@ public class RenderComponent extends EntityComponent {
         setRenderQueue(s, ortho, bs);
     }
 
-    void clearUpdateFlag() {
-        pendingUpdate = false;
-    }
-
     /**
      * This mehod checks for transpaency attributes
      */
@@ -419,9 +422,7 @@ public class RenderComponent extends EntityComponent {
     public void setLightingEnabled(boolean flag) {
         if (lightingEnabled != flag) {
             lightingEnabled = flag;
-            pendingUpdate = true;
-            WorldManager.getDefaultWorldManager().getRenderManager().updateLighting(this);
-            waitForUpdate();
+            WorldManager.getDefaultWorldManager().getRenderManager().updateLighting(this).waitFor();
         }
     }
 
@@ -438,9 +439,7 @@ public class RenderComponent extends EntityComponent {
     public void addLight(LightNode light) {
         synchronized (lights) {
             lights.add(light);
-            pendingUpdate = true;
-            WorldManager.getDefaultWorldManager().getRenderManager().updateLighting(this);
-            waitForUpdate();
+            WorldManager.getDefaultWorldManager().getRenderManager().updateLighting(this).waitFor();
         }
     }
 
@@ -450,18 +449,20 @@ public class RenderComponent extends EntityComponent {
     public void removeLight(LightNode light) {
         synchronized (lights) {
             lights.remove(light);
-            pendingUpdate = true;
-            WorldManager.getDefaultWorldManager().getRenderManager().updateLighting(this);
-            waitForUpdate();
+            WorldManager.getDefaultWorldManager().getRenderManager().updateLighting(this).waitFor();
         }
     }
 
     /**
      * Create a LightState with the current set of lights
      */
-    void updateLightState(WorldManager wm, boolean clearUpdate) {
-        ArrayList globalLights = wm.getRenderManager().getGlobalLights();
-        lightState = (LightState) wm.getRenderManager().createRendererState(RenderState.StateType.Light);
+    void updateLightState(WorldManager wm) {
+        ArrayList<LightNode> globalLights = wm.getRenderManager().getLightsFor(this);
+        if (lightState == null) {
+            lightState = (LightState) wm.getRenderManager().createRendererState(RenderState.StateType.Light);
+        } else {
+            lightState.detachAll();
+        }
         for (int i = 0; i < globalLights.size(); i++) {
             LightNode ln = (LightNode) globalLights.get(i);
             wm.addToUpdateList(ln);
@@ -476,10 +477,6 @@ public class RenderComponent extends EntityComponent {
         lightState.setEnabled(lightingEnabled);
         sceneRoot.setRenderState(lightState);
         sceneRoot.setLightCombineMode(Spatial.LightCombineMode.Replace);
-
-        if (clearUpdate) {
-            pendingUpdate = false;
-        }
     }
 
     /**
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jdesktop.mtgame;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This is a handle to work that will be done in the render thread.  The 
+ * render thread completes it once the work is done.  Callers can block on 
+ * it, or add a listener which is called when it completes.
+ *
+ * @author Doug Twilleager
+ */
+public class RenderFuture<V> implements Future<V> {
+    /**
+     * A logger
+     */
+    private static final Logger LOGGER = Logger.getLogger(RenderFuture.class.getName());
+
+    /**
+     * The state of the future
+     */
+    private boolean done = false;
+    private boolean cancelled = false;
+    private V value = null;
+    private Throwable failure = null;
+
+    /**
+     * The listeners waiting for completion
+     */
+    private ArrayList<Listener<V>> listeners = null;
+
+    /**
+     * The default constructor
+     */
+    RenderFuture() {
+    }
+
+    /**
+     * Create a future which is already complete
+     */
+    static <V> RenderFuture<V> completed(V value) {
+        RenderFuture<V> f = new RenderFuture<V>();
+        f.complete(value);
+        return (f);
+    }
+
+    /**
+     * Complete the future with the given value.  This returns false if the
+     * future was already complete.
+     */
+    boolean complete(V value) {
+        return (finish(value, null, false));
+    }
+
+    /**
+     * Complete the future with an error
+     */
+    boolean fail(Throwable t) {
+        return (finish(null, t, false));
+    }
+
+    /**
+     * Cancel the future, if it hasn't been completed yet.  The work may 
+     * still be done, but nobody will wait for it.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return (finish(null, null, true));
+    }
+
+    /**
+     * Finish the future, and notify the waiters and listeners
+     */
+    private boolean finish(V v, Throwable t, boolean cancel) {
+        ArrayList<Listener<V>> ls = null;
+
+        synchronized (this) {
+            if (done) {
+                return (false);
+            }
+            done = true;
+            value = v;
+            failure = t;
+            cancelled = cancel;
+            ls = listeners;
+            listeners = null;
+            notifyAll();
+        }
+
+        if (ls != null) {
+            for (int i=0; i<ls.size(); i++) {
+                notifyListener(ls.get(i));
+            }
+        }
+        return (true);
+    }
+
+    /**
+     * Add a listener to be called when the future completes.  The listener
+     * is called in the thread which completes the future - usually the 
+     * render thread - or right away if it is already complete.
+     */
+    public void addListener(Listener<V> listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<Listener<V>>();
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * Call a single listener
+     */
+    private void notifyListener(Listener<V> listener) {
+        try {
+            listener.futureCompleted(this);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Exception in RenderFuture listener: " + e, e);
+        }
+    }
+
+    /**
+     * Returns true if the future was cancelled
+     */
+    public synchronized boolean isCancelled() {
+        return (cancelled);
+    }
+
+    /**
+     * Returns true if the future has completed
+     */
+    public synchronized boolean isDone() {
+        return (done);
+    }
+
+    /**
+     * Wait for the future to complete
+     */
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return (getValue());
+    }
+
+    /**
+     * Wait for the future to complete, up to the given time
+     */
+    public synchronized V get(long timeout, TimeUnit unit) 
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = end - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return (getValue());
+    }
+
+    /**
+     * Wait for the future to complete, ignoring interrupts.  This returns 
+     * the value, or null if the work failed or was cancelled.
+     */
+    public synchronized V waitFor() {
+        boolean interrupted = false;
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return (value);
+    }
+
+    /**
+     * Get the result, once complete
+     */
+    private V getValue() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return (value);
+    }
+
+    /**
+     * The interface for listeners to a future's completion
+     */
+    public interface Listener<V> {
+        /**
+         * Called when the future has completed
+         */
+        public void futureCompleted(RenderFuture<V> future);
+    }
+}
@@ -41,6 +41,7 @@ import com.jme.scene.Skybox;
 import com.jme.renderer.pass.Pass;
 import org.jdesktop.mtgame.shader.Shader;
 import java.util.ArrayList;
+import java.util.List;
 import com.jme.renderer.jogl.JOGLContextCapabilities;
 import java.util.concurrent.Semaphore;
 
@@ -333,31 +334,49 @@ public class RenderManager {
     /**
      * Change the ortho flag for this render component
      */
-    void updateOrtho(RenderComponent rc, boolean flag) {
+    RenderFuture<Void> updateOrtho(RenderComponent rc, boolean flag) {
         // Pass the change onto the renderer
-        renderer.updateOrtho(rc, flag);
+        return (renderer.updateOrtho(rc, flag));
     }
         
     /**
      * Change the lighting information for this render component
      */
-    void updateLighting(RenderComponent rc) {
+    RenderFuture<Void> updateLighting(RenderComponent rc) {
         // Pass the change onto the renderer
-        renderer.updateLighting(rc);
+        return (renderer.updateLighting(rc));
+    }
+
+    /**
+     * Register a RenderTechnique with the renderer.  If a technique with
+     * the same name is already in use, it is replaced and all of its
+     * RenderComponents are moved over to the new technique.  This waits
+     * for the renderer to pick up the change.
+     */
+    public void setRenderTechnique(RenderTechnique rt) {
+        setRenderTechniqueAsync(rt).waitFor();
+    }
+
+    /**
+     * Register a RenderTechnique without waiting.  The returned future
+     * completes once the renderer has installed the technique.
+     */
+    public RenderFuture<Void> setRenderTechniqueAsync(RenderTechnique rt) {
+        return (renderer.setRenderTechnique(rt));
     }
 
     /**
      * Update the scene root of a render component
      */
-    void updateSceneRoot(RenderComponent rc, Node scene) {
-        renderer.updateSceneRoot(rc, scene);
+    RenderFuture<Void> updateSceneRoot(RenderComponent rc, Node scene) {
+        return (renderer.updateSceneRoot(rc, scene));
     }
 
     /**
      * Update the scene root of a render component
      */
-    void updateAttachPoint(RenderComponent rc, Node attachPoint) {
-        renderer.updateAttachPoint(rc, attachPoint);
+    RenderFuture<Void> updateAttachPoint(RenderComponent rc, Node attachPoint) {
+        return (renderer.updateAttachPoint(rc, attachPoint));
     }
 
     /**
@@ -375,6 +394,30 @@ public class RenderManager {
         renderer.addComponent(c);
     }
 
+    /**
+     * Add a batch of components, to be integrated over several frames
+     */
+    RenderFuture<Void> addComponents(List<EntityComponent> comps) {
+        return (renderer.addComponents(comps));
+    }
+
+    /**
+     * Set the time per frame, in milliseconds, that the renderer spends 
+     * integrating entities added with WorldManager.addEntities.  Anything 
+     * left over is picked up on the next frame.
+     */
+    public void setEntityBatchBudget(long millis) {
+        renderer.setBatchBudget(millis);
+    }
+
+    /**
+     * Get the time per frame, in milliseconds, spent integrating batched 
+     * entities.
+     */
+    public long getEntityBatchBudget() {
+        return (renderer.getBatchBudget());
+    }
+
     /**
      * Remove a component from our processing list
      */
@@ -405,6 +448,23 @@ public class RenderManager {
         // Pass the info onto the renderers
         renderer.setMinSamples(samples);
     }
+
+    /**
+     * Set whether scene updates are split across several threads. This
+     * should only be enabled if every controller only changes its own
+     * spatial and its children. It can also be enabled with the
+     * mtgame.parallelUpdate property.
+     */
+    public void setParallelUpdateEnabled(boolean enable) {
+        renderer.setParallelUpdateEnabled(enable);
+    }
+
+    /**
+     * Get whether scene updates are split across several threads
+     */
+    public boolean getParallelUpdateEnabled() {
+        return (renderer.getParallelUpdateEnabled());
+    }
     
     /**
      * Set a listener for frame rate updates
@@ -444,8 +504,8 @@ public class RenderManager {
     /**
      * Add a updater to be called in the render thread
      */
-    void addRenderUpdater(RenderUpdater ru, Object obj, boolean wait) {
-        renderer.addRenderUpdater(ru, obj, wait);
+    RenderFuture<Void> addRenderUpdater(RenderUpdater ru, Object obj, boolean wait) {
+        return (renderer.addRenderUpdater(ru, obj, wait));
     }
     
     /**
@@ -455,6 +515,14 @@ public class RenderManager {
         renderer.removeNodeChangedListener(l);
     }  
 
+    /**
+     * Notify the scene change listeners.  This is called from the
+     * render thread.
+     */
+    void notifyNodeChangedListeners() {
+        renderer.notifyNodeChangedListeners();
+    }
+
     /**
      * Add a RenderComponent to be tracked by the LOD system
      */
@@ -549,6 +617,13 @@ public class RenderManager {
         return (renderer.getGlobalLights());
     }
 
+    /**
+     * Get the global lights which reach the given render component
+     */
+    ArrayList<LightNode> getLightsFor(RenderComponent rc) {
+        return (renderer.getLightsFor(rc));
+    }
+
     /**
      * Get the jME Camera from the current screen buffer
      */
@@ -58,6 +58,7 @@
 
 package org.jdesktop.mtgame;
 
+import com.jme.image.Texture;
 import com.jme.light.LightNode;
 import com.jme.math.Matrix4f;
 import com.jme.math.Vector3f;
@@ -67,15 +68,20 @@ import com.jme.renderer.ColorRGBA;
 import com.jme.renderer.jogl.JOGLContextCapabilities;
 import com.jme.renderer.jogl.JOGLRenderer;
 import com.jme.renderer.pass.Pass;
+import com.jme.scene.GeometricUpdateDispatcher;
 import com.jme.scene.Node;
 import com.jme.scene.Skybox;
 import com.jme.scene.Spatial;
 import com.jme.scene.state.BlendState;
+import com.jme.scene.state.GLSLShaderObjectsState;
 import com.jme.scene.state.RenderState;
+import com.jme.scene.state.TextureState;
 import com.jme.system.DisplaySystem;
 import com.jme.system.JmeException;
 import com.jme.system.canvas.JMECanvas;
 import com.jme.system.canvas.SimpleCanvasImpl;
+import com.jme.util.TextureManager;
+import com.jme.util.geom.DirectBufferPool;
 import com.jme.system.lwjgl.LWJGLSystemProvider;
 import com.jmex.awt.jogl.JOGLAWTCanvasConstructor;
 import com.jmex.awt.lwjgl.LWJGLAWTCanvasConstructor;
@@ -86,6 +92,11 @@ import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelListener;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.media.opengl.awt.GLCanvas;
@@ -94,6 +105,7 @@ import javax.media.opengl.Threading;
 import javolution.util.FastList;
 import javolution.util.FastMap;
 import org.jdesktop.mtgame.shader.Shader;
+import org.jdesktop.mtgame.util.ParallelGeometricUpdater;
 
 /**
  * This is the main rendering thread for a screen.  All jME calls must be 
@@ -203,6 +215,12 @@ class Renderer extends Thread {
      */
     private boolean scenesChanged = false;
 
+    /**
+     * The time allowed per frame for integrating batched render components,
+     * in nanoseconds.
+     */
+    private long batchBudget = 8000000;
+
     /**
      * The array list of scene's
      */
@@ -217,6 +235,11 @@ class Renderer extends Thread {
      * The global light state to be applied to all objects
      */
     private ArrayList globalLights = new ArrayList();
+
+    /**
+     * Decides which global lights reach each render component
+     */
+    private LightManager lightManager = new LightManager();
     
     /**
      * The array list of passes
@@ -357,6 +380,13 @@ class Renderer extends Thread {
      * The Frequency - in number of frames - to update the listener
      */
     private int frameRateListenerFrequency = 0;
+
+    /**
+     * Updates large graphs across several threads, if enabled
+     */
+    private volatile ParallelGeometricUpdater parallelUpdater =
+            Boolean.getBoolean("mtgame.parallelUpdate") ?
+            new ParallelGeometricUpdater() : null;
     
     /**
      * The samples to use for multisampling
@@ -402,6 +432,38 @@ class Renderer extends Thread {
      */
     private FastList<RenderTechnique> renderTechniques = new FastList<RenderTechnique>();
 
+    /**
+     * The live RenderComponents, and the TextureStates reachable from their
+     * scene roots with the textures each holds cache references for.  The
+     * states are only tracked when the texture cache has a limit, and are
+     * found again from the roots whenever the scene has changed, so
+     * geometry attached to or detached from a live root is picked up.
+     */
+    private IdentityHashMap<RenderComponent, RenderComponent> liveComponents = new IdentityHashMap<RenderComponent, RenderComponent>();
+    private IdentityHashMap<TextureState, TrackedTextures> trackedTextures = new IdentityHashMap<TextureState, TrackedTextures>();
+
+    /**
+     * The scene change count the tracked textures were found with, and the
+     * number of times they have been found
+     */
+    private long textureSyncCount = -1;
+    private int textureScan = 0;
+
+    /**
+     * The RenderTechniques, keyed by name
+     */
+    private HashMap<String, RenderTechnique> renderTechniqueMap = new HashMap<String, RenderTechnique>();
+
+    /**
+     * The array list of render techniques waiting to be registered
+     */
+    private ArrayList<RenderTechniqueOp> techniques = new ArrayList();
+
+    /**
+     * A boolean indicating that the techniques list has changed
+     */
+    private boolean techniquesChanged = false;
+
 
     /**
      * A list of physics systems that wish to be called from the renderer
@@ -443,6 +505,12 @@ class Renderer extends Thread {
 
     private boolean wlTestHarness = false;
 
+    /**
+     * A counter which is bumped every frame that something in the scene
+     * may have changed.  Render buffers use it to skip redundant renders.
+     */
+    private long sceneChangeCount = 0;
+
     /**
      * A class to hold collision component actions
      */
@@ -462,13 +530,11 @@ class Renderer extends Thread {
     class RenderUpdaterOp {
         RenderUpdater updater = null;
         Object arg = null;
-        boolean wait = false;
-        boolean done = false;
+        RenderFuture<Void> future = new RenderFuture<Void>();
 
-        RenderUpdaterOp(RenderUpdater up, Object arg, boolean wait) {
+        RenderUpdaterOp(RenderUpdater up, Object arg) {
             updater = up;
             this.arg = arg;
-            this.wait = wait;
         }
     }
 
@@ -478,6 +544,7 @@ class Renderer extends Thread {
     class RenderComponentOp {
         RenderComponent rc = null;
         boolean add = false;
+        ComponentBatch batch = null;
 
         RenderComponentOp(RenderComponent rc, boolean add) {
             this.rc = rc;
@@ -485,6 +552,28 @@ class Renderer extends Thread {
         }
     }
 
+    /**
+     * A class to track a batch of render components being integrated
+     * over several frames.
+     */
+    class ComponentBatch {
+        int remaining = 0;
+        RenderFuture<Void> future = new RenderFuture<Void>();
+
+        ComponentBatch(int count) {
+            remaining = count;
+            if (remaining == 0) {
+                future.complete(null);
+            }
+        }
+
+        void componentDone() {
+            if (--remaining == 0) {
+                future.complete(null);
+            }
+        }
+    }
+
     /**
      * A class to hold camera component actions
      */
@@ -536,6 +625,7 @@ class Renderer extends Thread {
     class OrthoOp {
         RenderComponent rc = null;
         boolean on = false;
+        RenderFuture<Void> future = new RenderFuture<Void>();
 
         OrthoOp(RenderComponent rc, boolean on) {
             this.rc = rc;
@@ -543,12 +633,33 @@ class Renderer extends Thread {
         }
     }
 
+    /**
+     * The textures a live TextureState holds cache references for
+     */
+    static class TrackedTextures {
+        Texture[] textures = new Texture[0];
+        int scan = 0;
+    }
+
+    /**
+     * A class to hold render technique registrations
+     */
+    class RenderTechniqueOp {
+        RenderTechnique rt = null;
+        RenderFuture<Void> future = new RenderFuture<Void>();
+
+        RenderTechniqueOp(RenderTechnique rt) {
+            this.rt = rt;
+        }
+    }
+
     /**
      * A class to hold scene root changes
      */
     class SceneRootOp {
         RenderComponent rc = null;
         Node scene = null;
+        RenderFuture<Void> future = new RenderFuture<Void>();
 
         SceneRootOp(RenderComponent rc, Node scene) {
             this.rc = rc;
@@ -562,6 +673,7 @@ class Renderer extends Thread {
     class AttachPointOp {
         RenderComponent rc = null;
         Node attachPoint = null;
+        RenderFuture<Void> future = new RenderFuture<Void>();
 
         AttachPointOp(RenderComponent rc, Node attachPoint) {
             this.rc = rc;
@@ -569,6 +681,18 @@ class Renderer extends Thread {
         }
     }
 
+    /**
+     * A class to hold component lighting changes
+     */
+    class LightingOp {
+        RenderComponent rc = null;
+        RenderFuture<Void> future = new RenderFuture<Void>();
+
+        LightingOp(RenderComponent rc) {
+            this.rc = rc;
+        }
+    }
+
     /**
      * A class to hold RenderComponent LOD info
      */
@@ -713,6 +837,9 @@ class Renderer extends Thread {
     private void processInternalUpdates() {
         //checkForRenderBuffers();
         synchronized (pickLock) {
+            if (entityChanged) {
+                sceneChangeCount++;
+            }
             checkForEntityChanges();
         }     
     }
@@ -725,12 +852,23 @@ class Renderer extends Thread {
          * This block handles any state updates needed to any of the graphs
          */
         synchronized (pickLock) {  
-            processCameraUpdates(updateTime);
-            processUpdates(updateTime);
-            processPassUpdates(updateTime);
-            processCollisionUpdates(updateTime);
+            // Geometric update listeners are told once, after all updates
+            GeometricUpdateDispatcher dispatcher = GeometricUpdateDispatcher.getInstance();
+            dispatcher.begin();
+            try {
+                processCameraUpdates(updateTime);
+                processUpdates(updateTime);
+                processPassUpdates(updateTime);
+                processCollisionUpdates(updateTime);
+            } finally {
+                dispatcher.end();
+            }
         }
 
+        // Reassign lights for anything that moved
+        lightManager.update();
+        applyLightChanges();
+
         Vector3f position = jmeRenderer.getCamera().getLocation();
         for (int i=0; i<geometryLODs.size(); i++) {
             GeometryLOD lod = (GeometryLOD) geometryLODs.get(i);
@@ -870,6 +1008,7 @@ class Renderer extends Thread {
         long updateTime = 0;
         long frameRenderTime = 0;
         long commitTime = 0;
+        long lastPhysicsTime = -1;
         
                     
         initRenderer();   
@@ -917,6 +1056,13 @@ class Renderer extends Thread {
                      */
                     processRenderUpdates();
 
+                    /**
+                     * Pick up texture changes on live geometry, and delete
+                     * anything the texture cache evicted
+                     */
+                    syncTextureTracking();
+                    TextureManager.deleteEvictedTextures();
+
                     /**
                      * Process the RenderComponent LOD's.  Do it here, so any changes
                      * can take effect this frame.
@@ -926,7 +1072,10 @@ class Renderer extends Thread {
                     synchronized (jmeSGLock) {
                         processJMEUpdates(totalTime / 1000000000.0f);
                     }
-                    runPhysicsSystems(totalTime / 100000000.0f);
+                    if (lastPhysicsTime != -1) {
+                        runPhysicsSystems((frameStartTime - lastPhysicsTime) / 1000000000.0f);
+                    }
+                    lastPhysicsTime = frameStartTime;
 
                     updateTime = System.nanoTime();
                     //System.out.println("Update Time: " + (updateTime - frameStartTime)/1000000);
@@ -999,6 +1148,10 @@ class Renderer extends Thread {
                 }
             }
 
+            // Direct memory and uniform accounting for the stats display
+            DirectBufferPool.publishStats();
+            GLSLShaderObjectsState.publishStats();
+
             if (frameRateListener != null) {
                 listenerCountdown--;
                 if (listenerCountdown == 0) {
@@ -1015,7 +1168,62 @@ class Renderer extends Thread {
         }
         // Clear out some updates
         processInternalUpdates();
-        finished = true;
+        synchronized (entityLock) {
+            synchronized (renderUpdateList) {
+                finished = true;
+
+                // Nobody is left to run these
+                for (int i = 0; i < renderUpdateList.size(); i++) {
+                    ((RenderUpdaterOp) renderUpdateList.get(i)).future.cancel(false);
+                }
+                renderUpdateList.clear();
+            }
+            cancelPendingOps();
+        }
+    }
+
+    /**
+     * Cancel the futures of every change that was queued but never
+     * processed, so nobody waits on a renderer that has exited.
+     */
+    private void cancelPendingOps() {
+        synchronized (orthos) {
+            for (int i = 0; i < orthos.size(); i++) {
+                orthos.get(i).future.cancel(false);
+            }
+            orthos.clear();
+        }
+        synchronized (techniques) {
+            for (int i = 0; i < techniques.size(); i++) {
+                techniques.get(i).future.cancel(false);
+            }
+            techniques.clear();
+        }
+        synchronized (sceneRoots) {
+            for (int i = 0; i < sceneRoots.size(); i++) {
+                sceneRoots.get(i).future.cancel(false);
+            }
+            sceneRoots.clear();
+        }
+        synchronized (attachPoints) {
+            for (int i = 0; i < attachPoints.size(); i++) {
+                attachPoints.get(i).future.cancel(false);
+            }
+            attachPoints.clear();
+        }
+        synchronized (componentLighting) {
+            for (int i = 0; i < componentLighting.size(); i++) {
+                ((LightingOp) componentLighting.get(i)).future.cancel(false);
+            }
+            componentLighting.clear();
+        }
+        for (int i = 0; i < scenes.size(); i++) {
+            RenderComponentOp rcop = (RenderComponentOp) scenes.get(i);
+            if (rcop.batch != null) {
+                rcop.batch.future.cancel(false);
+            }
+        }
+        scenes.clear();
     }
 
     /**
@@ -1042,6 +1250,14 @@ class Renderer extends Thread {
         return (renderList);
     }
 
+    /**
+     * Get the scene change counter.  If this hasn't changed since the
+     * last time it was checked, nothing in the scene has been updated.
+     */
+    long getSceneChangeCount() {
+        return (sceneChangeCount);
+    }
+
     /**
      * Get the current passlist
      */
@@ -1141,49 +1357,71 @@ class Renderer extends Thread {
 
     /**
      * Add a RenderUpdater to the list of objects to update in the render thread.
+     * The returned future completes once the updater has run.
      */
-    void addRenderUpdater(RenderUpdater ru, Object obj, boolean wait) {
-        if (finished) {
-            return;
-        }
-
+    RenderFuture<Void> addRenderUpdater(RenderUpdater ru, Object obj, boolean wait) {
         if (wait && Thread.currentThread() == this) {
             ru.update(obj);
-        } else {
-            RenderUpdaterOp ruop = new RenderUpdaterOp(ru, obj, wait);
-            synchronized (renderUpdateList) {
-                renderUpdateList.add(ruop);
-            }
-            if (wait) {
-                while (!ruop.done  && !done) {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        LOGGER.log(Level.WARNING, null, e);
-                    }
-                }
+            return (RenderFuture.completed((Void) null));
+        }
+
+        RenderUpdaterOp ruop = new RenderUpdaterOp(ru, obj);
+        synchronized (renderUpdateList) {
+            if (finished) {
+                ruop.future.cancel(false);
+                return (ruop.future);
             }
+            renderUpdateList.add(ruop);
+        }
+        if (wait) {
+            ruop.future.waitFor();
         }
+        return (ruop.future);
     }
      
     /**
      * Change the ortho flag for this render component
      */
-    void updateOrtho(RenderComponent rc, boolean flag) {
+    RenderFuture<Void> updateOrtho(RenderComponent rc, boolean flag) {
         synchronized (entityLock) {
             synchronized (orthos) {
                 if (finished) {
-                    rc.clearUpdateFlag();
-                    return;
+                    return (RenderFuture.completed((Void) null));
                 }
 
                 if (Thread.currentThread() == this) {
-                    rc.updateOrtho(worldManager, flag, true);
+                    rc.updateOrtho(worldManager, flag);
+                    return (RenderFuture.completed((Void) null));
                 } else {
                     OrthoOp oop = new OrthoOp(rc, flag);
                     orthos.add(oop);
                     orthosChanged = true;
                     entityChanged = true;
+                    return (oop.future);
+                }
+            }
+        }
+    }
+
+    /**
+     * Register a render technique, replacing any technique of the same name
+     */
+    RenderFuture<Void> setRenderTechnique(RenderTechnique rt) {
+        synchronized (entityLock) {
+            synchronized (techniques) {
+                if (finished) {
+                    return (RenderFuture.completed((Void) null));
+                }
+
+                if (Thread.currentThread() == this) {
+                    installRenderTechnique(rt);
+                    return (RenderFuture.completed((Void) null));
+                } else {
+                    RenderTechniqueOp rtop = new RenderTechniqueOp(rt);
+                    techniques.add(rtop);
+                    techniquesChanged = true;
+                    entityChanged = true;
+                    return (rtop.future);
                 }
             }
         }
@@ -1192,21 +1430,22 @@ class Renderer extends Thread {
     /**
      * Update the scene root of a render component
      */
-    void updateSceneRoot(RenderComponent rc, Node scene) {
+    RenderFuture<Void> updateSceneRoot(RenderComponent rc, Node scene) {
         synchronized (entityLock) {
             synchronized (sceneRoots) {
                 if (finished) {
-                    rc.clearUpdateFlag();
-                    return;
+                    return (RenderFuture.completed((Void) null));
                 }
 
                 if (Thread.currentThread() == this) {
                     rc.updateSceneRoot(worldManager, scene);
+                    return (RenderFuture.completed((Void) null));
                 } else {
                     SceneRootOp oop = new SceneRootOp(rc, scene);
                     sceneRoots.add(oop);
                     sceneRootsChanged = true;
                     entityChanged = true;
+                    return (oop.future);
                 }
             }
         }
@@ -1215,21 +1454,22 @@ class Renderer extends Thread {
     /**
      * Update the scene root of a render component
      */
-    void updateAttachPoint(RenderComponent rc, Node attachPoint) {
+    RenderFuture<Void> updateAttachPoint(RenderComponent rc, Node attachPoint) {
         synchronized (entityLock) {
             synchronized (attachPoints) {
                 if (finished) {
-                    rc.clearUpdateFlag();
-                    return;
+                    return (RenderFuture.completed((Void) null));
                 }
 
                 if (Thread.currentThread() == this) {
                     processAttachPointChanged(rc, attachPoint);
+                    return (RenderFuture.completed((Void) null));
                 } else {
                     AttachPointOp oop = new AttachPointOp(rc, attachPoint);
                     attachPoints.add(oop);
                     attachPointsChanged = true;
                     entityChanged = true;
+                    return (oop.future);
                 }
             }
         }
@@ -1238,20 +1478,22 @@ class Renderer extends Thread {
     /**
      * Change the lighting info for this render component
      */
-    void updateLighting(RenderComponent rc) {
+    RenderFuture<Void> updateLighting(RenderComponent rc) {
         synchronized (entityLock) {
             synchronized (componentLighting) {
                 if (finished) {
-                    rc.clearUpdateFlag();
-                    return;
+                    return (RenderFuture.completed((Void) null));
                 }
 
                 if (Thread.currentThread() == this) {
-                    rc.updateLightState(worldManager, true);
+                    rc.updateLightState(worldManager);
+                    return (RenderFuture.completed((Void) null));
                 } else {
-                    componentLighting.add(rc);
+                    LightingOp lop = new LightingOp(rc);
+                    componentLighting.add(lop);
                     componentLightingChanged = true;
                     entityChanged = true;
+                    return (lop.future);
                 }
             }
         }
@@ -1270,6 +1512,9 @@ class Renderer extends Thread {
             }
             renderUpdateList.clear();
         }
+        if (rus.length != 0) {
+            sceneChangeCount++;
+        }
 
         for (int i = 0; i < rus.length; i++) {
             try {
@@ -1280,9 +1525,7 @@ class Renderer extends Thread {
                 // OWL issue #170: make sure to mark the updater as done,
                 // even if there was an error, to prevent locking up
                 // the whole system
-                if (rus[i].wait) {
-                    rus[i].done = true;
-                }
+                rus[i].future.complete(null);
             }
         }
 
@@ -1295,13 +1538,20 @@ class Renderer extends Thread {
 
         synchronized (updateList) {
             if (updateList.size() != 0) {
+                sceneChangeCount++;
                 for (int i = 0; i < updateList.size(); i++) {
                     Spatial s = null;
 
                     try {
                         s = (Spatial) updateList.get(i);
-                        s.updateGeometricState(referenceTime, true);
+                        ParallelGeometricUpdater pu = parallelUpdater;
+                        if (pu != null) {
+                            pu.updateGeometricState(s, referenceTime, true);
+                        } else {
+                            s.updateGeometricState(referenceTime, true);
+                        }
                         s.updateRenderState();
+                        lightManager.spatialUpdated(s);
                     } catch (Throwable t) {
                         LOGGER.log(Level.WARNING, "Error updating object " +
                                    (s==null?"unknown":s.getName()), t);
@@ -1320,6 +1570,7 @@ class Renderer extends Thread {
 
         synchronized (passUpdateList) {
             if (passUpdateList.size() != 0) {
+                sceneChangeCount++;
                 for (int i = 0; i < passUpdateList.size(); i++) {
                     Pass p = (Pass) passUpdateList.get(i);
                     p.updatePass(referenceTime);
@@ -1494,6 +1745,9 @@ class Renderer extends Thread {
             procs = (ProcessorComponent[]) processorsTriggered.toArray(procs);
             processorsTriggered.clear();
         }
+        if (procs.length != 0) {
+            sceneChangeCount++;
+        }
 
         for (int i = 0; i < procs.length; i++) {
             pc = procs[i];
@@ -1622,6 +1876,61 @@ class Renderer extends Thread {
         }
     }
     
+    /**
+     * Add a batch of components.  The render components are integrated over
+     * as many frames as it takes to stay within the batch budget, and the
+     * returned future completes when they are all live.
+     */
+    RenderFuture<Void> addComponents(List<EntityComponent> comps) {
+        synchronized (entityLock) {
+            if (finished) {
+                RenderFuture<Void> future = new RenderFuture<Void>();
+                future.cancel(false);
+                return (future);
+            }
+
+            int count = 0;
+            for (int i=0; i<comps.size(); i++) {
+                if (comps.get(i) instanceof RenderComponent) {
+                    count++;
+                }
+            }
+
+            ComponentBatch batch = new ComponentBatch(count);
+            for (int i=0; i<comps.size(); i++) {
+                EntityComponent c = comps.get(i);
+                if (c instanceof RenderComponent) {
+                    RenderComponentOp rcop = new RenderComponentOp((RenderComponent) c, true);
+                    rcop.batch = batch;
+                    scenes.add(rcop);
+                    scenesChanged = true;
+                    entityChanged = true;
+                } else {
+                    addComponent(c);
+                }
+            }
+            return (batch.future);
+        }
+    }
+
+    /**
+     * Set the time allowed per frame for integrating batched components
+     */
+    void setBatchBudget(long millis) {
+        synchronized (entityLock) {
+            batchBudget = millis*1000000;
+        }
+    }
+
+    /**
+     * Get the time allowed per frame for integrating batched components
+     */
+    long getBatchBudget() {
+        synchronized (entityLock) {
+            return (batchBudget/1000000);
+        }
+    }
+
     /**
      * Remove a component from the list that we process
      * @param c
@@ -1864,19 +2173,46 @@ class Renderer extends Thread {
      * Change the lights settings
      */
     private void processLightsChanged() {
+        // Let the light manager know about the differences
+        for (int i=0; i<globalLights.size(); i++) {
+            if (!lights.contains(globalLights.get(i))) {
+                lightManager.removeLight((LightNode) globalLights.get(i));
+            }
+        }
+        for (int i=0; i<lights.size(); i++) {
+            if (!globalLights.contains(lights.get(i))) {
+                lightManager.addLight((LightNode) lights.get(i));
+            }
+        }
+
         // The list of lights have changed, reset the light list.
         globalLights.clear();
         for (int i=0; i<lights.size(); i++) {
             globalLights.add(lights.get(i));
         }
         
-        // Now go through all the renderScenes and apply the light state
-        for (int i=0; i<renderScenes.size(); i++) {
-            RenderComponent scene = (RenderComponent) renderScenes.get(i);
-            scene.updateLightState(worldManager, true);
+        // Now update the scenes the changed lights reach
+        applyLightChanges();
+    }
+
+    /**
+     * Update the light state of every component whose lights have changed
+     */
+    private void applyLightChanges() {
+        ArrayList<RenderComponent> changed = lightManager.processChanges();
+        for (int i=0; i<changed.size(); i++) {
+            RenderComponent scene = changed.get(i);
+            scene.updateLightState(worldManager);
             scene.getSceneRoot().updateRenderState();
         }
     }
+
+    /**
+     * Get the global lights which reach the given render component
+     */
+    ArrayList<LightNode> getLightsFor(RenderComponent rc) {
+        return (lightManager.getLights(rc));
+    }
     
     /**
      * Check for component lighting changes
@@ -1884,9 +2220,10 @@ class Renderer extends Thread {
     void processComponentLightingChanged() {
         synchronized (componentLighting) {
             for (int i=0; i<componentLighting.size(); i++) {
-                RenderComponent rc = (RenderComponent) componentLighting.get(i);
-                rc.updateLightState(worldManager, true);
-                rc.getSceneRoot().updateRenderState();
+                LightingOp lop = (LightingOp) componentLighting.get(i);
+                lop.rc.updateLightState(worldManager);
+                lop.rc.getSceneRoot().updateRenderState();
+                lop.future.complete(null);
             }
             componentLighting.clear();
         }
@@ -1905,9 +2242,12 @@ class Renderer extends Thread {
     void checkForEntityChanges() {
         synchronized (entityLock) {
             if (entityChanged) {
+                if (techniquesChanged) {
+                    processTechniquesChanged();
+                    techniquesChanged = false;
+                }
                 if (scenesChanged) {
-                    processScenesChanged();
-                    scenesChanged = false;
+                    scenesChanged = processScenesChanged();
                 }
                 if (camerasChanged) {
                     processCamerasChanged();
@@ -1941,7 +2281,8 @@ class Renderer extends Thread {
                     processAttachPointsChanged();
                     attachPointsChanged = false;
                 }
-                entityChanged = false;
+                // Any batched scenes left over are picked up next frame
+                entityChanged = scenesChanged;
             }
         }
     }
@@ -2000,20 +2341,49 @@ class Renderer extends Thread {
     }
 
     /**
-     * Check for scene changes
+     * Check for scene changes.  Batched additions stop being processed once
+     * the batch budget is used up, and are left for the next frame.  This 
+     * returns true if any were left.
      */
-    void processScenesChanged() {
+    boolean processScenesChanged() {
+        long deadline = System.nanoTime() + batchBudget;
+        ArrayList deferred = null;
+        IdentityHashMap<RenderComponent, RenderComponentOp> deferredAdds = null;
+
         for (int i = 0; i < scenes.size(); i++) {
             RenderComponentOp rcop = (RenderComponentOp) scenes.get(i);
+            if (rcop.add && rcop.batch != null && 
+                (deferred != null || System.nanoTime() > deadline)) {
+                if (deferred == null) {
+                    deferred = new ArrayList();
+                    deferredAdds = new IdentityHashMap<RenderComponent, RenderComponentOp>();
+                }
+                deferred.add(rcop);
+                deferredAdds.put(rcop.rc, rcop);
+                continue;
+            }
+
+            // Removing a component which was never added cancels out
+            if (!rcop.add && deferredAdds != null && deferredAdds.containsKey(rcop.rc)) {
+                RenderComponentOp addOp = deferredAdds.remove(rcop.rc);
+                deferred.remove(addOp);
+                addOp.batch.componentDone();
+                continue;
+            }
+
             if (rcop.add) {
                 processSceneGraph((RenderComponent) rcop.rc, true);
                 rcop.rc.getSceneRoot().setLive(true);
                 rcop.rc.setLive(true);
+                lightManager.addComponent(rcop.rc);
                 if (rcop.rc.getAttachPoint() == null) {
                     addToRenderTechnique(rcop.rc);
                     renderScenes.add(rcop.rc);
                 }
                 addToUpdateList(rcop.rc.getSceneRoot());
+                if (rcop.batch != null) {
+                    rcop.batch.componentDone();
+                }
             } else {
                 processSceneGraph((RenderComponent) rcop.rc, false);
                 if (rcop.rc.getAttachPoint() == null) {
@@ -2022,31 +2392,28 @@ class Renderer extends Thread {
                 }
                 rcop.rc.getSceneRoot().setLive(false);
                 rcop.rc.setLive(false);
+                lightManager.removeComponent(rcop.rc);
             }
         }
         scenes.clear();
+
+        if (deferred != null) {
+            scenes.addAll(deferred);
+            return (true);
+        }
+        return (false);
     }
 
     /**
-     * Add the given render component to the appropriate RenderTechnique
+     * Find the RenderTechnique with the given name, loading it if needed
      */
-    private void addToRenderTechnique(RenderComponent rc) {
-        RenderTechnique rt = null;
-        int i=0;
-
-        // First find the technique
-        for (i=0; i<renderTechniques.size(); i++) {
-            rt = renderTechniques.get(i);
-            if (rc.getRenderTechniqueName().equals(rt.getName())) {
-                rt.addRenderComponent(rc);
-                break;
-            }
-        }
+    private RenderTechnique getRenderTechnique(String name) {
+        RenderTechnique rt = renderTechniqueMap.get(name);
 
-        if (i == renderTechniques.size()) {
+        if (rt == null) {
             // Load the technique
             try {
-                rt = (RenderTechnique)Class.forName(rc.getRenderTechniqueName()).newInstance();
+                rt = (RenderTechnique)Class.forName(name).newInstance();
             } catch (InstantiationException e) {
                 LOGGER.log(Level.WARNING, null, e);
             } catch (ClassNotFoundException e) {
@@ -2056,8 +2423,38 @@ class Renderer extends Thread {
             }
 
             if (rt != null) {
+                renderTechniqueMap.put(name, rt);
                 renderTechniques.add(rt);
                 rt.initialize();
+            }
+        }
+        return (rt);
+    }
+
+    /**
+     * Install the given RenderTechnique.  If a technique of the same name
+     * is already in use, the new one takes its place in the render order
+     * and all of its render components are moved over.
+     */
+    private void installRenderTechnique(RenderTechnique rt) {
+        RenderTechnique old = renderTechniqueMap.get(rt.getName());
+
+        if (old == rt) {
+            return;
+        }
+
+        rt.initialize();
+        renderTechniqueMap.put(rt.getName(), rt);
+        if (old == null) {
+            renderTechniques.add(rt);
+            return;
+        }
+
+        renderTechniques.set(renderTechniques.indexOf(old), rt);
+        for (int i=0; i<renderScenes.size(); i++) {
+            RenderComponent rc = (RenderComponent) renderScenes.get(i);
+            if (rc.getRenderTechnique() == old) {
+                old.removeRenderComponent(rc);
                 rt.addRenderComponent(rc);
             }
         }
@@ -2066,20 +2463,27 @@ class Renderer extends Thread {
     /**
      * Add the given render component to the appropriate RenderTechnique
      */
+    private void addToRenderTechnique(RenderComponent rc) {
+        RenderTechnique rt = getRenderTechnique(rc.getRenderTechniqueName());
+
+        if (rt != null) {
+            rt.addRenderComponent(rc);
+        }
+    }
+
+    /**
+     * Remove the given render component from its RenderTechnique
+     */
     private void removeFromRenderTechnique(RenderComponent rc) {
-        RenderTechnique rt = null;
-        int i=0;
+        RenderTechnique rt = rc.getRenderTechnique();
 
-        // First find the technique
-        for (i=0; i<renderTechniques.size(); i++) {
-            rt = renderTechniques.get(i);
-            if (rc.getRenderTechniqueName().equals(rt.getName())) {
-                rt.removeRenderComponent(rc);
-                break;
-            }
+        if (rt == null) {
+            rt = renderTechniqueMap.get(rc.getRenderTechniqueName());
         }
 
-        if (i == renderTechniques.size()) {
+        if (rt != null) {
+            rt.removeRenderComponent(rc);
+        } else {
             LOGGER.warning("ERROR: RenderTechnique Not Found");
         }
     }
@@ -2118,6 +2522,113 @@ class Renderer extends Thread {
         }
     }
 
+    /**
+     * Note that every TextureState under the given spatial is live, so its
+     * textures don't get evicted from the texture cache.
+     */
+    private void trackTextureStates(Spatial sg) {
+        TextureState ts = (TextureState)sg.getRenderState(RenderState.StateType.Texture);
+        if (ts != null) {
+            TrackedTextures tt = trackedTextures.get(ts);
+            if (tt == null) {
+                tt = new TrackedTextures();
+                trackedTextures.put(ts, tt);
+            }
+            if (tt.scan != textureScan) {
+                tt.scan = textureScan;
+                syncTextures(ts, tt);
+            }
+        }
+
+        if (sg instanceof Node) {
+            Node node = (Node)sg;
+            for (int i=0; i<node.getQuantity(); i++) {
+                Spatial child = node.getChild(i);
+                if (child != null) {
+                    trackTextureStates(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the textures of a TextureState which is no longer live
+     */
+    private void releaseTextures(TrackedTextures tt) {
+        for (int i=0; i<tt.textures.length; i++) {
+            TextureManager.unacquireTexture(tt.textures[i]);
+        }
+    }
+
+    /**
+     * Acquire any texture a state has gained, and release any it has lost
+     */
+    private void syncTextures(TextureState ts, TrackedTextures tt) {
+        int count = ts.getNumberOfSetTextures();
+        boolean changed = (count != tt.textures.length);
+
+        for (int i=0; !changed && i<count; i++) {
+            changed = (ts.getTexture(i) != tt.textures[i]);
+        }
+        if (!changed) {
+            return;
+        }
+
+        Texture[] textures = new Texture[count];
+        for (int i=0; i<count; i++) {
+            textures[i] = ts.getTexture(i);
+            TextureManager.acquireTexture(textures[i]);
+        }
+        for (int i=0; i<tt.textures.length; i++) {
+            TextureManager.unacquireTexture(tt.textures[i]);
+        }
+        tt.textures = textures;
+    }
+
+    /**
+     * Bring the texture cache references up to date with the live scene.
+     * Nothing is tracked while the cache has no limit, since nothing is
+     * evicted then.  Otherwise the TextureStates are found again from the
+     * live roots whenever the scene has changed.  This catches geometry
+     * attached or detached under a live root, TextureStates replaced on
+     * live spatials, and textures swapped in a live TextureState, such as
+     * by the AsyncTextureLoader.
+     */
+    private void syncTextureTracking() {
+        if (TextureManager.getCache().getMaxBytes() == Long.MAX_VALUE) {
+            if (!trackedTextures.isEmpty()) {
+                for (Map.Entry<TextureState, TrackedTextures> e : trackedTextures.entrySet()) {
+                    releaseTextures(e.getValue());
+                }
+                trackedTextures.clear();
+            }
+            textureSyncCount = -1;
+            return;
+        }
+
+        if (textureSyncCount == sceneChangeCount) {
+            return;
+        }
+        textureSyncCount = sceneChangeCount;
+        textureScan++;
+
+        for (Map.Entry<RenderComponent, RenderComponent> e : liveComponents.entrySet()) {
+            Node root = e.getKey().getSceneRoot();
+            if (root != null) {
+                trackTextureStates(root);
+            }
+        }
+
+        Iterator<Map.Entry<TextureState, TrackedTextures>> it = trackedTextures.entrySet().iterator();
+        while (it.hasNext()) {
+            TrackedTextures tt = it.next().getValue();
+            if (tt.scan != textureScan) {
+                releaseTextures(tt);
+                it.remove();
+            }
+        }
+    }
+
     /**
      * Check for pass changes
      */
@@ -2159,6 +2670,26 @@ class Renderer extends Thread {
         }
     }
          
+    /**
+     * Set whether queued scene updates are split across several threads
+     */
+    void setParallelUpdateEnabled(boolean enable) {
+        ParallelGeometricUpdater pu = parallelUpdater;
+        if (enable && pu == null) {
+            parallelUpdater = new ParallelGeometricUpdater();
+        } else if (!enable && pu != null) {
+            parallelUpdater = null;
+            pu.shutdown();
+        }
+    }
+
+    /**
+     * Get whether queued scene updates are split across several threads
+     */
+    boolean getParallelUpdateEnabled() {
+        return (parallelUpdater != null);
+    }
+
     /**
      * Set the desired frame rate
      */
@@ -2232,12 +2763,27 @@ class Renderer extends Thread {
         synchronized (orthos) {
             for (int i=0; i<orthos.size(); i++) {
                 OrthoOp oop = orthos.get(i);
-                oop.rc.updateOrtho(worldManager, oop.on, true);
+                oop.rc.updateOrtho(worldManager, oop.on);
+                oop.future.complete(null);
             }
             orthos.clear();
         }
     }
 
+    /**
+     * Check for render technique registrations
+     */
+    void processTechniquesChanged() {
+        synchronized (techniques) {
+            for (int i=0; i<techniques.size(); i++) {
+                RenderTechniqueOp rtop = techniques.get(i);
+                installRenderTechnique(rtop.rt);
+                rtop.future.complete(null);
+            }
+            techniques.clear();
+        }
+    }
+
     /**
      * Check for scene root changes
      */
@@ -2246,6 +2792,7 @@ class Renderer extends Thread {
             for (int i=0; i<sceneRoots.size(); i++) {
                 SceneRootOp oop = sceneRoots.get(i);
                 oop.rc.updateSceneRoot(worldManager, oop.scene);
+                oop.future.complete(null);
             }
             sceneRoots.clear();
         }
@@ -2259,6 +2806,7 @@ class Renderer extends Thread {
             for (int i=0; i<attachPoints.size(); i++) {
                 AttachPointOp oop = attachPoints.get(i);
                 processAttachPointChanged(oop.rc, oop.attachPoint);
+                oop.future.complete(null);
             }
             attachPoints.clear();
         }
@@ -2268,7 +2816,7 @@ class Renderer extends Thread {
      * Process a single attachPoint change
      */
     void processAttachPointChanged(RenderComponent rc, Node attachPoint) {
-        rc.updateAttachPoint(worldManager, attachPoint, true);
+        rc.updateAttachPoint(worldManager, attachPoint);
 
         // preserve the invariant that RenderComponents from children
         // should not be in the list of renderScenes
@@ -2349,8 +2897,10 @@ class Renderer extends Thread {
             if (add) {
                 sc.updateSceneRoot(worldManager, sg);
                 processGraphAddition(sg);
+                liveComponents.put(sc, sc);
             } else {
                 processGraphRemove(sg);
+                liveComponents.remove(sc);
                 if (sc.getAttachPoint() != null) {
                     // OWL issue #148: use the RenderComponent's method
                     // for removing itself from its attachpoint, which
@@ -274,6 +274,15 @@ public class ShadowMapRenderBuffer extends RenderBuffer {
         return (true);
     }
         
+    /**
+     * The shadow camera only changes through the setters above
+     */
+    protected boolean viewChanged() {
+        synchronized (cameraLock) {
+            return (cameraChanged);
+        }
+    }
+
     private void createTextureRenderer(DisplaySystem display) {
         TextureRenderer.Target tRtarget = TextureRenderer.Target.Texture2D;
         renderer = display.createTextureRenderer(getWidth(), getHeight(), tRtarget);
@@ -67,6 +67,7 @@ import com.jme.renderer.TextureRenderer;
 import java.nio.IntBuffer;
 import java.nio.ByteBuffer;
 import com.jme.util.geom.BufferUtils;
+import com.jme.util.geom.DirectBufferPool;
 import com.jme.util.TextureManager;
 import com.jme.scene.state.jogl.JOGLTextureState;
 import com.jme.scene.state.RenderState;
@@ -240,7 +241,8 @@ public class TextureRenderBuffer extends RenderBuffer {
             gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
         }
 
-        return BufferUtils.createByteBuffer(getWidth()*getHeight()*4);
+        return BufferUtils.createByteBuffer(getWidth()*getHeight()*4,
+                DirectBufferPool.Category.TEXTURE);
     }
     
     /**
@@ -62,7 +62,9 @@ import com.jme.scene.Spatial;
 import com.jme.renderer.pass.Pass;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.awt.Canvas;
 import java.io.InputStream;
@@ -119,9 +121,10 @@ public class WorldManager {
     private PhysicsManager physicsManager = null;
     
     /**
-     * The list of known entities
+     * The list of known entities, and the index of each in the list
      */
     private ArrayList entities = new ArrayList();
+    private IdentityHashMap<Entity, Integer> entityIndex = new IdentityHashMap<Entity, Integer>();
     
     /**
      * the event allocator
@@ -223,7 +226,7 @@ public class WorldManager {
                 addComponent(c);
             }
 
-            entities.add(e);
+            registerEntity(e);
 
             // Now add the sub-entities
             for (int i = 0; i < e.numEntities(); i++) {
@@ -231,6 +234,78 @@ public class WorldManager {
             }
         }
     }   
+
+    /**
+     * This adds a collection of already created entities to the system.  
+     * Rather than integrating everything in one frame, the renderer spends
+     * at most RenderManager.getEntityBatchBudget() per frame on them.  The 
+     * returned future completes once all of their render components are live.
+     */
+    public RenderFuture<Void> addEntities(Collection<? extends Entity> list) {
+        ArrayList<EntityComponent> comps = new ArrayList<EntityComponent>();
+
+        for (Entity e : list) {
+            collectEntity(e, comps);
+        }
+        return (renderManager.addComponents(comps));
+    }
+
+    /**
+     * Register an entity and its sub-entities, collecting the components
+     * which go to the render manager.
+     */
+    private void collectEntity(Entity e, ArrayList<EntityComponent> comps) {
+        synchronized (e) {
+            e.setWorldManager(this);
+
+            Iterator iter = e.getComponents().iterator();
+            while (iter.hasNext()) {
+                EntityComponent c = (EntityComponent) iter.next();
+                if (isRenderManagerComponent(c)) {
+                    comps.add(c);
+                }
+                if (isProcessorManagerComponent(c)) {
+                    processorManager.addComponent(c);
+                }
+            }
+
+            registerEntity(e);
+
+            for (int i = 0; i < e.numEntities(); i++) {
+                collectEntity((Entity) e.getEntity(i), comps);
+            }
+        }
+    }
+
+    /**
+     * Add an entity to the list of known entities
+     */
+    private void registerEntity(Entity e) {
+        synchronized (entities) {
+            if (!entityIndex.containsKey(e)) {
+                entityIndex.put(e, new Integer(entities.size()));
+                entities.add(e);
+            }
+        }
+    }
+
+    /**
+     * Remove an entity from the list of known entities.  The last entity
+     * is moved into its place.
+     */
+    private void unregisterEntity(Entity e) {
+        synchronized (entities) {
+            Integer index = entityIndex.remove(e);
+            if (index != null) {
+                int last = entities.size() - 1;
+                Entity lastEntity = (Entity) entities.remove(last);
+                if (index.intValue() != last) {
+                    entities.set(index.intValue(), lastEntity);
+                    entityIndex.put(lastEntity, index);
+                }
+            }
+        }
+    }
     
     /**
      * This adds an already created entity to the system
@@ -252,7 +327,7 @@ public class WorldManager {
                 removeEntity((Entity) e.getEntity(i));
             }
 
-            entities.remove(e);
+            unregisterEntity(e);
             e.setWorldManager(null);
         }
     } 
@@ -261,14 +336,19 @@ public class WorldManager {
      * Get the number of entities
      */
     public int numEntities() {
-        return (entities.size());
+        synchronized (entities) {
+            return (entities.size());
+        }
     }
     
     /**
-     * Get the entity at the given index
+     * Get the entity at the given index.  Removing an entity moves the last
+     * entity into its place, so indices are not stable across removals.
      */
     public Entity getEntity(int index) {
-        return ((Entity)entities.get(index));
+        synchronized (entities) {
+            return ((Entity)entities.get(index));
+        }
     }
     
     /**
@@ -278,18 +358,11 @@ public class WorldManager {
      * to be marked live.
      */
     WaitForLiveness addComponent(EntityComponent c) {
-        if (RenderComponent.class.isInstance(c) ||
-            CollisionComponent.class.isInstance(c) ||
-            JMECollisionComponent.class.isInstance(c) ||
-            JBulletCollisionComponent.class.isInstance(c) ||
-            SkyboxComponent.class.isInstance(c) ||
-            PassComponent.class.isInstance(c) ||
-            CameraComponent.class.isInstance(c)) {
+        if (isRenderManagerComponent(c)) {
             renderManager.addComponent(c);
         }
 
-        if (ProcessorComponent.class.isInstance(c) ||
-            ProcessorCollectionComponent.class.isInstance(c)) {
+        if (isProcessorManagerComponent(c)) {
             processorManager.addComponent(c);
         }
 
@@ -305,18 +378,11 @@ public class WorldManager {
      * to be marked no longer live.
      */
     WaitForLiveness removeComponent(EntityComponent c) {
-        if (RenderComponent.class.isInstance(c) ||
-            CollisionComponent.class.isInstance(c) ||
-            JMECollisionComponent.class.isInstance(c) ||
-            JBulletCollisionComponent.class.isInstance(c) ||
-            SkyboxComponent.class.isInstance(c) ||
-            PassComponent.class.isInstance(c) ||
-            CameraComponent.class.isInstance(c)) {
+        if (isRenderManagerComponent(c)) {
             renderManager.removeComponent(c);
         }
 
-        if (ProcessorComponent.class.isInstance(c) ||
-            ProcessorCollectionComponent.class.isInstance(c)) {
+        if (isProcessorManagerComponent(c)) {
             processorManager.removeComponent(c);
         }
 
@@ -326,6 +392,27 @@ public class WorldManager {
         return new WaitForLiveness(c, false);
     }
 
+    /**
+     * Returns true if the component is managed by the render manager
+     */
+    private boolean isRenderManagerComponent(EntityComponent c) {
+        return (RenderComponent.class.isInstance(c) ||
+                CollisionComponent.class.isInstance(c) ||
+                JMECollisionComponent.class.isInstance(c) ||
+                JBulletCollisionComponent.class.isInstance(c) ||
+                SkyboxComponent.class.isInstance(c) ||
+                PassComponent.class.isInstance(c) ||
+                CameraComponent.class.isInstance(c));
+    }
+
+    /**
+     * Returns true if the component is managed by the processor manager
+     */
+    private boolean isProcessorManagerComponent(EntityComponent c) {
+        return (ProcessorComponent.class.isInstance(c) ||
+                ProcessorCollectionComponent.class.isInstance(c));
+    }
+
     class WaitForLiveness {
         private final boolean condition;
         private final EntityComponent c;
@@ -344,12 +431,9 @@ public class WorldManager {
             }
 
             // if we are not on the renderer thread, wait until liveness
-            // matches condition or the renderer exits
-            while (!renderManager.getDone() && c.isLive() != condition) {
-                // TODO: busy (ish) wait seems like a bad idea -- unless
-                // this happens very quickly, we should do a wait/notify
-                // instead
-                Thread.sleep(0, 10);
+            // matches condition or the renderer exits.  The timeout is
+            // only there to notice the renderer exiting.
+            while (!renderManager.getDone() && !c.waitForLive(condition, 100)) {
             }
 
             return c.isLive();
@@ -430,12 +514,22 @@ public class WorldManager {
     }
 
     /**
-     * Add a updater to be called in the render thread
+     * Add a updater to be called in the render thread.  If wait is true, 
+     * this blocks until the updater has run.
      */
     public void addRenderUpdater(RenderUpdater ru, Object obj, boolean wait) {
         renderManager.addRenderUpdater(ru, obj, wait);
     }
 
+    /**
+     * Add a updater to be called in the render thread.  The returned future
+     * completes once the updater has run, or is cancelled if the renderer
+     * exits first.
+     */
+    public RenderFuture<Void> addRenderUpdaterFuture(RenderUpdater ru, Object obj) {
+        return (renderManager.addRenderUpdater(ru, obj, false));
+    }
+
     /**
      * Remove a listener from the list of listening for scene changes
      */
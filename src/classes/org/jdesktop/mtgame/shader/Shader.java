@@ -31,6 +31,7 @@ package org.jdesktop.mtgame.shader;
 
 import org.jdesktop.mtgame.WorldManager;
 import org.jdesktop.mtgame.RenderUpdater;
+import org.jdesktop.mtgame.RenderFuture;
 import com.jme.scene.state.GLSLShaderObjectsState;
 import com.jme.scene.state.RenderState;
 import com.jme.scene.state.TextureState;
@@ -54,6 +55,11 @@ public abstract class Shader implements RenderUpdater {
     
     private String fragmentShader = null;
 
+    /**
+     * The defines which are put in front of both sources
+     */
+    private ArrayList<String> defines = new ArrayList<String>();
+
     /**
      * The hashmap of uniforms
      */
@@ -95,10 +101,56 @@ public abstract class Shader implements RenderUpdater {
     }
 
     public void init(WorldManager worldManager) {
+        precompile(worldManager);
+    }
+
+    /**
+     * Initialize this shader, and compile it as soon as possible.  The
+     * returned future completes once the program is compiled, so an
+     * application can compile the shaders it uses at startup.  Programs
+     * are shared by source, so later shaders with the same sources and 
+     * defines use the compiled program for as long as this one holds it.
+     */
+    public RenderFuture<Void> precompile(WorldManager worldManager) {
         this.worldManager = worldManager;
         shaderState = (GLSLShaderObjectsState) worldManager.getRenderManager().
                 createRendererState(RenderState.StateType.GLSLShaderObjects);
-        worldManager.addRenderUpdater(this, this);
+        return (worldManager.addRenderUpdaterFuture(this, this));
+    }
+
+    /**
+     * Release this shader's reference to its program.  The program is
+     * deleted once no shader uses it.
+     */
+    public void release() {
+        if (shaderState != null) {
+            worldManager.addRenderUpdater(new RenderUpdater() {
+                public void update(Object o) {
+                    ((GLSLShaderObjectsState)o).releaseProgram();
+                }
+            }, shaderState);
+        }
+    }
+
+    /**
+     * Add a define to this shader.  This must be done before init.
+     */
+    public void addDefine(String define) {
+        defines.add(define);
+    }
+
+    /**
+     * Get the source with the defines in front of it
+     */
+    private String getSource(String source) {
+        if (source == null || defines.isEmpty()) {
+            return (source);
+        }
+        StringBuffer buf = new StringBuffer();
+        for (int i=0; i<defines.size(); i++) {
+            buf.append("#define ").append(defines.get(i)).append('\n');
+        }
+        return (buf.append(source).toString());
     }
 
     /**
@@ -239,9 +291,10 @@ public abstract class Shader implements RenderUpdater {
     public abstract void applyToGeometry(Geometry geo);
     
     /**
-     * This loads the shader
+     * This loads and compiles the shader
      */
     public void update(Object o) {
-        shaderState.load(vertexShader, fragmentShader);
+        shaderState.load(getSource(vertexShader), getSource(fragmentShader));
+        shaderState.compile();
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jdesktop.mtgame.test;
+
+import org.jdesktop.mtgame.util.FrameBufferConverter;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A CPU only check and benchmark for the FrameBufferConverter.  It fills a
+ * frame with random pixels, converts it to each supported image type, and
+ * checks every pixel against a simple per pixel conversion, the way
+ * FrameBufferCapture used to do it.  It then reports the time for each.
+ * 
+ * @author Doug Twilleager
+ */
+public class FrameBufferConverterBenchmark {
+    /**
+     * The size of the frame
+     */
+    private int width = 1280;
+    private int height = 720;
+
+    /**
+     * The number of timed conversions
+     */
+    private int iterations = 50;
+
+    public FrameBufferConverterBenchmark(String[] args) {
+        if (args.length > 1) {
+            width = Integer.parseInt(args[0]);
+            height = Integer.parseInt(args[1]);
+        }
+    }
+
+    /**
+     * Make a frame of random pixels
+     */
+    private ByteBuffer createFrame(FrameBufferConverter.Format format) {
+        int size = width*height*FrameBufferConverter.getBytesPerPixel(format);
+        byte[] data = new byte[size];
+        new Random(1234).nextBytes(data);
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(size);
+        bb.put(data);
+        bb.rewind();
+        return (bb);
+    }
+
+    /**
+     * Convert one pixel at a time, returning ARGB
+     */
+    private int referencePixel(ByteBuffer bb, FrameBufferConverter.Format format,
+            int x, int y) {
+        int bpp = FrameBufferConverter.getBytesPerPixel(format);
+        int index = ((height-y-1)*width + x)*bpp;
+        boolean rgb = (format == FrameBufferConverter.Format.RGB ||
+                       format == FrameBufferConverter.Format.RGBA);
+        int r = bb.get(index + (rgb ? 0 : 2)) & 255;
+        int g = bb.get(index + 1) & 255;
+        int b = bb.get(index + (rgb ? 2 : 0)) & 255;
+        int a = (bpp == 4) ? (bb.get(index + 3) & 255) : 255;
+        return ((a<<24) | (r<<16) | (g<<8) | b);
+    }
+
+    /**
+     * Return the number of pixels which don't match the reference
+     */
+    private int compare(ByteBuffer bb, FrameBufferConverter.Format format,
+            BufferedImage bi) {
+        boolean alpha = bi.getColorModel().hasAlpha();
+        int differences = 0;
+
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int expected = referencePixel(bb, format, x, y);
+                if (!alpha) {
+                    expected |= 0xff000000;
+                }
+                if (bi.getRGB(x, y) != expected) {
+                    differences++;
+                }
+            }
+        }
+        return (differences);
+    }
+
+    /**
+     * Time the old per pixel conversion
+     */
+    private long runReference(ByteBuffer bb, FrameBufferConverter.Format format) {
+        BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        long start = System.nanoTime();
+        for (int i=0; i<iterations; i++) {
+            for (int y=0; y<height; y++) {
+                for (int x=0; x<width; x++) {
+                    bi.setRGB(x, y, referencePixel(bb, format, x, y));
+                }
+            }
+        }
+        return ((System.nanoTime() - start)/iterations);
+    }
+
+    private void run(FrameBufferConverter.Format format, int imageType, String name) {
+        ByteBuffer bb = createFrame(format);
+        FrameBufferConverter converter = new FrameBufferConverter(format, width,
+                height, imageType);
+
+        BufferedImage bi = converter.convert(bb, null);
+        int differences = compare(bb, format, bi);
+
+        long start = System.nanoTime();
+        for (int i=0; i<iterations; i++) {
+            bi = converter.convert(bb, bi);
+        }
+        long time = (System.nanoTime() - start)/iterations;
+
+        System.out.println(format + " to " + name + ": " + width + "x" + height +
+                ", converter: " + (time/1000) + "us" +
+                ", differences: " + differences);
+    }
+
+    public static void main(String[] args) {
+        FrameBufferConverterBenchmark benchmark = new FrameBufferConverterBenchmark(args);
+        FrameBufferConverter.Format[] formats = FrameBufferConverter.Format.values();
+
+        for (int i=0; i<formats.length; i++) {
+            benchmark.run(formats[i], BufferedImage.TYPE_4BYTE_ABGR, "4BYTE_ABGR");
+            benchmark.run(formats[i], BufferedImage.TYPE_3BYTE_BGR, "3BYTE_BGR");
+            benchmark.run(formats[i], BufferedImage.TYPE_INT_ARGB, "INT_ARGB");
+            benchmark.run(formats[i], BufferedImage.TYPE_INT_RGB, "INT_RGB");
+        }
+
+        long time = benchmark.runReference(benchmark.createFrame(FrameBufferConverter.Format.BGR),
+                FrameBufferConverter.Format.BGR);
+        System.out.println("BGR to 4BYTE_ABGR, one pixel at a time: " + (time/1000) + "us");
+    }
+}
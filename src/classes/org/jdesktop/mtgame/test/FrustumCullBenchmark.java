@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jdesktop.mtgame.test;
+
+import org.jdesktop.mtgame.DefaultRenderTechnique;
+import org.jdesktop.mtgame.util.FrustumCuller;
+import com.jme.bounding.BoundingBox;
+import com.jme.math.FastMath;
+import com.jme.math.Quaternion;
+import com.jme.math.Vector3f;
+import com.jme.renderer.Camera;
+import com.jme.renderer.jogl.JOGLCamera;
+import com.jme.scene.Geometry;
+import com.jme.scene.Node;
+import com.jme.scene.SharedMesh;
+import com.jme.scene.Spatial;
+import com.jme.scene.TriMesh;
+import com.jme.scene.shape.Box;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/**
+ * A CPU only check and benchmark for the FrustumCuller.  It builds a city
+ * block graph and culls it against a data only camera, once by testing
+ * every spatial from the root, and once through DefaultRenderTechnique,
+ * with the same cullScene() and endCameraFrame() calls its getSpatials()
+ * and endFrame() make for an onscreen buffer.  It checks that both give the
+ * same visible geometry, and reports the time for each with a still scene,
+ * with some buildings moving, and with the camera turning.
+ * 
+ * @author Doug Twilleager
+ */
+public class FrustumCullBenchmark {
+    /**
+     * The number of blocks along each side of the city
+     */
+    private int blocks = 11;
+
+    /**
+     * The buildings in a block, and the pieces in a building
+     */
+    private int buildings = 20;
+    private int pieces = 20;
+
+    /**
+     * The number of timed frames
+     */
+    private int iterations = 50;
+
+    /**
+     * The city, and its buildings
+     */
+    private Node city = null;
+    private ArrayList<Node> buildingList = new ArrayList<Node>();
+
+    /**
+     * The camera
+     */
+    private Camera camera = null;
+
+    /**
+     * The visible lists
+     */
+    private ArrayList<Spatial> fullList = new ArrayList<Spatial>();
+    private ArrayList<Spatial> cachedList = new ArrayList<Spatial>();
+    private ArrayList<Spatial> cachedGeometry = new ArrayList<Spatial>();
+
+    public FrustumCullBenchmark(String[] args) {
+        if (args.length > 0) {
+            blocks = Integer.parseInt(args[0]);
+        }
+        createCity(1234);
+
+        camera = new JOGLCamera(800, 600, true);
+        camera.setFrustumPerspective(45.0f, 800.0f/600.0f, 1.0f, 600.0f);
+        camera.setLocation(new Vector3f(blocks*50.0f, 50.0f, -100.0f));
+        camera.lookAt(new Vector3f(blocks*50.0f, 0.0f, blocks*50.0f), Vector3f.UNIT_Y);
+        camera.update();
+    }
+
+    /**
+     * Build the city.  The same seed gives the same graph.
+     */
+    private void createCity(long seed) {
+        Random random = new Random(seed);
+        TriMesh box = new Box("Box", new Vector3f(), 1.0f, 1.0f, 1.0f);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+
+        city = new Node("City");
+        for (int b=0; b<blocks*blocks; b++) {
+            Node block = new Node("Block " + b);
+            block.setLocalTranslation((b % blocks)*100.0f, 0.0f, (b / blocks)*100.0f);
+            for (int i=0; i<buildings; i++) {
+                Node building = new Node("Building " + i);
+                building.setLocalTranslation(random.nextFloat()*90.0f, 0.0f,
+                        random.nextFloat()*90.0f);
+                for (int p=0; p<pieces; p++) {
+                    SharedMesh sm = new SharedMesh("Piece " + p, box);
+                    sm.setLocalTranslation(random.nextFloat()*4.0f, p*2.0f,
+                            random.nextFloat()*4.0f);
+                    sm.setLocalScale(0.5f + random.nextFloat());
+                    building.attachChild(sm);
+                }
+                block.attachChild(building);
+                buildingList.add(building);
+            }
+            city.attachChild(block);
+        }
+        city.updateGeometricState(0.0f, true);
+    }
+
+    /**
+     * Cull by testing every spatial from the root, which is what
+     * DefaultRenderTechnique used to do
+     */
+    private void cullAll(Spatial s, ArrayList<Spatial> visible) {
+        camera.setPlaneState(0);
+        if (camera.contains(s.getWorldBound()) == Camera.FrustumIntersect.Outside) {
+            return;
+        }
+
+        if (s instanceof Node) {
+            Node node = (Node)s;
+            for (int i=0; i<node.getQuantity(); i++) {
+                cullAll(node.getChild(i), visible);
+            }
+        } else if (s instanceof Geometry) {
+            visible.add(s);
+        }
+    }
+
+    /**
+     * Add the geometry the renderer would draw for a culled spatial
+     */
+    private void expand(Spatial s, ArrayList<Spatial> geometry) {
+        if (s.getCullHint() == Spatial.CullHint.Always) {
+            return;
+        }
+
+        if (s instanceof Node) {
+            Node node = (Node)s;
+            for (int i=0; i<node.getQuantity(); i++) {
+                expand(node.getChild(i), geometry);
+            }
+        } else if (s instanceof Geometry) {
+            geometry.add(s);
+        }
+    }
+
+    /**
+     * Return the number of spatials in one list and not the other
+     */
+    private int compare(ArrayList<Spatial> a, ArrayList<Spatial> b) {
+        IdentityHashMap<Spatial, Spatial> set = new IdentityHashMap<Spatial, Spatial>();
+        for (int i=0; i<a.size(); i++) {
+            set.put(a.get(i), a.get(i));
+        }
+
+        int differences = 0;
+        for (int i=0; i<b.size(); i++) {
+            if (set.remove(b.get(i)) == null) {
+                differences++;
+            }
+        }
+        return (differences + set.size());
+    }
+
+    /**
+     * Run one scenario.  Every frame, the given number of buildings is
+     * moved and the camera is turned by the given angle.
+     */
+    private void run(String name, int moving, float turn) {
+        DefaultRenderTechnique technique = new DefaultRenderTechnique();
+        FrustumCuller culler = technique.getFrustumCuller(camera);
+        Random random = new Random(5678);
+        Quaternion rotation = new Quaternion();
+        Vector3f direction = new Vector3f();
+        long fullTime = 0;
+        long cachedTime = 0;
+        int differences = 0;
+        int tests = 0;
+        int reuses = 0;
+        int insides = 0;
+
+        for (int i=0; i<iterations; i++) {
+            for (int m=0; m<moving; m++) {
+                Node building = buildingList.get(random.nextInt(buildingList.size()));
+                building.getLocalTranslation().x += random.nextFloat() - 0.5f;
+                building.updateGeometricState(0.0f, true);
+            }
+            if (turn != 0.0f) {
+                rotation.fromAngleAxis(turn, Vector3f.UNIT_Y);
+                rotation.mult(camera.getDirection(), direction);
+                camera.lookAt(direction.addLocal(camera.getLocation()), Vector3f.UNIT_Y);
+                camera.update();
+            }
+
+            fullList.clear();
+            long start = System.nanoTime();
+            cullAll(city, fullList);
+            fullTime += System.nanoTime() - start;
+
+            cachedList.clear();
+            start = System.nanoTime();
+            technique.cullScene(camera, city, cachedList);
+            cachedTime += System.nanoTime() - start;
+
+            // The first frame fills the cache
+            if (i > 0) {
+                tests += culler.getTestCount();
+                reuses += culler.getReuseCount();
+                insides += culler.getInsideCount();
+            }
+            technique.endCameraFrame(camera);
+
+            cachedGeometry.clear();
+            for (int j=0; j<cachedList.size(); j++) {
+                expand(cachedList.get(j), cachedGeometry);
+            }
+            differences += compare(fullList, cachedGeometry);
+        }
+
+        int spatials = blocks*blocks*(1 + buildings*(1 + pieces)) + 1;
+        int frames = iterations - 1;
+        System.out.println(name + ": spatials: " + spatials +
+                ", visible: " + cachedGeometry.size() +
+                ", drawn as: " + cachedList.size() +
+                ", full: " + (fullTime/iterations/1000) + "us" +
+                ", cached: " + (cachedTime/iterations/1000) + "us" +
+                ", tests: " + (tests/frames) +
+                ", reused: " + (reuses/frames) +
+                ", inside: " + (insides/frames) +
+                ", differences: " + differences);
+    }
+
+    public static void main(String[] args) {
+        FrustumCullBenchmark benchmark = new FrustumCullBenchmark(args);
+
+        // Warm up
+        benchmark.run("Warm up", 0, 0.0f);
+
+        benchmark.run("Still", 0, 0.0f);
+        benchmark.run("Moving", 50, 0.0f);
+        benchmark.run("Turning", 0, FastMath.PI/360.0f);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jdesktop.mtgame.test;
+
+import com.jme.scene.state.GLSLProgramCache;
+import com.jme.scene.state.GLSLShaderObjectsState;
+import java.nio.ByteBuffer;
+
+/**
+ * A CPU only check of the GLSLProgramCache.  The shader states use a stand
+ * in for GL which hands out program ids and counts compiles, so the cache
+ * metrics can be checked without a display.
+ * 
+ * @author Doug Twilleager
+ */
+public class GLSLProgramCacheCheck {
+    /**
+     * The number of failed checks
+     */
+    private int failures = 0;
+
+    /**
+     * A shader state which pretends to compile
+     */
+    static class StandInShaderState extends GLSLShaderObjectsState {
+        static int nextId = 1;
+        static int sends = 0;
+        static int programDeletes = 0;
+
+        /**
+         * How long a compile takes, and whether it should fail
+         */
+        long compileMillis = 0;
+        boolean fail = false;
+
+        protected void sendToGL(ByteBuffer vertexByteBuffer,
+                ByteBuffer fragmentByteBuffer) {
+            synchronized (StandInShaderState.class) {
+                sends++;
+            }
+            if (compileMillis > 0) {
+                try {
+                    Thread.sleep(compileMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (fail) {
+                throw new RuntimeException("Stand in compile failure");
+            }
+            GLSLProgramCache.Program p = getProgram();
+            synchronized (StandInShaderState.class) {
+                p.programID = nextId++;
+                p.vertexShaderID = nextId++;
+                p.fragmentShaderID = nextId++;
+            }
+            needSendShader = false;
+        }
+
+        protected void deleteProgram(GLSLProgramCache.Program p) {
+            synchronized (StandInShaderState.class) {
+                programDeletes++;
+            }
+            p.programID = -1;
+            p.vertexShaderID = -1;
+            p.fragmentShaderID = -1;
+        }
+    }
+
+    /**
+     * Record the result of one check
+     */
+    private void check(String what, long expected, long actual) {
+        if (expected == actual) {
+            System.out.println("  ok   " + what + ": " + actual);
+        } else {
+            System.out.println("  FAIL " + what + ": expected " + expected +
+                    ", got " + actual);
+            failures++;
+        }
+    }
+
+    /**
+     * Start a scenario with fresh counts
+     */
+    private GLSLProgramCache begin(String name) {
+        System.out.println(name);
+        GLSLProgramCache cache = GLSLProgramCache.getInstance();
+        cache.resetStatistics();
+        StandInShaderState.sends = 0;
+        StandInShaderState.programDeletes = 0;
+        return (cache);
+    }
+
+    /**
+     * Two references are taken before either compiles.  The pending entry
+     * is shared, and only the first caller compiles it.
+     */
+    private void pendingEntry() {
+        GLSLProgramCache cache = begin("Acquire twice before compiling");
+        GLSLProgramCache.Program a = cache.acquire("pending.vert", "pending.frag");
+        GLSLProgramCache.Program b = cache.acquire("pending.vert", "pending.frag");
+        check("same program", 1, a == b ? 1 : 0);
+        check("references", 2, cache.getReferenceCount("pending.vert", "pending.frag"));
+        check("first claims the compile", 1, cache.beginCompile(a) ? 1 : 0);
+        cache.compiled(a, 0);
+        check("second does not compile", 0, cache.beginCompile(b) ? 1 : 0);
+        check("compiles", 1, cache.getCompileCount());
+        check("hits", 1, cache.getHits());
+        cache.release(a);
+        cache.release(b);
+        check("cached programs after release", 0, 
+                cache.getReferenceCount("pending.vert", "pending.frag"));
+    }
+
+    /**
+     * Several states with the same sources compile one program between them
+     */
+    private void sharedStates() {
+        GLSLProgramCache cache = begin("States sharing sources");
+        StandInShaderState[] states = new StandInShaderState[4];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = new StandInShaderState();
+            states[i].load("shared.vert", "shared.frag");
+        }
+        for (int i = 0; i < states.length; i++) {
+            states[i].compile();
+        }
+        check("programs sent to GL", 1, StandInShaderState.sends);
+        check("compiles", 1, cache.getCompileCount());
+        check("hits", states.length - 1, cache.getHits());
+        check("same program id", 1, 
+                states[0].getProgram().programID == 
+                states[states.length - 1].getProgram().programID ? 1 : 0);
+
+        for (int i = 0; i < states.length; i++) {
+            states[i].releaseProgram();
+        }
+        states[0].compile();
+        check("deleted once all released", 1, cache.getDeleteCount());
+        check("programs deleted in GL", 1, StandInShaderState.programDeletes);
+        check("recompiled after release", 2, cache.getCompileCount());
+        states[0].releaseProgram();
+    }
+
+    /**
+     * Two threads compile the same sources at the same time
+     */
+    private void concurrentStates() {
+        GLSLProgramCache cache = begin("Concurrent compiles");
+        final StandInShaderState a = new StandInShaderState();
+        final StandInShaderState b = new StandInShaderState();
+        a.compileMillis = 200;
+        b.compileMillis = 200;
+        a.load("concurrent.vert", "concurrent.frag");
+        b.load("concurrent.vert", "concurrent.frag");
+
+        Thread ta = new Thread() {
+            public void run() {
+                a.compile();
+            }
+        };
+        Thread tb = new Thread() {
+            public void run() {
+                b.compile();
+            }
+        };
+        ta.start();
+        tb.start();
+        try {
+            ta.join();
+            tb.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        check("programs sent to GL", 1, StandInShaderState.sends);
+        check("compiles", 1, cache.getCompileCount());
+        check("both compiled", 1, 
+                a.getProgram().isCompiled() && b.getProgram().isCompiled() ? 1 : 0);
+        a.releaseProgram();
+        b.releaseProgram();
+    }
+
+    /**
+     * A failed compile leaves the entry for the next state to retry
+     */
+    private void failedCompile() {
+        GLSLProgramCache cache = begin("Failed compile");
+        StandInShaderState a = new StandInShaderState();
+        StandInShaderState b = new StandInShaderState();
+        a.fail = true;
+        a.load("failed.vert", "failed.frag");
+        b.load("failed.vert", "failed.frag");
+
+        GLSLProgramCache.Program held = cache.acquire("failed.vert", "failed.frag");
+        try {
+            a.compile();
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        check("failed compile not counted", 0, cache.getCompileCount());
+        b.compile();
+        check("programs sent to GL", 2, StandInShaderState.sends);
+        check("compiles", 1, cache.getCompileCount());
+        check("retry shares the entry", 1, b.getProgram() == held ? 1 : 0);
+        cache.release(held);
+        b.releaseProgram();
+    }
+
+    /**
+     * Run the checks
+     */
+    private int run() {
+        pendingEntry();
+        sharedStates();
+        concurrentStates();
+        failedCompile();
+        System.out.println(failures == 0 ? "All checks passed" : 
+            failures + " checks failed");
+        return (failures);
+    }
+
+    public static void main(String[] args) {
+        GLSLProgramCacheCheck check = new GLSLProgramCacheCheck();
+        if (check.run() != 0) {
+            System.exit(1);
+        }
+    }
+}
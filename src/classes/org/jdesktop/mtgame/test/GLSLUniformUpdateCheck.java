@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jdesktop.mtgame.test;
+
+import com.jme.math.Matrix3f;
+import com.jme.math.Matrix4f;
+import com.jme.scene.state.GLSLProgramCache;
+import com.jme.scene.state.GLSLShaderObjectsState;
+import com.jme.util.shader.ShaderVariable;
+import java.nio.ByteBuffer;
+
+/**
+ * A CPU only check of the dirty tracked uniform upload in
+ * GLSLShaderObjectsState.  The shader states use a stand in for GL which
+ * records location lookups and uniform uploads, and send their uniforms the
+ * way JOGLShaderObjectsState does when it is applied.
+ * 
+ * @author Doug Twilleager
+ */
+public class GLSLUniformUpdateCheck {
+    /**
+     * The number of failed checks
+     */
+    private int failures = 0;
+
+    /**
+     * A shader state which records what it would send to GL
+     */
+    static class RecordingShaderState extends GLSLShaderObjectsState {
+        static int nextId = 1;
+        int lookups = 0;
+        int uploads = 0;
+
+        protected void sendToGL(ByteBuffer vertexByteBuffer,
+                ByteBuffer fragmentByteBuffer) {
+            GLSLProgramCache.Program p = getProgram();
+            p.programID = nextId++;
+            p.vertexShaderID = nextId++;
+            p.fragmentShaderID = nextId++;
+            needSendShader = false;
+        }
+
+        protected void updateUniformLocation(ShaderVariable shaderVariable,
+                int programID) {
+            lookups++;
+            shaderVariable.variableID = nextId++;
+        }
+
+        protected void updateUniform(ShaderVariable shaderVariable) {
+            uploads++;
+        }
+
+        /**
+         * Compile if need be, and send the uniforms as apply() does.  This
+         * returns the number of uniforms sent.
+         */
+        int send() {
+            compile();
+            GLSLProgramCache.Program p = getProgram();
+            boolean reload = p.owner != this;
+            p.owner = this;
+            return (updateUniforms(p.programID, reload));
+        }
+
+        /**
+         * Start counting again
+         */
+        void reset() {
+            lookups = 0;
+            uploads = 0;
+        }
+    }
+
+    /**
+     * Record the result of one check
+     */
+    private void check(String what, long expected, long actual) {
+        if (expected == actual) {
+            System.out.println("  ok   " + what + ": " + actual);
+        } else {
+            System.out.println("  FAIL " + what + ": expected " + expected +
+                    ", got " + actual);
+            failures++;
+        }
+    }
+
+    /**
+     * Build a state with one uniform of each kind the dirty tracking
+     * compares specially
+     */
+    private RecordingShaderState createState(String name, float[] bones,
+            Matrix3f m3, Matrix4f m4) {
+        RecordingShaderState state = new RecordingShaderState();
+        state.load(name + ".vert", name + ".frag");
+        state.setUniform("scale", 1.0f);
+        state.setUniform("color", 1.0f, 0.5f, 0.25f, 1.0f);
+        state.setUniform("normalMatrix", m3, false);
+        state.setUniform("modelMatrix", m4, false);
+        state.setUniformMatrix4Array("bones", bones, false);
+        return (state);
+    }
+
+    /**
+     * Uniforms are sent once, and not again until they change
+     */
+    private void unchangedAndChanged() {
+        System.out.println("Unchanged and changed uniforms");
+        float[] bones = new float[32];
+        for (int i = 0; i < bones.length; i++) {
+            bones[i] = i;
+        }
+        Matrix3f m3 = new Matrix3f();
+        Matrix4f m4 = new Matrix4f();
+        RecordingShaderState state = createState("uniforms", bones, m3, m4);
+
+        check("first send", 5, state.send());
+        check("locations looked up", 5, state.lookups);
+        state.reset();
+
+        // Setting the same values again is not a change
+        state.setUniform("scale", 1.0f);
+        state.setUniform("color", 1.0f, 0.5f, 0.25f, 1.0f);
+        state.setUniform("normalMatrix", new Matrix3f(), false);
+        state.setUniform("modelMatrix", new Matrix4f(), false);
+        state.setUniformMatrix4Array("bones", bones.clone(), false);
+        check("unchanged send", 0, state.send());
+        check("unchanged uploads", 0, state.uploads);
+
+        state.setUniform("scale", 2.0f);
+        check("changed float", 1, state.send());
+
+        Matrix3f moved3 = new Matrix3f();
+        moved3.m12 = 3.0f;
+        state.setUniform("normalMatrix", moved3, false);
+        check("changed Matrix3f", 1, state.send());
+
+        Matrix4f moved4 = new Matrix4f();
+        moved4.m03 = 5.0f;
+        state.setUniform("modelMatrix", moved4, false);
+        check("changed Matrix4f", 1, state.send());
+
+        state.setUniform("modelMatrix", moved4, true);
+        check("changed Matrix4f order", 1, state.send());
+
+        float[] posed = bones.clone();
+        posed[posed.length - 1] = -1.0f;
+        state.setUniformMatrix4Array("bones", posed, false);
+        check("changed Matrix4 array", 1, state.send());
+
+        check("locations kept", 0, state.lookups);
+        state.releaseProgram();
+    }
+
+    /**
+     * Two states share a program, so each has to send everything when it
+     * follows the other
+     */
+    private void sharedProgram() {
+        System.out.println("States sharing a program");
+        float[] bones = new float[16];
+        RecordingShaderState a = createState("shared", bones, new Matrix3f(), new Matrix4f());
+        RecordingShaderState b = createState("shared", bones, new Matrix3f(), new Matrix4f());
+
+        check("first send of a", 5, a.send());
+        check("first send of b", 5, b.send());
+        check("same program", 1, a.getProgram() == b.getProgram() ? 1 : 0);
+        check("a reloads after b", 5, a.send());
+        check("a again", 0, a.send());
+        b.setUniform("scale", 3.0f);
+        check("b reloads after a", 5, b.send());
+        check("b again", 0, b.send());
+        a.releaseProgram();
+        b.releaseProgram();
+    }
+
+    /**
+     * Loading new sources resets the locations, so everything is looked up
+     * and sent again in the new program
+     */
+    private void recompiled() {
+        System.out.println("Recompiled program");
+        float[] bones = new float[16];
+        RecordingShaderState state = createState("first", bones, new Matrix3f(), new Matrix4f());
+        state.send();
+        state.reset();
+
+        state.load("second.vert", "second.frag");
+        check("send after reload", 5, state.send());
+        check("locations looked up", 5, state.lookups);
+        check("send after that", 0, state.send());
+        state.releaseProgram();
+    }
+
+    /**
+     * Run the checks
+     */
+    private int run() {
+        unchangedAndChanged();
+        sharedProgram();
+        recompiled();
+        System.out.println(failures == 0 ? "All checks passed" : 
+            failures + " checks failed");
+        return (failures);
+    }
+
+    public static void main(String[] args) {
+        GLSLUniformUpdateCheck check = new GLSLUniformUpdateCheck();
+        if (check.run() != 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jdesktop.mtgame.test;
+
+import org.jdesktop.mtgame.util.GraphOptimizer;
+import com.jme.bounding.BoundingBox;
+import com.jme.bounding.BoundingVolume;
+import com.jme.math.Vector3f;
+import com.jme.scene.Geometry;
+import com.jme.scene.Node;
+import com.jme.scene.SharedMesh;
+import com.jme.scene.Spatial;
+import com.jme.scene.TriMesh;
+import com.jme.scene.shape.Box;
+import com.jme.scene.shape.Sphere;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A CPU only benchmark for the GraphOptimizer.  It builds a grid of 
+ * SharedMeshes, combines them with a range of cell sizes, and reports the
+ * number of draw calls against how much extra geometry is drawn for random
+ * views, compared to culling the original meshes.
+ * 
+ * @author Doug Twilleager
+ */
+public class GraphOptimizerBenchmark {
+    /**
+     * The number of meshes along each side of the grid
+     */
+    private int gridSize = 32;
+
+    /**
+     * The space between meshes
+     */
+    private float spacing = 4.0f;
+
+    /**
+     * The number of random views sampled for culling
+     */
+    private int viewCount = 200;
+
+    /**
+     * The size of a view, as a fraction of the grid
+     */
+    private float viewFraction = 0.125f;
+
+    /**
+     * The shared geometry
+     */
+    private TriMesh box = null;
+    private TriMesh sphere = null;
+
+    public GraphOptimizerBenchmark(String[] args) {
+        if (args.length > 0) {
+            gridSize = Integer.parseInt(args[0]);
+        }
+        box = new Box("Box", new Vector3f(), 1.0f, 1.0f, 1.0f);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+        sphere = new Sphere("Sphere", 8, 8, 1.0f);
+        sphere.setModelBound(new BoundingBox());
+        sphere.updateModelBound();
+    }
+
+    /**
+     * Build the test model
+     */
+    private Node createModel() {
+        Node model = new Node("Model");
+        for (int x=0; x<gridSize; x++) {
+            Node row = new Node("Row " + x);
+            for (int z=0; z<gridSize; z++) {
+                TriMesh target = ((x + z) % 2 == 0) ? box : sphere;
+                SharedMesh sm = new SharedMesh("Mesh " + x + "," + z, target);
+                sm.setLocalTranslation(x*spacing, 0.0f, z*spacing);
+                row.attachChild(sm);
+            }
+            model.attachChild(row);
+        }
+        model.updateGeometricState(0.0f, true);
+        return (model);
+    }
+
+    /**
+     * Collect the geometry leaves of a graph
+     */
+    private void getGeometry(Spatial s, ArrayList<Geometry> list) {
+        if (s instanceof Geometry) {
+            list.add((Geometry)s);
+        } else if (s instanceof Node && ((Node)s).getQuantity() != 0) {
+            for (Spatial child : ((Node)s).getChildren()) {
+                getGeometry(child, list);
+            }
+        }
+    }
+
+    /**
+     * Create the random views.  The same seed is used for every run.
+     */
+    private BoundingBox[] createViews() {
+        Random random = new Random(1234);
+        float size = gridSize*spacing;
+        float extent = size*viewFraction*0.5f;
+        BoundingBox[] views = new BoundingBox[viewCount];
+        for (int i=0; i<viewCount; i++) {
+            Vector3f center = new Vector3f(random.nextFloat()*size, 0.0f, random.nextFloat()*size);
+            views[i] = new BoundingBox(center, extent, extent, extent);
+        }
+        return (views);
+    }
+
+    /**
+     * Get the number of triangles in the geometry which intersects a view,
+     * and the number of draw calls it takes.
+     */
+    private long[] cull(ArrayList<Geometry> geometry, BoundingVolume view) {
+        long[] result = new long[2];
+        for (int i=0; i<geometry.size(); i++) {
+            Geometry g = geometry.get(i);
+            if (g.getWorldBound().intersects(view)) {
+                result[0] += ((TriMesh)g).getTriangleCount();
+                result[1]++;
+            }
+        }
+        return (result);
+    }
+
+    /**
+     * Run the benchmark for one cell setting
+     */
+    private void run(int cellsPerAxis, BoundingBox[] views) {
+        Node model = createModel();
+        ArrayList<Geometry> before = new ArrayList<Geometry>();
+        getGeometry(model, before);
+
+        GraphOptimizer go = new GraphOptimizer();
+        go.setCellsPerAxis(cellsPerAxis);
+        long start = System.nanoTime();
+        go.removeSharedMeshes(model);
+        long time = System.nanoTime() - start;
+
+        model.updateGeometricState(0.0f, true);
+        ArrayList<Geometry> after = new ArrayList<Geometry>();
+        getGeometry(model, after);
+
+        long needed = 0;
+        long drawn = 0;
+        long callsBefore = 0;
+        long callsAfter = 0;
+        for (int i=0; i<views.length; i++) {
+            long[] b = cull(before, views[i]);
+            long[] a = cull(after, views[i]);
+            needed += b[0];
+            callsBefore += b[1];
+            drawn += a[0];
+            callsAfter += a[1];
+        }
+
+        System.out.println("Cells per axis: " + cellsPerAxis +
+                ", batches: " + after.size() + " (from " + before.size() + ")" +
+                ", draw call reduction: " + (100.0f*(before.size() - after.size())/before.size()) + "%" +
+                ", visible draw calls: " + ((float)callsAfter/views.length) +
+                " (from " + ((float)callsBefore/views.length) + ")" +
+                ", culling efficiency: " + (drawn == 0 ? 100.0f : 100.0f*needed/drawn) + "%" +
+                ", time: " + (time/1000000) + "ms");
+    }
+
+    public static void main(String[] args) {
+        GraphOptimizerBenchmark benchmark = new GraphOptimizerBenchmark(args);
+        BoundingBox[] views = benchmark.createViews();
+
+        // Warm up
+        benchmark.run(4, views);
+
+        int[] cells = {1, 2, 4, 8, 16, 32};
+        for (int i=0; i<cells.length; i++) {
+            benchmark.run(cells[i], views);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jdesktop.mtgame.test;
+
+import org.jdesktop.mtgame.util.ParallelGeometricUpdater;
+import com.jme.bounding.BoundingBox;
+import com.jme.math.FastMath;
+import com.jme.math.Quaternion;
+import com.jme.math.Vector3f;
+import com.jme.scene.GeometricUpdateListener;
+import com.jme.scene.Node;
+import com.jme.scene.SharedMesh;
+import com.jme.scene.Spatial;
+import com.jme.scene.TriMesh;
+import com.jme.scene.shape.Box;
+import java.util.Random;
+
+/**
+ * A CPU only check and benchmark for the ParallelGeometricUpdater.  It
+ * builds two identical city block graphs, updates one serially and one in
+ * parallel, checks that every world transform and bound matches, and
+ * reports the time for each.
+ * 
+ * @author Doug Twilleager
+ */
+public class ParallelUpdateBenchmark {
+    /**
+     * The number of blocks along each side of the city
+     */
+    private int blocks = 16;
+
+    /**
+     * The buildings in a block, and the pieces in a building
+     */
+    private int buildings = 20;
+    private int pieces = 20;
+
+    /**
+     * The number of timed updates
+     */
+    private int iterations = 20;
+
+    /**
+     * The shared geometry
+     */
+    private TriMesh box = null;
+
+    /**
+     * Counts listener calls
+     */
+    private static class CountingListener implements GeometricUpdateListener {
+        int count = 0;
+
+        public void geometricDataChanged(Spatial spatial) {
+            count++;
+        }
+    }
+
+    public ParallelUpdateBenchmark(String[] args) {
+        if (args.length > 0) {
+            blocks = Integer.parseInt(args[0]);
+        }
+        box = new Box("Box", new Vector3f(), 1.0f, 1.0f, 1.0f);
+        box.setModelBound(new BoundingBox());
+        box.updateModelBound();
+    }
+
+    /**
+     * Build the city.  The same seed gives the same graph.
+     */
+    private Node createCity(long seed, GeometricUpdateListener l) {
+        Random random = new Random(seed);
+        Node city = new Node("City");
+        for (int b=0; b<blocks*blocks; b++) {
+            Node block = new Node("Block " + b);
+            block.setLocalTranslation((b % blocks)*100.0f, 0.0f, (b / blocks)*100.0f);
+            for (int i=0; i<buildings; i++) {
+                Node building = new Node("Building " + i);
+                building.setLocalTranslation(random.nextFloat()*90.0f, 0.0f,
+                        random.nextFloat()*90.0f);
+                building.getLocalRotation().fromAngleAxis(random.nextFloat()*FastMath.TWO_PI,
+                        Vector3f.UNIT_Y);
+                for (int p=0; p<pieces; p++) {
+                    SharedMesh sm = new SharedMesh("Piece " + p, box);
+                    sm.setLocalTranslation(random.nextFloat()*4.0f, p*2.0f,
+                            random.nextFloat()*4.0f);
+                    sm.setLocalScale(0.5f + random.nextFloat());
+                    building.attachChild(sm);
+                }
+                building.addGeometricUpdateListener(l);
+                block.attachChild(building);
+            }
+            city.attachChild(block);
+        }
+        return (city);
+    }
+
+    /**
+     * Compare the world data of two graphs, returning the number of spatials
+     * which differ
+     */
+    private int compare(Spatial a, Spatial b) {
+        int differences = 0;
+        if (!a.getWorldTranslation().equals(b.getWorldTranslation()) ||
+            !a.getWorldRotation().equals(b.getWorldRotation()) ||
+            !a.getWorldScale().equals(b.getWorldScale())) {
+            differences++;
+        } else if (a.getWorldBound() != null || b.getWorldBound() != null) {
+            BoundingBox ba = (BoundingBox) a.getWorldBound();
+            BoundingBox bb = (BoundingBox) b.getWorldBound();
+            if (ba == null || bb == null || !ba.getCenter().equals(bb.getCenter()) ||
+                ba.xExtent != bb.xExtent || ba.yExtent != bb.yExtent ||
+                ba.zExtent != bb.zExtent) {
+                differences++;
+            }
+        }
+        if (a instanceof Node) {
+            Node na = (Node) a;
+            Node nb = (Node) b;
+            for (int i=0; i<na.getQuantity(); i++) {
+                differences += compare(na.getChild(i), nb.getChild(i));
+            }
+        }
+        return (differences);
+    }
+
+    private void run(int threads) {
+        CountingListener serialCount = new CountingListener();
+        CountingListener parallelCount = new CountingListener();
+        Node serial = createCity(1234, serialCount);
+        Node parallel = createCity(1234, parallelCount);
+        ParallelGeometricUpdater updater = new ParallelGeometricUpdater();
+        updater.setThreadCount(threads);
+
+        Quaternion rotation = new Quaternion();
+        long serialTime = 0;
+        long parallelTime = 0;
+        int differences = 0;
+        for (int i=0; i<iterations; i++) {
+            // Move everything, so the whole graph really changes
+            rotation.fromAngleAxis(i*0.01f, Vector3f.UNIT_Y);
+            serial.setLocalRotation(rotation);
+            parallel.setLocalRotation(rotation);
+
+            long start = System.nanoTime();
+            serial.updateGeometricState(0.0f, true);
+            serialTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            updater.updateGeometricState(parallel, 0.0f, true);
+            parallelTime += System.nanoTime() - start;
+
+            differences += compare(serial, parallel);
+        }
+        updater.shutdown();
+
+        int spatials = blocks*blocks*(1 + buildings*(1 + pieces)) + 1;
+        System.out.println("Threads: " + threads + ", spatials: " + spatials +
+                ", subtrees: " + updater.getLastSubtreeCount() +
+                (updater.wasLastUpdateParallel() ? " (parallel)" : " (serial)") +
+                ", serial: " + (serialTime/iterations/1000) + "us" +
+                ", parallel: " + (parallelTime/iterations/1000) + "us" +
+                ", differences: " + differences +
+                ", listener calls: " + parallelCount.count +
+                " (serial " + serialCount.count + ")");
+    }
+
+    public static void main(String[] args) {
+        ParallelUpdateBenchmark benchmark = new ParallelUpdateBenchmark(args);
+
+        // Warm up
+        benchmark.run(2);
+
+        int max = Runtime.getRuntime().availableProcessors();
+        for (int threads=1; threads<=max; threads*=2) {
+            benchmark.run(threads);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jdesktop.mtgame.util;
+
+import org.jdesktop.mtgame.*;
+
+import com.jme.image.Texture;
+import com.jme.scene.state.TextureState;
+import com.jme.util.TextureKey;
+import com.jme.util.TextureManager;
+import java.net.URL;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads textures on the TextureManager's loader threads.  The
+ * TextureState is given a placeholder texture, and the real texture is
+ * swapped in from the render thread once it has been decoded.  A state
+ * which is live only has its textures changed from the render thread.
+ * 
+ * @author Doug Twilleager
+ */
+public class AsyncTextureLoader {
+    /**
+     * The world manager
+     */
+    private WorldManager worldManager = null;
+
+    /**
+     * The texture used until the real one is loaded
+     */
+    private Texture placeholder = null;
+
+    /**
+     * The constructor.  If placeholder is null, the default texture is used.
+     */
+    public AsyncTextureLoader(WorldManager wm, Texture placeholder) {
+        worldManager = wm;
+        this.placeholder = placeholder;
+    }
+
+    /**
+     * Load the texture at the given url into the given unit of the
+     * TextureState, which may be live.  The returned future may be used to
+     * wait for the load, but the swap happens whether or not anyone waits.
+     */
+    public Future<Texture> loadTexture(URL url, TextureState ts, int unit) {
+        return (loadTexture(url, ts, unit, true));
+    }
+
+    /**
+     * Load the texture at the given url into the given unit of the
+     * TextureState.  If the state is live, the placeholder is set from the
+     * render thread, ahead of the real texture.  Otherwise it is set right
+     * away.
+     */
+    public Future<Texture> loadTexture(URL url, TextureState ts, int unit, boolean live) {
+        Texture p = (placeholder != null) ? placeholder : TextureState.getDefaultTexture();
+        if (p != null) {
+            if (live) {
+                worldManager.addRenderUpdater(new TextureSwapper(ts, unit), p);
+            } else {
+                ts.setTexture(p, unit);
+            }
+        }
+
+        TextureKey key = new TextureKey(url, true,
+                TextureManager.COMPRESS_BY_DEFAULT ? com.jme.image.Image.Format.Guess
+                        : com.jme.image.Image.Format.GuessNoCompression);
+        return (TextureManager.loadTextureAsync(key, new TextureSwapper(ts, unit)));
+    }
+
+    /**
+     * This gets the loaded texture from the loader thread, and swaps it in
+     * from the render thread.  It also sets the placeholder of a live state.
+     */
+    class TextureSwapper implements TextureManager.TextureLoadListener, RenderUpdater {
+        private TextureState textureState = null;
+        private int unit = 0;
+
+        TextureSwapper(TextureState ts, int unit) {
+            textureState = ts;
+            this.unit = unit;
+        }
+
+        public void textureLoaded(TextureKey key, Texture texture) {
+            worldManager.addRenderUpdater(this, texture);
+        }
+
+        public void update(Object obj) {
+            Texture texture = (Texture) obj;
+            if (texture != null) {
+                textureState.setTexture(texture, unit);
+            }
+        }
+    }
+}
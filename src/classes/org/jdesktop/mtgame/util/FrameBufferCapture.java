@@ -37,16 +37,42 @@ import javax.media.opengl.GL;
 import javax.media.opengl.glu.GLU;
 import java.nio.Buffer;
 import com.jme.util.geom.BufferUtils;
+import com.jme.util.geom.DirectBufferPool;
 import javax.media.opengl.GL2;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * This class encapsultes a rendering surface in mtgame.  It can be used
- * for may different purposes.  It can be used for onscreen rendering, texture
- * rendering, and shadow map rendering.
+ * This class captures the contents of a render buffer after every frame.
+ * By default the FrameBufferListener is handed the same buffer every
+ * frame, as soon as the frame is read.  If an image listener is set, the
+ * pixels are read back into a ring of buffers and the conversion to a
+ * BufferedImage is done on a worker thread.  Pixel buffer objects can be
+ * enabled so the read doesn't stall the render thread, at the cost of a
+ * frame of latency.
  * 
  * @author Doug Twilleager
  */
 public class FrameBufferCapture implements RenderUpdater {
+    /**
+     * A logger
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(FrameBufferCapture.class.getName());
+
+    /**
+     * The default number of buffers in the ring
+     */
+    private static final int DEFAULT_RING_SIZE = 2;
+
+    /**
+     * An empty ring, until the first frame tells us the size
+     */
+    private static final ByteBuffer[] EMPTY_RING = new ByteBuffer[0];
+
     /**
      * The world manager
      */
@@ -54,13 +80,58 @@ public class FrameBufferCapture implements RenderUpdater {
 
     private FrameBufferListener listener = null;
     private RenderBuffer renderBuffer = null;
-    private ByteBuffer rawData = null;
     private int dataType = GL2.GL_BGR;
 
+    /**
+     * The ring of readback buffers, and which ones are being converted
+     */
+    private ByteBuffer[] ring = null;
+    private boolean[] converting = null;
+    private int nextSlot = 0;
+    private int lastSlot = -1;
+
+    /**
+     * Whether we allocated the ring, and so can resize it
+     */
+    private boolean ownsBuffers = false;
+    private int ringWidth = 0;
+    private int ringHeight = 0;
+
+    /**
+     * Pixel buffer object state.  The read into one PBO is issued a frame
+     * before it is mapped, so there is always one frame of latency.
+     */
+    private boolean usePixelBuffers = false;
+    private boolean pixelBuffersChecked = false;
+    private int[] pixelBuffers = null;
+    private int pixelBufferSize = 0;
+    private int pixelBufferIndex = 0;
+    private boolean pixelBufferPending = false;
+
+    /**
+     * The asynchronous image conversion
+     */
+    private FrameImageListener imageListener = null;
+    private FrameBufferConverter converter = null;
+    private ExecutorService conversionService = null;
+    private int imageType = BufferedImage.TYPE_4BYTE_ABGR;
+
+    /**
+     * The number of frames dropped because every buffer was busy
+     */
+    private long droppedFrames = 0;
+
     public interface FrameBufferListener {
         public void update(Buffer b);
     }
 
+    /**
+     * A listener which is handed converted images, from the conversion thread
+     */
+    public interface FrameImageListener {
+        public void update(BufferedImage bi);
+    }
+
     /**
      * The constructor
      */
@@ -79,59 +150,353 @@ public class FrameBufferCapture implements RenderUpdater {
         worldManager = wm;
         listener = l;
         renderBuffer = rb;
-        rawData = buffer;
         dataType = type;
+        setBuffer(buffer);
         renderBuffer.setRenderUpdater(this);
     }
 
     void createBuffer(WorldManager wm) {
-        int size = renderBuffer.getWidth() * renderBuffer.getHeight() * 3;
-        rawData = BufferUtils.createByteBuffer(size);
+        ownsBuffers = true;
+        ring = EMPTY_RING;
+        converting = new boolean[0];
+        checkBuffers();
+    }
+
+    /**
+     * Make sure the ring we allocated matches the size of the render
+     * buffer, and has enough slots for the image listener.  Returns false
+     * if the ring needs to change but a slot is still being converted.
+     */
+    private boolean checkBuffers() {
+        int count = (imageListener != null) ? DEFAULT_RING_SIZE : 1;
+        int width = renderBuffer.getWidth();
+        int height = renderBuffer.getHeight();
+
+        if (!ownsBuffers || (ring.length == count &&
+            ringWidth == width && ringHeight == height)) {
+            return (true);
+        }
+
+        for (int i=0; i<converting.length; i++) {
+            if (converting[i]) {
+                return (false);
+            }
+        }
+
+        // Nothing is converting, so the old frames can go straight back
+        for (int i=0; i<ring.length; i++) {
+            BufferUtils.releaseBuffer(ring[i]);
+        }
+
+        int size = getFrameSize();
+        ring = new ByteBuffer[count];
+        converting = new boolean[count];
+        for (int i=0; i<ring.length; i++) {
+            ring[i] = BufferUtils.acquireByteBuffer(size,
+                    DirectBufferPool.Category.CAPTURE);
+        }
+        ringWidth = width;
+        ringHeight = height;
+        nextSlot = 0;
+        lastSlot = -1;
+        return (true);
+    }
+
+    /**
+     * Hand a ring we allocated back to the buffer pool.  The render thread
+     * may be reading into it right now, so this is done from a render
+     * updater, and a slot which is still being converted is handed back by
+     * its conversion job instead.  This is called with the lock held.
+     */
+    private void retireRing() {
+        if (!ownsBuffers || ring.length == 0) {
+            return;
+        }
+        final ByteBuffer[] oldRing = ring;
+        final boolean[] oldConverting = converting;
+        worldManager.addRenderUpdater(new RenderUpdater() {
+            public void update(Object obj) {
+                synchronized (FrameBufferCapture.this) {
+                    for (int i=0; i<oldRing.length; i++) {
+                        if (!oldConverting[i]) {
+                            BufferUtils.releaseBuffer(oldRing[i]);
+                        }
+                    }
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * The size, in bytes, of one frame
+     */
+    private int getFrameSize() {
+        return (renderBuffer.getWidth() * renderBuffer.getHeight() *
+                FrameBufferConverter.getBytesPerPixel(getFormat()));
+    }
+
+    /**
+     * Map the GL data type to a converter format
+     */
+    private FrameBufferConverter.Format getFormat() {
+        switch (dataType) {
+            case GL.GL_RGB:
+                return (FrameBufferConverter.Format.RGB);
+            case GL.GL_RGBA:
+                return (FrameBufferConverter.Format.RGBA);
+            case GL.GL_BGRA:
+                return (FrameBufferConverter.Format.BGRA);
+            default:
+                return (FrameBufferConverter.Format.BGR);
+        }
     }
 
     /**
-     * Set the buffer to be used for grabbing the frame bufer
+     * Set the buffer to be used for grabbing the frame bufer.  When an
+     * application supplies it's own buffer, the ring has just that buffer.
      * @param buffer
      */
-    public void setBuffer(ByteBuffer buffer) {
-        rawData = buffer;
+    public synchronized void setBuffer(ByteBuffer buffer) {
+        retireRing();
+        ownsBuffers = false;
+        ring = new ByteBuffer[] {buffer};
+        converting = new boolean[1];
+        nextSlot = 0;
+        lastSlot = -1;
     }
 
     /**
-     * Get the buffer to be used for grabbing the frame bufer
+     * Get the buffer to be used for grabbing the frame bufer.  This is
+     * the most recently completed frame.  A buffer we allocated is only
+     * valid until the render buffer is resized or the capture is released.
      * @return
      */
-    public ByteBuffer getBuffer() {
-        return (rawData);
+    public synchronized ByteBuffer getBuffer() {
+        if (ring.length == 0) {
+            return (null);
+        }
+        return (ring[(lastSlot == -1) ? 0 : lastSlot]);
+    }
+
+    /**
+     * Set whether or not pixel buffer objects should be used, if the
+     * hardware supports them.  The default is false.  With pixel buffers,
+     * each frame is handed to the listeners one frame late, and there is
+     * no call for the first frame.
+     */
+    public void setPixelBuffersEnabled(boolean flag) {
+        usePixelBuffers = flag;
+    }
+
+    /**
+     * Set the listener which recieves converted images, and the type of
+     * image to convert to.  The listener is called from a worker thread.
+     * While an image listener is set, a buffer we allocated becomes a
+     * ring of buffers, so the FrameBufferListener may see a different
+     * buffer from one frame to the next.
+     */
+    public synchronized void setImageListener(FrameImageListener l, int type) {
+        imageListener = l;
+        imageType = type;
+        converter = null;
+        if (l != null && conversionService == null) {
+            conversionService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MTGame Frame Capture");
+                    t.setDaemon(true);
+                    return (t);
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the number of frames which were dropped because the conversion
+     * thread was behind.
+     */
+    public synchronized long getDroppedFrames() {
+        return (droppedFrames);
+    }
+
+    /**
+     * Stop capturing, and release the conversion thread.
+     */
+    public void release() {
+        renderBuffer.setRenderUpdater(null);
+        synchronized (this) {
+            if (conversionService != null) {
+                conversionService.shutdown();
+                conversionService = null;
+            }
+            retireRing();
+            ring = EMPTY_RING;
+            converting = new boolean[0];
+            ownsBuffers = false;
+        }
+        if (pixelBuffers != null) {
+            worldManager.addRenderUpdater(new RenderUpdater() {
+                public void update(Object obj) {
+                    GLU.getCurrentGL().glDeleteBuffers(pixelBuffers.length, pixelBuffers, 0);
+                    pixelBuffers = null;
+                }
+            }, null);
+        }
     }
 
     public void update(Object obj) {
         GL gl = GLU.getCurrentGL();
-        gl.glReadPixels(0, 0, renderBuffer.getWidth(), renderBuffer.getHeight(), dataType, GL.GL_BYTE, rawData);
+        int slot = -1;
+        ByteBuffer rawData = null;
+
+        synchronized (this) {
+            if (!checkBuffers()) {
+                droppedFrames++;
+                return;
+            }
+            if (ring.length == 0) {
+                // Released
+                return;
+            }
+            if (!converting[nextSlot]) {
+                slot = nextSlot;
+                rawData = ring[slot];
+                nextSlot = (nextSlot + 1) % ring.length;
+            } else {
+                droppedFrames++;
+            }
+        }
+        if (slot == -1) {
+            return;
+        }
+
+        if (!pixelBuffersChecked) {
+            usePixelBuffers = usePixelBuffers &&
+                    gl.isExtensionAvailable("GL_ARB_pixel_buffer_object");
+            pixelBuffersChecked = true;
+        }
+
+        if (usePixelBuffers) {
+            if (!readPixelBuffer(gl, rawData)) {
+                synchronized (this) {
+                    nextSlot = slot;
+                }
+                return;
+            }
+        } else {
+            gl.glReadPixels(0, 0, renderBuffer.getWidth(), renderBuffer.getHeight(), dataType, GL.GL_BYTE, rawData);
+        }
+        rawData.rewind();
+
+        synchronized (this) {
+            lastSlot = slot;
+        }
         if (listener != null) {
             listener.update(rawData);
         }
+        convert(slot, rawData);
     }
 
-    BufferedImage createBufferedImage(ByteBuffer bb) {
-        int width = renderBuffer.getWidth();
-        int height = renderBuffer.getHeight();
+    /**
+     * Issue an asynchronous read into one pixel buffer, and copy out the
+     * one issued last frame.  Returns false if there was nothing to copy.
+     */
+    private boolean readPixelBuffer(GL gl, ByteBuffer rawData) {
+        int size = getFrameSize();
+        boolean copied = false;
 
-        bb.rewind();
-        BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-        for (int y=0; y<height; y++) {
-            for (int x=0; x<width; x++) {
-                int index = (y*width + x)*3;
-                int b = bb.get(index);
-                int g = bb.get(index+1);
-                int r = bb.get(index+2);
+        if (pixelBuffers != null && pixelBufferSize != size) {
+            // The render buffer was resized
+            gl.glDeleteBuffers(pixelBuffers.length, pixelBuffers, 0);
+            pixelBuffers = null;
+            pixelBufferPending = false;
+        }
 
-                int pixel = ((r&255)<<16) | ((g&255)<< 8) | ((b&255)) | 0xff000000;
+        if (pixelBuffers == null) {
+            pixelBufferSize = size;
+            pixelBuffers = new int[2];
+            gl.glGenBuffers(2, pixelBuffers, 0);
+            for (int i=0; i<pixelBuffers.length; i++) {
+                gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pixelBuffers[i]);
+                gl.glBufferData(GL2.GL_PIXEL_PACK_BUFFER, size, null, GL2.GL_STREAM_READ);
+            }
+        }
+
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pixelBuffers[pixelBufferIndex]);
+        gl.getGL2().glReadPixels(0, 0, renderBuffer.getWidth(), renderBuffer.getHeight(), dataType, GL.GL_BYTE, 0);
 
-                bi.setRGB(x, (height-y)-1, pixel);
+        int previous = (pixelBufferIndex + 1) % pixelBuffers.length;
+        if (pixelBufferPending) {
+            gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pixelBuffers[previous]);
+            ByteBuffer mapped = gl.glMapBuffer(GL2.GL_PIXEL_PACK_BUFFER, GL2.GL_READ_ONLY);
+            if (mapped != null) {
+                rawData.clear();
+                mapped.limit(Math.min(size, rawData.capacity()));
+                rawData.put(mapped);
+                gl.glUnmapBuffer(GL2.GL_PIXEL_PACK_BUFFER);
+                copied = true;
             }
         }
-        return (bi);
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+
+        pixelBufferIndex = previous;
+        pixelBufferPending = true;
+        return (copied);
+    }
+
+    /**
+     * Hand the given slot, which was just read into, off to the conversion
+     * thread
+     */
+    private void convert(final int slot, final ByteBuffer data) {
+        final FrameImageListener l;
+        final FrameBufferConverter c;
+        final boolean[] flags;
+        final boolean owned;
+
+        synchronized (this) {
+            if (imageListener == null || conversionService == null) {
+                return;
+            }
+            if (slot >= ring.length || ring[slot] != data) {
+                // The ring changed while we were reading
+                return;
+            }
+            if (converter == null || converter.getWidth() != renderBuffer.getWidth() ||
+                converter.getHeight() != renderBuffer.getHeight()) {
+                converter = new FrameBufferConverter(getFormat(), renderBuffer.getWidth(),
+                        renderBuffer.getHeight(), imageType);
+            }
+            l = imageListener;
+            c = converter;
+            flags = converting;
+            owned = ownsBuffers;
+            converting[slot] = true;
+        }
+
+        conversionService.execute(new Runnable() {
+            public void run() {
+                try {
+                    l.update(c.convert(data, null));
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Exception converting frame", e);
+                } finally {
+                    synchronized (FrameBufferCapture.this) {
+                        flags[slot] = false;
+                        // If the ring was retired while converting, the
+                        // buffer is ours to hand back
+                        if (owned && flags != converting) {
+                            BufferUtils.releaseBuffer(data);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    BufferedImage createBufferedImage(ByteBuffer bb) {
+        FrameBufferConverter c = new FrameBufferConverter(getFormat(), renderBuffer.getWidth(),
+                renderBuffer.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        return (c.convert(bb, null));
     }
 
     /**
@@ -139,6 +504,6 @@ public class FrameBufferCapture implements RenderUpdater {
      * @return
      */
     public BufferedImage getBufferedImage() {
-        return (createBufferedImage(rawData));
+        return (createBufferedImage(getBuffer()));
     }
 }
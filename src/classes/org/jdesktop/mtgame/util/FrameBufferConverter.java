@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jdesktop.mtgame.util;
+
+import java.nio.ByteBuffer;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+
+/**
+ * This class converts raw frame buffer data, as read back from OpenGL, into
+ * a BufferedImage.  The rows are flipped, since OpenGL returns them bottom
+ * up, and the channels are swizzled with bulk copies straight into the
+ * raster of the destination image.  It makes no GL calls, so it can be
+ * used from any thread.
+ * 
+ * @author Doug Twilleager
+ */
+public class FrameBufferConverter {
+    /**
+     * The channel layouts that can be read back
+     */
+    public enum Format {
+        RGB,
+        BGR,
+        RGBA,
+        BGRA
+    }
+
+    /**
+     * The layout of the source data
+     */
+    private Format format = Format.BGR;
+
+    /**
+     * The size of the source data
+     */
+    private int width = 0;
+    private int height = 0;
+
+    /**
+     * The type of BufferedImage to create
+     */
+    private int imageType = BufferedImage.TYPE_4BYTE_ABGR;
+
+    /**
+     * A scratch row, so we only do one bulk get per row
+     */
+    private byte[] row = null;
+
+    /**
+     * The constructor
+     */
+    public FrameBufferConverter(Format format, int width, int height, int imageType) {
+        if (imageType != BufferedImage.TYPE_INT_RGB &&
+            imageType != BufferedImage.TYPE_INT_ARGB &&
+            imageType != BufferedImage.TYPE_3BYTE_BGR &&
+            imageType != BufferedImage.TYPE_4BYTE_ABGR) {
+            throw new IllegalArgumentException("Unsupported image type: " + imageType);
+        }
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.imageType = imageType;
+        row = new byte[width*getBytesPerPixel(format)];
+    }
+
+    /**
+     * Get the number of bytes per pixel for the given format
+     */
+    public static int getBytesPerPixel(Format format) {
+        if (format == Format.RGBA || format == Format.BGRA) {
+            return (4);
+        }
+        return (3);
+    }
+
+    /**
+     * Get the source format
+     */
+    public Format getFormat() {
+        return (format);
+    }
+
+    /**
+     * Get the width of the source data
+     */
+    public int getWidth() {
+        return (width);
+    }
+
+    /**
+     * Get the height of the source data
+     */
+    public int getHeight() {
+        return (height);
+    }
+
+    /**
+     * Get the image type
+     */
+    public int getImageType() {
+        return (imageType);
+    }
+
+    /**
+     * Convert the given buffer.  If dest is the right size and type it is
+     * filled and returned, otherwise a new image is created.
+     */
+    public synchronized BufferedImage convert(ByteBuffer bb, BufferedImage dest) {
+        BufferedImage bi = dest;
+        int stride = row.length;
+
+        if (bi == null || bi.getWidth() != width || bi.getHeight() != height ||
+            bi.getType() != imageType) {
+            bi = new BufferedImage(width, height, imageType);
+        }
+
+        ByteBuffer src = bb.duplicate();
+        if (imageType == BufferedImage.TYPE_3BYTE_BGR ||
+            imageType == BufferedImage.TYPE_4BYTE_ABGR) {
+            byte[] data = ((DataBufferByte) bi.getRaster().getDataBuffer()).getData();
+            int dstStride = (imageType == BufferedImage.TYPE_3BYTE_BGR) ? width*3 : width*4;
+            for (int y=0; y<height; y++) {
+                src.position(y*stride);
+                int dstRow = (height-y-1)*dstStride;
+                if (imageType == BufferedImage.TYPE_3BYTE_BGR && format == Format.BGR) {
+                    src.get(data, dstRow, stride);
+                } else {
+                    src.get(row, 0, stride);
+                    copyRowToBytes(data, dstRow, imageType == BufferedImage.TYPE_4BYTE_ABGR);
+                }
+            }
+        } else {
+            int[] data = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+            for (int y=0; y<height; y++) {
+                src.position(y*stride);
+                src.get(row, 0, stride);
+                copyRowToInts(data, (height-y-1)*width);
+            }
+        }
+        return (bi);
+    }
+
+    /**
+     * Swizzle the scratch row into a BGR or ABGR byte raster
+     */
+    private void copyRowToBytes(byte[] data, int offset, boolean alpha) {
+        int bpp = getBytesPerPixel(format);
+        int ri = (format == Format.RGB || format == Format.RGBA) ? 0 : 2;
+        int bi = 2 - ri;
+        int j = offset;
+
+        for (int i=0; i<row.length; i+=bpp) {
+            if (alpha) {
+                data[j++] = (bpp == 4) ? row[i+3] : (byte)0xff;
+            }
+            data[j++] = row[i+bi];
+            data[j++] = row[i+1];
+            data[j++] = row[i+ri];
+        }
+    }
+
+    /**
+     * Swizzle the scratch row into an RGB or ARGB int raster
+     */
+    private void copyRowToInts(int[] data, int offset) {
+        int bpp = getBytesPerPixel(format);
+        int ri = (format == Format.RGB || format == Format.RGBA) ? 0 : 2;
+        int bi = 2 - ri;
+        int j = offset;
+
+        for (int i=0; i<row.length; i+=bpp) {
+            int a = (bpp == 4) ? (row[i+3]&255) : 255;
+            data[j++] = (a<<24) | ((row[i+ri]&255)<<16) | ((row[i+1]&255)<<8) | (row[i+bi]&255);
+        }
+    }
+}
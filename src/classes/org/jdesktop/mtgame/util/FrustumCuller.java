@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jdesktop.mtgame.util;
+
+import com.jme.bounding.BoundingBox;
+import com.jme.bounding.BoundingSphere;
+import com.jme.bounding.BoundingVolume;
+import com.jme.math.Vector3f;
+import com.jme.renderer.Camera;
+import com.jme.scene.Geometry;
+import com.jme.scene.Node;
+import com.jme.scene.Spatial;
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This class culls a scene graph against a camera frustum, reusing as much
+ * of the previous frame's work as it can.  For each spatial it remembers the
+ * world bound it was tested with, the result, the camera plane state the
+ * test left behind, and the plane that last put it outside the frustum.
+ * 
+ * A spatial is only tested again when its world bound or the camera has
+ * changed.  Once a spatial is fully inside the frustum, nothing below it is
+ * tested at all.  While a spatial intersects the frustum, the planes it is
+ * fully inside are skipped for its children, using the plane state of the
+ * jME camera.
+ * 
+ * The result is a list of spatials to hand to the jME renderer: subtrees
+ * which are fully inside are handed back whole, and only plain Nodes which
+ * intersect the frustum are broken up.  Node subclasses, which may draw
+ * their children in their own way, are handed back whole if they aren't
+ * outside.  The parent of each spatial handed back has its last frustum
+ * intersection set, so jME's own culling in onDraw trusts the result
+ * instead of using a stale value from an earlier frame.
+ * 
+ * One culler should be used per camera.  cull() may be called for several
+ * scenes in a frame, and endFrame() must be called once the frame is done.
+ * A culler is not thread safe.
+ * 
+ * @author Doug Twilleager
+ */
+public class FrustumCuller {
+    /**
+     * The number of floats kept to check for world bound changes
+     */
+    private static final int BOUND_STATE = 7;
+
+    /**
+     * What we remember about a spatial
+     */
+    private static class CullState {
+        float[] bound = new float[BOUND_STATE];
+        Camera.FrustumIntersect result = null;
+        int parentPlaneState = 0;
+        int planeState = 0;
+        int checkPlane = 0;
+        int frame = 0;
+    }
+
+    /**
+     * The cull state of each spatial we have visited
+     */
+    private IdentityHashMap<Spatial, CullState> cullStates = new IdentityHashMap<Spatial, CullState>();
+
+    /**
+     * The camera used for the last frame, and a snapshot of its view.  The
+     * camera is only held weakly, so a culler kept for a camera doesn't
+     * keep the camera alive.
+     */
+    private WeakReference<Camera> lastCamera = null;
+    private float[] lastView = new float[19];
+
+    /**
+     * Whether the camera changed since the last frame.  This is decided
+     * by the first cull() call in each frame.
+     */
+    private boolean cameraChanged = true;
+    private boolean frameStarted = false;
+
+    /**
+     * The current frame
+     */
+    private int frame = 1;
+
+    /**
+     * Statistics for the current frame
+     */
+    private int tested = 0;
+    private int reused = 0;
+    private int inside = 0;
+    private int visited = 0;
+
+    /**
+     * The default constructor
+     */
+    public FrustumCuller() {
+    }
+
+    /**
+     * Add the spatials under the given spatial which need to be drawn for
+     * the camera to the visible list.
+     */
+    public void cull(Camera camera, Spatial s, List<Spatial> visible) {
+        if (!frameStarted) {
+            cameraChanged = viewChanged(camera);
+            frameStarted = true;
+        }
+
+        int state = camera.getPlaneState();
+        camera.setPlaneState(0);
+        cullSpatial(camera, s, visible);
+        camera.setPlaneState(state);
+    }
+
+    /**
+     * Finish the frame.  Anything which wasn't visited in this frame, and
+     * so might no longer be in the scene, is forgotten once there is enough
+     * of it.
+     */
+    public void endFrame() {
+        if (cullStates.size() > 2*visited + 256) {
+            Iterator<CullState> it = cullStates.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().frame != frame) {
+                    it.remove();
+                }
+            }
+        }
+
+        frame++;
+        frameStarted = false;
+        tested = 0;
+        reused = 0;
+        inside = 0;
+        visited = 0;
+    }
+
+    /**
+     * Forget everything, so the next frame tests the whole scene
+     */
+    public void clear() {
+        cullStates.clear();
+        lastCamera = null;
+    }
+
+    /**
+     * Get the number of frustum tests done this frame
+     */
+    public int getTestCount() {
+        return (tested);
+    }
+
+    /**
+     * Get the number of spatials whose result was reused this frame
+     */
+    public int getReuseCount() {
+        return (reused);
+    }
+
+    /**
+     * Get the number of spatials this frame which were fully inside, and
+     * so were handed back without testing anything below them
+     */
+    public int getInsideCount() {
+        return (inside);
+    }
+
+    /**
+     * Cull a single spatial, and its children
+     */
+    private void cullSpatial(Camera camera, Spatial s, List<Spatial> visible) {
+        Spatial.CullHint hint = s.getCullHint();
+        if (hint == Spatial.CullHint.Always) {
+            return;
+        } else if (hint == Spatial.CullHint.Never) {
+            add(s, Camera.FrustumIntersect.Inside, visible);
+            return;
+        }
+
+        int state = camera.getPlaneState();
+        Camera.FrustumIntersect result = test(camera, s, state);
+
+        if (result == Camera.FrustumIntersect.Inside) {
+            inside++;
+            add(s, result, visible);
+        } else if (result == Camera.FrustumIntersect.Intersects) {
+            if (s.getClass() == Node.class) {
+                Node node = (Node)s;
+                for (int i=0; i<node.getQuantity(); i++) {
+                    Spatial child = node.getChild(i);
+                    if (child != null) {
+                        cullSpatial(camera, child, visible);
+                    }
+                }
+            } else if (s instanceof Geometry) {
+                // Nothing below it to cull, so it can be drawn as is
+                add(s, Camera.FrustumIntersect.Inside, visible);
+            } else {
+                // Let the subclass cull its own children
+                add(s, result, visible);
+            }
+        }
+        camera.setPlaneState(state);
+    }
+
+    /**
+     * Test a spatial against the frustum, unless neither it nor the camera
+     * has changed since the last test.  This leaves the camera plane state
+     * set up for the children.
+     */
+    private Camera.FrustumIntersect test(Camera camera, Spatial s, int state) {
+        BoundingVolume bv = s.getWorldBound();
+        visited++;
+
+        if (bv == null) {
+            // Nothing to test, so let the children decide
+            return (Camera.FrustumIntersect.Intersects);
+        }
+
+        CullState cs = cullStates.get(s);
+        if (cs == null) {
+            cs = new CullState();
+            cs.checkPlane = bv.getCheckPlane();
+            cullStates.put(s, cs);
+        }
+        cs.frame = frame;
+
+        boolean boundChanged = snapshot(cs.bound, bv);
+        if (!boundChanged && !cameraChanged && cs.result != null &&
+            cs.parentPlaneState == state) {
+            camera.setPlaneState(cs.planeState);
+            reused++;
+            return (cs.result);
+        }
+
+        // Start with the plane which culled this spatial last time
+        bv.setCheckPlane(cs.checkPlane);
+        cs.result = camera.contains(bv);
+        cs.parentPlaneState = state;
+        cs.planeState = camera.getPlaneState();
+        cs.checkPlane = bv.getCheckPlane();
+        tested++;
+        return (cs.result);
+    }
+
+    /**
+     * Hand a spatial back to be drawn.  jME's onDraw starts from the
+     * parent's last intersection, which is shared by all of the siblings.
+     * An Outside value would drop the spatial, so it is replaced.  An
+     * Intersects value only costs jME one test, so a sibling which needs
+     * it always wins over one which doesn't.
+     */
+    private void add(Spatial s, Camera.FrustumIntersect result, List<Spatial> visible) {
+        Node parent = s.getParent();
+        if (parent != null) {
+            if (result == Camera.FrustumIntersect.Intersects ||
+                parent.getLastFrustumIntersection() == Camera.FrustumIntersect.Outside) {
+                parent.setLastFrustumIntersection(result);
+            }
+        }
+        visible.add(s);
+    }
+
+    /**
+     * Checks whether the camera has changed since the last frame
+     */
+    private boolean viewChanged(Camera camera) {
+        boolean changed = (lastCamera == null || camera != lastCamera.get());
+
+        if (changed) {
+            lastCamera = new WeakReference<Camera>(camera);
+        }
+        changed = snapshot(lastView, 0, camera.getLocation()) || changed;
+        changed = snapshot(lastView, 3, camera.getDirection()) || changed;
+        changed = snapshot(lastView, 6, camera.getUp()) || changed;
+        changed = snapshot(lastView, 9, camera.getLeft()) || changed;
+        changed = snapshot(lastView, 12, camera.getFrustumNear()) || changed;
+        changed = snapshot(lastView, 13, camera.getFrustumFar()) || changed;
+        changed = snapshot(lastView, 14, camera.getFrustumLeft()) || changed;
+        changed = snapshot(lastView, 15, camera.getFrustumRight()) || changed;
+        changed = snapshot(lastView, 16, camera.getFrustumTop()) || changed;
+        changed = snapshot(lastView, 17, camera.getFrustumBottom()) || changed;
+        changed = snapshot(lastView, 18, camera.isParallelProjection() ? 1.0f : 0.0f) || changed;
+        return (changed);
+    }
+
+    /**
+     * Record a world bound, returning true if it differs from what was there
+     */
+    private boolean snapshot(float[] state, BoundingVolume bv) {
+        boolean changed = false;
+
+        changed = snapshot(state, 0, bv.getCenter()) || changed;
+        if (bv instanceof BoundingBox) {
+            BoundingBox bb = (BoundingBox)bv;
+            changed = snapshot(state, 3, bb.xExtent) || changed;
+            changed = snapshot(state, 4, bb.yExtent) || changed;
+            changed = snapshot(state, 5, bb.zExtent) || changed;
+            changed = snapshot(state, 6, 1.0f) || changed;
+        } else if (bv instanceof BoundingSphere) {
+            changed = snapshot(state, 3, ((BoundingSphere)bv).getRadius()) || changed;
+            changed = snapshot(state, 6, 2.0f) || changed;
+        } else {
+            // Other volumes can change shape without changing size, so
+            // they are always tested
+            changed = true;
+        }
+        return (changed);
+    }
+
+    private boolean snapshot(float[] state, int index, Vector3f v) {
+        boolean changed = false;
+        changed = snapshot(state, index, v.x) || changed;
+        changed = snapshot(state, index+1, v.y) || changed;
+        changed = snapshot(state, index+2, v.z) || changed;
+        return (changed);
+    }
+
+    private boolean snapshot(float[] state, int index, float value) {
+        if (state[index] != value) {
+            state[index] = value;
+            return (true);
+        }
+        return (false);
+    }
+}
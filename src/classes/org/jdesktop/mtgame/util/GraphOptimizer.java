@@ -18,6 +18,9 @@
 
 package org.jdesktop.mtgame.util;
 
+import com.jme.bounding.BoundingBox;
+import com.jme.bounding.BoundingSphere;
+import com.jme.bounding.BoundingVolume;
 import com.jme.math.Quaternion;
 import com.jme.math.TransformMatrix;
 import com.jme.math.Vector3f;
@@ -33,27 +36,137 @@ import com.jme.util.geom.BufferUtils;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Utility class for optimizig the scene graph.
  *
+ * SharedMeshes are batched by render states and vertex format, and then by
+ * the grid cell their bounds are centered in, so each combined mesh stays
+ * small enough to be frustum culled.  Batches are also capped by vertex
+ * count.  The combined buffers are sized up front and filled directly from
+ * the source buffers, with the batches built in parallel.
+ *
  * @author paulby
  */
  public class GraphOptimizer {
 
-    private HashMap<RenderStateSet, LinkedList<SharedMesh>> sharedMeshes = new HashMap();
+    private HashMap<BatchKey, LinkedList<SharedMesh>> sharedMeshes = new HashMap();
     private final boolean print = false;
 
     /**
-     * Process the model, combining all SharedMeshes that share the same set
-     * of RenderStates into a single TriMesh.
+     * The size of the grid cells meshes are clustered in.  If it is zero
+     * or less, the model's bounds are split into cellsPerAxis cells along 
+     * their largest dimension.
+     */
+    private float cellSize = 0.0f;
+    private int cellsPerAxis = 8;
+
+    /**
+     * The most vertices in one combined mesh
+     */
+    private int maxBatchVertices = 65536;
+
+    /**
+     * The number of threads used to build the batches
+     */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Statistics from the last run
+     */
+    private int meshesCombined = 0;
+    private int batchesCreated = 0;
+
+    /**
+     * Set the size of the grid cells which meshes are clustered in.  Zero
+     * picks a size from the model's bounds.
+     */
+    public void setCellSize(float size) {
+        cellSize = size;
+    }
+
+    /**
+     * Get the size of the grid cells which meshes are clustered in
+     */
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Set the number of cells along the largest dimension of the model,
+     * used when the cell size is zero.
+     */
+    public void setCellsPerAxis(int count) {
+        cellsPerAxis = Math.max(1, count);
+    }
+
+    /**
+     * Get the number of cells along the largest dimension of the model
+     */
+    public int getCellsPerAxis() {
+        return cellsPerAxis;
+    }
+
+    /**
+     * Set the maximum number of vertices in one combined mesh
+     */
+    public void setMaxBatchVertices(int count) {
+        maxBatchVertices = count;
+    }
+
+    /**
+     * Get the maximum number of vertices in one combined mesh
+     */
+    public int getMaxBatchVertices() {
+        return maxBatchVertices;
+    }
+
+    /**
+     * Set the number of threads used to build batches
+     */
+    public void setThreadCount(int count) {
+        threadCount = Math.max(1, count);
+    }
+
+    /**
+     * Get the number of threads used to build batches
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Get the number of SharedMeshes combined by the last run
+     */
+    public int getMeshesCombined() {
+        return meshesCombined;
+    }
+
+    /**
+     * Get the number of combined meshes created by the last run
+     */
+    public int getBatchesCreated() {
+        return batchesCreated;
+    }
+
+    /**
+     * Process the model, combining the SharedMeshes that share the same set
+     * of RenderStates and are near each other into TriMeshes.
      *
      * This method is not thread safe, use seperate instances of GraphOptimizer if
      * calling from threaded code.
@@ -61,6 +174,8 @@ import java.util.logging.Logger;
      */
     public void removeSharedMeshes(Node model) {
         sharedMeshes.clear();
+        meshesCombined = 0;
+        batchesCreated = 0;
 
         // Make a note of the models transforms and then set them to identity.
         // Once the graph has been updated the transform will be reset to
@@ -81,8 +196,22 @@ import java.util.logging.Logger;
         traverse(model, 0, metrics);
 //        System.err.println("Initial Metrics "+metrics.getReport());
 
-        for(Entry<RenderStateSet, LinkedList<SharedMesh>> entry : sharedMeshes.entrySet()) {
-            combineMeshes(model, entry.getKey(), entry.getValue());
+        ArrayList<Batch> batches = new ArrayList<Batch>();
+        float size = getClusterSize(model);
+        for(BatchKey key : sharedMeshes.keySet()) {
+            createBatches(key, sharedMeshes.get(key), size, batches);
+        }
+
+        buildBatches(batches);
+
+        for(Batch batch : batches) {
+            if (batch.result == null)
+                continue;
+            for(SharedMesh mesh : batch.meshes)
+                mesh.removeFromParent();
+            model.attachChild(batch.result);
+            meshesCombined += batch.meshes.size();
+            batchesCreated++;
         }
         
         removeDeadNodes(model);
@@ -139,13 +268,19 @@ import java.util.logging.Logger;
 //                // Skip
 //                System.err.println("SKIP MESH");
 //            } else {
-                RenderStateSet stateSet = gatherRenderStates(n);
-                LinkedList meshList = sharedMeshes.get(stateSet);
-                if (meshList==null) {
-                    meshList = new LinkedList();
-                    sharedMeshes.put(stateSet, meshList);
+                SharedMesh mesh = (SharedMesh)n;
+                if (mesh.getTarget().getMode()==TriMesh.Mode.Triangles) {
+                    // Only handle Triangles (not strips or fans)
+                    RenderStateSet stateSet = gatherRenderStates(n);
+                    BatchKey key = new BatchKey(stateSet, new VertexFormat(mesh.getTarget(), 
+                            stateSet.containsState(TextureState.class)));
+                    LinkedList meshList = sharedMeshes.get(key);
+                    if (meshList==null) {
+                        meshList = new LinkedList();
+                        sharedMeshes.put(key, meshList);
+                    }
+                    meshList.add(mesh);
                 }
-                meshList.add((SharedMesh)n);
                 metrics.sharedMeshCount++;
                 if (print) {
                     System.err.print(" "+n.getWorldTranslation());
@@ -204,175 +339,197 @@ import java.util.logging.Logger;
         }
     }
 
-    private void combineMeshes(Node root, RenderStateSet stateSet, LinkedList<SharedMesh> meshes) {
-        TriMesh firstMeshT = meshes.get(0).getTarget();
-        TriMesh firstMesh = meshes.get(0);
-        if (firstMeshT.getMode()!=TriMesh.Mode.Triangles) {
-            // Only handle Trianlges (not strips or fans)
-            return;
+    /**
+     * Get the size of the cells meshes are clustered in
+     */
+    private float getClusterSize(Node model) {
+        if (cellSize > 0.0f)
+            return cellSize;
+
+        BoundingVolume bv = model.getWorldBound();
+        float extent = 0.0f;
+        if (bv instanceof BoundingBox) {
+            BoundingBox bbox = (BoundingBox) bv;
+            extent = Math.max(bbox.xExtent, Math.max(bbox.yExtent, bbox.zExtent));
+        } else if (bv instanceof BoundingSphere) {
+            extent = ((BoundingSphere) bv).getRadius();
         }
+        if (extent > 0.0f)
+            return 2.0f*extent/cellsPerAxis;
+        return Float.POSITIVE_INFINITY;
+    }
 
-        boolean hasTangent = (firstMeshT.getTangentBuffer()!=null);
-        boolean hasFog = (firstMeshT.getFogBuffer()!=null);
-        boolean hasColor = (firstMeshT.getColorBuffer()!=null);
-        int texUnitCount = firstMeshT.getNumberOfUnits();
-        boolean hasTexCoords = stateSet.containsState(TextureState.class);
+    /**
+     * Split the meshes in a group into batches by grid cell, and then by 
+     * vertex count.
+     */
+    private void createBatches(BatchKey key, LinkedList<SharedMesh> meshes, float size, 
+                               ArrayList<Batch> batches) {
+        LinkedHashMap<Long, ArrayList<SharedMesh>> cells = new LinkedHashMap<Long, ArrayList<SharedMesh>>();
+        for(SharedMesh mesh : meshes) {
+            Vector3f c = (mesh.getWorldBound() != null) ? mesh.getWorldBound().getCenter() : 
+                                                          mesh.getWorldTranslation();
+            Long cell = getCellKey(c, size);
+            ArrayList<SharedMesh> list = cells.get(cell);
+            if (list == null) {
+                list = new ArrayList<SharedMesh>();
+                cells.put(cell, list);
+            }
+            list.add(mesh);
+        }
 
-        if (hasTangent) {
-            Logger.getAnonymousLogger().warning("Unable to optimize SharedMesh, it uses Tangents. Please file a bug and include an example model");
-            return;
+        for(ArrayList<SharedMesh> list : cells.values()) {
+            Batch batch = null;
+            for(SharedMesh mesh : list) {
+                int count = mesh.getTarget().getVertexCount();
+                if (batch == null || (batch.vertexCount + count > maxBatchVertices && 
+                                      !batch.meshes.isEmpty())) {
+                    batch = new Batch(key);
+                    batches.add(batch);
+                }
+                batch.add(mesh);
+            }
         }
+    }
 
-        if (hasFog) {
-            Logger.getAnonymousLogger().warning("Unable to optimize SharedMesh, it uses Fog. Please file a bug and include an example model");
-            return;
+    /**
+     * Pack the cell holding a point into a key
+     */
+    private static long getCellKey(Vector3f c, float size) {
+        if (Float.isInfinite(size))
+            return 0;
+        long x = (long)Math.floor(c.x/size) & 0x1fffff;
+        long y = (long)Math.floor(c.y/size) & 0x1fffff;
+        long z = (long)Math.floor(c.z/size) & 0x1fffff;
+        return (x << 42) | (y << 21) | z;
+    }
+
+    /**
+     * Build the combined mesh for each batch, in parallel if there is more
+     * than one thread.  Nothing in the scene graph is changed here.  The
+     * model bounds are computed afterwards in this thread, since jME's bound
+     * computation uses static scratch variables.
+     */
+    private void buildBatches(ArrayList<Batch> batches) {
+        int threads = Math.min(threadCount, batches.size());
+        if (threads <= 1) {
+            for(Batch batch : batches)
+                batch.result = combineMeshes(batch);
+        } else {
+            combineInParallel(batches, threads);
         }
 
-        if (texUnitCount>1) {
-            Logger.getAnonymousLogger().warning("Unable to optimize SharedMesh, it uses multiple TextureUnits. Please file a bug and include an example model");
-            return;
+        for(Batch batch : batches) {
+            if (batch.result != null)
+                batch.result.updateModelBound();
         }
+    }
 
-        ArrayList<float[]> vertices = new ArrayList();
-        ArrayList<float[]> normals = new ArrayList();
-        ArrayList<float[]> colors = new ArrayList();
-        ArrayList<int[]> indicies = new ArrayList();
-//        ArrayList<ArrayList<float[]>> texCoords = new ArrayList();
-        ArrayList<float[]> texCoords = new ArrayList();
-        ArrayList<TransformMatrix> transform = new ArrayList();
+    /**
+     * Combine the batches on a pool of threads
+     */
+    private void combineInParallel(ArrayList<Batch> batches, int threads) {
 
-        int size = 0;
-        int tcSize = 0;
-        for(SharedMesh mesh : meshes) {
-            mesh.getVertexBuffer().rewind();
-            float[] v = new float[mesh.getVertexBuffer().capacity()];
-            size += v.length;
-            mesh.getVertexBuffer().get(v);
-            vertices.add(v);
-
-            float[] n = new float[v.length];
-            mesh.getNormalBuffer().rewind();
-            mesh.getNormalBuffer().get(n);
-            normals.add(n);
-
-            if (hasColor) {
-                float[] c = new float[v.length];
-                mesh.getColorBuffer().rewind();
-                mesh.getColorBuffer().get(c);
-                colors.add(c);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GraphOptimizer");
+                t.setDaemon(true);
+                return t;
             }
-
-            int[] ind = new int[v.length/3];
-            mesh.getIndexBuffer().rewind();
-            mesh.getIndexBuffer().get(ind);
-            indicies.add(ind);
-
-            if (hasTexCoords) {
-                ArrayList<TexCoords> tcList = mesh.getTextureCoords();
-
-                TexCoords tc = tcList.get(0);
-                if (tc!=null) {
-                    float[] tcf = new float[tc.coords.capacity()]; // Maybe 2D or 3D coords so use capacity()
-                    tc.coords.rewind();
-                    tc.coords.get(tcf);
-                    texCoords.add(tcf);
-                    tcSize += tcf.length;
+        });
+        try {
+            ArrayList<Future<TriMesh>> results = new ArrayList<Future<TriMesh>>();
+            for(final Batch batch : batches) {
+                results.add(executor.submit(new Callable<TriMesh>() {
+                    public TriMesh call() {
+                        return combineMeshes(batch);
+                    }
+                }));
+            }
+            for(int i=0; i<batches.size(); i++) {
+                try {
+                    batches.get(i).result = results.get(i).get();
+                } catch (ExecutionException e) {
+                    Logger.getAnonymousLogger().log(Level.WARNING, "Unable to optimize SharedMeshes", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Logger.getAnonymousLogger().warning("Interrupted while optimizing SharedMeshes");
+                    break;
                 }
             }
-
-//            for(int unit=0; unit<texUnitCount; unit++) {
-//                TexCoords tc = tcList.get(unit);
-//                System.err.println("Got TC "+tc+" for unit "+unit);
-//                if (tc!=null) {
-//                    tc.coords.rewind();
-//                    ArrayList<float[]> l = texCoords.get(unit);
-//                    if (l==null) {
-//                        l = new ArrayList();
-//                        texCoords.set(unit, l);
-//                    }
-//                    float[] tcF = new float[v.length];
-//                    tc.coords.get(tcF);
-//                    l.add(tcF);
-//                }
-//            }
-
-            TransformMatrix tm = new TransformMatrix(mesh.getWorldRotation(), mesh.getWorldTranslation());
-            tm.setScale(mesh.getWorldScale());
-            transform.add(tm);
-
-            mesh.removeFromParent();
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        FloatBuffer newVertexBuf = BufferUtils.createFloatBuffer(size);
-        FloatBuffer newNormalsBuf = BufferUtils.createFloatBuffer(size);
-        IntBuffer newIndexBuf = BufferUtils.createIntBuffer(size/3);
-        FloatBuffer newColorBuf=null;
-        FloatBuffer newTexCoordsBuf=null;
-        
-        if (hasColor)
-            newColorBuf = BufferUtils.createColorBuffer(size);
-
-        if (hasTexCoords)
-            newTexCoordsBuf = BufferUtils.createFloatBuffer(tcSize);
-//        ArrayList<FloatBuffer> newTexCoords = new ArrayList();
-//        for(int i=0; i<texCoords.size(); i++)
-//            newTexCoords.add(BufferUtils.createFloatBuffer(size));
+    /**
+     * Combine the meshes in a batch into a single TriMesh.  The buffers are
+     * allocated at their final size and filled straight from the source
+     * buffers.  This does not touch the scene graph, so batches can be
+     * combined in parallel.  The model bound is left for the caller to
+     * update.
+     */
+    private TriMesh combineMeshes(Batch batch) {
+        VertexFormat format = batch.key.format;
+        TriMesh firstMeshT = batch.meshes.get(0).getTarget();
+        TriMesh firstMesh = batch.meshes.get(0);
+
+        int vertexCount = batch.vertexCount;
+        FloatBuffer newVertexBuf = BufferUtils.createVector3Buffer(vertexCount);
+        FloatBuffer newNormalsBuf = format.hasNormals ? BufferUtils.createVector3Buffer(vertexCount) : null;
+        FloatBuffer newColorBuf = format.hasColor ? BufferUtils.createColorBuffer(vertexCount) : null;
+        FloatBuffer newTangentBuf = format.hasTangent ? BufferUtils.createVector3Buffer(vertexCount) : null;
+        FloatBuffer newBinormalBuf = format.hasBinormal ? BufferUtils.createVector3Buffer(vertexCount) : null;
+        FloatBuffer newFogBuf = format.hasFog ? BufferUtils.createFloatBuffer(vertexCount) : null;
+        FloatBuffer[] newTexCoordsBuf = new FloatBuffer[format.texCoordSizes.length];
+        for(int unit=0; unit<newTexCoordsBuf.length; unit++) {
+            if (format.texCoordSizes[unit] > 0)
+                newTexCoordsBuf[unit] = BufferUtils.createFloatBuffer(vertexCount*format.texCoordSizes[unit]);
+        }
+        IntBuffer newIndexBuf = BufferUtils.createIntBuffer(batch.indexCount);
 
         Vector3f v3f = new Vector3f();  // tmp variable
-        TransformMatrix trans;
 
         int offset = 0;
-        for(int i=0; i<vertices.size(); i++) {
-            trans = transform.get(i);
-            int length = vertices.get(i).length;
-            float[] verts = vertices.get(i);
-            for(int vi = 0; vi<verts.length; vi+=3) {
-                v3f.set(verts[vi], verts[vi+1], verts[vi+2]);
-
-                trans.multPoint(v3f);       // Transform vertex by world coords of SharedMesh.
-
-                verts[vi] = v3f.x;
-                verts[vi+1] = v3f.y;
-                verts[vi+2] = v3f.z;
+        for(SharedMesh mesh : batch.meshes) {
+            TriMesh target = mesh.getTarget();
+            int count = target.getVertexCount();
+            TransformMatrix trans = new TransformMatrix(mesh.getWorldRotation(), mesh.getWorldTranslation());
+            trans.setScale(mesh.getWorldScale());
+
+            // Transform vertex by world coords of SharedMesh.
+            FloatBuffer verts = target.getVertexBuffer();
+            for(int vi=0; vi<count*3; vi+=3) {
+                v3f.set(verts.get(vi), verts.get(vi+1), verts.get(vi+2));
+                trans.multPoint(v3f);
+                newVertexBuf.put(v3f.x).put(v3f.y).put(v3f.z);
             }
-            newVertexBuf.put(verts, 0, length);
-
-            float[] norm = normals.get(i);
-            for(int ni=0; ni<verts.length; ni+=3) {
-                v3f.set(norm[ni], norm[ni+1], norm[ni+2]);
-                trans.multNormal(v3f);
-                v3f.normalizeLocal();
-                norm[ni] = v3f.x;
-                norm[ni+1] = v3f.y;
-                norm[ni+2] = v3f.z;
-            }
-            newNormalsBuf.put(norm, 0, length);
 
-            int[] newInd = indicies.get(i);
-            for(int ii=0; ii<newInd.length; ii++) {
-                newInd[ii] += offset;
-            }
-            newIndexBuf.put(newInd, 0, newInd.length);
-
-            if (hasColor) {
-                float[] clrs = colors.get(i);
-                newColorBuf.put(clrs, 0, length);
+            if (format.hasNormals)
+                putDirections(target.getNormalBuffer(), count, trans, v3f, newNormalsBuf);
+            if (format.hasTangent)
+                putDirections(target.getTangentBuffer(), count, trans, v3f, newTangentBuf);
+            if (format.hasBinormal)
+                putDirections(target.getBinormalBuffer(), count, trans, v3f, newBinormalBuf);
+            if (format.hasColor)
+                putFloats(target.getColorBuffer(), count*4, newColorBuf);
+            if (format.hasFog)
+                putFloats(target.getFogBuffer(), count, newFogBuf);
+
+            for(int unit=0; unit<newTexCoordsBuf.length; unit++) {
+                if (newTexCoordsBuf[unit] != null) {
+                    putFloats(target.getTextureCoords(unit).coords, count*format.texCoordSizes[unit], 
+                              newTexCoordsBuf[unit]);
+                }
             }
 
-//            for(int unit=0; unit<texUnitCount; unit++) {
-//                ArrayList<float[]> tcList = texCoords.get(unit);
-//                for(int j=0; j<tcList.size(); j++) {
-//                    float[] tc = tcList.get(j);
-//                    newTexCoords.get(j).put(tc, 0, tc.length);
-//                }
-//            }
-
-            if (hasTexCoords) {
-                float[] tcf = texCoords.get(i);
-                newTexCoordsBuf.put(tcf, 0, tcf.length);
+            IntBuffer ind = target.getIndexBuffer();
+            int indexCount = ind.limit();
+            for(int ii=0; ii<indexCount; ii++) {
+                newIndexBuf.put(ind.get(ii) + offset);
             }
 
-            offset+=verts.length/3;
+            offset += count;
         }
 
         TriMesh newMesh = new TriMesh();
@@ -382,7 +539,10 @@ import java.util.logging.Logger;
         newMesh.setIsCollidable(firstMesh.isCollidable());
         newMesh.setCastsShadows(firstMesh.isCastsShadows());
         newMesh.setTextureCombineMode(firstMesh.getTextureCombineMode());
-        newMesh.setModelBound(firstMesh.getModelBound());       
+        if (firstMesh.getModelBound() != null)
+            newMesh.setModelBound(firstMesh.getModelBound().clone(null));
+        else
+            newMesh.setModelBound(new BoundingBox());
         newMesh.setRenderQueueMode(firstMesh.getRenderQueueMode());
         newMesh.setGlowColor(firstMesh.getGlowColor());
         newMesh.setGlowEnabled(firstMesh.isGlowEnabled());
@@ -391,28 +551,145 @@ import java.util.logging.Logger;
         newMesh.setLightCombineMode(firstMesh.getLightCombineMode());
 
         newMesh.setVertexBuffer(newVertexBuf);
-        newMesh.setNormalBuffer(newNormalsBuf);
         newMesh.setIndexBuffer(newIndexBuf);
 
-        if (hasColor)
+        if (format.hasNormals)
+            newMesh.setNormalBuffer(newNormalsBuf);
+        if (format.hasColor)
             newMesh.setColorBuffer(newColorBuf);
+        if (format.hasTangent)
+            newMesh.setTangentBuffer(newTangentBuf);
+        if (format.hasBinormal)
+            newMesh.setBinormalBuffer(newBinormalBuf);
+        if (format.hasFog)
+            newMesh.setFogCoordBuffer(newFogBuf);
+
+        for(int unit=0; unit<newTexCoordsBuf.length; unit++) {
+            if (newTexCoordsBuf[unit] != null) {
+                TexCoords tc = new TexCoords(newTexCoordsBuf[unit], firstMeshT.getTextureCoords(unit).perVert);
+                newMesh.setTextureCoords(tc, unit);
+            }
+        }
 
-        if (hasTexCoords) {
-            TexCoords tc = new TexCoords(newTexCoordsBuf, firstMeshT.getTextureCoords(0).perVert);
-            newMesh.setTextureCoords(tc, 0);
-//        for(int j=0; j<newTexCoords.size(); j++) {
-//            TexCoords tc = new TexCoords(newTexCoords.get(j));
-//            newMesh.setTextureCoords(tc, j);
-//        }
+        batch.key.stateSet.applyStates(newMesh);
+
+        return newMesh;
+    }
+
+    /**
+     * Rotate the directions in a buffer and add them to another
+     */
+    private void putDirections(FloatBuffer src, int count, TransformMatrix trans, Vector3f v3f, 
+                               FloatBuffer dst) {
+        for(int i=0; i<count*3; i+=3) {
+            v3f.set(src.get(i), src.get(i+1), src.get(i+2));
+            trans.multNormal(v3f);
+            v3f.normalizeLocal();
+            dst.put(v3f.x).put(v3f.y).put(v3f.z);
+        }
+    }
+
+    /**
+     * Copy floats from one buffer to another
+     */
+    private void putFloats(FloatBuffer src, int length, FloatBuffer dst) {
+        FloatBuffer dup = src.duplicate();
+        dup.clear();
+        dup.limit(length);
+        dst.put(dup);
+    }
+
+    /**
+     * The vertex data a mesh has.  Only meshes with the same format are
+     * combined.
+     */
+    static class VertexFormat {
+        boolean hasNormals;
+        boolean hasColor;
+        boolean hasTangent;
+        boolean hasBinormal;
+        boolean hasFog;
+        int[] texCoordSizes;
+
+        VertexFormat(TriMesh mesh, boolean hasTexCoords) {
+            hasNormals = (mesh.getNormalBuffer()!=null);
+            hasColor = (mesh.getColorBuffer()!=null);
+            hasTangent = (mesh.getTangentBuffer()!=null);
+            hasBinormal = (mesh.getBinormalBuffer()!=null);
+            hasFog = (mesh.getFogBuffer()!=null);
+
+            int units = hasTexCoords ? mesh.getNumberOfUnits() : 0;
+            texCoordSizes = new int[units];
+            for(int unit=0; unit<units; unit++) {
+                TexCoords tc = mesh.getTextureCoords(unit);
+                texCoordSizes[unit] = (tc != null && tc.coords != null) ? tc.perVert : 0;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VertexFormat))
+                return false;
+            VertexFormat f = (VertexFormat)o;
+            return hasNormals==f.hasNormals && hasColor==f.hasColor && hasTangent==f.hasTangent &&
+                   hasBinormal==f.hasBinormal && hasFog==f.hasFog && 
+                   Arrays.equals(texCoordSizes, f.texCoordSizes);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (hasNormals ? 1 : 0) | (hasColor ? 2 : 0) | (hasTangent ? 4 : 0) |
+                       (hasBinormal ? 8 : 0) | (hasFog ? 16 : 0);
+            return 37 * hash + Arrays.hashCode(texCoordSizes);
         }
+    }
 
-        stateSet.applyStates(newMesh);
+    /**
+     * The render states and vertex format shared by a group of meshes
+     */
+    class BatchKey {
+        RenderStateSet stateSet;
+        VertexFormat format;
+
+        BatchKey(RenderStateSet stateSet, VertexFormat format) {
+            this.stateSet = stateSet;
+            this.format = format;
+        }
 
-        newMesh.updateModelBound();
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BatchKey))
+                return false;
+            BatchKey k = (BatchKey)o;
+            return k.stateSet.equals(stateSet) && k.format.equals(format);
+        }
 
-        root.attachChild(newMesh);
+        @Override
+        public int hashCode() {
+            return 37 * stateSet.hashCode() + format.hashCode();
+        }
     }
 
+    /**
+     * The meshes which are combined into one TriMesh
+     */
+    class Batch {
+        BatchKey key;
+        ArrayList<SharedMesh> meshes = new ArrayList<SharedMesh>();
+        int vertexCount = 0;
+        int indexCount = 0;
+        TriMesh result = null;
+
+        Batch(BatchKey key) {
+            this.key = key;
+        }
+
+        void add(SharedMesh mesh) {
+            meshes.add(mesh);
+            vertexCount += mesh.getTarget().getVertexCount();
+            indexCount += mesh.getTarget().getIndexBuffer().limit();
+        }
+    }
     class RenderStateSet {
         private HashSet<RenderState> stateSet = new HashSet();
 
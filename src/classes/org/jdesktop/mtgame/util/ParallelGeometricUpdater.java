@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2009, Sun Microsystems, Inc. All rights reserved.
+ *
+ *    Redistribution and use in source and binary forms, with or without
+ *    modification, are permitted provided that the following conditions
+ *    are met:
+ *
+ *  . Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  . Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  . Neither the name of Sun Microsystems, Inc., nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jdesktop.mtgame.util;
+
+import com.jme.scene.Node;
+import com.jme.scene.Spatial;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class does the same work as updateGeometricState on a large scene
+ * graph, but spreads the world transform updates across a pool of threads.
+ * 
+ * The top of the graph is expanded breadth first on the calling thread until
+ * there are enough independent subtrees, which are then updated in parallel.
+ * The world bounds are merged bottom up on the calling thread afterwards,
+ * since the jME bounding volumes use shared scratch space. The geometric
+ * update listeners are also called from the calling thread, once each
+ * spatial's world bound is final, so listeners see the same thing they
+ * would see from a serial update.
+ * 
+ * Controllers are run in parallel, so they must only change the spatial
+ * they are attached to, or its children. Spatials which override
+ * updateWorldData or updateGeometricState are updated serially, as a whole.
+ * 
+ * @author Doug Twilleager
+ */
+public class ParallelGeometricUpdater {
+    /**
+     * The most nodes expanded on the calling thread
+     */
+    private static final int MAX_EXPANDED = 4096;
+
+    /**
+     * The number of threads to use
+     */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of subtrees needed before the update is split
+     */
+    private int threshold = 64;
+
+    /**
+     * The number of subtrees to hand each thread
+     */
+    private int subtreesPerThread = 8;
+
+    /**
+     * The thread pool, created on first use
+     */
+    private ExecutorService executor = null;
+
+    /**
+     * Whether each class of spatial can be updated in pieces
+     */
+    private static final ConcurrentHashMap<Class, Boolean> splittable =
+            new ConcurrentHashMap<Class, Boolean>();
+
+    /**
+     * Scratch lists, used on the calling thread
+     */
+    private final ArrayDeque<Spatial> pending = new ArrayDeque<Spatial>();
+    private final ArrayList<Spatial> expanded = new ArrayList<Spatial>();
+    private final ArrayList<Spatial> subtrees = new ArrayList<Spatial>();
+
+    /**
+     * Statistics from the last update
+     */
+    private int lastSubtrees = 0;
+    private boolean lastParallel = false;
+
+    /**
+     * The default constructor
+     */
+    public ParallelGeometricUpdater() {
+    }
+
+    /**
+     * Set the number of threads to use. One thread updates serially.
+     */
+    public synchronized void setThreadCount(int count) {
+        threadCount = Math.max(1, count);
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Get the number of threads to use
+     */
+    public synchronized int getThreadCount() {
+        return (threadCount);
+    }
+
+    /**
+     * Set the number of independent subtrees a graph needs before the
+     * update is split across threads
+     */
+    public void setThreshold(int count) {
+        threshold = Math.max(2, count);
+    }
+
+    /**
+     * Get the number of independent subtrees needed to split an update
+     */
+    public int getThreshold() {
+        return (threshold);
+    }
+
+    /**
+     * Get the number of subtrees in the last update
+     */
+    public int getLastSubtreeCount() {
+        return (lastSubtrees);
+    }
+
+    /**
+     * Return whether the last update was split across threads
+     */
+    public boolean wasLastUpdateParallel() {
+        return (lastParallel);
+    }
+
+    /**
+     * Stop the threads
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Update the geometric state of a graph. This has the same result as
+     * calling updateGeometricState on the root, and must be called from the
+     * thread that would have made that call.
+     */
+    public void updateGeometricState(Spatial root, float time, boolean initiator) {
+        lastParallel = false;
+        lastSubtrees = 0;
+        if (getThreadCount() <= 1 || !(root instanceof Node) ||
+            !isSplittable(root)) {
+            root.updateGeometricState(time, initiator);
+            return;
+        }
+        if ((root.getLocks() & Spatial.LOCKED_BRANCH) != 0) {
+            return;
+        }
+
+        // Expand the top of the graph, until there is enough to split
+        int target = threshold * subtreesPerThread;
+        pending.clear();
+        expanded.clear();
+        subtrees.clear();
+        pending.add(root);
+        while (!pending.isEmpty() && pending.size() < target &&
+               expanded.size() < MAX_EXPANDED) {
+            Spatial s = pending.poll();
+            if (!(s instanceof Node) || !isSplittable(s)) {
+                subtrees.add(s);
+                continue;
+            }
+            if ((s.getLocks() & Spatial.LOCKED_BRANCH) != 0) {
+                continue;
+            }
+            s.updateLocalWorldData(time);
+            expanded.add(s);
+            List<Spatial> children = ((Node) s).getChildren();
+            if (children != null) {
+                for (int i = 0; i < children.size(); i++) {
+                    Spatial child = children.get(i);
+                    if (child != null) {
+                        pending.add(child);
+                    }
+                }
+            }
+        }
+        subtrees.addAll(pending);
+        pending.clear();
+        lastSubtrees = subtrees.size();
+
+        // Update the world transforms of the subtrees
+        if (subtrees.size() < threshold) {
+            for (int i = 0; i < subtrees.size(); i++) {
+                updateTransforms(subtrees.get(i), time);
+            }
+        } else {
+            updateTransformsParallel(time);
+            lastParallel = true;
+        }
+
+        // Merge the bounds bottom up, and tell the listeners
+        for (int i = 0; i < subtrees.size(); i++) {
+            updateBounds(subtrees.get(i), time);
+        }
+        for (int i = expanded.size() - 1; i >= 0; i--) {
+            finish(expanded.get(i));
+        }
+        if (initiator && (root.getLocks() & Spatial.LOCKED_BOUNDS) == 0) {
+            root.propagateBoundToRoot();
+        }
+        expanded.clear();
+        subtrees.clear();
+    }
+
+    /**
+     * Split the subtrees into contiguous ranges, one task each
+     */
+    private void updateTransformsParallel(final float time) {
+        ExecutorService es = getExecutor();
+        int taskCount = Math.min(subtrees.size(),
+                getThreadCount() * subtreesPerThread);
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(taskCount);
+        for (int t = 0; t < taskCount; t++) {
+            final int start = t * subtrees.size() / taskCount;
+            final int end = (t + 1) * subtrees.size() / taskCount;
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int i = start; i < end; i++) {
+                        updateTransforms(subtrees.get(i), time);
+                    }
+                    return (null);
+                }
+            });
+        }
+
+        try {
+            List<Future<Void>> results = es.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                results.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted updating " + subtrees.size()
+                    + " subtrees", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Update the world transforms of a subtree, parents first. Spatials which
+     * can't be split are left for updateBounds.
+     */
+    private void updateTransforms(Spatial s, float time) {
+        if (!isSplittable(s) || (s.getLocks() & Spatial.LOCKED_BRANCH) != 0) {
+            return;
+        }
+        s.updateLocalWorldData(time);
+        if (s instanceof Node) {
+            List<Spatial> children = ((Node) s).getChildren();
+            if (children != null) {
+                for (int i = 0; i < children.size(); i++) {
+                    Spatial child = children.get(i);
+                    if (child != null) {
+                        updateTransforms(child, time);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the world bounds of a subtree, children first. This is what
+     * updateGeometricState does after the world transforms.
+     */
+    private void updateBounds(Spatial s, float time) {
+        if (!isSplittable(s)) {
+            s.updateGeometricState(time, false);
+            return;
+        }
+        if ((s.getLocks() & Spatial.LOCKED_BRANCH) != 0) {
+            return;
+        }
+        if (s instanceof Node) {
+            List<Spatial> children = ((Node) s).getChildren();
+            if (children != null) {
+                for (int i = 0; i < children.size(); i++) {
+                    Spatial child = children.get(i);
+                    if (child != null) {
+                        updateBounds(child, time);
+                    }
+                }
+            }
+        }
+        finish(s);
+    }
+
+    /**
+     * Update the world bound of a spatial whose children are done
+     */
+    private void finish(Spatial s) {
+        if ((s.getLocks() & Spatial.LOCKED_BOUNDS) == 0) {
+            s.updateWorldBound();
+        }
+        s.notifyGeometricUpdateListeners();
+    }
+
+    /**
+     * Return whether a spatial's update can be done in pieces, which is only
+     * true if its class uses the standard update.
+     */
+    static boolean isSplittable(Spatial s) {
+        Class c = s.getClass();
+        Boolean result = splittable.get(c);
+        if (result == null) {
+            result = Boolean.FALSE;
+            try {
+                Method data = c.getMethod("updateWorldData", float.class);
+                Method state = c.getMethod("updateGeometricState", float.class,
+                        boolean.class);
+                result = Boolean.valueOf(isStandard(data.getDeclaringClass()) &&
+                        isStandard(state.getDeclaringClass()));
+            } catch (NoSuchMethodException e) {
+                // Leave it serial
+            }
+            splittable.put(c, result);
+        }
+        return (result.booleanValue());
+    }
+
+    private static boolean isStandard(Class c) {
+        return (c == Spatial.class || c == Node.class);
+    }
+
+    /**
+     * Get the thread pool
+     */
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MTGame Geometric Update");
+                    t.setDaemon(true);
+                    return (t);
+                }
+            });
+        }
+        return (executor);
+    }
+}
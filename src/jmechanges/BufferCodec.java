@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2003-2009 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jme.util.geom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <code>BufferCodec</code> writes and reads whole nio buffers in a compact
+ * binary form. Each buffer is a fixed size header followed by its contents,
+ * which are moved with one bulk copy and one channel transfer rather than an
+ * element at a time. The contents are always little endian, and may be
+ * deflate compressed.
+ * 
+ * The header is the magic number, the version, the element type, the flags,
+ * a reserved byte, the element count and the length of the contents in
+ * bytes. A null buffer is written as a header with no contents.
+ * 
+ * @author Doug Twilleager
+ */
+public final class BufferCodec {
+
+    public static final int MAGIC = 0x4D544246; // "MTBF"
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+
+    public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_SHORT = 2;
+    private static final int TYPE_INT = 3;
+    private static final int TYPE_FLOAT = 4;
+
+    private static final int FLAG_COMPRESSED = 1;
+
+    private BufferCodec() {
+    }
+
+    /**
+     * Write the contents of a buffer, from 0 to its limit.
+     * 
+     * @param buffer
+     *            a ByteBuffer, ShortBuffer, IntBuffer or FloatBuffer, or null
+     * @param channel
+     *            where to write it
+     * @param compress
+     *            true to deflate the contents
+     */
+    public static void write(Buffer buffer, WritableByteChannel channel,
+            boolean compress) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+        if (buffer == null) {
+            putHeader(header, TYPE_NULL, 0, 0, 0);
+            writeFully(channel, header);
+            return;
+        }
+
+        int type = getType(buffer);
+        int count = buffer.limit();
+        int length = count * getElementSize(type);
+        ByteBuffer data = getBytes(buffer, type, count, compress);
+        int flags = 0;
+
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(data.array(), data.arrayOffset(), length);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, length + length / 1000 + 64)];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    byte[] grown = new byte[out.length * 2];
+                    System.arraycopy(out, 0, grown, 0, size);
+                    out = grown;
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            deflater.end();
+            data = ByteBuffer.wrap(out, 0, size);
+            length = size;
+            flags |= FLAG_COMPRESSED;
+        }
+
+        putHeader(header, type, flags, count, length);
+        writeFully(channel, header);
+        writeFully(channel, data);
+    }
+
+    /**
+     * Write the contents of a buffer to a stream
+     */
+    public static void write(Buffer buffer, OutputStream out, boolean compress)
+            throws IOException {
+        write(buffer, Channels.newChannel(out), compress);
+    }
+
+    /**
+     * Read a buffer written by {@link #write(Buffer, WritableByteChannel, boolean)}.
+     * The buffer is direct, in native order, and positioned at 0.
+     * 
+     * @return the buffer, or null if a null buffer was written
+     */
+    public static Buffer read(ReadableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+        readFully(channel, header);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not an encoded buffer");
+        }
+        int version = header.get() & 0xff;
+        if (version > VERSION) {
+            throw new IOException("Unsupported buffer version " + version);
+        }
+        int type = header.get() & 0xff;
+        int flags = header.get() & 0xff;
+        header.get();
+        int count = header.getInt();
+        int length = header.getInt();
+        if (type == TYPE_NULL) {
+            return null;
+        }
+
+        int size = count * getElementSize(type);
+        ByteBuffer data;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            ByteBuffer packed = ByteBuffer.allocate(length);
+            readFully(channel, packed);
+            byte[] raw = new byte[size];
+            Inflater inflater = new Inflater();
+            inflater.setInput(packed.array(), 0, length);
+            try {
+                int done = 0;
+                while (done < size) {
+                    int n = inflater.inflate(raw, done, size - done);
+                    if (n == 0) {
+                        // Nothing more will come out, so the data is bad
+                        if (inflater.needsDictionary()) {
+                            throw new IOException(
+                                    "Compressed buffer is corrupt: it needs a dictionary");
+                        }
+                        throw new IOException("Compressed buffer is truncated");
+                    }
+                    done += n;
+                }
+            } catch (DataFormatException e) {
+                IOException ioe = new IOException("Compressed buffer is corrupt");
+                ioe.initCause(e);
+                throw ioe;
+            } finally {
+                inflater.end();
+            }
+            data = ByteBuffer.wrap(raw);
+        } else {
+            if (length != size) {
+                throw new IOException("Buffer length " + length
+                        + " does not match " + count + " elements");
+            }
+            data = BufferUtils.createByteBuffer(size);
+            readFully(channel, data);
+        }
+        data.clear();
+        data.order(ORDER);
+
+        switch (type) {
+        case TYPE_BYTE:
+            if (data.isDirect()) {
+                return data;
+            }
+            return BufferUtils.createByteBuffer(size).put(data).rewind();
+        case TYPE_SHORT: {
+            if (data.isDirect() && ORDER == ByteOrder.nativeOrder()) {
+                return data.asShortBuffer();
+            }
+            ShortBuffer result = BufferUtils.createShortBuffer(count);
+            result.put(data.asShortBuffer()).rewind();
+            return result;
+        }
+        case TYPE_INT: {
+            if (data.isDirect() && ORDER == ByteOrder.nativeOrder()) {
+                return data.asIntBuffer();
+            }
+            IntBuffer result = BufferUtils.createIntBuffer(count);
+            result.put(data.asIntBuffer()).rewind();
+            return result;
+        }
+        default: {
+            if (data.isDirect() && ORDER == ByteOrder.nativeOrder()) {
+                return data.asFloatBuffer();
+            }
+            FloatBuffer result = BufferUtils.createFloatBuffer(count);
+            result.put(data.asFloatBuffer()).rewind();
+            return result;
+        }
+        }
+    }
+
+    /**
+     * Read a buffer from a stream
+     */
+    public static Buffer read(InputStream in) throws IOException {
+        return read(Channels.newChannel(in));
+    }
+
+    public static FloatBuffer readFloatBuffer(ReadableByteChannel channel)
+            throws IOException {
+        return (FloatBuffer) checkType(read(channel), FloatBuffer.class);
+    }
+
+    public static IntBuffer readIntBuffer(ReadableByteChannel channel)
+            throws IOException {
+        return (IntBuffer) checkType(read(channel), IntBuffer.class);
+    }
+
+    public static ByteBuffer readByteBuffer(ReadableByteChannel channel)
+            throws IOException {
+        return (ByteBuffer) checkType(read(channel), ByteBuffer.class);
+    }
+
+    private static Buffer checkType(Buffer b, Class<? extends Buffer> c)
+            throws IOException {
+        if (b != null && !c.isInstance(b)) {
+            throw new IOException("Expected a " + c.getSimpleName()
+                    + " but read a " + b.getClass().getSimpleName());
+        }
+        return b;
+    }
+
+    private static void putHeader(ByteBuffer header, int type, int flags,
+            int count, int length) {
+        header.clear();
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) type);
+        header.put((byte) flags);
+        header.put((byte) 0);
+        header.putInt(count);
+        header.putInt(length);
+        header.flip();
+    }
+
+    /**
+     * Get the contents of a buffer as little endian bytes. Byte buffers are
+     * used as they are, anything else takes one bulk copy into a heap
+     * buffer, since a direct one would be thrown away after the write.
+     * Compressed contents need an array, so direct byte buffers are copied
+     * to the heap for them.
+     */
+    private static ByteBuffer getBytes(Buffer buffer, int type, int count,
+            boolean needArray) {
+        if (type == TYPE_BYTE) {
+            ByteBuffer src = ((ByteBuffer) buffer).duplicate();
+            src.clear().limit(count);
+            if (!needArray || src.hasArray()) {
+                return needArray ? src.slice() : src;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(count);
+            copy.put(src).flip();
+            return copy;
+        }
+
+        int size = count * getElementSize(type);
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        bytes.order(ORDER);
+        switch (type) {
+        case TYPE_SHORT: {
+            ShortBuffer src = ((ShortBuffer) buffer).duplicate();
+            src.clear().limit(count);
+            bytes.asShortBuffer().put(src);
+            break;
+        }
+        case TYPE_INT: {
+            IntBuffer src = ((IntBuffer) buffer).duplicate();
+            src.clear().limit(count);
+            bytes.asIntBuffer().put(src);
+            break;
+        }
+        default: {
+            FloatBuffer src = ((FloatBuffer) buffer).duplicate();
+            src.clear().limit(count);
+            bytes.asFloatBuffer().put(src);
+            break;
+        }
+        }
+        return bytes;
+    }
+
+    private static int getType(Buffer buffer) {
+        if (buffer instanceof FloatBuffer) {
+            return TYPE_FLOAT;
+        } else if (buffer instanceof IntBuffer) {
+            return TYPE_INT;
+        } else if (buffer instanceof ShortBuffer) {
+            return TYPE_SHORT;
+        } else if (buffer instanceof ByteBuffer) {
+            return TYPE_BYTE;
+        }
+        throw new IllegalArgumentException("Unsupported buffer type: "
+                + buffer.getClass().getName());
+    }
+
+    private static int getElementSize(int type) {
+        switch (type) {
+        case TYPE_BYTE:
+            return 1;
+        case TYPE_SHORT:
+            return 2;
+        case TYPE_NULL:
+            return 0;
+        default:
+            return 4;
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer b)
+            throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer b)
+            throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) {
+                throw new EOFException("Unexpected end of buffer data");
+            }
+        }
+    }
+}
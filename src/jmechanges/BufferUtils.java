@@ -48,9 +48,11 @@ import com.jme.math.Vector2f;
 import com.jme.math.Vector3f;
 import com.jme.renderer.ColorRGBA;
 import com.jme.util.Debug;
+import com.jme.util.geom.DirectBufferPool.Category;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
 
 /**
  * <code>BufferUtils</code> is a helper class for generating nio buffers from
@@ -670,7 +672,21 @@ public final class BufferUtils {
      * @return the new DoubleBuffer
      */
     public static DoubleBuffer createDoubleBuffer(int size) {
-        DoubleBuffer buf = ByteBuffer.allocateDirect(8 * size).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        return createDoubleBuffer(size, Category.OTHER);
+    }
+
+    /**
+     * Create a new DoubleBuffer of the specified size, accounted to the given
+     * category.
+     *
+     * @param size
+     *            required number of doubles to store.
+     * @param category
+     *            what the memory is used for
+     * @return the new DoubleBuffer
+     */
+    public static DoubleBuffer createDoubleBuffer(int size, Category category) {
+        DoubleBuffer buf = DirectBufferPool.allocate(8 * size, category).asDoubleBuffer();
         buf.clear();
         if (Debug.trackDirectMemory) {
             trackingHash.put(buf, ref);
@@ -731,7 +747,21 @@ public final class BufferUtils {
      * @return the new FloatBuffer
      */
     public static FloatBuffer createFloatBuffer(int size) {
-        FloatBuffer buf = ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        return createFloatBuffer(size, Category.VERTEX);
+    }
+
+    /**
+     * Create a new FloatBuffer of the specified size, accounted to the given
+     * category.
+     *
+     * @param size
+     *            required number of floats to store.
+     * @param category
+     *            what the memory is used for
+     * @return the new FloatBuffer
+     */
+    public static FloatBuffer createFloatBuffer(int size, Category category) {
+        FloatBuffer buf = DirectBufferPool.allocate(4 * size, category).asFloatBuffer();
         buf.clear();
         if (Debug.trackDirectMemory) {
             trackingHash.put(buf, ref);
@@ -752,11 +782,17 @@ public final class BufferUtils {
      *            the number of floats to copy
      */
     public static void copyInternal(FloatBuffer buf, int fromPos, int toPos, int length) {
-        float[] data = new float[length];
-        buf.position(fromPos);
-        buf.get(data);
-        buf.position(toPos);
-        buf.put(data);
+        // Copy in place, in the direction that is safe if the ranges overlap
+        if (toPos < fromPos) {
+            for (int i = 0; i < length; i++) {
+                buf.put(toPos + i, buf.get(fromPos + i));
+            }
+        } else if (toPos > fromPos) {
+            for (int i = length - 1; i >= 0; i--) {
+                buf.put(toPos + i, buf.get(fromPos + i));
+            }
+        }
+        buf.position(toPos + length);
     }
 
     /**
@@ -790,7 +826,21 @@ public final class BufferUtils {
      * @return the new IntBuffer
      */
     public static IntBuffer createIntBuffer(int size) {
-        IntBuffer buf = ByteBuffer.allocateDirect(4 * size).order(ByteOrder.nativeOrder()).asIntBuffer();
+        return createIntBuffer(size, Category.INDEX);
+    }
+
+    /**
+     * Create a new IntBuffer of the specified size, accounted to the given
+     * category.
+     *
+     * @param size
+     *            required number of ints to store.
+     * @param category
+     *            what the memory is used for
+     * @return the new IntBuffer
+     */
+    public static IntBuffer createIntBuffer(int size, Category category) {
+        IntBuffer buf = DirectBufferPool.allocate(4 * size, category).asIntBuffer();
         buf.clear();
         if (Debug.trackDirectMemory) {
             trackingHash.put(buf, ref);
@@ -850,7 +900,21 @@ public final class BufferUtils {
      * @return the new IntBuffer
      */
     public static ByteBuffer createByteBuffer(int size) {
-        ByteBuffer buf = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        return createByteBuffer(size, Category.OTHER);
+    }
+
+    /**
+     * Create a new ByteBuffer of the specified size, accounted to the given
+     * category.
+     *
+     * @param size
+     *            required number of bytes to store.
+     * @param category
+     *            what the memory is used for
+     * @return the new ByteBuffer
+     */
+    public static ByteBuffer createByteBuffer(int size, Category category) {
+        ByteBuffer buf = DirectBufferPool.allocate(size, category);
         buf.clear();
         if (Debug.trackDirectMemory) {
             trackingHash.put(buf, ref);
@@ -910,7 +974,21 @@ public final class BufferUtils {
      * @return the new ShortBuffer
      */
     public static ShortBuffer createShortBuffer(int size) {
-        ShortBuffer buf = ByteBuffer.allocateDirect(2 * size).order(ByteOrder.nativeOrder()).asShortBuffer();
+        return createShortBuffer(size, Category.INDEX);
+    }
+
+    /**
+     * Create a new ShortBuffer of the specified size, accounted to the given
+     * category.
+     *
+     * @param size
+     *            required number of shorts to store.
+     * @param category
+     *            what the memory is used for
+     * @return the new ShortBuffer
+     */
+    public static ShortBuffer createShortBuffer(int size, Category category) {
+        ShortBuffer buf = DirectBufferPool.allocate(2 * size, category).asShortBuffer();
         buf.clear();
         if (Debug.trackDirectMemory) {
             trackingHash.put(buf, ref);
@@ -1017,6 +1095,56 @@ public final class BufferUtils {
         return buf;
     }
 
+    //// -- POOLED BUFFERS -- ////
+
+    /**
+     * Acquire a FloatBuffer from the direct buffer pool. It must be handed
+     * back with {@link #releaseBuffer(Buffer)}.
+     *
+     * @param size
+     *            required number of floats to store.
+     * @param category
+     *            what the memory is used for
+     * @return the FloatBuffer, cleared
+     */
+    public static FloatBuffer acquireFloatBuffer(int size, Category category) {
+        return DirectBufferPool.acquireFloatBuffer(size, category);
+    }
+
+    /**
+     * Acquire an IntBuffer from the direct buffer pool. It must be handed
+     * back with {@link #releaseBuffer(Buffer)}.
+     */
+    public static IntBuffer acquireIntBuffer(int size, Category category) {
+        return DirectBufferPool.acquireIntBuffer(size, category);
+    }
+
+    /**
+     * Acquire a ShortBuffer from the direct buffer pool. It must be handed
+     * back with {@link #releaseBuffer(Buffer)}.
+     */
+    public static ShortBuffer acquireShortBuffer(int size, Category category) {
+        return DirectBufferPool.acquireShortBuffer(size, category);
+    }
+
+    /**
+     * Acquire a ByteBuffer from the direct buffer pool. It must be handed
+     * back with {@link #releaseBuffer(Buffer)}.
+     */
+    public static ByteBuffer acquireByteBuffer(int size, Category category) {
+        return DirectBufferPool.acquire(size, category);
+    }
+
+    /**
+     * Hand a buffer from one of the acquire methods back to the pool. The
+     * buffer must not be used afterwards.
+     *
+     * @return false if the buffer did not come from the pool
+     */
+    public static boolean releaseBuffer(Buffer buf) {
+        return DirectBufferPool.release(buf);
+    }
+
     /**
      * Creates a new ByteBuffer with the same contents as the given ByteBuffer.
      * The new ByteBuffer is seperate from the old one and changes are not
@@ -1078,36 +1206,43 @@ public final class BufferUtils {
         store.append("(b: ").append(bBufsM/1024).append("kb  f: ").append(fBufsM/1024)
                 .append("kb  i: ").append(iBufsM/1024).append("kb  s: ").append(sBufsM/1024)
                 .append("kb  d: ").append(dBufsM/1024).append("kb)").append("\n");
+        DirectBufferPool.printStats(store);
         if (printStout) {
             System.out.println(store.toString());
         }
     }
 
+    /**
+     * Marks a buffer written by {@link BufferCodec}. Older streams start with
+     * the element count instead, which is never negative.
+     */
+    private static final int CODEC_MARKER = -1;
+
+    /**
+     * Write a float buffer to an object stream with one bulk copy, see
+     * {@link BufferCodec}.
+     */
     public static void serializeFloatBuffer(FloatBuffer buffer, ObjectOutputStream output) throws IOException
     {
-        if (buffer == null)
-            output.writeInt(0);
-        else
-        {
-            int length = buffer.limit();
-            output.writeInt(length);
-            buffer.rewind();
-            for (int i = 0; i < length; ++i)
-                output.writeFloat(buffer.get());
-        }
+        output.writeInt(CODEC_MARKER);
+        BufferCodec.write(buffer, output, false);
     }
 
+    /**
+     * Read a float buffer written by serializeFloatBuffer. Streams written
+     * a float at a time by earlier versions are still read.
+     */
     public static FloatBuffer deserializeFloatBuffer(ObjectInputStream input) throws IOException
     {
         int length = input.readInt();
+        if (length == CODEC_MARKER)
+            return BufferCodec.readFloatBuffer(Channels.newChannel(input));
         if (length == 0)
             return null;
-        else
-        {          
-	    FloatBuffer result = BufferUtils.createFloatBuffer(length);
-            for (int i = 0; i < length; ++i)
-                result.put(input.readFloat());
-            return result;
-        }
+
+        FloatBuffer result = BufferUtils.createFloatBuffer(length);
+        for (int i = 0; i < length; ++i)
+            result.put(input.readFloat());
+        return result;
     }
 }
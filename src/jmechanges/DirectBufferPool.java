@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2003-2009 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jme.util.geom;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.jme.util.stat.StatCollector;
+import com.jme.util.stat.StatType;
+
+/**
+ * <code>DirectBufferPool</code> hands out the direct memory behind
+ * <code>BufferUtils</code>, and keeps per category accounting of it.
+ * 
+ * Buffers from {@link #allocate(int, Category)} are freed by the garbage
+ * collector as usual. Their memory is counted as live until the collector
+ * clears them, which costs one weak reference per buffer.
+ * 
+ * Buffers from {@link #acquire(int, Category)} come from power of two size
+ * classes and must be handed back with {@link #release(Buffer)}, which returns
+ * the memory to its class for the next request. Buffers which churn, like
+ * avatar geometry or capture frames, reuse memory instead of fragmenting the
+ * direct heap. A buffer which is never released stays counted as live in its
+ * category, so leaks show up in the statistics.
+ * 
+ * When direct memory runs out, the idle pool is dropped and the allocation
+ * retried once. If it still fails, the error reports what each category is
+ * holding.
+ * 
+ * @author Doug Twilleager
+ */
+public final class DirectBufferPool {
+
+    /**
+     * What the memory is used for
+     */
+    public enum Category {
+        VERTEX, INDEX, TEXTURE, CAPTURE, OTHER
+    }
+
+    private static final int CATEGORIES = Category.values().length;
+
+    /**
+     * The size classes are powers of two from 256 bytes to 4 megabytes.
+     * Larger requests are allocated exactly, and are not pooled.
+     */
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 22;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /**
+     * The statistics published to the StatCollector, in kilobytes
+     */
+    public static final StatType[] STAT_LIVE_KB = new StatType[CATEGORIES];
+    public static final StatType STAT_POOLED_KB = new StatType("_directPooledKB");
+    public static final StatType STAT_ALLOCATED_KB = new StatType("_directAllocatedKB");
+
+    static {
+        for (Category c : Category.values()) {
+            STAT_LIVE_KB[c.ordinal()] = new StatType("_direct"
+                    + c.name().charAt(0) + c.name().substring(1).toLowerCase()
+                    + "KB");
+        }
+    }
+
+    /**
+     * The idle buffers in each size class, and their total size
+     */
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<ByteBuffer>[] free = new ArrayDeque[CLASSES];
+    private static long pooledBytes = 0;
+    private static long maxPooledBytes = 64L * 1024 * 1024;
+
+    /**
+     * The acquired buffers which haven't been released
+     */
+    private static final Map<Buffer, Acquired> acquired = new IdentityHashMap<Buffer, Acquired>();
+
+    /**
+     * The allocated buffers which haven't been collected
+     */
+    private static final ReferenceQueue<Buffer> collected = new ReferenceQueue<Buffer>();
+    private static final Set<Allocation> allocations = Collections
+            .newSetFromMap(new ConcurrentHashMap<Allocation, Boolean>());
+
+    /**
+     * Per category accounting. Totals only ever grow, live memory goes down
+     * as buffers are released or collected.
+     */
+    private static final AtomicLongArray liveBytes = new AtomicLongArray(CATEGORIES);
+    private static final AtomicLongArray liveCount = new AtomicLongArray(CATEGORIES);
+    private static final AtomicLongArray peakBytes = new AtomicLongArray(CATEGORIES);
+    private static final AtomicLongArray totalBytes = new AtomicLongArray(CATEGORIES);
+
+    /**
+     * Pool statistics
+     */
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long allocatedSinceStats = 0;
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    private static class Acquired {
+        final ByteBuffer base;
+        final Category category;
+        final int bytes;
+
+        Acquired(ByteBuffer base, Category category, int bytes) {
+            this.base = base;
+            this.category = category;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Allocation extends WeakReference<Buffer> {
+        final Category category;
+        final int bytes;
+
+        Allocation(Buffer buffer, Category category, int bytes) {
+            super(buffer, collected);
+            this.category = category;
+            this.bytes = bytes;
+        }
+    }
+
+    private DirectBufferPool() {
+    }
+
+    /**
+     * Allocate a direct, native order buffer of exactly the given size. It is
+     * freed by the garbage collector.
+     */
+    public static ByteBuffer allocate(int bytes, Category category) {
+        drainCollected();
+        ByteBuffer buf = allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        allocations.add(new Allocation(buf, category, bytes));
+        addLive(category, bytes);
+        return buf;
+    }
+
+    /**
+     * Acquire a direct, native order buffer from the pool. It has a capacity
+     * of exactly the given size, and must be handed back with
+     * {@link #release(Buffer)}.
+     */
+    public static ByteBuffer acquire(int bytes, Category category) {
+        ByteBuffer base = take(bytes, category);
+        ByteBuffer buf = slice(base);
+        register(buf, base, category, bytes);
+        return buf;
+    }
+
+    /**
+     * Acquire a direct, native order FloatBuffer from the pool
+     */
+    public static FloatBuffer acquireFloatBuffer(int size, Category category) {
+        ByteBuffer base = take(4 * size, category);
+        FloatBuffer view = slice(base).asFloatBuffer();
+        register(view, base, category, 4 * size);
+        return view;
+    }
+
+    /**
+     * Acquire a direct, native order IntBuffer from the pool
+     */
+    public static IntBuffer acquireIntBuffer(int size, Category category) {
+        ByteBuffer base = take(4 * size, category);
+        IntBuffer view = slice(base).asIntBuffer();
+        register(view, base, category, 4 * size);
+        return view;
+    }
+
+    /**
+     * Acquire a direct, native order ShortBuffer from the pool
+     */
+    public static ShortBuffer acquireShortBuffer(int size, Category category) {
+        ByteBuffer base = take(2 * size, category);
+        ShortBuffer view = slice(base).asShortBuffer();
+        register(view, base, category, 2 * size);
+        return view;
+    }
+
+    /**
+     * Take a buffer from the size class for the given size, or allocate one
+     * if it is too large to pool. The limit is set to the size.
+     */
+    private static ByteBuffer take(int bytes, Category category) {
+        int sizeClass = getSizeClass(bytes);
+        if (sizeClass < 0) {
+            return (allocate(bytes, category));
+        }
+
+        ByteBuffer base = null;
+        synchronized (free) {
+            base = free[sizeClass].pollLast();
+            if (base != null) {
+                pooledBytes -= base.capacity();
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        if (base == null) {
+            base = allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        }
+        base.clear().limit(bytes);
+        addLive(category, bytes);
+        return (base);
+    }
+
+    private static ByteBuffer slice(ByteBuffer base) {
+        return (base.slice().order(ByteOrder.nativeOrder()));
+    }
+
+    /**
+     * Remember what an acquired buffer came from, under the buffer the
+     * caller will release
+     */
+    private static void register(Buffer view, ByteBuffer base,
+            Category category, int bytes) {
+        if (getSizeClass(bytes) < 0) {
+            // Allocated exactly, so the collector frees it
+            base = null;
+        }
+        synchronized (acquired) {
+            acquired.put(view, new Acquired(base, category, bytes));
+        }
+    }
+
+    /**
+     * Hand an acquired buffer back. The buffer must not be used afterwards,
+     * since its memory will be given to someone else.
+     * 
+     * @return false if the buffer was not acquired from the pool
+     */
+    public static boolean release(Buffer buffer) {
+        if (buffer == null) {
+            return false;
+        }
+        Acquired a = null;
+        synchronized (acquired) {
+            a = acquired.remove(buffer);
+        }
+        if (a == null) {
+            return false;
+        }
+        if (a.base == null) {
+            // Too big to pool, it is counted until it is collected
+            return true;
+        }
+
+        removeLive(a.category, a.bytes);
+        int capacity = a.base.capacity();
+        synchronized (free) {
+            if (pooledBytes + capacity <= maxPooledBytes) {
+                free[getSizeClass(capacity)].addLast(a.base);
+                pooledBytes += capacity;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop all the idle buffers, leaving them to the garbage collector
+     */
+    public static void trim() {
+        synchronized (free) {
+            for (int i = 0; i < CLASSES; i++) {
+                free[i].clear();
+            }
+            pooledBytes = 0;
+        }
+    }
+
+    /**
+     * Set the most memory the pool keeps idle, in bytes
+     */
+    public static void setMaxPooledBytes(long bytes) {
+        synchronized (free) {
+            maxPooledBytes = bytes;
+            for (int i = CLASSES - 1; i >= 0 && pooledBytes > maxPooledBytes; i--) {
+                while (!free[i].isEmpty() && pooledBytes > maxPooledBytes) {
+                    pooledBytes -= free[i].pollFirst().capacity();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the most memory the pool keeps idle, in bytes
+     */
+    public static long getMaxPooledBytes() {
+        synchronized (free) {
+            return (maxPooledBytes);
+        }
+    }
+
+    /**
+     * Get the memory held idle in the pool, in bytes
+     */
+    public static long getPooledBytes() {
+        synchronized (free) {
+            return (pooledBytes);
+        }
+    }
+
+    /**
+     * Get the direct memory in use by a category, in bytes. This does not
+     * include the idle pool.
+     */
+    public static long getLiveBytes(Category category) {
+        drainCollected();
+        return (liveBytes.get(category.ordinal()));
+    }
+
+    /**
+     * Get the number of buffers in use by a category
+     */
+    public static long getLiveCount(Category category) {
+        drainCollected();
+        return (liveCount.get(category.ordinal()));
+    }
+
+    /**
+     * Get the most direct memory a category has used at once, in bytes
+     */
+    public static long getPeakBytes(Category category) {
+        return (peakBytes.get(category.ordinal()));
+    }
+
+    /**
+     * Get the total memory ever allocated or acquired by a category, in bytes
+     */
+    public static long getTotalBytes(Category category) {
+        return (totalBytes.get(category.ordinal()));
+    }
+
+    /**
+     * Get the number of acquires satisfied from the pool
+     */
+    public static long getHits() {
+        synchronized (free) {
+            return (hits);
+        }
+    }
+
+    /**
+     * Get the number of acquires which needed new memory
+     */
+    public static long getMisses() {
+        synchronized (free) {
+            return (misses);
+        }
+    }
+
+    /**
+     * Add the current accounting to the StatCollector. This is meant to be
+     * called once a frame.
+     */
+    public static void publishStats() {
+        drainCollected();
+        for (int i = 0; i < CATEGORIES; i++) {
+            StatCollector.addStat(STAT_LIVE_KB[i], liveBytes.get(i) / 1024.0);
+        }
+        StatCollector.addStat(STAT_POOLED_KB, getPooledBytes() / 1024.0);
+        long allocated = 0;
+        synchronized (DirectBufferPool.class) {
+            allocated = allocatedSinceStats;
+            allocatedSinceStats = 0;
+        }
+        StatCollector.addStat(STAT_ALLOCATED_KB, allocated / 1024.0);
+    }
+
+    /**
+     * Append a per category report to the given builder
+     */
+    public static void printStats(StringBuilder store) {
+        drainCollected();
+        store.append("Direct memory by category:\n");
+        for (Category c : Category.values()) {
+            int i = c.ordinal();
+            store.append("  ").append(c).append(": ")
+                    .append(liveBytes.get(i) / 1024).append("kb in ")
+                    .append(liveCount.get(i)).append(" buffers, peak ")
+                    .append(peakBytes.get(i) / 1024).append("kb, total ")
+                    .append(totalBytes.get(i) / 1024).append("kb\n");
+        }
+        store.append("  pooled: ").append(getPooledBytes() / 1024)
+                .append("kb, hits ").append(getHits()).append(", misses ")
+                .append(getMisses()).append("\n");
+    }
+
+    /**
+     * The size class for a size, or -1 if it is too large to pool
+     */
+    private static int getSizeClass(int bytes) {
+        if (bytes > (1 << MAX_SHIFT)) {
+            return (-1);
+        }
+        if (bytes <= (1 << MIN_SHIFT)) {
+            return (0);
+        }
+        return (32 - Integer.numberOfLeadingZeros(bytes - 1) - MIN_SHIFT);
+    }
+
+    private static ByteBuffer allocateDirect(int bytes) {
+        synchronized (DirectBufferPool.class) {
+            allocatedSinceStats += bytes;
+        }
+        try {
+            return ByteBuffer.allocateDirect(bytes);
+        } catch (OutOfMemoryError e) {
+            trim();
+            drainCollected();
+            System.gc();
+        }
+        try {
+            return ByteBuffer.allocateDirect(bytes);
+        } catch (OutOfMemoryError e) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Direct buffer memory, allocating ").append(bytes)
+                    .append(" bytes\n");
+            printStats(sb);
+            OutOfMemoryError oome = new OutOfMemoryError(sb.toString());
+            oome.initCause(e);
+            throw oome;
+        }
+    }
+
+    private static void addLive(Category category, int bytes) {
+        int i = category.ordinal();
+        long live = liveBytes.addAndGet(i, bytes);
+        liveCount.incrementAndGet(i);
+        totalBytes.addAndGet(i, bytes);
+        long peak = peakBytes.get(i);
+        while (live > peak && !peakBytes.compareAndSet(i, peak, live)) {
+            peak = peakBytes.get(i);
+        }
+    }
+
+    private static void removeLive(Category category, int bytes) {
+        int i = category.ordinal();
+        liveBytes.addAndGet(i, -bytes);
+        liveCount.decrementAndGet(i);
+    }
+
+    /**
+     * Account for the allocated buffers the collector has cleared
+     */
+    private static void drainCollected() {
+        Allocation a = null;
+        while ((a = (Allocation) collected.poll()) != null) {
+            if (allocations.remove(a)) {
+                removeLive(a.category, a.bytes);
+            }
+        }
+    }
+}
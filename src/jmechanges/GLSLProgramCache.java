@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2003-2009 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jme.scene.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <code>GLSLProgramCache</code> shares linked GLSL programs between
+ * <code>GLSLShaderObjectsState</code>s which load the same vertex and fragment
+ * sources, so each distinct program is only compiled and linked once. Any
+ * defines are expected to be part of the sources, so they are part of the key.
+ * Programs are reference counted, and when the last state releases a program
+ * it is queued to be deleted the next time a state compiles or applies in the
+ * GL thread. It is safe to use from multiple threads.
+ * 
+ * @author Doug Twilleager
+ */
+public class GLSLProgramCache {
+
+    private static final GLSLProgramCache instance = new GLSLProgramCache();
+
+    /**
+     * The vertex and fragment sources of a program. The hash is computed
+     * once, since the sources can be large.
+     */
+    private static class ProgramKey {
+        final String vert;
+        final String frag;
+        final int hash;
+
+        ProgramKey(String vert, String frag) {
+            this.vert = vert;
+            this.frag = frag;
+            this.hash = (vert == null ? 0 : vert.hashCode()) * 31
+                    + (frag == null ? 0 : frag.hashCode());
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof ProgramKey)) {
+                return false;
+            }
+            ProgramKey k = (ProgramKey) o;
+            return hash == k.hash && equal(vert, k.vert) && equal(frag, k.frag);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * A program, and the GL objects it is made of. The ids are filled in by
+     * the state which compiles it.
+     */
+    public static class Program {
+        public int programID = -1;
+        public int vertexShaderID = -1;
+        public int fragmentShaderID = -1;
+
+        /**
+         * The state whose uniform values were last sent to this program.
+         * Uniform values belong to the program, so they have to be sent again
+         * when a different state is applied.
+         */
+        public GLSLShaderObjectsState owner = null;
+
+        private final ProgramKey key;
+        private int refCount = 1;
+        private boolean compiled = false;
+        private boolean compiling = false;
+
+        Program(ProgramKey key) {
+            this.key = key;
+        }
+
+        public boolean isCompiled() {
+            return compiled;
+        }
+    }
+
+    private final HashMap<ProgramKey, Program> programs = new HashMap<ProgramKey, Program>();
+
+    /**
+     * Programs which are no longer referenced, waiting to be deleted
+     */
+    private ArrayList<Program> released = new ArrayList<Program>();
+
+    private long hits = 0;
+    private long compiles = 0;
+    private long compileTime = 0;
+    private long deletes = 0;
+
+    /**
+     * Get the process wide program cache
+     */
+    public static GLSLProgramCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get a reference to the program for the given sources. If there is no
+     * such program yet, an uncompiled one is returned. A program which is
+     * not compiled yet is shared too, so before using it the caller is
+     * expected to call {@link #beginCompile(Program)}, and if that returns
+     * true compile it and call {@link #compiled(Program, long)}.
+     */
+    public synchronized Program acquire(String vert, String frag) {
+        ProgramKey key = new ProgramKey(vert, frag);
+        Program p = programs.get(key);
+        if (p != null) {
+            p.refCount++;
+            hits++;
+            return p;
+        }
+        p = new Program(key);
+        programs.put(key, p);
+        return p;
+    }
+
+    /**
+     * Claim the compile of a program. Returns true if the caller should
+     * compile it, and false if it is already compiled. If another thread is
+     * compiling it, this waits for that to finish first.
+     */
+    public synchronized boolean beginCompile(Program p) {
+        while (p.compiling) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (p.compiled || p.compiling) {
+            return false;
+        }
+        p.compiling = true;
+        return true;
+    }
+
+    /**
+     * Record that compiling a program failed. The program stays uncompiled,
+     * so the next state to use it tries again.
+     */
+    public synchronized void compileFailed(Program p) {
+        p.compiling = false;
+        notifyAll();
+    }
+
+    /**
+     * Create a program which is not shared, for sources that were not loaded
+     * as strings.
+     */
+    public Program create() {
+        return new Program(null);
+    }
+
+    /**
+     * Record that a program has been compiled and linked
+     * 
+     * @param p
+     *            the program
+     * @param nanos
+     *            the time it took, in nanoseconds
+     */
+    public synchronized void compiled(Program p, long nanos) {
+        p.compiled = true;
+        p.compiling = false;
+        compiles++;
+        compileTime += nanos;
+        notifyAll();
+    }
+
+    /**
+     * Release a reference to a program. When the last reference is released
+     * the program is queued for deletion.
+     */
+    public synchronized void release(Program p) {
+        if (p.refCount <= 0) {
+            return;
+        }
+        p.refCount--;
+        if (p.refCount == 0) {
+            if (p.key != null && programs.get(p.key) == p) {
+                programs.remove(p.key);
+            }
+            if (p.programID != -1) {
+                released.add(p);
+            }
+        }
+    }
+
+    /**
+     * Take the programs which are waiting to be deleted. This is called from
+     * the GL thread.
+     */
+    public synchronized List<Program> takeReleased() {
+        if (released.isEmpty()) {
+            return null;
+        }
+        List<Program> list = released;
+        released = new ArrayList<Program>();
+        deletes += list.size();
+        return list;
+    }
+
+    /**
+     * Get the number of references to the program for the given sources
+     */
+    public synchronized int getReferenceCount(String vert, String frag) {
+        Program p = programs.get(new ProgramKey(vert, frag));
+        return p == null ? 0 : p.refCount;
+    }
+
+    /**
+     * Get the number of cached programs
+     */
+    public synchronized int size() {
+        return programs.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getCompileCount() {
+        return compiles;
+    }
+
+    /**
+     * Get the total time spent compiling and linking, in nanoseconds
+     */
+    public synchronized long getCompileTime() {
+        return compileTime;
+    }
+
+    public synchronized long getDeleteCount() {
+        return deletes;
+    }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        compiles = 0;
+        compileTime = 0;
+        deletes = 0;
+    }
+}
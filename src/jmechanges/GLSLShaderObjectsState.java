@@ -44,6 +44,8 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,6 +62,9 @@ import com.jme.util.export.JMEExporter;
 import com.jme.util.export.JMEImporter;
 import com.jme.util.export.OutputCapsule;
 import com.jme.util.geom.BufferUtils;
+import com.jme.util.geom.DirectBufferPool;
+import com.jme.util.stat.StatCollector;
+import com.jme.util.stat.StatType;
 import com.jme.util.shader.ShaderVariable;
 import com.jme.util.shader.uniformtypes.ShaderVariableFloat;
 import com.jme.util.shader.uniformtypes.ShaderVariableFloat2;
@@ -93,6 +98,22 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     /** Storage for shader attribute values */
     protected ArrayList<ShaderVariable> shaderAttributes =
             new ArrayList<ShaderVariable>();
+
+    /** The uniforms and attributes by name */
+    private HashMap<String, ShaderVariable> uniformsByName =
+            new HashMap<String, ShaderVariable>();
+    private HashMap<String, ShaderVariable> attributesByName =
+            new HashMap<String, ShaderVariable>();
+
+    /** Used to compare matrices with the values already set */
+    private FloatBuffer matrixScratch = null;
+
+    /** The number of uniforms sent this frame, and in the last frame */
+    private static int frameUniformUpdates = 0;
+    private static int uniformUpdates = 0;
+
+    public static final StatType STAT_UNIFORM_UPDATES =
+            new StatType("_uniformUpdates");
     
     /** Optional logic for setting shadervariables based on the current geom */
     protected GLSLShaderDataLogic shaderDataLogic;
@@ -106,6 +127,9 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     protected boolean needSendShader = false;
     
     protected String vertShader, fragShader;
+
+    /** The program this state uses, shared through the GLSLProgramCache */
+    protected GLSLProgramCache.Program program;
     
     /**
      * Gets the currently loaded vertex shader.
@@ -137,13 +161,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      * @return
      */
     public	ShaderVariable		getUniformByName(String uniformName) {
-    	for(ShaderVariable shaderVar : shaderUniforms) {
-    		if(shaderVar.name.equals(uniformName)) {
-    			return shaderVar;
-    		}
-    	}
-    	
-    	return null;
+    	return uniformsByName.get(uniformName);
     }
     
     /**
@@ -160,13 +178,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      * @return
      */
     public	ShaderVariable		getAttributeByName(String attributeName) {
-    	for(ShaderVariable shaderVar : shaderAttributes) {
-    		if(shaderVar.name.equals(attributeName)) {
-    			return shaderVar;
-    		}
-    	}
-    	
-    	return null;
+    	return attributesByName.get(attributeName);
     }
     
     /**
@@ -221,9 +233,11 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void setUniform(String name, boolean value) {
         ShaderVariableInt shaderUniform =
                 getShaderUniform(name, ShaderVariableInt.class);
-        shaderUniform.value1 = value ? 1 : 0;
-
-        setNeedsRefresh(true);
+        int v = value ? 1 : 0;
+        if (shaderUniform.value1 != v) {
+            shaderUniform.value1 = v;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -235,9 +249,10 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void setUniform(String name, int value) {
         ShaderVariableInt shaderUniform =
                 getShaderUniform(name, ShaderVariableInt.class);
-        shaderUniform.value1 = value;
-
-        setNeedsRefresh(true);
+        if (shaderUniform.value1 != value) {
+            shaderUniform.value1 = value;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -249,9 +264,10 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void setUniform(String name, float value) {
         ShaderVariableFloat shaderUniform =
                 getShaderUniform(name, ShaderVariableFloat.class);
-        shaderUniform.value1 = value;
-
-        setNeedsRefresh(true);
+        if (shaderUniform.value1 != value) {
+            shaderUniform.value1 = value;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -262,12 +278,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      * @param value2 the new value
      */
     public void setUniform(String name, boolean value1, boolean value2) {
-        ShaderVariableInt2 shaderUniform =
-                getShaderUniform(name, ShaderVariableInt2.class);
-        shaderUniform.value1 = value1 ? 1 : 0;
-        shaderUniform.value2 = value2 ? 1 : 0;
-
-        setNeedsRefresh(true);
+        setUniform(name, value1 ? 1 : 0, value2 ? 1 : 0);
     }
 
     /**
@@ -280,10 +291,11 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void setUniform(String name, int value1, int value2) {
         ShaderVariableInt2 shaderUniform =
                 getShaderUniform(name, ShaderVariableInt2.class);
-        shaderUniform.value1 = value1;
-        shaderUniform.value2 = value2;
-
-        setNeedsRefresh(true);
+        if (shaderUniform.value1 != value1 || shaderUniform.value2 != value2) {
+            shaderUniform.value1 = value1;
+            shaderUniform.value2 = value2;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -296,10 +308,11 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void setUniform(String name, float value1, float value2) {
         ShaderVariableFloat2 shaderUniform =
                 getShaderUniform(name, ShaderVariableFloat2.class);
-        shaderUniform.value1 = value1;
-        shaderUniform.value2 = value2;
-
-        setNeedsRefresh(true);
+        if (shaderUniform.value1 != value1 || shaderUniform.value2 != value2) {
+            shaderUniform.value1 = value1;
+            shaderUniform.value2 = value2;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -312,13 +325,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      */
     public void setUniform(String name, boolean value1, boolean value2,
             boolean value3) {
-        ShaderVariableInt3 shaderUniform =
-                getShaderUniform(name, ShaderVariableInt3.class);
-        shaderUniform.value1 = value1 ? 1 : 0;
-        shaderUniform.value2 = value2 ? 1 : 0;
-        shaderUniform.value3 = value3 ? 1 : 0;
-
-        setNeedsRefresh(true);
+        setUniform(name, value1 ? 1 : 0, value2 ? 1 : 0, value3 ? 1 : 0);
     }
 
     /**
@@ -332,11 +339,13 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void setUniform(String name, int value1, int value2, int value3) {
         ShaderVariableInt3 shaderUniform =
                 getShaderUniform(name, ShaderVariableInt3.class);
-        shaderUniform.value1 = value1;
-        shaderUniform.value2 = value2;
-        shaderUniform.value3 = value3;
-
-        setNeedsRefresh(true);
+        if (shaderUniform.value1 != value1 || shaderUniform.value2 != value2
+                || shaderUniform.value3 != value3) {
+            shaderUniform.value1 = value1;
+            shaderUniform.value2 = value2;
+            shaderUniform.value3 = value3;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -351,11 +360,13 @@ public abstract class GLSLShaderObjectsState extends RenderState {
             float value3) {
         ShaderVariableFloat3 shaderUniform =
                 getShaderUniform(name, ShaderVariableFloat3.class);
-        shaderUniform.value1 = value1;
-        shaderUniform.value2 = value2;
-        shaderUniform.value3 = value3;
-
-        setNeedsRefresh(true);
+        if (shaderUniform.value1 != value1 || shaderUniform.value2 != value2
+                || shaderUniform.value3 != value3) {
+            shaderUniform.value1 = value1;
+            shaderUniform.value2 = value2;
+            shaderUniform.value3 = value3;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -369,14 +380,8 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      */
     public void setUniform(String name, boolean value1, boolean value2,
             boolean value3, boolean value4) {
-        ShaderVariableInt4 shaderUniform =
-                getShaderUniform(name, ShaderVariableInt4.class);
-        shaderUniform.value1 = value1 ? 1 : 0;
-        shaderUniform.value2 = value2 ? 1 : 0;
-        shaderUniform.value3 = value3 ? 1 : 0;
-        shaderUniform.value4 = value4 ? 1 : 0;
-
-        setNeedsRefresh(true);
+        setUniform(name, value1 ? 1 : 0, value2 ? 1 : 0, value3 ? 1 : 0,
+                value4 ? 1 : 0);
     }
 
     /**
@@ -392,12 +397,15 @@ public abstract class GLSLShaderObjectsState extends RenderState {
             int value4) {
         ShaderVariableInt4 shaderUniform =
                 getShaderUniform(name, ShaderVariableInt4.class);
-        shaderUniform.value1 = value1;
-        shaderUniform.value2 = value2;
-        shaderUniform.value3 = value3;
-        shaderUniform.value4 = value4;
-
-        setNeedsRefresh(true);
+        if (shaderUniform.value1 != value1 || shaderUniform.value2 != value2
+                || shaderUniform.value3 != value3
+                || shaderUniform.value4 != value4) {
+            shaderUniform.value1 = value1;
+            shaderUniform.value2 = value2;
+            shaderUniform.value3 = value3;
+            shaderUniform.value4 = value4;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -413,12 +421,15 @@ public abstract class GLSLShaderObjectsState extends RenderState {
             float value3, float value4) {
         ShaderVariableFloat4 shaderUniform =
                 getShaderUniform(name, ShaderVariableFloat4.class);
-        shaderUniform.value1 = value1;
-        shaderUniform.value2 = value2;
-        shaderUniform.value3 = value3;
-        shaderUniform.value4 = value4;
-
-        setNeedsRefresh(true);
+        if (shaderUniform.value1 != value1 || shaderUniform.value2 != value2
+                || shaderUniform.value3 != value3
+                || shaderUniform.value4 != value4) {
+            shaderUniform.value1 = value1;
+            shaderUniform.value2 = value2;
+            shaderUniform.value3 = value3;
+            shaderUniform.value4 = value4;
+            uniformChanged(shaderUniform);
+        }
     }
 
     /**
@@ -428,12 +439,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      * @param value the new value
      */
     public void setUniform(String name, Vector2f value) {
-        ShaderVariableFloat2 shaderUniform =
-                getShaderUniform(name, ShaderVariableFloat2.class);
-        shaderUniform.value1 = value.x;
-        shaderUniform.value2 = value.y;
-
-        setNeedsRefresh(true);
+        setUniform(name, value.x, value.y);
     }
 
     /**
@@ -443,13 +449,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      * @param value the new value
      */
     public void setUniform(String name, Vector3f value) {
-        ShaderVariableFloat3 shaderUniform =
-                getShaderUniform(name, ShaderVariableFloat3.class);
-        shaderUniform.value1 = value.x;
-        shaderUniform.value2 = value.y;
-        shaderUniform.value3 = value.z;
-
-        setNeedsRefresh(true);
+        setUniform(name, value.x, value.y, value.z);
     }
 
     /**
@@ -459,14 +459,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      * @param value the new value
      */
     public void setUniform(String name, ColorRGBA value) {
-        ShaderVariableFloat4 shaderUniform =
-                getShaderUniform(name, ShaderVariableFloat4.class);
-        shaderUniform.value1 = value.r;
-        shaderUniform.value2 = value.g;
-        shaderUniform.value3 = value.b;
-        shaderUniform.value4 = value.a;
-
-        setNeedsRefresh(true);
+        setUniform(name, value.r, value.g, value.b, value.a);
     }
 
     /**
@@ -476,14 +469,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      * @param value the new value
      */
     public void setUniform(String name, Quaternion value) {
-        ShaderVariableFloat4 shaderUniform =
-                getShaderUniform(name, ShaderVariableFloat4.class);
-        shaderUniform.value1 = value.x;
-        shaderUniform.value2 = value.y;
-        shaderUniform.value3 = value.z;
-        shaderUniform.value4 = value.w;
-
-        setNeedsRefresh(true);
+        setUniform(name, value.x, value.y, value.z, value.w);
     }
 
     /**
@@ -499,6 +485,10 @@ public abstract class GLSLShaderObjectsState extends RenderState {
 
         ShaderVariableMatrix2 shaderUniform =
                 getShaderUniform(name, ShaderVariableMatrix2.class);
+        if (shaderUniform.rowMajor == rowMajor
+                && equals(shaderUniform.matrixBuffer, value)) {
+            return;
+        }
         shaderUniform.matrixBuffer.clear();
         shaderUniform.matrixBuffer.put(value[0]);
         shaderUniform.matrixBuffer.put(value[1]);
@@ -506,7 +496,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
         shaderUniform.matrixBuffer.put(value[3]);
         shaderUniform.rowMajor = rowMajor;
 
-        setNeedsRefresh(true);
+        uniformChanged(shaderUniform);
     }
 
     /**
@@ -519,6 +509,12 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void setUniform(String name, Matrix3f value, boolean rowMajor) {
         ShaderVariableMatrix3 shaderUniform =
                 getShaderUniform(name, ShaderVariableMatrix3.class);
+        FloatBuffer scratch = getMatrixScratch();
+        value.fillFloatBuffer(scratch);
+        if (shaderUniform.rowMajor == rowMajor
+                && equals(shaderUniform.matrixBuffer, scratch)) {
+            return;
+        }
         // prepare buffer for writing
         shaderUniform.matrixBuffer.rewind();
         value.fillFloatBuffer(shaderUniform.matrixBuffer);
@@ -526,7 +522,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
         shaderUniform.matrixBuffer.rewind();
         shaderUniform.rowMajor = rowMajor;
 
-        setNeedsRefresh(true);
+        uniformChanged(shaderUniform);
     }
 
     /**
@@ -539,6 +535,12 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void setUniform(String name, Matrix4f value, boolean rowMajor) {
         ShaderVariableMatrix4 shaderUniform =
                 getShaderUniform(name, ShaderVariableMatrix4.class);
+        FloatBuffer scratch = getMatrixScratch();
+        value.fillFloatBuffer(scratch);
+        if (shaderUniform.rowMajor == rowMajor
+                && equals(shaderUniform.matrixBuffer, scratch)) {
+            return;
+        }
         // prepare buffer for writing
         shaderUniform.matrixBuffer.rewind();
         value.fillFloatBuffer(shaderUniform.matrixBuffer);
@@ -546,12 +548,17 @@ public abstract class GLSLShaderObjectsState extends RenderState {
         shaderUniform.matrixBuffer.rewind();
         shaderUniform.rowMajor = rowMajor;
 
-        setNeedsRefresh(true);
+        uniformChanged(shaderUniform);
     }
 
     public void setUniformMatrix4Array(String name, float value[], boolean rowMajor) {
         ShaderVariableMatrix4 shaderUniform =
                 getShaderUniform(name, ShaderVariableMatrix4.class);
+        // An idle skinned model sets the same bones every frame
+        if (shaderUniform.rowMajor == rowMajor
+                && equals(shaderUniform.matrixBuffer, value)) {
+            return;
+        }
         // this is hack
         // TODO: make a new ShaderVariable class instead
         if (shaderUniform.matrixBuffer.capacity() < value.length) {
@@ -563,13 +570,66 @@ public abstract class GLSLShaderObjectsState extends RenderState {
         //shaderUniform.matrixBuffer.rewind();
         shaderUniform.rowMajor = rowMajor;
         //shaderUniform.transpose = transpose;
+        uniformChanged(shaderUniform);
+    }
+
+    /**
+     * Mark a uniform to be sent on the next apply
+     */
+    private void uniformChanged(ShaderVariable shaderUniform) {
+        shaderUniform.needsRefresh = true;
         setNeedsRefresh(true);
     }
 
+    /**
+     * Get a buffer to fill with a matrix for comparison
+     */
+    private FloatBuffer getMatrixScratch() {
+        if (matrixScratch == null) {
+            matrixScratch = BufferUtils.createFloatBuffer(16);
+        }
+        matrixScratch.clear();
+        return matrixScratch;
+    }
+
+    /**
+     * Compare the start of a matrix buffer with the values filled into the
+     * scratch buffer, without moving either buffer
+     */
+    private static boolean equals(FloatBuffer matrix, FloatBuffer scratch) {
+        int count = scratch.position();
+        if (matrix.capacity() < count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (matrix.get(i) != scratch.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare the start of a matrix buffer with an array of values, without
+     * moving the buffer
+     */
+    private static boolean equals(FloatBuffer matrix, float[] value) {
+        if (matrix.capacity() < value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (matrix.get(i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 
     /** <code>clearUniforms</code> clears all uniform values from this state. */
     public void clearUniforms() {
         shaderUniforms.clear();
+        uniformsByName.clear();
     }
 
     /**
@@ -688,6 +748,7 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      */
     public void clearAttributes() {
         shaderAttributes.clear();
+        attributesByName.clear();
     }
 
 
@@ -720,7 +781,8 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      */
     private <T extends ShaderVariable> T getShaderUniform(String name,
             Class<T> classz) {
-        T shaderVariable = getShaderVariable(name, classz, shaderUniforms);
+        T shaderVariable = getShaderVariable(name, classz, shaderUniforms,
+                uniformsByName);
         checkUniformSizeLimits();
         return shaderVariable;
     }
@@ -734,7 +796,8 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      */
     private <T extends ShaderVariable> T getShaderAttribute(String name,
             Class<T> classz) {
-        T shaderVariable = getShaderVariable(name, classz, shaderAttributes);
+        T shaderVariable = getShaderVariable(name, classz, shaderAttributes,
+                attributesByName);
         checkAttributeSizeLimits();
         return shaderVariable;
     }
@@ -743,23 +806,25 @@ public abstract class GLSLShaderObjectsState extends RenderState {
      * @param name Name of the shadervariable to retrieve or create
      * @param classz Class type of the shadervariable
      * @param shaderVariableList List retrieve shadervariable from
+     * @param shaderVariableMap The same variables by name
      * @return
      */
     @SuppressWarnings("unchecked")
     private <T extends ShaderVariable> T getShaderVariable(String name,
-            Class<T> classz, ArrayList<ShaderVariable> shaderVariableList) {
-        for (int i = shaderVariableList.size(); --i >= 0;) {
-            ShaderVariable temp = shaderVariableList.get(i);
-            if (name.equals(temp.name)) {
-                temp.needsRefresh = true;
-                return (T) temp;
-            }
+            Class<T> classz, ArrayList<ShaderVariable> shaderVariableList,
+            HashMap<String, ShaderVariable> shaderVariableMap) {
+        ShaderVariable temp = shaderVariableMap.get(name);
+        if (temp != null) {
+            return (T) temp;
         }
 
         try {
             T shaderUniform = classz.newInstance();
             shaderUniform.name = name;
+            shaderUniform.needsRefresh = true;
             shaderVariableList.add(shaderUniform);
+            shaderVariableMap.put(name, shaderUniform);
+            setNeedsRefresh(true);
 
             return shaderUniform;
         } catch (InstantiationException e) {
@@ -837,6 +902,13 @@ public abstract class GLSLShaderObjectsState extends RenderState {
     public void load(InputStream vert, InputStream frag) {
         ByteBuffer vertexByteBuffer = vert != null ? load(vert) : null;
         ByteBuffer fragmentByteBuffer = frag != null ? load(frag) : null;
+
+        // This program can't be shared, so get a private one
+        releaseProgram();
+        vertShader = null;
+        fragShader = null;
+        needSendShader = false;
+        program = GLSLProgramCache.getInstance().create();
         sendToGL(vertexByteBuffer, fragmentByteBuffer);
 	}
     
@@ -872,6 +944,179 @@ public abstract class GLSLShaderObjectsState extends RenderState {
                 new ArrayList<ShaderVariable>());
         shaderAttributes = capsule.readSavableArrayList("shaderAttributes",
                 new ArrayList<ShaderVariable>());
+        uniformsByName = index(shaderUniforms);
+        attributesByName = index(shaderAttributes);
+    }
+
+    private static HashMap<String, ShaderVariable> index(
+            ArrayList<ShaderVariable> list) {
+        HashMap<String, ShaderVariable> map =
+                new HashMap<String, ShaderVariable>();
+        for (int i = 0; i < list.size(); i++) {
+            map.put(list.get(i).name, list.get(i));
+        }
+        return map;
+    }
+
+    /**
+     * <code>compile</code> compiles and links the loaded sources, if that
+     * has not been done yet. Programs are shared through the
+     * <code>GLSLProgramCache</code>, so sources which another state has
+     * already loaded are not compiled again. This must be called from the GL
+     * thread, and is done automatically the first time the state is applied.
+     */
+    public void compile() {
+        GLSLProgramCache cache = GLSLProgramCache.getInstance();
+        deleteReleasedPrograms(cache);
+        if (!needSendShader) {
+            return;
+        }
+        needSendShader = false;
+
+        // Acquire before releasing, so reloading the same sources
+        // doesn't throw the program away
+        GLSLProgramCache.Program p = cache.acquire(vertShader, fragShader);
+        if (program != null) {
+            cache.release(program);
+        }
+        program = p;
+
+        if (cache.beginCompile(p)) {
+            long start = System.nanoTime();
+            ByteBuffer vertBuffer = vertShader != null ? toByteBuffer(vertShader) : null;
+            ByteBuffer fragBuffer = fragShader != null ? toByteBuffer(fragShader) : null;
+            try {
+                sendToGL(vertBuffer, fragBuffer);
+            } catch (RuntimeException e) {
+                cache.compileFailed(p);
+                cache.release(p);
+                program = null;
+                throw e;
+            } finally {
+                BufferUtils.releaseBuffer(vertBuffer);
+                BufferUtils.releaseBuffer(fragBuffer);
+            }
+            cache.compiled(p, System.nanoTime() - start);
+        }
+
+        // The locations have to be looked up in the new program
+        for (int i = shaderUniforms.size(); --i >= 0;) {
+            shaderUniforms.get(i).variableID = -1;
+            shaderUniforms.get(i).needsRefresh = true;
+        }
+        for (int i = shaderAttributes.size(); --i >= 0;) {
+            shaderAttributes.get(i).variableID = -1;
+            shaderAttributes.get(i).needsRefresh = true;
+        }
+        setNeedsRefresh(true);
+    }
+
+    /**
+     * <code>releaseProgram</code> releases this state's reference to its
+     * program. The program is deleted once no state uses it. The sources are
+     * kept, so the program is compiled or shared again if this state is
+     * applied later.
+     */
+    public void releaseProgram() {
+        if (program != null) {
+            GLSLProgramCache.getInstance().release(program);
+            program = null;
+            needSendShader = vertShader != null || fragShader != null;
+        }
+    }
+
+    /**
+     * Get the program this state uses, or null if it has not been compiled
+     */
+    public GLSLProgramCache.Program getProgram() {
+        return program;
+    }
+
+    /**
+     * Delete the programs which are no longer used by any state
+     */
+    protected void deleteReleasedPrograms(GLSLProgramCache cache) {
+        List<GLSLProgramCache.Program> list = cache.takeReleased();
+        if (list != null) {
+            for (int i = 0; i < list.size(); i++) {
+                deleteProgram(list.get(i));
+            }
+        }
+    }
+
+    /**
+     * Delete the GL objects of a program. Implement in provider.
+     */
+    protected void deleteProgram(GLSLProgramCache.Program p) {
+    }
+
+    /**
+     * Send the uniforms which have changed since they were last sent, looking
+     * up any locations which aren't known in the given program. If reload is
+     * true every uniform is sent, since another state has used the program.
+     * This must be called from the GL thread with the program in use.
+     *
+     * @return the number of uniforms sent
+     */
+    protected int updateUniforms(int programID, boolean reload) {
+        int sent = 0;
+        for (int i = shaderUniforms.size(); --i >= 0;) {
+            ShaderVariable shaderVariable = shaderUniforms.get(i);
+            if (shaderVariable.needsRefresh || reload) {
+                if (shaderVariable.variableID == -1) {
+                    updateUniformLocation(shaderVariable, programID);
+                }
+                updateUniform(shaderVariable);
+                shaderVariable.needsRefresh = false;
+                sent++;
+            }
+        }
+        frameUniformUpdates += sent;
+        return sent;
+    }
+
+    /**
+     * Look up the location of a uniform in a program. Implement in provider.
+     */
+    protected void updateUniformLocation(ShaderVariable shaderVariable,
+            int programID) {
+    }
+
+    /**
+     * Send the value of a uniform to the program in use. Implement in
+     * provider.
+     */
+    protected void updateUniform(ShaderVariable shaderVariable) {
+    }
+
+    /**
+     * Get the number of uniforms sent to GL in the last frame
+     */
+    public static int getUniformUpdates() {
+        return uniformUpdates;
+    }
+
+    /**
+     * End the frame's uniform count, and add it to the StatCollector. This is
+     * meant to be called once a frame from the GL thread.
+     */
+    public static void publishStats() {
+        uniformUpdates = frameUniformUpdates;
+        frameUniformUpdates = 0;
+        StatCollector.addStat(STAT_UNIFORM_UPDATES, uniformUpdates);
+    }
+
+    /**
+     * Convert shader source into a buffer from the pool, which is released
+     * once the source has been sent
+     */
+    private ByteBuffer toByteBuffer(String data) {
+        byte[] bytes = data.getBytes();
+        ByteBuffer buffer = BufferUtils.acquireByteBuffer(bytes.length,
+                DirectBufferPool.Category.OTHER);
+        buffer.put(bytes);
+        buffer.rewind();
+        return buffer;
     }
 
     public Class<? extends GLSLShaderObjectsState> getClassTag() {
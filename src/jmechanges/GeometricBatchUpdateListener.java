@@ -0,0 +1,23 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.jme.scene;
+
+import java.util.List;
+
+/**
+ * A geometric update listener which would rather be told about all of the
+ * spatials that changed in an update pass at once.
+ * 
+ * @author Doug Twilleager
+ */
+public interface GeometricBatchUpdateListener extends GeometricUpdateListener {
+    /**
+     * Called once for each update pass, with every spatial this listener
+     * listens to that changed. Each spatial appears once. The list is only
+     * valid during the call.
+     */
+    public void geometricDataChanged(List<Spatial> spatials);
+}
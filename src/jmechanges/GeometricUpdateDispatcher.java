@@ -0,0 +1,183 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.jme.scene;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the spatials whose geometric state changed during an update pass,
+ * and tells their listeners once at the end of the pass. A spatial which is
+ * updated several times in a pass is only reported once, and listeners which
+ * implement GeometricBatchUpdateListener get a single call with all of their
+ * spatials.
+ * 
+ * Each thread collects its own pass, so renderers updating on different
+ * threads don't see each other's changes. Only updates made on a thread
+ * which has begun a pass are collected. Updates on any other thread are
+ * reported straight away, as before.
+ * 
+ * @author Doug Twilleager
+ */
+public class GeometricUpdateDispatcher {
+    private static final Logger logger =
+            Logger.getLogger(GeometricUpdateDispatcher.class.getName());
+
+    private static final GeometricUpdateDispatcher instance =
+            new GeometricUpdateDispatcher();
+
+    /**
+     * The collection state of one thread
+     */
+    private static class Pass {
+        /**
+         * How many begins haven't been ended, so passes can nest
+         */
+        int depth = 0;
+
+        /**
+         * The changed spatials, in the order they changed
+         */
+        final IdentityHashMap<Spatial, Spatial> changed =
+                new IdentityHashMap<Spatial, Spatial>();
+        final ArrayList<Spatial> changedList = new ArrayList<Spatial>();
+
+        /**
+         * The spatials for each listener, built at the end of a pass
+         */
+        final IdentityHashMap<GeometricUpdateListener, ArrayList<Spatial>> batches =
+                new IdentityHashMap<GeometricUpdateListener, ArrayList<Spatial>>();
+        final ArrayList<GeometricUpdateListener> listeners =
+                new ArrayList<GeometricUpdateListener>();
+        final ArrayList<ArrayList<Spatial>> freeLists =
+                new ArrayList<ArrayList<Spatial>>();
+
+        /**
+         * Statistics from the last pass
+         */
+        int lastSpatials = 0;
+        int lastCalls = 0;
+    }
+
+    private final ThreadLocal<Pass> passes = new ThreadLocal<Pass>() {
+        protected Pass initialValue() {
+            return new Pass();
+        }
+    };
+
+    public static GeometricUpdateDispatcher getInstance() {
+        return instance;
+    }
+
+    /**
+     * Start collecting the changes made on this thread
+     */
+    public void begin() {
+        passes.get().depth++;
+    }
+
+    /**
+     * Stop collecting, and tell the listeners about everything that changed
+     * on this thread. If passes are nested, the listeners are told when the
+     * outermost one ends.
+     */
+    public void end() {
+        Pass pass = passes.get();
+        if (pass.depth == 0 || --pass.depth > 0) {
+            return;
+        }
+        ArrayList<Spatial> changedList = pass.changedList;
+        IdentityHashMap<GeometricUpdateListener, ArrayList<Spatial>> batches = pass.batches;
+        ArrayList<GeometricUpdateListener> listeners = pass.listeners;
+        ArrayList<ArrayList<Spatial>> freeLists = pass.freeLists;
+
+        pass.lastSpatials = changedList.size();
+        pass.lastCalls = 0;
+        if (changedList.isEmpty()) {
+            return;
+        }
+
+        // Group the spatials by listener. The listeners are read now, so
+        // one removed during the pass isn't told.
+        for (int i = 0; i < changedList.size(); i++) {
+            Spatial s = changedList.get(i);
+            ArrayList<GeometricUpdateListener> l = s.geometricUpdateListeners;
+            if (l == null) {
+                continue;
+            }
+            for (int j = 0; j < l.size(); j++) {
+                GeometricUpdateListener listener = l.get(j);
+                ArrayList<Spatial> batch = batches.get(listener);
+                if (batch == null) {
+                    batch = freeLists.isEmpty() ? new ArrayList<Spatial>()
+                            : freeLists.remove(freeLists.size() - 1);
+                    batches.put(listener, batch);
+                    listeners.add(listener);
+                }
+                batch.add(s);
+            }
+        }
+        pass.changed.clear();
+        changedList.clear();
+
+        for (int i = 0; i < listeners.size(); i++) {
+            GeometricUpdateListener listener = listeners.get(i);
+            ArrayList<Spatial> batch = batches.get(listener);
+            try {
+                if (listener instanceof GeometricBatchUpdateListener) {
+                    pass.lastCalls++;
+                    ((GeometricBatchUpdateListener) listener)
+                            .geometricDataChanged(batch);
+                } else {
+                    for (int j = 0; j < batch.size(); j++) {
+                        pass.lastCalls++;
+                        listener.geometricDataChanged(batch.get(j));
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Error in geometric update listener "
+                        + listener, e);
+            }
+            batch.clear();
+            freeLists.add(batch);
+        }
+        batches.clear();
+        listeners.clear();
+    }
+
+    /**
+     * Record a changed spatial, if this thread is collecting changes
+     * 
+     * @return false if the listeners should be told now
+     */
+    boolean defer(Spatial s) {
+        Pass pass = passes.get();
+        if (pass.depth == 0) {
+            return false;
+        }
+        if (pass.changed.put(s, s) == null) {
+            pass.changedList.add(s);
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of different spatials that changed in the last pass
+     * on this thread
+     */
+    public int getLastSpatialCount() {
+        return passes.get().lastSpatials;
+    }
+
+    /**
+     * Get the number of listener calls made for the last pass on this thread
+     */
+    public int getLastCallCount() {
+        return passes.get().lastCalls;
+    }
+}
@@ -109,6 +109,7 @@ import com.jme.system.jogl.JOGLDisplaySystem;
 import com.jme.util.Debug;
 import com.jme.util.WeakIdentityCache;
 import com.jme.util.geom.BufferUtils;
+import com.jme.util.geom.DirectBufferPool;
 import com.jme.util.stat.StatCollector;
 import com.jme.util.stat.StatType;
 
@@ -639,7 +640,8 @@ public class JOGLRenderer extends Renderer {
 
         // Create a pointer to the image info and create a buffered image to
         // hold it.
-        ByteBuffer buff = BufferUtils.createByteBuffer(width * height * 3);
+        ByteBuffer buff = BufferUtils.acquireByteBuffer(width * height * 3,
+                DirectBufferPool.Category.CAPTURE);
         grabScreenContents(buff, Image.Format.RGB8, 0, 0, width, height);
         BufferedImage img = new BufferedImage(width, height,
                 BufferedImage.TYPE_INT_RGB);
@@ -656,6 +658,7 @@ public class JOGLRenderer extends Renderer {
                 img.setRGB(x, y, argb);
             }
         }
+        BufferUtils.releaseBuffer(buff);
 
         // write out the screenshot image to a file.
         try {
@@ -42,6 +42,7 @@ import javax.media.opengl.glu.GLU;
 
 import com.jme.renderer.RenderContext;
 import com.jme.renderer.jogl.JOGLContextCapabilities;
+import com.jme.scene.state.GLSLProgramCache;
 import com.jme.scene.state.GLSLShaderObjectsState;
 import com.jme.scene.state.StateRecord;
 import com.jme.scene.state.jogl.records.ShaderObjectsStateRecord;
@@ -63,15 +64,6 @@ public class JOGLShaderObjectsState extends GLSLShaderObjectsState {
 
     private static final long serialVersionUID = 1L;
 
-    /** OpenGL id for this program. * */
-    private int programID = -1;
-
-    /** OpenGL id for the attached vertex shader. */
-    private int vertexShaderID = -1;
-
-    /** OpenGL id for the attached fragment shader. */
-    private int fragmentShaderID = -1;
-
     /** Holds the maximum number of vertex attributes available. */
     private static int maxVertexAttribs;
 
@@ -124,41 +116,6 @@ public class JOGLShaderObjectsState extends GLSLShaderObjectsState {
         }
     }
 
-    /**
-     * Loads a string into a ByteBuffer
-     *
-     * @param data string to load into ByteBuffer
-     * @return the converted string
-     */
-    private ByteBuffer load(String data) {
-        try {
-            byte[] bytes = data.getBytes();
-            ByteBuffer program = BufferUtils.createByteBuffer(bytes.length);
-            program.put(bytes);
-            program.rewind();
-            return program;
-        } catch (Exception e) {
-            logger.severe("Could not load fragment program: " + e);
-            logger.logp(Level.SEVERE, getClass().getName(), "load(URL)", "Exception", e);
-            return null;
-        }
-    }
-
-    /**
-     * Loads the shader object. Use null for an empty vertex or empty fragment
-     * shader.
-     *
-     * @param vert vertex shader
-     * @param frag fragment shader
-     * @see com.jme.scene.state.GLSLShaderObjectsState#load(java.net.URL,
-     *java.net.URL)
-     */
-    private void sendToGL(String vert, String frag) {
-        ByteBuffer vertexByteBuffer = vert != null ? load(vert) : null;
-        ByteBuffer fragmentByteBuffer = frag != null ? load(frag) : null;
-        sendToGL(vertexByteBuffer, fragmentByteBuffer);
-    }
-
     /**
      * Loads the shader object. Use null for an empty vertex or empty fragment
      * shader.
@@ -179,88 +136,108 @@ public class JOGLShaderObjectsState extends GLSLShaderObjectsState {
             return;
         }
 
-        if (programID == -1)
-            programID = gl.glCreateProgramObjectARB();
+        GLSLProgramCache.Program p = program;
+        if (p == null) {
+            p = program = GLSLProgramCache.getInstance().create();
+        }
+
+        if (p.programID == -1)
+            p.programID = gl.glCreateProgramObjectARB();
 
         if (vertexByteBuffer != null) {
-            if (vertexShaderID != -1)
-                removeVertShader();
+            if (p.vertexShaderID != -1)
+                removeVertShader(p);
 
-            vertexShaderID = gl.glCreateShaderObjectARB(
+            p.vertexShaderID = gl.glCreateShaderObjectARB(
                     GL.GL_VERTEX_SHADER_ARB);
 
             // Create the sources
             byte array[] = new byte[vertexByteBuffer.limit()];
             vertexByteBuffer.rewind();
             vertexByteBuffer.get(array);
-            gl.glShaderSourceARB(vertexShaderID, 1, new String[] {new String(array)}, new int[] {array.length}, 0); // TODO Check <size>
+            gl.glShaderSourceARB(p.vertexShaderID, 1, new String[] {new String(array)}, new int[] {array.length}, 0); // TODO Check <size>
 
             // Compile the vertex shader
             IntBuffer compiled = BufferUtils.createIntBuffer(1);
-            gl.glCompileShaderARB(vertexShaderID);
-            gl.glGetObjectParameterivARB(vertexShaderID,
+            gl.glCompileShaderARB(p.vertexShaderID);
+            gl.glGetObjectParameterivARB(p.vertexShaderID,
                     GL.GL_OBJECT_COMPILE_STATUS_ARB, compiled); // TODO Check for int
-            checkProgramError(compiled, vertexShaderID);
+            checkProgramError(compiled, p.vertexShaderID);
 
             // Attach the program
-            gl.glAttachObjectARB(programID, vertexShaderID);
-        } else if (vertexShaderID != -1) {
-            removeVertShader();
-            vertexShaderID = -1;
+            gl.glAttachObjectARB(p.programID, p.vertexShaderID);
+        } else if (p.vertexShaderID != -1) {
+            removeVertShader(p);
+            p.vertexShaderID = -1;
         }
 
         if (fragmentByteBuffer != null) {
-            if (fragmentShaderID != -1)
-                removeFragShader();
+            if (p.fragmentShaderID != -1)
+                removeFragShader(p);
 
-            fragmentShaderID = gl.glCreateShaderObjectARB(
+            p.fragmentShaderID = gl.glCreateShaderObjectARB(
                     GL.GL_FRAGMENT_SHADER_ARB);
 
             // Create the sources
             byte array[] = new byte[fragmentByteBuffer.limit()];
             fragmentByteBuffer.rewind();
             fragmentByteBuffer.get(array);
-            gl.glShaderSourceARB(fragmentShaderID, 1, new String[] {new String(array)}, new int[] {array.length}, 0); // TODO Check <size>
+            gl.glShaderSourceARB(p.fragmentShaderID, 1, new String[] {new String(array)}, new int[] {array.length}, 0); // TODO Check <size>
 
             // Compile the fragment shader
             IntBuffer compiled = BufferUtils.createIntBuffer(1);
-            gl.glCompileShaderARB(fragmentShaderID);
-            gl.glGetObjectParameterivARB(fragmentShaderID,
+            gl.glCompileShaderARB(p.fragmentShaderID);
+            gl.glGetObjectParameterivARB(p.fragmentShaderID,
                     GL.GL_OBJECT_COMPILE_STATUS_ARB, compiled); // TODO Check for int
-            checkProgramError(compiled, fragmentShaderID);
+            checkProgramError(compiled, p.fragmentShaderID);
 
             // Attatch the program
-            gl.glAttachObjectARB(programID, fragmentShaderID);
-        } else if (fragmentShaderID != -1) {
-            removeFragShader();
-            fragmentShaderID = -1;
+            gl.glAttachObjectARB(p.programID, p.fragmentShaderID);
+        } else if (p.fragmentShaderID != -1) {
+            removeFragShader(p);
+            p.fragmentShaderID = -1;
         }
 
-        gl.glLinkProgramARB(programID);
+        gl.glLinkProgramARB(p.programID);
         setNeedsRefresh(true);
         needSendShader = false;
     }
 
     /** Removes the fragment shader */
-    private void removeFragShader() {
+    private void removeFragShader(GLSLProgramCache.Program p) {
         final GL gl = GLU.getCurrentGL();
 
-        if (fragmentShaderID != -1) {
-            gl.glDetachObjectARB(programID, fragmentShaderID);
-            gl.glDeleteObjectARB(fragmentShaderID);
+        if (p.fragmentShaderID != -1) {
+            gl.glDetachObjectARB(p.programID, p.fragmentShaderID);
+            gl.glDeleteObjectARB(p.fragmentShaderID);
         }
     }
 
     /** Removes the vertex shader */
-    private void removeVertShader() {
+    private void removeVertShader(GLSLProgramCache.Program p) {
         final GL gl = GLU.getCurrentGL();
 
-        if (vertexShaderID != -1) {
-            gl.glDetachObjectARB(programID, vertexShaderID);
-            gl.glDeleteObjectARB(vertexShaderID);
+        if (p.vertexShaderID != -1) {
+            gl.glDetachObjectARB(p.programID, p.vertexShaderID);
+            gl.glDeleteObjectARB(p.vertexShaderID);
         }
     }
 
+    /** Deletes a program which is no longer used by any state */
+    @Override
+    protected void deleteProgram(GLSLProgramCache.Program p) {
+        final GL gl = GLU.getCurrentGL();
+
+        removeVertShader(p);
+        removeFragShader(p);
+        if (p.programID != -1) {
+            gl.glDeleteObjectARB(p.programID);
+        }
+        p.vertexShaderID = -1;
+        p.fragmentShaderID = -1;
+        p.programID = -1;
+    }
+
     /**
      * Check for program errors. If an error is detected, program exits.
      *
@@ -312,9 +289,8 @@ public class JOGLShaderObjectsState extends GLSLShaderObjectsState {
                     .getStateRecord(StateType.GLSLShaderObjects);
             context.currentStates[StateType.GLSLShaderObjects.ordinal()] = this;
 
-            if (needSendShader){
-                sendToGL(vertShader, fragShader);
-            }
+            // Compiles, or shares an already compiled program
+            compile();
 
             if (shaderDataLogic != null) {
                 shaderDataLogic.applyData(this, geom);
@@ -324,9 +300,15 @@ public class JOGLShaderObjectsState extends GLSLShaderObjectsState {
                     needsRefresh()) {
                 record.setReference(this);
                 if (isEnabled()) {
+                    int programID = program != null ? program.programID : -1;
                     if (programID != -1) {
                         gl.glUseProgramObjectARB(programID);
 
+                        // Uniform values live in the program, so they have
+                        // to be sent again if another state shares it
+                        boolean reload = program.owner != this;
+                        program.owner = this;
+
                         for (int i = shaderAttributes.size(); --i >= 0;) {
                             ShaderVariable shaderVariable =
                                     shaderAttributes.get(i);
@@ -339,17 +321,8 @@ public class JOGLShaderObjectsState extends GLSLShaderObjectsState {
                                     .updateShaderAttribute(shaderVariable);
                         }
 
-                        for (int i = shaderUniforms.size(); --i >= 0;) {
-                            ShaderVariable shaderVariable =
-                                    shaderUniforms.get(i);
-                            if (shaderVariable.needsRefresh) {
-                                JOGLShaderUtil.updateUniformLocation(
-                                        shaderVariable, programID);
-                                JOGLShaderUtil
-                                        .updateShaderUniform(shaderVariable);
-                                shaderVariable.needsRefresh = false;
-                            }
-                        }
+                        // Only the uniforms which changed are sent
+                        updateUniforms(programID, reload);
                     }
                 } else {
                     gl.glUseProgramObjectARB(0);
@@ -361,6 +334,17 @@ public class JOGLShaderObjectsState extends GLSLShaderObjectsState {
         }
     }
 
+    @Override
+    protected void updateUniformLocation(ShaderVariable shaderVariable,
+            int programID) {
+        JOGLShaderUtil.updateUniformLocation(shaderVariable, programID);
+    }
+
+    @Override
+    protected void updateUniform(ShaderVariable shaderVariable) {
+        JOGLShaderUtil.updateShaderUniform(shaderVariable);
+    }
+
     @Override
     public StateRecord createStateRecord() {
         return new ShaderObjectsStateRecord();
@@ -393,6 +377,6 @@ public class JOGLShaderObjectsState extends GLSLShaderObjectsState {
      */
     public int getProgramIdentifier()
     {
-        return programID;
+        return program != null ? program.programID : -1;
     }
 }
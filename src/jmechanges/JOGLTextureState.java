@@ -74,6 +74,7 @@ import com.jme.system.DisplaySystem;
 import com.jme.util.Debug;
 import com.jme.util.TextureManager;
 import com.jme.util.geom.BufferUtils;
+import com.jme.util.geom.DirectBufferPool;
 import com.jme.util.stat.StatCollector;
 import com.jme.util.stat.StatType;
 
@@ -291,7 +292,7 @@ public class JOGLTextureState extends TextureState {
                 int dType = GL.GL_UNSIGNED_BYTE;
                 int bpp = com.jme.util.jogl.JOGLUtil.bytesPerPixel(format, dType);
                 ByteBuffer scaledImage = BufferUtils.createByteBuffer((w + 4)
-                        * h * bpp);
+                        * h * bpp, DirectBufferPool.Category.TEXTURE);
                 int error = glu.gluScaleImage(format, actualWidth,
                         actualHeight, dType, image.getData(0), w, h, dType,
                         scaledImage);
@@ -352,7 +353,8 @@ public class JOGLTextureState extends TextureState {
                             }
                             // reuse buffer if we can.
                             if (count != 1) {
-                                data = BufferUtils.createByteBuffer(dSize);
+                                data = BufferUtils.acquireByteBuffer(dSize,
+                                        DirectBufferPool.Category.TEXTURE);
                                 for (int x = 0; x < image.getData().size(); x++) {
                                     if (image.getData(x) != null) {
                                         data.put(image.getData(x));
@@ -370,6 +372,10 @@ public class JOGLTextureState extends TextureState {
                                     TextureStateRecord.getGLPixelFormat(image
                                             .getFormat()),
                                     GL.GL_UNSIGNED_BYTE, data);
+                            // The concatenated copy was only needed for the upload
+                            if (count != 1) {
+                                BufferUtils.releaseBuffer(data);
+                            }
                         } else {
                             logger
                                     .warning("This card does not support Texture3D.");
@@ -477,7 +483,8 @@ public class JOGLTextureState extends TextureState {
                                 }
                                 // reuse buffer if we can.
                                 if (count != 1) {
-                                    data = BufferUtils.createByteBuffer(dSize);
+                                    data = BufferUtils.acquireByteBuffer(dSize,
+                                            DirectBufferPool.Category.TEXTURE);
                                     for (int x = 0; x < image.getData().size(); x++) {
                                         if (image.getData(x) != null) {
                                             data.put(image.getData(x));
@@ -497,6 +504,10 @@ public class JOGLTextureState extends TextureState {
                                                 .getGLPixelFormat(image
                                                         .getFormat()),
                                         GL.GL_UNSIGNED_BYTE, data);
+                                // The concatenated copy was only needed for the upload
+                                if (count != 1) {
+                                    BufferUtils.releaseBuffer(data);
+                                }
                             } else {
                                 // Note: JOGL's GLU class does not support
                                 // gluBuild3DMipmaps.
@@ -566,6 +577,7 @@ public class JOGLTextureState extends TextureState {
                 // opengl. Then loop through all mipmaps and send them.
                 int[] mipSizes = image.getMipMapSizes();
                 ByteBuffer data = image.getData(0);
+                ByteBuffer concatenated = null;
                 if (type == Type.ThreeDimensional) {
                     if (supportsTexture3D) {
                         // concat data into single buffer:
@@ -580,7 +592,9 @@ public class JOGLTextureState extends TextureState {
                         }
                         // reuse buffer if we can.
                         if (count != 1) {
-                            data = BufferUtils.createByteBuffer(dSize);
+                            data = BufferUtils.acquireByteBuffer(dSize,
+                                    DirectBufferPool.Category.TEXTURE);
+                            concatenated = data;
                             for (int x = 0; x < image.getData().size(); x++) {
                                 if (image.getData(x) != null) {
                                     data.put(image.getData(x));
@@ -716,6 +730,10 @@ public class JOGLTextureState extends TextureState {
                     pos += mipSizes[m];
                 }
                 data.clear();
+                // Hand back the concatenated copy of 3D data
+                if (concatenated != null) {
+                    BufferUtils.releaseBuffer(concatenated);
+                }
             }
         }
     }
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2003-2009 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jme.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme.image.Image;
+import com.jme.image.Texture;
+
+/**
+ * <code>MappedTextureCache</code> reads and writes a binary texture cache
+ * file. The file holds an index, followed by the raw image data of each
+ * texture exactly as it is handed to OpenGL. When the file is opened the data
+ * section is memory mapped, and each image is created lazily, on request, as
+ * a view of the mapping, so nothing is decoded or copied.
+ * 
+ * The layout is a header (magic, version, entry count, index length), the
+ * index, then the data. All values are big endian.
+ * 
+ * @author Doug Twilleager
+ */
+public class MappedTextureCache {
+    private static final Logger logger = Logger
+            .getLogger(MappedTextureCache.class.getName());
+
+    private static final int MAGIC = 0x4D545443; // "MTTC"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * The index entry for one image
+     */
+    private static class IndexEntry {
+        Image.Format format;
+        int width;
+        int height;
+        int depth;
+        int[] mipMapSizes;
+        long[] offsets;
+        int[] lengths;
+    }
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long dataStart;
+
+    /**
+     * The whole data section, or null if it is too large for one mapping and
+     * must be mapped per image.
+     */
+    private MappedByteBuffer data;
+
+    private final HashMap<TextureKey, IndexEntry> index = new HashMap<TextureKey, IndexEntry>();
+
+    /**
+     * Open and map the given cache file.
+     * 
+     * @throws IOException
+     *             if the file can't be read or isn't a texture cache
+     */
+    public MappedTextureCache(File location) throws IOException {
+        file = new RandomAccessFile(location, "r");
+        channel = file.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a texture cache: " + location);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported texture cache version "
+                        + version + ": " + location);
+            }
+            int count = header.getInt();
+            int indexLength = header.getInt();
+
+            ByteBuffer indexData = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE, indexLength);
+            readIndex(indexData, count);
+
+            dataStart = HEADER_SIZE + indexLength;
+            long dataLength = channel.size() - dataStart;
+            if (dataLength <= Integer.MAX_VALUE) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, dataStart,
+                        dataLength);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void readIndex(ByteBuffer indexData, int count) throws IOException {
+        byte[] bytes = new byte[indexData.remaining()];
+        indexData.get(bytes);
+        DataInputStream in = new DataInputStream(
+                new java.io.ByteArrayInputStream(bytes));
+
+        for (int i = 0; i < count; i++) {
+            URL location = new URL(in.readUTF());
+            boolean flipped = in.readBoolean();
+            Image.Format keyFormat = Image.Format.valueOf(in.readUTF());
+            TextureKey key = new TextureKey(location, flipped, keyFormat);
+            if (in.readBoolean()) {
+                key.setFileType(in.readUTF());
+            }
+
+            IndexEntry e = new IndexEntry();
+            e.format = Image.Format.valueOf(in.readUTF());
+            e.width = in.readInt();
+            e.height = in.readInt();
+            e.depth = in.readInt();
+            int mips = in.readInt();
+            if (mips > 0) {
+                e.mipMapSizes = new int[mips];
+                for (int j = 0; j < mips; j++) {
+                    e.mipMapSizes[j] = in.readInt();
+                }
+            }
+            int buffers = in.readInt();
+            e.offsets = new long[buffers];
+            e.lengths = new int[buffers];
+            for (int j = 0; j < buffers; j++) {
+                e.offsets[j] = in.readLong();
+                e.lengths[j] = in.readInt();
+            }
+            index.put(key, e);
+        }
+    }
+
+    /**
+     * @return true if the cache has an image for the given key
+     */
+    public synchronized boolean contains(TextureKey key) {
+        return index.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Create the image for the given key. The image data are read only views
+     * of the mapped file.
+     * 
+     * @return the image, or null if it is not in the cache
+     */
+    public synchronized Image loadImage(TextureKey key) {
+        IndexEntry e = index.get(key);
+        if (e == null || channel == null) {
+            return null;
+        }
+
+        ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>(
+                e.offsets.length);
+        try {
+            for (int i = 0; i < e.offsets.length; i++) {
+                if (data != null) {
+                    ByteBuffer b = data.duplicate();
+                    b.position((int) e.offsets[i]);
+                    b.limit((int) e.offsets[i] + e.lengths[i]);
+                    buffers.add(b.slice());
+                } else {
+                    buffers.add(channel.map(FileChannel.MapMode.READ_ONLY,
+                            dataStart + e.offsets[i], e.lengths[i]));
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not map cached texture " + key, ex);
+            return null;
+        }
+
+        Image image = new Image();
+        image.setFormat(e.format);
+        image.setWidth(e.width);
+        image.setHeight(e.height);
+        image.setDepth(e.depth);
+        if (e.mipMapSizes != null) {
+            image.setMipMapSizes(e.mipMapSizes);
+        }
+        image.setData(buffers);
+        return image;
+    }
+
+    /**
+     * Close the file. Images which have already been loaded stay valid until
+     * they are garbage collected.
+     */
+    public synchronized void close() {
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close texture cache", e);
+        }
+        file = null;
+        channel = null;
+    }
+
+    /**
+     * Write a cache file holding the images of the given textures. Textures
+     * without a location can't be found again and are skipped.
+     */
+    public static void write(File location, Collection<Texture> textures)
+            throws IOException {
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(indexBytes);
+        ArrayList<ByteBuffer> payload = new ArrayList<ByteBuffer>();
+        long offset = 0;
+        int count = 0;
+
+        for (Texture t : textures) {
+            TextureKey key = t.getTextureKey();
+            Image image = t.getImage();
+            if (key == null || key.getLocation() == null || image == null
+                    || image.getData() == null) {
+                continue;
+            }
+
+            out.writeUTF(key.getLocation().toString());
+            out.writeBoolean(key.isFlipped());
+            out.writeUTF(key.getFormat().name());
+            out.writeBoolean(key.getFileType() != null);
+            if (key.getFileType() != null) {
+                out.writeUTF(key.getFileType());
+            }
+
+            out.writeUTF(image.getFormat().name());
+            out.writeInt(image.getWidth());
+            out.writeInt(image.getHeight());
+            out.writeInt(image.getDepth());
+            int[] mips = image.getMipMapSizes();
+            out.writeInt(mips == null ? 0 : mips.length);
+            if (mips != null) {
+                for (int i = 0; i < mips.length; i++) {
+                    out.writeInt(mips[i]);
+                }
+            }
+            out.writeInt(image.getData().size());
+            for (ByteBuffer b : image.getData()) {
+                ByteBuffer d = b.duplicate();
+                d.clear();
+                out.writeLong(offset);
+                out.writeInt(d.remaining());
+                payload.add(d);
+                offset += d.remaining();
+            }
+            count++;
+        }
+        out.flush();
+
+        FileOutputStream fos = new FileOutputStream(location);
+        try {
+            FileChannel fc = fos.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(
+                    indexBytes.size());
+            header.flip();
+            writeFully(fc, header);
+            writeFully(fc, ByteBuffer.wrap(indexBytes.toByteArray()));
+            for (ByteBuffer b : payload) {
+                writeFully(fc, b);
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer b)
+            throws IOException {
+        while (b.hasRemaining()) {
+            fc.write(b);
+        }
+    }
+}
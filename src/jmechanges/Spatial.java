@@ -37,6 +37,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Stack;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.jme.bounding.BoundingVolume;
 import com.jme.intersection.CollisionResults;
@@ -69,6 +71,9 @@ import com.jme.renderer.ColorRGBA;
  */
 public abstract class Spatial implements Serializable, Savable {
 
+    private static final Logger logger = Logger.getLogger(Spatial.class
+            .getName());
+
     /**
      * Describes how to combine textures from ancestor texturestates when an
      * updateRenderState is called on a Spatial.
@@ -601,6 +606,30 @@ public abstract class Spatial implements Serializable, Savable {
                 propagateBoundToRoot();
             }
         }
+        notifyGeometricUpdateListeners();
+    }
+
+    /**
+     * Tell the geometric update listeners that this spatial's world data
+     * has been updated. This is called at the end of updateGeometricState,
+     * once the world bound is up to date. If the GeometricUpdateDispatcher is
+     * collecting changes on this thread, the listeners are told when it
+     * ends the pass. A listener which throws is logged, so it can't abort
+     * the update of the rest of the graph.
+     */
+    public void notifyGeometricUpdateListeners() {
+        if (geometricUpdateListeners != null &&
+            !GeometricUpdateDispatcher.getInstance().defer(this)) {
+            for (int i = 0; i < geometricUpdateListeners.size(); i++) {
+                GeometricUpdateListener listener = geometricUpdateListeners.get(i);
+                try {
+                    listener.geometricDataChanged(this);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error in geometric update listener "
+                            + listener, e);
+                }
+            }
+        }
     }
 
     /**
@@ -611,6 +640,18 @@ public abstract class Spatial implements Serializable, Savable {
      *            the frame time.
      */
     public void updateWorldData(float time) {
+        updateLocalWorldData(time);
+    }
+
+    /**
+     * <code>updateLocalWorldData</code> runs this spatial's controllers and
+     * updates its world transforms, without updating any children. The
+     * parent's world transforms must already be up to date.
+     * 
+     * @param time
+     *            the frame time.
+     */
+    public void updateLocalWorldData(float time) {
         // update spatial state via controllers
         if (geometricalControllers != null) {
             for (int i = 0, gSize = geometricalControllers.size(); i < gSize; i++) {
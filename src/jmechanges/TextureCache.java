@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2003-2009 jMonkeyEngine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'jMonkeyEngine' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jme.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jme.image.Image;
+import com.jme.image.Texture;
+
+/**
+ * <code>TextureCache</code> holds the textures loaded by the
+ * <code>TextureManager</code>. It is safe to use from multiple threads, keeps
+ * its entries in least recently used order and can be bounded by the number of
+ * bytes of decoded image data it holds. Textures which are referenced by live
+ * geometry (see {@link #acquire(TextureKey)}) are never evicted. The GL ids of
+ * evicted textures are queued, see {@link #takeEvictedTextureIds()}.
+ * 
+ * @author Doug Twilleager
+ */
+public class TextureCache {
+
+    /**
+     * A cached texture, along with its size and reference count
+     */
+    private static class CacheEntry {
+        Texture texture;
+        long bytes;
+        int refCount;
+
+        CacheEntry(Texture texture, long bytes) {
+            this.texture = texture;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The entries, in access order, so the eldest is the least recently used
+     */
+    private final LinkedHashMap<TextureKey, CacheEntry> entries = new LinkedHashMap<TextureKey, CacheEntry>(
+            64, 0.75f, true);
+
+    /**
+     * Reference counts for keys which have been acquired but are not cached,
+     * so a texture added later starts with the right count.
+     */
+    private final Map<TextureKey, Integer> pendingRefs = new LinkedHashMap<TextureKey, Integer>();
+
+    private long maxBytes = Long.MAX_VALUE;
+    private long currentBytes = 0;
+
+    /**
+     * The GL ids of evicted textures, waiting to be deleted from the card by
+     * the thread which owns the context
+     */
+    private final ArrayList<Integer> evictedIds = new ArrayList<Integer>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long evictedBytes = 0;
+
+    /**
+     * Set the maximum number of bytes of image data to keep. Referenced
+     * textures are kept even when that exceeds the limit.
+     * 
+     * @param maxBytes
+     *            the limit, or Long.MAX_VALUE for no limit
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Look up a texture, counting the hit or miss.
+     */
+    public synchronized Texture get(TextureKey key) {
+        CacheEntry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.texture;
+    }
+
+    /**
+     * Look up a texture without touching the statistics or the LRU order.
+     */
+    public synchronized Texture peek(TextureKey key) {
+        CacheEntry e = entries.get(key);
+        return e == null ? null : e.texture;
+    }
+
+    /**
+     * Add a texture to the cache, evicting the least recently used
+     * unreferenced textures if the cache is now over its limit.
+     */
+    public synchronized void put(TextureKey key, Texture texture) {
+        CacheEntry e = new CacheEntry(texture, sizeOf(texture));
+        CacheEntry old = entries.put(key, e);
+        if (old != null) {
+            currentBytes -= old.bytes;
+            e.refCount = old.refCount;
+        } else {
+            Integer pending = pendingRefs.remove(key);
+            if (pending != null) {
+                e.refCount = pending.intValue();
+            }
+        }
+        currentBytes += e.bytes;
+        evict();
+    }
+
+    public synchronized boolean remove(TextureKey key) {
+        CacheEntry e = entries.remove(key);
+        if (e == null) {
+            return false;
+        }
+        currentBytes -= e.bytes;
+        return true;
+    }
+
+    /**
+     * Remove every texture. Reference counts are kept, so textures which are
+     * still in use are not evicted when they are added again.
+     */
+    public synchronized void clear() {
+        for (Map.Entry<TextureKey, CacheEntry> e : entries.entrySet()) {
+            if (e.getValue().refCount > 0) {
+                pendingRefs.put(e.getKey(), e.getValue().refCount);
+            }
+        }
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Note that a texture with the given key is in use by live geometry.
+     */
+    public synchronized void acquire(TextureKey key) {
+        CacheEntry e = entries.get(key);
+        if (e != null) {
+            e.refCount++;
+        } else {
+            Integer pending = pendingRefs.get(key);
+            pendingRefs.put(key, pending == null ? 1 : pending.intValue() + 1);
+        }
+    }
+
+    /**
+     * Note that a texture with the given key is no longer in use by a piece
+     * of live geometry. When its count drops to zero it becomes eligible for
+     * eviction.
+     */
+    public synchronized void release(TextureKey key) {
+        CacheEntry e = entries.get(key);
+        if (e != null) {
+            if (e.refCount > 0) {
+                e.refCount--;
+                if (e.refCount == 0) {
+                    evict();
+                }
+            }
+        } else {
+            Integer pending = pendingRefs.get(key);
+            if (pending != null) {
+                if (pending.intValue() <= 1) {
+                    pendingRefs.remove(key);
+                } else {
+                    pendingRefs.put(key, pending.intValue() - 1);
+                }
+            }
+        }
+    }
+
+    public synchronized int getReferenceCount(TextureKey key) {
+        CacheEntry e = entries.get(key);
+        return e == null ? 0 : e.refCount;
+    }
+
+    /**
+     * Take the GL ids of the textures evicted since the last call. The caller
+     * is responsible for deleting them from the card.
+     */
+    public synchronized int[] takeEvictedTextureIds() {
+        int[] ids = new int[evictedIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = evictedIds.get(i).intValue();
+        }
+        evictedIds.clear();
+        return ids;
+    }
+
+    /**
+     * @return a snapshot of the cached keys, in least recently used order
+     */
+    public synchronized List<TextureKey> keys() {
+        return new ArrayList<TextureKey>(entries.keySet());
+    }
+
+    /**
+     * @return a snapshot of the cached textures, in least recently used order
+     */
+    public synchronized List<Texture> values() {
+        ArrayList<Texture> list = new ArrayList<Texture>(entries.size());
+        for (CacheEntry e : entries.values()) {
+            list.add(e.texture);
+        }
+        return list;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        evictedBytes = 0;
+    }
+
+    /**
+     * Evict unreferenced textures, least recently used first, until the cache
+     * fits in its limit. Must be called with the lock held.
+     */
+    private void evict() {
+        if (currentBytes <= maxBytes) {
+            return;
+        }
+        Iterator<CacheEntry> it = entries.values().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            CacheEntry e = it.next();
+            if (e.refCount == 0) {
+                it.remove();
+                currentBytes -= e.bytes;
+                if (e.texture.getTextureId() != 0) {
+                    evictedIds.add(e.texture.getTextureId());
+                    e.texture.setTextureId(0);
+                }
+                evictions++;
+                evictedBytes += e.bytes;
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes of image data held by the texture
+     */
+    public static long sizeOf(Texture texture) {
+        long bytes = 0;
+        Image image = texture == null ? null : texture.getImage();
+        if (image != null && image.getData() != null) {
+            for (int i = 0; i < image.getData().size(); i++) {
+                ByteBuffer b = image.getData().get(i);
+                if (b != null) {
+                    bytes += b.capacity();
+                }
+            }
+        }
+        return bytes;
+    }
+}
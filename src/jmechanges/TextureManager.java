@@ -44,9 +44,15 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -71,6 +77,7 @@ import com.jme.util.export.Savable;
 import com.jme.util.export.binary.BinaryExporter;
 import com.jme.util.export.binary.BinaryImporter;
 import com.jme.util.geom.BufferUtils;
+import com.jme.util.geom.DirectBufferPool;
 import com.jme.util.resource.ResourceLocatorTool;
 import java.io.File;
 import java.util.Map.Entry;
@@ -90,7 +97,7 @@ final public class TextureManager {
     private static final Logger logger = Logger.getLogger(TextureManager.class
             .getName());
 
-    private static SavableHashMap<TextureKey, Texture> m_tCache = new SavableHashMap<TextureKey, Texture>();
+    private static final TextureCache m_tCache = new TextureCache();
     private static HashMap<String, ImageLoader> loaders = new HashMap<String, ImageLoader>();
     private static ArrayList<Integer> cleanupStore = new ArrayList<Integer>();
 
@@ -104,6 +111,21 @@ final public class TextureManager {
     
     private static boolean createOnHeap = false;
 
+    private static ExecutorService loadService = null;
+
+    private static volatile MappedTextureCache mappedCache = null;
+
+    private static int loadThreads = Math.max(1, Runtime.getRuntime()
+            .availableProcessors() - 1);
+
+    /**
+     * Notified, from a loader thread, when an asynchronous texture load
+     * completes.
+     */
+    public interface TextureLoadListener {
+        public void textureLoaded(TextureKey key, Texture texture);
+    }
+
     private TextureManager() {
     }
 
@@ -326,6 +348,95 @@ final public class TextureManager {
                 DEFAULT_MAG_FILTER, DEFAULT_ANISO_LEVEL);
     }
 
+    /**
+     * <code>loadTextureAsync</code> loads a texture on one of the texture
+     * loader threads, using the default filters. The number of threads is set
+     * with {@link #setLoadThreads(int)}.
+     * 
+     * @param tkey
+     *            the key of the texture to load
+     * @param listener
+     *            notified from the loader thread when the texture is loaded,
+     *            may be null
+     * @return a future for the loaded texture
+     */
+    public static Future<Texture> loadTextureAsync(TextureKey tkey,
+            TextureLoadListener listener) {
+        return loadTextureAsync(tkey, DEFAULT_MIN_FILTER, DEFAULT_MAG_FILTER,
+                DEFAULT_ANISO_LEVEL, listener);
+    }
+
+    public static Future<Texture> loadTextureAsync(final TextureKey tkey,
+            final Texture.MinificationFilter minFilter,
+            final Texture.MagnificationFilter magFilter,
+            final float anisoLevel, TextureLoadListener listener) {
+        LoadTask task = new LoadTask(tkey, new Callable<Texture>() {
+            public Texture call() {
+                return loadTexture(null, tkey, null, minFilter, magFilter,
+                        anisoLevel);
+            }
+        }, listener);
+        getLoadService().execute(task);
+        return task;
+    }
+
+    /**
+     * Set the number of threads used for asynchronous texture loads. This
+     * only takes effect if no asynchronous load has been done yet.
+     */
+    public static synchronized void setLoadThreads(int threads) {
+        loadThreads = Math.max(1, threads);
+    }
+
+    private static synchronized ExecutorService getLoadService() {
+        if (loadService == null) {
+            loadService = Executors.newFixedThreadPool(loadThreads,
+                    new ThreadFactory() {
+                        private int count = 0;
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "Texture Loader "
+                                    + count++);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return loadService;
+    }
+
+    /**
+     * A future which notifies a listener when it completes
+     */
+    private static class LoadTask extends FutureTask<Texture> {
+        private TextureKey key;
+        private TextureLoadListener listener;
+
+        LoadTask(TextureKey key, Callable<Texture> callable,
+                TextureLoadListener listener) {
+            super(callable);
+            this.key = key;
+            this.listener = listener;
+        }
+
+        protected void done() {
+            if (listener == null || isCancelled()) {
+                return;
+            }
+            Texture t = null;
+            try {
+                t = get();
+            } catch (InterruptedException e) {
+                logger.log(Level.WARNING, "Texture load interrupted", e);
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Could not load texture " + key, e
+                        .getCause());
+            }
+            listener.textureLoaded(key, t != null ? t : TextureState
+                    .getDefaultTexture());
+        }
+    }
+
     public static com.jme.image.Texture loadTexture(Texture texture,
             TextureKey tkey, com.jme.image.Image imageData,
             Texture.MinificationFilter minFilter,
@@ -351,6 +462,9 @@ final public class TextureManager {
             return texture;
         }
 
+        if (imageData == null && mappedCache != null)
+            imageData = mappedCache.loadImage(tkey);
+
         if (imageData == null)
             imageData = loadImage(tkey);
 
@@ -413,6 +527,47 @@ final public class TextureManager {
         }
     }
 
+    /**
+     * @return the cache holding all loaded textures
+     */
+    public static TextureCache getCache() {
+        return m_tCache;
+    }
+
+    /**
+     * Set the maximum number of bytes of decoded image data the texture cache
+     * holds. Textures referenced by live geometry are never evicted. Evicted
+     * textures are deleted from the card by deleteEvictedTextures(), so a
+     * texture used outside of live geometry should be held with
+     * acquireTexture().
+     * 
+     * @param maxBytes
+     *            the limit, or Long.MAX_VALUE for no limit (the default)
+     */
+    public static void setCacheLimit(long maxBytes) {
+        m_tCache.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Note that the given texture is in use by live geometry, so it is kept
+     * in the cache.
+     */
+    public static void acquireTexture(Texture texture) {
+        if (texture != null && texture.getTextureKey() != null) {
+            m_tCache.acquire(texture.getTextureKey());
+        }
+    }
+
+    /**
+     * Note that the given texture is no longer in use by a piece of live
+     * geometry.
+     */
+    public static void unacquireTexture(Texture texture) {
+        if (texture != null && texture.getTextureKey() != null) {
+            m_tCache.release(texture.getTextureKey());
+        }
+    }
+
     public static com.jme.image.Texture loadTexture(java.awt.Image image,
             Texture.MinificationFilter minFilter,
             Texture.MagnificationFilter magFilter, boolean flipped) {
@@ -630,6 +785,14 @@ final public class TextureManager {
             return null;
         boolean hasAlpha = hasAlpha(image), grayscale = isGreyscale(image);
         BufferedImage tex;
+
+        if (image instanceof BufferedImage) {
+            com.jme.image.Image direct = loadImageDirect((BufferedImage) image,
+                    hasAlpha, grayscale, flipImage);
+            if (direct != null) {
+                return direct;
+            }
+        }
         
         if (flipImage
                 || !(image instanceof BufferedImage)
@@ -677,7 +840,7 @@ final public class TextureManager {
         // Get a pointer to the image memory
         byte data[] = (byte[]) tex.getRaster().getDataElements(0, 0,
                 tex.getWidth(), tex.getHeight(), null);
-        ByteBuffer scratch = createOnHeap ? BufferUtils.createByteBufferOnHeap(data.length) : BufferUtils.createByteBuffer(data.length);
+        ByteBuffer scratch = createOnHeap ? BufferUtils.createByteBufferOnHeap(data.length) : BufferUtils.createByteBuffer(data.length, DirectBufferPool.Category.TEXTURE);
         scratch.clear();
         scratch.put(data);
         scratch.flip();
@@ -690,6 +853,65 @@ final public class TextureManager {
         return textureImage;
     }
 
+    /**
+     * Copy a BufferedImage straight into the destination buffer, one row at a
+     * time, flipping and swizzling on the way. This avoids creating an
+     * intermediate BufferedImage and byte array.
+     * 
+     * @return the image, or null if this image can't be handled here.
+     */
+    private static com.jme.image.Image loadImageDirect(BufferedImage image,
+            boolean hasAlpha, boolean grayscale, boolean flipImage) {
+        int type = image.getType();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int bpp = grayscale ? 1 : hasAlpha ? 4 : 3;
+
+        // The rasters of these types already hold R,G,B(,A) in band order
+        boolean bandOrder = grayscale ? type == BufferedImage.TYPE_BYTE_GRAY
+                : hasAlpha ? type == BufferedImage.TYPE_4BYTE_ABGR
+                        : type == BufferedImage.TYPE_3BYTE_BGR;
+        if (grayscale && !bandOrder) {
+            return null;
+        }
+
+        ByteBuffer scratch = createOnHeap ? BufferUtils
+                .createByteBufferOnHeap(width * height * bpp) : BufferUtils
+                .createByteBuffer(width * height * bpp,
+                        DirectBufferPool.Category.TEXTURE);
+        byte[] row = new byte[width * bpp];
+        int[] argb = bandOrder ? null : new int[width];
+
+        scratch.clear();
+        for (int y = 0; y < height; y++) {
+            int srcRow = flipImage ? height - 1 - y : y;
+            if (bandOrder) {
+                image.getRaster().getDataElements(0, srcRow, width, 1, row);
+            } else {
+                image.getRGB(0, srcRow, width, 1, argb, 0, width);
+                for (int x = 0, i = 0; x < width; x++) {
+                    int pixel = argb[x];
+                    row[i++] = (byte) (pixel >> 16);
+                    row[i++] = (byte) (pixel >> 8);
+                    row[i++] = (byte) pixel;
+                    if (hasAlpha) {
+                        row[i++] = (byte) (pixel >>> 24);
+                    }
+                }
+            }
+            scratch.put(row);
+        }
+        scratch.flip();
+
+        com.jme.image.Image textureImage = new com.jme.image.Image();
+        textureImage.setFormat(grayscale ? Image.Format.Alpha8
+                : hasAlpha ? Image.Format.RGBA8 : Image.Format.RGB8);
+        textureImage.setWidth(width);
+        textureImage.setHeight(height);
+        textureImage.setData(scratch);
+        return textureImage;
+    }
+
     /**
      * <code>loadBMPImage</code> because bitmap is not directly supported by
      * Java, we must load it manually. The requires opening a stream to the file
@@ -789,22 +1011,22 @@ final public class TextureManager {
         if (texture == null)
             return false;
 
-        Collection<TextureKey> c = m_tCache.keySet();
-        Iterator<TextureKey> it = c.iterator();
-        TextureKey key;
-        Texture next;
-        while (it.hasNext()) {
-            key = it.next();
-            next = m_tCache.get(key);
-            if (texture.equals(next)) {
-                return releaseTexture(key);
+        // The key normally finds the texture directly
+        TextureKey key = texture.getTextureKey();
+        if (key != null && texture.equals(m_tCache.peek(key))) {
+            return releaseTexture(key);
+        }
+
+        for (TextureKey next : m_tCache.keys()) {
+            if (texture.equals(m_tCache.peek(next))) {
+                return releaseTexture(next);
             }
         }
         return false;
     }
 
     public static boolean releaseTexture(TextureKey tKey) {
-        return m_tCache.remove(tKey) != null;
+        return m_tCache.remove(tKey);
     }
 
     public static void clearCache() {
@@ -831,7 +1053,7 @@ final public class TextureManager {
     }
 
     public static void registerForCleanup(TextureKey textureKey, int textureId) {
-        Texture t = m_tCache.get(textureKey);
+        Texture t = m_tCache.peek(textureKey);
         if (t != null) {
             t.setTextureId(textureId);
         }
@@ -855,6 +1077,26 @@ final public class TextureManager {
         }
     }
 
+    /**
+     * Delete the textures evicted from the cache from the card. This must be
+     * called from the thread which owns the GL context.
+     */
+    public static void deleteEvictedTextures() {
+        int[] ids = m_tCache.takeEvictedTextureIds();
+        if (ids.length == 0 || DisplaySystem.getDisplaySystem() == null
+                || DisplaySystem.getDisplaySystem().getRenderer() == null)
+            return;
+
+        TextureState ts = (TextureState)Renderer.defaultStateList[RenderState.StateType.Texture.ordinal()];
+        for (int i = 0; i < ids.length; i++) {
+            cleanupStore.remove(Integer.valueOf(ids[i]));
+            try {
+                ts.deleteTextureId(ids[i]);
+            } catch (Exception e) {
+            } // ignore.
+        }
+    }
+
     public static void deleteTextureFromCard(Texture tex) {
         if (tex == null || DisplaySystem.getDisplaySystem() == null
                 || DisplaySystem.getDisplaySystem().getRenderer() == null)
@@ -891,19 +1133,59 @@ final public class TextureManager {
 
     public static void writeCache(File location) throws IOException
     {
+        SavableHashMap<TextureKey, Texture> map = new SavableHashMap<TextureKey, Texture>();
+        for (TextureKey key : m_tCache.keys()) {
+            Texture t = m_tCache.peek(key);
+            if (t != null) {
+                map.put(key, t);
+            }
+        }
         BinaryExporter exporter = new BinaryExporter();
-        exporter.save(m_tCache, location);
+        exporter.save(map, location);
+    }
+
+    /**
+     * Write the image data of every cached texture to a file which can later
+     * be memory mapped with {@link #openMappedCache(File)}.
+     */
+    public static void writeMappedCache(File location) throws IOException {
+        MappedTextureCache.write(location, m_tCache.values());
+    }
+
+    /**
+     * Map a cache file written by {@link #writeMappedCache(File)}. Textures
+     * which miss the in memory cache are then created from the mapped file,
+     * when it has them, instead of being decoded.
+     */
+    public static synchronized void openMappedCache(File location)
+            throws IOException {
+        closeMappedCache();
+        mappedCache = new MappedTextureCache(location);
+    }
+
+    public static synchronized void closeMappedCache() {
+        if (mappedCache != null) {
+            mappedCache.close();
+            mappedCache = null;
+        }
     }
 
     public static void readCache(File location) throws IOException
     {
         BinaryImporter importer = new BinaryImporter();
-        m_tCache = (SavableHashMap<TextureKey, Texture>) importer.load(location);
+        putAll((SavableHashMap<TextureKey, Texture>) importer.load(location));
     }
 
     public static void readCache(URL location) throws IOException
     {
         BinaryImporter importer = new BinaryImporter();
-        m_tCache = (SavableHashMap<TextureKey, Texture>) importer.load(location);
+        putAll((SavableHashMap<TextureKey, Texture>) importer.load(location));
+    }
+
+    private static void putAll(SavableHashMap<TextureKey, Texture> map) {
+        m_tCache.clear();
+        for (Entry<TextureKey, Texture> e : map.entrySet()) {
+            m_tCache.put(e.getKey(), e.getValue());
+        }
     }
 }